@@ -9,6 +9,8 @@ import java.util.List;
 
 /**
  * Created by HalfLeif on 2014-03-11.
+ *
+ * Puts and gets return a future of their own operation. The operations are also told to the added listeners.
  */
 public interface NetworkInterface {
 
@@ -24,13 +26,13 @@ public interface NetworkInterface {
 
     void bootstrap();
 
-    void put(String name, Data value);
+    OperationFuture<Data> put(String name, Data value);
 
-    void put(Number160 key, Data value);
+    OperationFuture<Data> put(Number160 key, Data value);
 
-    void get(String name);
+    OperationFuture<Data> get(String name);
 
-    void get(Number160 key);
+    OperationFuture<Data> get(Number160 key);
 
     List<PeerAddress> getNeighbours();
 
@@ -40,9 +42,9 @@ public interface NetworkInterface {
 
     void send(String msg);
 
-    void put(Number160 key, Number160 domain, Data value);
+    OperationFuture<Data> put(Number160 key, Number160 domain, Data value);
 
-    void get(Number160 key, Number160 domain);
+    OperationFuture<Data> get(Number160 key, Number160 domain);
 
     void deleteNeighbourFile();
 
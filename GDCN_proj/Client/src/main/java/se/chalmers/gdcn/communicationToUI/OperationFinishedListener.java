@@ -5,6 +5,9 @@ import java.beans.PropertyChangeListener;
 
 /**
  * Created by HalfLeif on 2014-04-02.
+ *
+ * Prefer the {@link OperationFuture} returned by the operation, this listener is kept for code that adds
+ * listeners to the {@link NetworkInterface}.
  */
 
 public abstract class OperationFinishedListener implements PropertyChangeListener {
@@ -41,6 +44,14 @@ public abstract class OperationFinishedListener implements PropertyChangeListene
         }
     }
 
+    CommandWord getCommandWord() {
+        return commandWord;
+    }
+
+    Object getResultKey() {
+        return resultKey;
+    }
+
     /**
      * Operation finished. Listener will be removed after this is called. Here is the result of the operation.
      *
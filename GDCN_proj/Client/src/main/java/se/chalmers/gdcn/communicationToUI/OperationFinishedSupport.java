@@ -2,13 +2,21 @@ package se.chalmers.gdcn.communicationToUI;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by HalfLeif on 2014-02-26.
+ *
+ * {@link OperationFinishedListener}s only care about one key, so they are kept by CommandWord and key and only told
+ * about their own operation. Other listeners are told about every operation.
  */
 public class OperationFinishedSupport {
 
     private final PropertyChangeSupport propertyChangeSupport;
+    private final Map<OperationKey, List<OperationFinishedListener>> keyedListeners = new HashMap<>();
 
     private final Object source;
 
@@ -28,6 +36,18 @@ public class OperationFinishedSupport {
      * @param event event to fire
      */
     public void fireOperationFinished(OperationFinishedEvent event){
+        final OperationKey key = new OperationKey(event.getCommandWord(), event.getOperation().getKey());
+        final List<OperationFinishedListener> listeners;
+        synchronized (keyedListeners){
+            List<OperationFinishedListener> registered = keyedListeners.get(key);
+            //Copied since listeners remove themselves when they are told
+            listeners = registered == null ? null : new ArrayList<>(registered);
+        }
+        if(listeners != null){
+            for(OperationFinishedListener listener : listeners){
+                listener.propertyChange(event);
+            }
+        }
         propertyChangeSupport.firePropertyChange(event);
     }
 
@@ -45,6 +65,19 @@ public class OperationFinishedSupport {
      * @param listener listener
      */
     public void addListener(PropertyChangeListener listener){
+        if(listener instanceof OperationFinishedListener){
+            OperationFinishedListener keyed = (OperationFinishedListener) listener;
+            final OperationKey key = new OperationKey(keyed.getCommandWord(), keyed.getResultKey());
+            synchronized (keyedListeners){
+                List<OperationFinishedListener> listeners = keyedListeners.get(key);
+                if(listeners == null){
+                    listeners = new ArrayList<>(1);
+                    keyedListeners.put(key, listeners);
+                }
+                listeners.add(keyed);
+            }
+            return;
+        }
         propertyChangeSupport.addPropertyChangeListener(listener);
     }
 
@@ -53,6 +86,43 @@ public class OperationFinishedSupport {
      * @param listener listener
      */
     public void removeListener(PropertyChangeListener listener){
+        if(listener instanceof OperationFinishedListener){
+            OperationFinishedListener keyed = (OperationFinishedListener) listener;
+            final OperationKey key = new OperationKey(keyed.getCommandWord(), keyed.getResultKey());
+            synchronized (keyedListeners){
+                List<OperationFinishedListener> listeners = keyedListeners.get(key);
+                if(listeners != null && listeners.remove(keyed) && listeners.isEmpty()){
+                    keyedListeners.remove(key);
+                }
+            }
+            return;
+        }
         propertyChangeSupport.removePropertyChangeListener(listener);
     }
+
+    private static class OperationKey {
+        private final CommandWord commandWord;
+        private final Object key;
+
+        private OperationKey(CommandWord commandWord, Object key) {
+            this.commandWord = commandWord;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof OperationKey)) return false;
+
+            OperationKey that = (OperationKey) o;
+            return commandWord == that.commandWord && (key == null ? that.key == null : key.equals(that.key));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = commandWord != null ? commandWord.hashCode() : 0;
+            result = 31 * result + (key != null ? key.hashCode() : 0);
+            return result;
+        }
+    }
 }
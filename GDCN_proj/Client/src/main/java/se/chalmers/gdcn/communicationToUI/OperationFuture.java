@@ -0,0 +1,113 @@
+package se.chalmers.gdcn.communicationToUI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle to a single operation, such as a put or get in the DHT, that is completed once.
+ *
+ * Unlike listeners added to the {@link NetworkInterface} it is only told about its own operation, so no one has to
+ * filter the operations of everyone else by key.
+ *
+ * @param <E> result type of the operation
+ */
+public class OperationFuture<E> {
+
+    /**
+     * Is called once, in the thread that completed the operation or in the thread that added the listener
+     * if the operation was already done.
+     */
+    public static interface Listener<E> {
+        void operationFinished(Operation<E> operation);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Listener<E>> listeners = new ArrayList<>(1);
+
+    private volatile Operation<E> operation = null;
+
+    /**
+     * @param operation result of the operation
+     * @return false if the operation was already completed, in which case nothing is changed
+     */
+    public boolean complete(Operation<E> operation){
+        if(operation == null){
+            throw new IllegalArgumentException("Operation must not be null");
+        }
+        final List<Listener<E>> toNotify;
+        synchronized (this){
+            if(this.operation != null){
+                return false;
+            }
+            this.operation = operation;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        done.countDown();
+
+        for(Listener<E> listener : toNotify){
+            notify(listener, operation);
+        }
+        return true;
+    }
+
+    /**
+     * @param listener Called when the operation is completed, directly if it already is
+     * @return this future
+     */
+    public OperationFuture<E> addListener(Listener<E> listener){
+        synchronized (this){
+            if(operation == null){
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notify(listener, operation);
+        return this;
+    }
+
+    /**
+     * @return if the operation is completed
+     */
+    public boolean isDone(){
+        return operation != null;
+    }
+
+    /**
+     * @return the completed operation, or null if it isn't completed yet
+     */
+    public Operation<E> getOperation(){
+        return operation;
+    }
+
+    /**
+     * Blocks until the operation is completed.
+     * @return the completed operation
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Operation<E> await() throws InterruptedException {
+        done.await();
+        return operation;
+    }
+
+    /**
+     * Blocks until the operation is completed or the time has passed.
+     * @return the completed operation, or null if it wasn't completed in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Operation<E> await(long timeout, TimeUnit unit) throws InterruptedException {
+        done.await(timeout, unit);
+        return operation;
+    }
+
+    private static <E> void notify(Listener<E> listener, Operation<E> operation){
+        //A failing listener must not keep the others from being told
+        try {
+            listener.operationFinished(operation);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -129,7 +129,7 @@ public class QualityControl {
             Validifier validifier = new Validifier(listener);
             ValidifierRunner runner = new ValidifierRunner(validifier, resultFile);
 
-            ThreadService.submit(runner);
+            ThreadService.submit(ThreadService.Pool.PROCESS, runner);
             //new Thread(runner).start();
         }
         try {
@@ -175,9 +175,10 @@ public class PeerOwner implements se.chalmers.gdcn.communicationToUI.ClientInter
     }
 
     @Override
-    public void put(final String name, final Data value){
+    public OperationFuture<Data> put(final String name, final Data value){
         //TODO this method might not be used by TaskPasser at all when uploading files...
         //TODO Remove entirely? Good for debug and is used by JobUploader.
+        final OperationFuture<Data> operationFuture = new OperationFuture<>();
         FutureDHT futureDHT = peer.put(Number160.createHash(name)).setData(value).start();
         futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() {
 
@@ -185,13 +186,15 @@ public class PeerOwner implements se.chalmers.gdcn.communicationToUI.ClientInter
             public void operationComplete(FutureDHT future) throws Exception {
                 boolean success = future.isSuccess();
 
-                notifier.fireOperationFinished(CommandWord.PUT, new OperationBuilder<Data>(success).setResult(value).setKey(name).create());
+                finished(CommandWord.PUT, new OperationBuilder<Data>(success).setResult(value).setKey(name).create(), operationFuture);
             }
         });
+        return operationFuture;
     }
 
     @Override
-    public void put(final Number160 key, final Data value) {
+    public OperationFuture<Data> put(final Number160 key, final Data value) {
+        final OperationFuture<Data> operationFuture = new OperationFuture<>();
         FutureDHT futureDHT = peer.put(key).setData(value).start();
         futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() {
 
@@ -199,13 +202,15 @@ public class PeerOwner implements se.chalmers.gdcn.communicationToUI.ClientInter
             public void operationComplete(FutureDHT future) throws Exception {
                 boolean success = future.isSuccess();
 
-                notifier.fireOperationFinished(CommandWord.PUT, new OperationBuilder<Data>(success).setResult(value).setKey(key).create());
+                finished(CommandWord.PUT, new OperationBuilder<Data>(success).setResult(value).setKey(key).create(), operationFuture);
             }
         });
+        return operationFuture;
     }
 
     @Override
-    public void put(final Number160 key, final Number160 domain, final Data value){
+    public OperationFuture<Data> put(final Number160 key, final Number160 domain, final Data value){
+        final OperationFuture<Data> operationFuture = new OperationFuture<>();
         FutureDHT futureDHT = peer.put(key).setData(value).setDomainKey(domain).start();
         futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() {
 
@@ -213,36 +218,46 @@ public class PeerOwner implements se.chalmers.gdcn.communicationToUI.ClientInter
             public void operationComplete(FutureDHT future) throws Exception {
                 boolean success = future.isSuccess();
 
-                notifier.fireOperationFinished(CommandWord.PUT, new OperationBuilder<Data>(success).setResult(value).setKey(key).create());
+                finished(CommandWord.PUT, new OperationBuilder<Data>(success).setResult(value).setKey(key).create(), operationFuture);
             }
         });
+        return operationFuture;
     }
 
     @Override
-    public void get(final String name){
+    public OperationFuture<Data> get(final String name){
+        final OperationFuture<Data> operationFuture = new OperationFuture<>();
         FutureDHT futureDHT = peer.get(Number160.createHash(name)).start();
         futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() {
             @Override
             public void operationComplete(FutureDHT future) throws Exception {
                 boolean success = future.isSuccess();
-                notifier.fireOperationFinished(CommandWord.GET,
-                        new OperationBuilder<Data>(success).setKey(name).setResult(future.getData()).create());
+                finished(CommandWord.GET, new OperationBuilder<Data>(success).setKey(name).setResult(future.getData()).create(), operationFuture);
             }
         });
-
+        return operationFuture;
     }
 
     @Override
-    public void get(final Number160 key) {
+    public OperationFuture<Data> get(final Number160 key) {
+        final OperationFuture<Data> operationFuture = new OperationFuture<>();
         FutureDHT futureDHT = peer.get(key).start();
         futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() {
             @Override
             public void operationComplete(FutureDHT future) throws Exception {
                 boolean success = future.isSuccess();
-                notifier.fireOperationFinished(CommandWord.GET,
-                        new OperationBuilder<Data>(success).setKey(key).setResult(future.getData()).create());
+                finished(CommandWord.GET, new OperationBuilder<Data>(success).setKey(key).setResult(future.getData()).create(), operationFuture);
             }
         });
+        return operationFuture;
+    }
+
+    /**
+     * Completes the future of the operation before the listeners of this client are told.
+     */
+    private <E> void finished(CommandWord commandWord, Operation<E> operation, OperationFuture<E> future){
+        future.complete(operation);
+        notifier.fireOperationFinished(commandWord, operation);
     }
 
     @Override
@@ -377,16 +392,17 @@ public class PeerOwner implements se.chalmers.gdcn.communicationToUI.ClientInter
     }
 
     @Override
-    public void get(final Number160 key, final Number160 domain){
+    public OperationFuture<Data> get(final Number160 key, final Number160 domain){
+        final OperationFuture<Data> operationFuture = new OperationFuture<>();
         FutureDHT futureDHT = peer.get(key).setDomainKey(domain).start();
         futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() {
             @Override
             public void operationComplete(FutureDHT future) throws Exception {
                 boolean success = future.isSuccess();
-                notifier.fireOperationFinished(CommandWord.GET,
-                        new OperationBuilder<Data>(success).setKey(key).setResult(future.getData()).create());
+                finished(CommandWord.GET, new OperationBuilder<Data>(success).setKey(key).setResult(future.getData()).create(), operationFuture);
             }
         });
+        return operationFuture;
     }
 
 
@@ -497,11 +513,11 @@ public class PeerOwner implements se.chalmers.gdcn.communicationToUI.ClientInter
             System.out.println("See if "+replicaID+" has uploaded something");
 
             Number160 key = pendingResults.get(replicaID);
-            addListener(new OperationFinishedListener(this, key, CommandWord.PUT) {
+            this.get(key).addListener(new OperationFuture.Listener<Data>() {
                 @Override
-                protected void operationFinished(Operation operation) {
+                public void operationFinished(Operation<Data> operation) {
                     if(operation.isSuccess()){
-                        Data result = (Data) operation.getResult();
+                        Data result = operation.getResult();
                         try {
                             byte[] resultObject = (byte[]) result.getObject();
                             System.out.println("Result downloaded for "+replicaID+" on "+resultObject.length+" bytes.");
@@ -514,7 +530,6 @@ public class PeerOwner implements se.chalmers.gdcn.communicationToUI.ClientInter
                     }
                 }
             });
-            this.get(key);
         }
     }
 
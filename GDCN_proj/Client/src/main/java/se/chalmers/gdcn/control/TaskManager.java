@@ -2,6 +2,8 @@ package se.chalmers.gdcn.control;
 
 import net.tomp2p.peers.PeerAddress;
 import se.chalmers.gdcn.communicationToUI.ClientInterface;
+import se.chalmers.gdcn.communicationToUI.Operation;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
 import se.chalmers.gdcn.files.Downloader;
 import se.chalmers.gdcn.files.JobUploader;
 import se.chalmers.gdcn.files.TaskMeta;
@@ -13,6 +15,7 @@ import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskFailureListener;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskListener;
 
 import java.io.FileNotFoundException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by HalfLeif on 2014-02-28.
@@ -23,6 +26,7 @@ public class TaskManager implements TaskRunner {
 
     private final TaskListener taskListener;
     private final ClientInterface client;
+    private final WorkScheduler workScheduler = new WorkScheduler();
 
     /**
      *
@@ -37,14 +41,14 @@ public class TaskManager implements TaskRunner {
     //TODO handle Listeners more nicely...
 
     /**
-     * Submits a runnable to run concurrently in the thread pool.
-     * Is currently used for solving challenges concurrently.
+     * Submits a runnable to run concurrently in the process pool.
+     * Is currently used for working on tasks locally.
      *
      * @param runnable Runnable
      */
     @Override
     public void submit(Runnable runnable){
-        ThreadService.submit(runnable);
+        ThreadService.submit(ThreadService.Pool.PROCESS, runnable);
     }
 
     @Override
@@ -52,6 +56,13 @@ public class TaskManager implements TaskRunner {
         return taskListener;
     }
 
+    /**
+     * @return scheduler of the tasks this client works on
+     */
+    public WorkScheduler getWorkScheduler() {
+        return workScheduler;
+    }
+
     /**
      * Work on this task
      * @param projectName Name of working directory that contains /resources etc
@@ -61,13 +72,31 @@ public class TaskManager implements TaskRunner {
      */
     public void startTask(final String projectName, final TaskMeta taskMeta, final StringHolder resultFileNameHolder,
                           final PeerAddress jobOwner, final TaskListener subjectListener){
+        startTask(projectName, taskMeta, resultFileNameHolder, jobOwner, subjectListener, null);
+    }
+
+    /**
+     * Work on this task. Its dependencies are downloaded at once but it waits for a free slot in the
+     * {@link WorkScheduler} before it runs.
+     * @param projectName Name of working directory that contains /resources etc
+     * @param taskMeta Meta information of the task
+     * @param resultFileNameHolder Holder that will contain the absolute path of the future result file of this task.
+     * @param subjectListener Can be null, will be combined with the TaskManagers own listener.
+     * @param onSlotFreed Can be null, is run when the task has run successfully and the scheduler wants more tasks.
+     */
+    public void startTask(final String projectName, final TaskMeta taskMeta, final StringHolder resultFileNameHolder,
+                          final PeerAddress jobOwner, final TaskListener subjectListener, Runnable onSlotFreed){
+
+        workScheduler.submit(new WorkScheduler.Job() {
+
+            private Task task = null;
+            private final AtomicBoolean succeeded = new AtomicBoolean(false);
 
-        ThreadService.submit(new Runnable() {
             @Override
-            public void run() {
+            public void prepare(final WorkScheduler.Prepared onPrepared) {
                 //Delegates error passing to client (ie PeerOwner). Makes call to his listeners
                 try {
-                    Downloader downloader = new Downloader(taskMeta, projectName, client, jobOwner,new TaskFailureListener() {
+                    final Downloader downloader = new Downloader(taskMeta, projectName, client, jobOwner,new TaskFailureListener() {
                         @Override
                         public void taskFailed(String taskName, String reason) {
                             if(subjectListener != null){
@@ -76,42 +105,60 @@ public class TaskManager implements TaskRunner {
                             taskListener.taskFailed(taskName, reason);
                         }
                     });
-                    boolean success = downloader.runAndAwait();
                     resultFileNameHolder.setString(downloader.futureResultFilePath());
 
-                    if(!success){
-                        TaskManager.this.taskListener.taskFailed(taskMeta.getTaskName(), "Unresolved dependencies");
-                        return;
-                    }
-
-                    Task task = downloader.buildTask(new TaskListener() {
+                    downloader.resolve().addListener(new OperationFuture.Listener<Void>() {
                         @Override
-                        public void taskFinished(String taskName) {
-                            if(subjectListener != null){
-                                subjectListener.taskFinished(taskName);
+                        public void operationFinished(Operation<Void> operation) {
+                            if(!operation.isSuccess()){
+                                TaskManager.this.taskListener.taskFailed(taskMeta.getTaskName(), "Unresolved dependencies");
+                                onPrepared.prepared(false);
+                                return;
                             }
-                            taskListener.taskFinished(taskName);
-                        }
 
-                        @Override
-                        public void taskFailed(String taskName, String reason) {
-                            if(subjectListener != null){
-                                subjectListener.taskFailed(taskName, reason);
-                            }
-                            taskListener.taskFailed(taskName, reason);
+                            task = downloader.buildTask(new TaskListener() {
+                                @Override
+                                public void taskFinished(String taskName) {
+                                    succeeded.set(true);
+                                    if(subjectListener != null){
+                                        subjectListener.taskFinished(taskName);
+                                    }
+                                    taskListener.taskFinished(taskName);
+                                }
+
+                                @Override
+                                public void taskFailed(String taskName, String reason) {
+                                    if(subjectListener != null){
+                                        subjectListener.taskFailed(taskName, reason);
+                                    }
+                                    taskListener.taskFailed(taskName, reason);
+                                }
+                            });
+                            onPrepared.prepared(true);
                         }
                     });
-                    ThreadService.submit(task);
                 } catch (TaskMetaDataException e) {
                     e.printStackTrace();
                     if(subjectListener != null) {
                         subjectListener.taskFailed(taskMeta.getTaskName(), e.getMessage());
                     }
                     taskListener.taskFailed(taskMeta.getTaskName(), e.getMessage());
+                    onPrepared.prepared(false);
                 }
+            }
 
+            @Override
+            public boolean execute() {
+                task.run();
+                if(task.getCompileTime() >= 0){
+                    workScheduler.record(WorkScheduler.Stage.COMPILE, task.getCompileTime());
+                }
+                if(task.getExecuteTime() >= 0){
+                    workScheduler.record(WorkScheduler.Stage.EXECUTE, task.getExecuteTime());
+                }
+                return succeeded.get();
             }
-        });
+        }, onSlotFreed);
     }
 
     /**
@@ -120,19 +167,22 @@ public class TaskManager implements TaskRunner {
      * @param replicaManager Manager that will produce replicas of each task
      */
     public void uploadJob(final String jobName, final ReplicaManager replicaManager){
-        ThreadService.submit(new Runnable() {
+        ThreadService.submit(ThreadService.Pool.IO, new Runnable() {
             @Override
             public void run() {
                 try {
                     JobUploader jobUploader = JobUploader.create(jobName, client, taskListener, replicaManager);
-                    boolean success = jobUploader.runAndAwait();
-
-                    if(!success){
-                        taskListener.taskFailed(jobName, "Unresolved dependencies");
-                    } else {
-                        taskListener.taskFinished(jobName);
-                        System.out.println("push done");
-                    }
+                    jobUploader.resolve().addListener(new OperationFuture.Listener<Void>() {
+                        @Override
+                        public void operationFinished(Operation<Void> operation) {
+                            if(!operation.isSuccess()){
+                                taskListener.taskFailed(jobName, "Unresolved dependencies");
+                            } else {
+                                taskListener.taskFinished(jobName);
+                                System.out.println("push done");
+                            }
+                        }
+                    });
                 } catch (FileNotFoundException e) {
                     e.printStackTrace();
                 } catch (TaskMetaDataException e) {
@@ -1,32 +1,276 @@
 package se.chalmers.gdcn.control;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by HalfLeif on 2014-04-29.
+ *
+ * Runs the work of this client in separate pools depending on what the work waits for,
+ * so that for example blocked downloads cannot starve challenge solving.
+ *
+ * The size of each pool defaults to the number of cores and can be set by the system property
+ * <code>gdcn.threads.[cpu|io|process]</code> or at runtime by {@link #setPoolSize(Pool, int)}.
  */
 public class ThreadService {
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(4, new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread thread = new Thread(r);
-            thread.setDaemon(true);
-            return thread;
-        }
-    });
+
+    public static enum Pool {
+        /**
+         * Work that only uses the CPU, such as solving challenges.
+         */
+        CPU,
+        /**
+         * Work that blocks while waiting for the network, such as downloads and uploads in the DHT.
+         */
+        IO,
+        /**
+         * Work that waits for external processes, such as compiling and running tasks.
+         */
+        PROCESS
+    }
+
+    private final Map<Pool, MeteredPool> pools = new EnumMap<>(Pool.class);
 
     private static ThreadService instance = null;
 
-    private static void check(){
+    private ThreadService() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for(Pool pool : Pool.values()){
+            int size = Integer.getInteger("gdcn.threads." + pool.name().toLowerCase(), cores);
+            pools.put(pool, new MeteredPool(pool, Math.max(1, size)));
+        }
+    }
+
+    private static synchronized ThreadService instance(){
         if(instance == null){
             instance = new ThreadService();
         }
+        return instance;
+    }
+
+    /**
+     * Submits a runnable to run concurrently in the given pool.
+     * @param pool pool that fits what the runnable waits for
+     * @param runnable Runnable
+     */
+    public static void submit(Pool pool, Runnable runnable){
+        instance().pools.get(pool).submit(runnable);
+    }
+
+    /**
+     * @param pool pool
+     * @return executor that submits to the pool
+     */
+    public static Executor executor(final Pool pool){
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                submit(pool, runnable);
+            }
+        };
+    }
+
+    /**
+     * Changes the number of threads of a pool.
+     * @param pool pool
+     * @param size number of threads, at least one
+     */
+    public static void setPoolSize(Pool pool, int size){
+        if(size < 1){
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        instance().pools.get(pool).resize(size);
     }
 
-    public static void submit(Runnable runnable){
-        check();
-        instance.threadPool.submit(runnable);
+    /**
+     * @param pool pool
+     * @return statistics of the pool
+     */
+    public static Statistics statistics(Pool pool){
+        return instance().pools.get(pool).statistics();
+    }
+
+    /**
+     * @return statistics of every pool
+     */
+    public static List<Statistics> statistics(){
+        List<Statistics> statistics = new ArrayList<>();
+        for(MeteredPool pool : instance().pools.values()){
+            statistics.add(pool.statistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Fixed size thread pool that measures how long its tasks wait and run.
+     */
+    private static class MeteredPool {
+        private final Pool pool;
+        private final ThreadPoolExecutor threadPool;
+
+        private final AtomicLong completed = new AtomicLong(0);
+        private final AtomicLong totalWait = new AtomicLong(0);
+        private final AtomicLong totalRun = new AtomicLong(0);
+        private final AtomicLong maxWait = new AtomicLong(0);
+
+        private MeteredPool(final Pool pool, int size) {
+            this.pool = pool;
+            threadPool = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                private final AtomicInteger threads = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ThreadService-" + pool.name() + "-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        private void submit(final Runnable runnable){
+            final long submitted = System.nanoTime();
+            threadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long started = System.nanoTime();
+                    try{
+                        runnable.run();
+                    } catch (RuntimeException e){
+                        //Would otherwise be lost silently
+                        e.printStackTrace();
+                    } finally {
+                        record(started - submitted, System.nanoTime() - started);
+                    }
+                }
+            });
+        }
+
+        private void record(long wait, long run){
+            completed.incrementAndGet();
+            totalWait.addAndGet(wait);
+            totalRun.addAndGet(run);
+
+            long max = maxWait.get();
+            while(wait > max && !maxWait.compareAndSet(max, wait)){
+                max = maxWait.get();
+            }
+        }
+
+        private synchronized void resize(int size){
+            //Core size may never exceed max size
+            if(size > threadPool.getMaximumPoolSize()){
+                threadPool.setMaximumPoolSize(size);
+                threadPool.setCorePoolSize(size);
+            } else {
+                threadPool.setCorePoolSize(size);
+                threadPool.setMaximumPoolSize(size);
+            }
+        }
+
+        private Statistics statistics(){
+            final long completed = this.completed.get();
+            final long averageWait = completed == 0 ? 0 : totalWait.get() / completed;
+            final long averageRun = completed == 0 ? 0 : totalRun.get() / completed;
+            return new Statistics(pool, threadPool.getCorePoolSize(), threadPool.getQueue().size(),
+                    threadPool.getActiveCount(), completed, toMillis(averageWait), toMillis(maxWait.get()),
+                    toMillis(averageRun));
+        }
+
+        private static long toMillis(long nanos){
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+    /**
+     * Snapshot of the load of a pool.
+     */
+    public static class Statistics {
+        private final Pool pool;
+        private final int size;
+        private final int queued;
+        private final int active;
+        private final long completed;
+        private final long averageWait;
+        private final long maxWait;
+        private final long averageRun;
+
+        private Statistics(Pool pool, int size, int queued, int active, long completed, long averageWait,
+                           long maxWait, long averageRun) {
+            this.pool = pool;
+            this.size = size;
+            this.queued = queued;
+            this.active = active;
+            this.completed = completed;
+            this.averageWait = averageWait;
+            this.maxWait = maxWait;
+            this.averageRun = averageRun;
+        }
+
+        public Pool getPool() {
+            return pool;
+        }
+
+        /**
+         * @return number of threads
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return number of tasks waiting for a thread
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return number of threads that are running tasks
+         */
+        public int getActive() {
+            return active;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return average milliseconds a task waited in queue
+         */
+        public long getAverageWait() {
+            return averageWait;
+        }
+
+        /**
+         * @return most milliseconds a task has waited in queue
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        /**
+         * @return average milliseconds a task ran
+         */
+        public long getAverageRun() {
+            return averageRun;
+        }
+
+        @Override
+        public String toString() {
+            return pool + "{size=" + size + ", queued=" + queued + ", active=" + active + ", completed=" + completed +
+                    ", averageWait=" + averageWait + "ms, maxWait=" + maxWait + "ms, averageRun=" + averageRun + "ms}";
+        }
     }
 }
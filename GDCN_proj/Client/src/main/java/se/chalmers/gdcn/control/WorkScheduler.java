@@ -0,0 +1,337 @@
+package se.chalmers.gdcn.control;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the replicas a worker has received so that a number of them are executing at once while the
+ * dependencies of the next ones are downloaded.
+ *
+ * Every job is prepared (downloaded) as soon as it is submitted, but at most <code>inFlight</code> jobs execute
+ * at the same time. Jobs that are prepared while every slot is taken wait in a local queue. The worker should keep
+ * {@link #freeCapacity()} jobs coming so that the queue holds about <code>prefetch</code> prepared jobs. Jobs that
+ * have been requested but not yet received are counted by {@link #reserve(int)} so that they aren't requested twice.
+ *
+ * The defaults are one slot per core and one prefetched job per slot, and can be set by the system properties
+ * <code>gdcn.worker.inflight</code> and <code>gdcn.worker.prefetch</code>.
+ */
+public class WorkScheduler {
+
+    public static enum Stage {
+        DOWNLOAD, COMPILE, EXECUTE, UPLOAD
+    }
+
+    /**
+     * Replica to work on in two steps.
+     */
+    public static interface Job {
+        /**
+         * Starts to download everything the job needs. Is run in the IO pool, but need not block until the
+         * downloads are done.
+         * @param onPrepared must be told once, when the job may execute or has failed
+         */
+        void prepare(Prepared onPrepared);
+
+        /**
+         * Blocks until the job has executed. Is run in the PROCESS pool and holds a slot until it returns.
+         * Should report {@link Stage#COMPILE} and {@link Stage#EXECUTE} by {@link WorkScheduler#record(Stage, long)}.
+         * @return true if the job succeeded
+         */
+        boolean execute();
+    }
+
+    /**
+     * Is told when a job has been prepared.
+     */
+    public static interface Prepared {
+        /**
+         * @param success true if the job may execute, false if it has failed
+         */
+        void prepared(boolean success);
+    }
+
+    private final int inFlight;
+    private final int prefetch;
+    private final Executor prepareExecutor;
+    private final Executor executeExecutor;
+
+    private final Queue<Scheduled> ready = new ArrayDeque<>();
+    //Jobs submitted but not done executing
+    private int outstanding = 0;
+    //Jobs requested from job owners but not yet received
+    private int requested = 0;
+    private int running = 0;
+    private long executed = 0;
+
+    private final Map<Stage, AtomicLong> counts = new EnumMap<>(Stage.class);
+    private final Map<Stage, AtomicLong> totals = new EnumMap<>(Stage.class);
+
+    /**
+     * Scheduler with the sizes of the system properties, that downloads in the IO pool and executes in the
+     * PROCESS pool of {@link ThreadService}.
+     */
+    public WorkScheduler() {
+        this(Integer.getInteger("gdcn.worker.inflight", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("gdcn.worker.prefetch", -1),
+                ThreadService.executor(ThreadService.Pool.IO), ThreadService.executor(ThreadService.Pool.PROCESS));
+    }
+
+    /**
+     * @param inFlight number of jobs that may execute at once
+     * @param prefetch number of prepared jobs to keep waiting for a slot, negative for one per slot
+     * @param prepareExecutor executor to download in
+     * @param executeExecutor executor to execute in
+     */
+    public WorkScheduler(int inFlight, int prefetch, Executor prepareExecutor, Executor executeExecutor) {
+        if(inFlight < 1){
+            throw new IllegalArgumentException("Must be able to execute at least one job: " + inFlight);
+        }
+        this.inFlight = inFlight;
+        this.prefetch = prefetch < 0 ? inFlight : prefetch;
+        this.prepareExecutor = prepareExecutor;
+        this.executeExecutor = executeExecutor;
+
+        for(Stage stage : Stage.values()){
+            counts.put(stage, new AtomicLong(0));
+            totals.put(stage, new AtomicLong(0));
+        }
+    }
+
+    /**
+     * Starts to download the job at once and executes it when a slot is free.
+     * @param job job
+     * @param onSlotFreed Is run after the job has executed successfully if more jobs are wanted, can be null
+     */
+    public void submit(Job job, Runnable onSlotFreed){
+        final Scheduled scheduled = new Scheduled(job, onSlotFreed);
+        synchronized (this){
+            ++outstanding;
+        }
+        prepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prepare(scheduled);
+            }
+        });
+    }
+
+    private void prepare(final Scheduled scheduled){
+        final long start = System.currentTimeMillis();
+        final AtomicBoolean told = new AtomicBoolean(false);
+        final Prepared onPrepared = new Prepared() {
+            @Override
+            public void prepared(boolean success) {
+                if(!told.compareAndSet(false, true)){
+                    return;
+                }
+                record(Stage.DOWNLOAD, System.currentTimeMillis() - start);
+                WorkScheduler.this.prepared(scheduled, success);
+            }
+        };
+        try{
+            scheduled.job.prepare(onPrepared);
+        } catch (RuntimeException e){
+            onPrepared.prepared(false);
+            throw e;
+        }
+    }
+
+    private void prepared(Scheduled scheduled, boolean success){
+        if(!success){
+            synchronized (this){
+                --outstanding;
+            }
+            return;
+        }
+
+        synchronized (this){
+            if(running >= inFlight){
+                ready.add(scheduled);
+                return;
+            }
+            ++running;
+        }
+        execute(scheduled);
+    }
+
+    private void execute(final Scheduled scheduled){
+        executeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                final Scheduled next;
+                try{
+                    success = scheduled.job.execute();
+                } finally {
+                    synchronized (WorkScheduler.this){
+                        --outstanding;
+                        ++executed;
+                        next = ready.poll();
+                        if(next == null){
+                            --running;
+                        }
+                    }
+                    //The slot goes straight to the next prepared job
+                    if(next != null){
+                        execute(next);
+                    }
+                }
+                if(success && scheduled.onSlotFreed != null && freeCapacity() > 0){
+                    scheduled.onSlotFreed.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return number of jobs to request to keep every slot busy and the queue filled, may be zero
+     */
+    public synchronized int freeCapacity(){
+        return Math.max(0, inFlight + prefetch - outstanding - requested);
+    }
+
+    /**
+     * Reserves the free capacity for jobs that are about to be requested. The reservation must be released when
+     * the answer has arrived, after the received jobs have been submitted, or when the request has failed.
+     * @param minimum number of jobs to reserve also if there is less free capacity
+     * @return reservation of the number of jobs to request, which may be zero
+     */
+    public synchronized Reservation reserve(int minimum){
+        final int count = Math.max(minimum, freeCapacity());
+        requested += count;
+        return new Reservation(count);
+    }
+
+    /**
+     * Jobs that have been requested but not yet received.
+     */
+    public class Reservation {
+        private final int count;
+        private boolean released = false;
+
+        private Reservation(int count) {
+            this.count = count;
+        }
+
+        /**
+         * @return number of jobs to request
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Gives the capacity back. Releasing more than once has no effect.
+         */
+        public void release(){
+            synchronized (WorkScheduler.this){
+                if(released){
+                    return;
+                }
+                released = true;
+                requested -= count;
+            }
+        }
+    }
+
+    /**
+     * Adds the time of one stage of a job to the statistics.
+     * @param stage stage
+     * @param millis time spent in the stage
+     */
+    public void record(Stage stage, long millis){
+        counts.get(stage).incrementAndGet();
+        totals.get(stage).addAndGet(millis);
+    }
+
+    /**
+     * @return snapshot of the scheduled jobs and the time spent in each stage
+     */
+    public Statistics statistics(){
+        Map<Stage, Long> averages = new EnumMap<>(Stage.class);
+        for(Stage stage : Stage.values()){
+            final long count = counts.get(stage).get();
+            averages.put(stage, count == 0 ? 0 : totals.get(stage).get() / count);
+        }
+        synchronized (this){
+            return new Statistics(running, ready.size(), outstanding - running - ready.size(),
+                    executed, averages);
+        }
+    }
+
+    private static class Scheduled {
+        private final Job job;
+        private final Runnable onSlotFreed;
+
+        private Scheduled(Job job, Runnable onSlotFreed) {
+            this.job = job;
+            this.onSlotFreed = onSlotFreed;
+        }
+    }
+
+    /**
+     * Snapshot of the scheduled jobs and the average time of each stage.
+     */
+    public static class Statistics {
+        private final int running;
+        private final int ready;
+        private final int downloading;
+        private final long executed;
+        private final Map<Stage, Long> averages;
+
+        private Statistics(int running, int ready, int downloading, long executed, Map<Stage, Long> averages) {
+            this.running = running;
+            this.ready = ready;
+            this.downloading = downloading;
+            this.executed = executed;
+            this.averages = averages;
+        }
+
+        /**
+         * @return number of jobs that hold a slot
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        /**
+         * @return number of prepared jobs waiting for a slot
+         */
+        public int getReady() {
+            return ready;
+        }
+
+        /**
+         * @return number of jobs that are being prepared
+         */
+        public int getDownloading() {
+            return downloading;
+        }
+
+        /**
+         * @return number of jobs that have executed, successfully or not
+         */
+        public long getExecuted() {
+            return executed;
+        }
+
+        /**
+         * @param stage stage
+         * @return average milliseconds spent in the stage
+         */
+        public long getAverage(Stage stage) {
+            return averages.get(stage);
+        }
+
+        @Override
+        public String toString() {
+            return "WorkScheduler{running=" + running + ", ready=" + ready + ", downloading=" + downloading +
+                    ", executed=" + executed + ", averages=" + averages + "ms}";
+        }
+    }
+}
@@ -6,16 +6,19 @@ import se.chalmers.gdcn.utils.SerializableTimer;
 import se.chalmers.gdcn.utils.Time;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by Leif on 2014-04-21.
  */
 public class WorkerTimeoutManager implements Serializable{
 
-    private final Set<WorkerID> activeWorkers = new HashSet<>();
-    private final Set<WorkerID> passiveWorkers = new HashSet<>();
+    //Concurrent since workers are activated by several threads as well as by the timer
+    private final Set<WorkerID> activeWorkers = Collections.newSetFromMap(new ConcurrentHashMap<WorkerID, Boolean>());
+    private final Set<WorkerID> passiveWorkers = Collections.newSetFromMap(new ConcurrentHashMap<WorkerID, Boolean>());
 
     private final WorkTimer workTimer;
 
@@ -40,13 +43,13 @@ public class WorkerTimeoutManager implements Serializable{
         return new HashSet<>(activeWorkers);
     }
 
-    public Runnable timerRunner(){
-        return workTimer.createUpdater();
+    public void startTimer(){
+        workTimer.start();
     }
 
-//    public void resumeTimer(){
-//        SerializableTimer.resume(workTimer);
-//    }
+    public void stopTimer(){
+        workTimer.stop();
+    }
 
     private class WorkTimer extends SerializableTimer<WorkerID>{
 
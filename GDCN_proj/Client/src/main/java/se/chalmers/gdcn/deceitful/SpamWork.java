@@ -5,6 +5,7 @@ import net.tomp2p.p2p.PeerMaker;
 import net.tomp2p.peers.PeerAddress;
 import se.chalmers.gdcn.communicationToUI.ClientInterface;
 import se.chalmers.gdcn.control.TaskManager;
+import se.chalmers.gdcn.control.ThreadService;
 import se.chalmers.gdcn.files.DataFilesManager;
 import se.chalmers.gdcn.network.AbstractDeceitfulWork;
 import se.chalmers.gdcn.network.TaskPasser;
@@ -68,14 +69,14 @@ public class SpamWork implements DeceitfulWork{
                 final SpamWorkerNode spamWorkerNode = new SpamWorkerNode(client, taskPasser, peer1);
                 spamWorkerNodes[ix] = spamWorkerNode;
 
-                taskManager.submit(new Runnable() {
+                ThreadService.submit(ThreadService.Pool.IO, new Runnable() {
                     @Override
                     public void run() {
                         spamWorkerNode.requestWork(jobOwner);
                     }
                 });
             }
-            taskManager.submit(new Runnable() {
+            ThreadService.submit(ThreadService.Pool.IO, new Runnable() {
                 @Override
                 public void run() {
                     try {
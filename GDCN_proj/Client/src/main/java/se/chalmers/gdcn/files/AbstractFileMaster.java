@@ -2,78 +2,77 @@ package se.chalmers.gdcn.files;
 
 import com.google.gson.Gson;
 import net.tomp2p.peers.Number160;
-import se.chalmers.gdcn.communicationToUI.CommandWord;
 import se.chalmers.gdcn.communicationToUI.NetworkInterface;
-import se.chalmers.gdcn.communicationToUI.OperationFinishedEvent;
+import se.chalmers.gdcn.communicationToUI.Operation;
+import se.chalmers.gdcn.communicationToUI.Operation.OperationBuilder;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
+import se.chalmers.gdcn.control.ThreadService;
 import se.chalmers.gdcn.taskbuilder.Task;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskFailureListener;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskListener;
 import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
+import se.chalmers.gdcn.utils.TimerService;
 
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by HalfLeif on 2014-03-04.
  *
  * Abstract class for resolving task file dependencies.
  *
+ * At most gdcn.transfer.concurrency files are transferred at once and failed transfers are retried with backoff.
+ * Files are transferred in chunks by {@link ChunkedTransfer}, so a retried download continues where it failed.
+ * No thread waits for the transfers, {@link #resolve()} returns a future instead.
+ *
  * Uses TaskListener to report error information.
  */
 abstract class AbstractFileMaster{
 
+    //Transfers of one task or job that are in the DHT at once, the rest wait for a free slot
+    private static final int MAX_TRANSFERS = Integer.getInteger("gdcn.transfer.concurrency", 4);
+    //Attempts of each transfer before the dependency is failed
+    private static final int MAX_ATTEMPTS = Integer.getInteger("gdcn.transfer.attempts", 3);
+    //Milliseconds before the first retry, doubled for every following retry
+    private static final int RETRY_DELAY = Integer.getInteger("gdcn.transfer.retryDelay", 500);
+
     protected final TaskMeta taskMeta;
     protected final PathManager pathManager;
     protected final NetworkInterface client;
 
     private final TaskFailureListener taskFailureListener;
-    private final CommandWord expectedOperation;
 
-    private final Lock lock = new ReentrantLock();
-    private final Condition allDependenciesComplete = lock.newCondition();
     private final Map<Number160, FileDep> unresolvedFiles = new HashMap<>();
+    private final Queue<FileDep> waitingTransfers = new ArrayDeque<>();
+    private int transfers = 0;
+    private boolean stillStartingUp = true;
 
-    private volatile boolean operationFailed = false;
-    private volatile boolean stillStartingUp = true;
+    private final OperationFuture<Void> resolved = new OperationFuture<>();
 
+    private final AtomicLong transferredBytes = new AtomicLong(0);
+    private final AtomicLong transferMillis = new AtomicLong(0);
 
-    private final PropertyChangeListener operationListener = new PropertyChangeListener() {
-        @Override
-        public void propertyChange(PropertyChangeEvent evt) {
-            if (evt instanceof OperationFinishedEvent) {
-                operationReturned((OperationFinishedEvent) evt);
-            }
-        }
-    };
 
     /**
-     * Creates FileMaster object that reads meta-file for a task. Run {@link AbstractFileMaster#runAndAwait()} for
+     * Creates FileMaster object that reads meta-file for a task. Run {@link AbstractFileMaster#resolve()} for
      * solving the dependencies.
      *
      *
      * @param taskMeta Dependencies to be solved
      * @param client Client for downloading files from network (DHT)
      * @param taskFailureListener Listener to learn about failures such as unresolved dependencies.
-     * @param expectedOperation What kind of operation this object will wait for
      * @param pathManager PathManager to correct directory
      * @throws se.chalmers.gdcn.files.TaskMetaDataException if meta-file is not found. Path to search on is derived from projectName and taskName.
      */
     public AbstractFileMaster(TaskMeta taskMeta, NetworkInterface client, TaskFailureListener taskFailureListener,
-                              CommandWord expectedOperation, PathManager pathManager) throws TaskMetaDataException {
+                              PathManager pathManager) throws TaskMetaDataException {
 
         this.taskMeta = taskMeta;
         this.client = client;
         this.taskFailureListener = taskFailureListener;
-        this.expectedOperation = expectedOperation;
         this.pathManager = pathManager;
 
-        client.addListener(operationListener);
-
         for(FileDep fileDep : taskMeta.getDependencies()){
             unresolvedFiles.put(fileDep.getDhtKey(), fileDep);
         }
@@ -113,59 +112,30 @@ abstract class AbstractFileMaster{
 
 
     /**
-     * Just runs {@link AbstractFileMaster#run()} and {@link AbstractFileMaster#await()}
-     * @return result of {@link AbstractFileMaster#await()}
+     * Blocks current thread until {@link AbstractFileMaster#resolve()} is done. Prefer to listen to the future if the
+     * thread has something better to do.
+     * @return true if file has been properly downloaded, false if one of the dependencies couldn't be resolved.
      */
     public boolean runAndAwait() throws TaskMetaDataException {
-        run();
-        return await();
-    }
-
-    /**
-     * Attempts to resolve the dependencies found in meta-file.
-     */
-    private void run() throws TaskMetaDataException {
-        if(taskMeta != null){
-            resolveDependencies();
-        } else {
-            throw new TaskMetaDataException("Meta data file wasn't found (or parsed correctly)!");
+        try {
+            return resolve().await().isSuccess();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
     /**
-     * Blocks current thread until all dependencies for the specified task are resolved.
-     *
-     * @return true if file has been properly downloaded, false if one of the dependencies couldn't be resolved.
+     * Attempts to resolve the dependencies found in meta-file, without blocking until they are.
+     * @return future that is completed when every dependency is resolved or one of them has failed
+     * @throws TaskMetaDataException if meta data is missing or a dependent File exist locally but is a directory
      */
-    private boolean await(){
-        if(operationFailed){
-            // This code is necessary to avoid deadlock if await() is called after a GET operation has failed
-            // since there is no guarantee for another signal (it might have been the last file to be resolved)
-
-            System.out.println("Operation failed before enter loop, return FALSE");
-            client.removeListener(operationListener);
-            return false;
-        }
-
-
-
-        while(stillStartingUp || unresolvedFiles.size()>0){
-            try {
-                lock.lock();
-                allDependenciesComplete.await();
-                lock.unlock();
-            } catch (InterruptedException e) {
-                System.out.println("Caught interruption: "+e.getMessage());
-                continue;
-            }
-            if(operationFailed){
-                client.removeListener(operationListener);
-                return false;
-            }
+    public OperationFuture<Void> resolve() throws TaskMetaDataException {
+        if(taskMeta == null){
+            throw new TaskMetaDataException("Meta data file wasn't found (or parsed correctly)!");
         }
-
-        client.removeListener(operationListener);
-        return true;
+        resolveDependencies();
+        return resolved;
     }
 
     /**
@@ -173,8 +143,10 @@ abstract class AbstractFileMaster{
      * @throws TaskMetaDataException if dependent File exist locally but is a directory
      */
     private void resolveDependencies() throws TaskMetaDataException {
-        //gets ConcurrentModificationException if reads directly from unresolvedFiles.
-        Set<FileDep> deps = new HashSet<>(unresolvedFiles.values());
+        final Set<FileDep> deps;
+        synchronized (this){
+            deps = new HashSet<>(unresolvedFiles.values());
+        }
 
         for(FileDep fileDep : deps){
             File file = FileManagementUtils.pathTo(pathManager, fileDep);
@@ -188,17 +160,16 @@ abstract class AbstractFileMaster{
             }
         }
 
-
-        lock.lock();
-        stillStartingUp = false;
-        allDependenciesComplete.signalAll();
-        lock.unlock();
-
+        synchronized (this){
+            stillStartingUp = false;
+        }
+        completeIfDone();
     }
 
 
     /**
      * This file dependency was found locally. What to do?
+     * Call {@link #fileDependencyResolved(FileDep)}, {@link #transfer(FileDep)} or {@link #dependencyFailed(FileDep, String)}.
      *
      * Called in resolve dependencies
      *
@@ -208,6 +179,7 @@ abstract class AbstractFileMaster{
 
     /**
      * This file dependency wasn't found locally. What to do?
+     * Call {@link #fileDependencyResolved(FileDep)}, {@link #transfer(FileDep)} or {@link #dependencyFailed(FileDep, String)}.
      *
      * Called in resolve dependencies
      *
@@ -215,57 +187,167 @@ abstract class AbstractFileMaster{
      */
     protected abstract void ifFileDoNotExist(FileDep fileDep);
 
+    /**
+     * Starts one attempt to transfer a file dependency. May be called again for the same file if the attempt fails.
+     * @param fileDep file
+     * @return future that is completed with the number of bytes transferred
+     * @throws IOException if the transfer can't be started, which is not retried
+     */
+    protected abstract OperationFuture<Long> startTransfer(FileDep fileDep) throws IOException;
+
+    /**
+     * Operation successful with respect to this file
+     * @param fileDep file
+     * @param result Number of bytes transferred, may be null
+     * @throws IOException if the result couldn't be used, which fails the dependency
+     */
+    protected abstract void operationForDependentFileSuccess(FileDep fileDep, Object result) throws IOException;
+
     /**
      * Call to set a file dependency as resolved.
      * @param fileDep file
      */
     protected final void fileDependencyResolved(FileDep fileDep){
-        lock.lock();
-        unresolvedFiles.remove(fileDep.getDhtKey());
-        allDependenciesComplete.signalAll();
-        lock.unlock();
+        synchronized (this){
+            unresolvedFiles.remove(fileDep.getDhtKey());
+        }
+        completeIfDone();
     }
 
     /**
-     * Operation successful with respect to this file
+     * Call if a file dependency can't be resolved. The task fails and no more transfers are started.
+     * Only the first failure is reported, transfers that were running may fail afterwards too.
      * @param fileDep file
-     * @param result Result of OperationEvent, may be null
+     * @param reason why
      */
-    protected abstract void operationForDependentFileSuccess(FileDep fileDep, Object result);
+    protected final void dependencyFailed(FileDep fileDep, String reason){
+        synchronized (this){
+            waitingTransfers.clear();
+        }
+        if(resolved.complete(new OperationBuilder<Void>(false).setKey(taskMeta.getTaskName())
+                .setReason("Failed to resolve file with name " + fileDep.getFileName() + ": " + reason).create())){
+            taskFailureListener.taskFailed(taskMeta.getTaskName(), reason);
+        }
+    }
 
     /**
-     * Handles returns of Get operation requested earlier.
-     * @param event OperationFinishedEvent
+     * Call to resolve a file dependency by a transfer, which starts when fewer than the maximum number of
+     * transfers are running.
+     * @param fileDep file
      */
-    private void operationReturned(OperationFinishedEvent event) {
-        if(event.getCommandWord() != expectedOperation){
-            return;
+    protected final void transfer(FileDep fileDep){
+        synchronized (this){
+            if(transfers >= MAX_TRANSFERS){
+                waitingTransfers.add(fileDep);
+                return;
+            }
+            ++transfers;
         }
+        attempt(fileDep, 1);
+    }
 
-        Number160 key = new Number160(event.getOperation().getKey().toString());
+    private void attempt(final FileDep fileDep, final int attempt){
+        if(resolved.isDone()){
+            //Another dependency has failed
+            transferDone();
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final OperationFuture<Long> future;
+        try {
+            future = startTransfer(fileDep);
+        } catch (IOException e) {
+            e.printStackTrace();
+            dependencyFailed(fileDep, e.getMessage());
+            transferDone();
+            return;
+        }
+        future.addListener(new OperationFuture.Listener<Long>() {
+            @Override
+            public void operationFinished(final Operation<Long> operation) {
+                //Results may be written to disk, which shouldn't be done in the network thread
+                ThreadService.submit(ThreadService.Pool.IO, new Runnable() {
+                    @Override
+                    public void run() {
+                        transferReturned(fileDep, attempt, System.currentTimeMillis() - start, operation);
+                    }
+                });
+            }
+        });
+    }
 
-        if(!unresolvedFiles.containsKey(key)){
-            System.out.println("FileDep with key ("+key+") wasn't found in Map for task");
-            //Might be from other request unrelated with this FileMaster
+    /**
+     * Handles returns of operation requested earlier.
+     * @param fileDep file the operation was for
+     * @param attempt number of the attempt that returned
+     * @param millis time the attempt took
+     * @param operation finished operation
+     */
+    private void transferReturned(final FileDep fileDep, final int attempt, long millis, Operation<Long> operation) {
+        if(!operation.isSuccess()){
+            if(attempt >= MAX_ATTEMPTS){
+                dependencyFailed(fileDep, "Gave up after " + attempt + " attempts, " + operation.getReason());
+                transferDone();
+                return;
+            }
+            final long delay = (long) RETRY_DELAY << (attempt - 1);
+            System.out.println("Transfer of " + fileDep.getFileName() + " failed, retry in " + delay + " ms");
+            //Keeps its slot while it waits
+            TimerService.delay(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(fileDep, attempt + 1);
+                }
+            }, delay);
             return;
         }
 
-        lock.lock();
-        FileDep fileDep = unresolvedFiles.remove(key);
+        final Long result = operation.getResult();
+        final long bytes = result == null ? 0 : result;
+        transferredBytes.addAndGet(bytes);
+        transferMillis.addAndGet(millis);
+        System.out.println(String.format("%s %s: %d bytes in %d ms, %d kB/s", getClass().getSimpleName(),
+                fileDep.getFileName(), bytes, millis, bytes / Math.max(1, millis)));
 
-        if(event.getOperation().isSuccess()){
-            operationForDependentFileSuccess(fileDep, event.getOperation().getResult());
+        try {
+            operationForDependentFileSuccess(fileDep, result);
+        } catch (IOException e) {
+            e.printStackTrace();
+            dependencyFailed(fileDep, e.getMessage());
+            transferDone();
+            return;
+        }
+        transferDone();
+        fileDependencyResolved(fileDep);
+    }
 
-        } else {
-            operationFailed = true;
-            taskFailureListener.taskFailed(taskMeta.getTaskName(), "Failed to resolve file with name " + fileDep.getFileName());
-            allDependenciesComplete.signalAll();
+    /**
+     * Frees the slot of a transfer, to the next waiting transfer if there is one.
+     */
+    private void transferDone(){
+        final FileDep next;
+        synchronized (this){
+            next = waitingTransfers.poll();
+            if(next == null){
+                --transfers;
+                return;
+            }
         }
+        attempt(next, 1);
+    }
 
-        if(unresolvedFiles.size()==0){
-            allDependenciesComplete.signalAll();
+    private void completeIfDone(){
+        synchronized (this){
+            if(stillStartingUp || unresolvedFiles.size() > 0){
+                return;
+            }
+        }
+        if(resolved.complete(new OperationBuilder<Void>(true).setKey(taskMeta.getTaskName()).create())
+                && transferMillis.get() > 0){
+            System.out.println(String.format("%s %s: %d bytes transferred, %d kB/s", getClass().getSimpleName(),
+                    taskMeta.getTaskName(), transferredBytes.get(),
+                    transferredBytes.get() / Math.max(1, transferMillis.get())));
         }
-        lock.unlock();
     }
 
 
@@ -0,0 +1,126 @@
+package se.chalmers.gdcn.files;
+
+import net.tomp2p.peers.Number160;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Describes a file that is put in the DHT as fixed size chunks. Is put under the key of the file itself while
+ * the chunks are put under keys derived from it, see {@link #chunkKey(Number160, int)}.
+ *
+ * Holds the SHA-1 digest of every chunk, so that a downloaded chunk can be checked and the chunks of a partial
+ * download can be kept.
+ */
+class ChunkManifest implements Serializable {
+
+    //Bytes of a SHA-1 digest
+    private static final int DIGEST_LENGTH = 20;
+
+    private final long fileLength;
+    private final int chunkSize;
+    private final byte[][] digests;
+
+    ChunkManifest(long fileLength, int chunkSize, byte[][] digests) {
+        this.fileLength = fileLength;
+        this.chunkSize = chunkSize;
+        this.digests = digests;
+    }
+
+    /**
+     * @param fileKey key of the file
+     * @param index index of the chunk
+     * @return key the chunk is put under
+     */
+    static Number160 chunkKey(Number160 fileKey, int index){
+        return Number160.createHash(fileKey.toString() + "/chunk/" + index);
+    }
+
+    /**
+     * @param data data
+     * @param length number of bytes from the start of data to digest
+     * @return SHA-1 digest
+     */
+    static byte[] digest(byte[] data, int length){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is missing", e);
+        }
+    }
+
+    /**
+     * Checks a manifest that was received, before any chunks are fetched for it.
+     * @param maxChunkSize largest chunk size that is accepted, since a chunk is held in memory
+     * @throws IOException if the chunks don't add up to the file length or are too large
+     */
+    void validate(int maxChunkSize) throws IOException {
+        if(fileLength < 0 || chunkSize < 1 || digests == null){
+            throw new IOException("Invalid manifest: " + this);
+        }
+        if(chunkSize > maxChunkSize){
+            throw new IOException("Manifest has chunks of " + chunkSize + " bytes, at most " + maxChunkSize +
+                    " are accepted: " + this);
+        }
+        if(digests.length != (fileLength + chunkSize - 1) / chunkSize){
+            throw new IOException("Manifest has " + digests.length + " chunks for " + fileLength + " bytes: " + this);
+        }
+        for(byte[] digest : digests){
+            if(digest == null || digest.length != DIGEST_LENGTH){
+                throw new IOException("Manifest has a digest that isn't SHA-1: " + this);
+            }
+        }
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return digests.length;
+    }
+
+    /**
+     * @param index index of chunk
+     * @return position of the chunk in the file
+     */
+    long offset(int index){
+        return (long) index * chunkSize;
+    }
+
+    /**
+     * @param index index of chunk
+     * @return number of bytes in the chunk, only the last chunk may be shorter than the chunk size
+     */
+    int length(int index){
+        return (int) Math.min(chunkSize, fileLength - offset(index));
+    }
+
+    /**
+     * @param index index of chunk
+     * @param data chunk contents, starting at position 0
+     * @param length number of bytes of data that are in the chunk
+     * @return true if data is the chunk that was put
+     */
+    boolean matches(int index, byte[] data, int length){
+        return length == length(index) && Arrays.equals(digests[index], digest(data, length));
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkManifest{" +
+                "fileLength=" + fileLength +
+                ", chunkSize=" + chunkSize +
+                ", chunks=" + (digests == null ? 0 : digests.length) +
+                '}';
+    }
+}
@@ -0,0 +1,443 @@
+package se.chalmers.gdcn.files;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+import se.chalmers.gdcn.communicationToUI.NetworkInterface;
+import se.chalmers.gdcn.communicationToUI.Operation;
+import se.chalmers.gdcn.communicationToUI.Operation.OperationBuilder;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
+import se.chalmers.gdcn.control.ThreadService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfers one file through the DHT as a {@link ChunkManifest} and fixed size chunks, so that neither side holds
+ * more than a few chunks of the file in memory.
+ *
+ * An upload puts the manifest last, so a manifest is only found once all of its chunks are. A download writes the
+ * chunks into a .part file next to the file, which is kept if the download fails. Chunks in it that match the
+ * manifest aren't fetched again by the next download of the file. Only one download of a file runs at once, so that
+ * every .part file has one owner; a download of a file that is already downloaded joins that download.
+ *
+ * The future of a transfer is completed with the number of bytes that were transferred.
+ */
+abstract class ChunkedTransfer {
+
+    //Bytes in each chunk but the last
+    private static final int CHUNK_SIZE = Integer.getInteger("gdcn.transfer.chunkSize", 1 << 20);
+    //Largest chunks that are downloaded, since manifests from the DHT aren't trusted
+    private static final int MAX_CHUNK_SIZE = Integer.getInteger("gdcn.transfer.maxChunkSize", 4 * CHUNK_SIZE);
+    //Chunks of one file that are in the DHT at once
+    private static final int MAX_CHUNKS = Integer.getInteger("gdcn.transfer.chunkConcurrency", 4);
+
+    //Downloads that are running, by the file they write
+    private static final ConcurrentHashMap<File, ChunkedTransfer> downloads = new ConcurrentHashMap<>();
+
+    protected final NetworkInterface client;
+    protected final Number160 key;
+    protected final Number160 domain;
+    protected final File file;
+
+    protected volatile FileChannel channel = null;
+
+    private final OperationFuture<Long> done = new OperationFuture<>();
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    private final Queue<Integer> waitingChunks = new ArrayDeque<>();
+    private int runningChunks = 0;
+    private int remainingChunks = 0;
+
+    private ChunkedTransfer(NetworkInterface client, Number160 key, Number160 domain, File file) {
+        this.client = client;
+        this.key = key;
+        this.domain = domain;
+        this.file = file;
+    }
+
+    /**
+     * Puts the file in the DHT.
+     * @param client client
+     * @param key key of the file
+     * @param domain domain to put in
+     * @param file file to read
+     * @return future of the upload
+     */
+    static OperationFuture<Long> upload(NetworkInterface client, Number160 key, Number160 domain, File file){
+        return upload(client, key, domain, file, CHUNK_SIZE);
+    }
+
+    static OperationFuture<Long> upload(NetworkInterface client, Number160 key, Number160 domain, File file,
+                                        int chunkSize){
+        return new Upload(client, key, domain, file, chunkSize).start();
+    }
+
+    /**
+     * Gets the file from the DHT, continuing from an earlier download that failed if there is one. If the file is
+     * being downloaded already, the future of that download is returned instead.
+     * @param client client
+     * @param key key of the file
+     * @param domain domain to get from
+     * @param file file to write
+     * @return future of the download, which fails directly if another file is being downloaded to the same path
+     */
+    static OperationFuture<Long> download(NetworkInterface client, Number160 key, Number160 domain, File file){
+        final File target = file.getAbsoluteFile();
+        final ChunkedTransfer download = new Download(client, key, domain, target);
+        final ChunkedTransfer running = downloads.putIfAbsent(target, download);
+        if(running != null){
+            if(running.key.equals(key) && running.domain.equals(domain)){
+                return running.done;
+            }
+            //Is retried by the caller once the other download is done
+            final OperationFuture<Long> busy = new OperationFuture<>();
+            busy.complete(new OperationBuilder<Long>(false).setKey(key)
+                    .setReason(file.getName() + ": Another file is being downloaded to " + target).create());
+            return busy;
+        }
+        return download.start();
+    }
+
+    final OperationFuture<Long> start(){
+        begin();
+        return done;
+    }
+
+    /**
+     * Starts the transfer, by calling {@link #transferChunks(int, List)} or failing.
+     */
+    protected abstract void begin();
+
+    /**
+     * Starts one chunk transfer.
+     * @param index index of chunk
+     * @return future of the DHT operation
+     * @throws IOException if the chunk couldn't be read
+     */
+    protected abstract OperationFuture<Data> startChunk(int index) throws IOException;
+
+    /**
+     * Is called in an IO thread when a chunk has been transferred.
+     * @param index index of chunk
+     * @param result result of the DHT operation
+     * @return number of bytes transferred
+     * @throws IOException if the chunk couldn't be used
+     */
+    protected abstract long chunkTransferred(int index, Data result) throws IOException;
+
+    /**
+     * Is called when every chunk has been transferred. Must call {@link #succeed()} or {@link #fail(String)}.
+     */
+    protected abstract void chunksDone();
+
+    /**
+     * Transfers the chunks, at most gdcn.transfer.chunkConcurrency at once.
+     * @param chunkCount number of chunks of the file
+     * @param chunks indices of the chunks to transfer
+     */
+    protected final void transferChunks(int chunkCount, List<Integer> chunks){
+        System.out.println("Transfer " + chunks.size() + " of " + chunkCount + " chunks of " + file.getName());
+        synchronized (this){
+            waitingChunks.addAll(chunks);
+            remainingChunks = chunks.size();
+        }
+        if(chunks.isEmpty()){
+            chunksDone();
+            return;
+        }
+        startChunks();
+    }
+
+    private void startChunks(){
+        while(true){
+            final int index;
+            synchronized (this){
+                if(done.isDone() || runningChunks >= MAX_CHUNKS || waitingChunks.isEmpty()){
+                    return;
+                }
+                index = waitingChunks.poll();
+                ++runningChunks;
+            }
+
+            final OperationFuture<Data> future;
+            try {
+                future = startChunk(index);
+            } catch (IOException e) {
+                fail("Chunk " + index + " couldn't be read: " + e.getMessage());
+                return;
+            }
+            future.addListener(new OperationFuture.Listener<Data>() {
+                @Override
+                public void operationFinished(final Operation<Data> operation) {
+                    //Chunks are read and written here, which shouldn't be done in the network thread
+                    ThreadService.submit(ThreadService.Pool.IO, new Runnable() {
+                        @Override
+                        public void run() {
+                            chunkReturned(index, operation);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private void chunkReturned(int index, Operation<Data> operation){
+        if(!operation.isSuccess()){
+            fail("Chunk " + index + " failed: " + operation.getReason());
+            return;
+        }
+        try {
+            bytes.addAndGet(chunkTransferred(index, operation.getResult()));
+        } catch (IOException e) {
+            fail("Chunk " + index + ": " + e.getMessage());
+            return;
+        }
+
+        final boolean last;
+        synchronized (this){
+            --runningChunks;
+            last = --remainingChunks == 0;
+        }
+        if(last){
+            chunksDone();
+        } else {
+            startChunks();
+        }
+    }
+
+    protected final void succeed(){
+        closeChannel();
+        //Is forgotten before anyone hears it is done, so that a retry starts a new download
+        downloads.remove(file, this);
+        done.complete(new OperationBuilder<Long>(true).setResult(bytes.get()).setKey(key).create());
+    }
+
+    protected final void fail(String reason){
+        closeChannel();
+        downloads.remove(file, this);
+        done.complete(new OperationBuilder<Long>(false).setKey(key)
+                .setReason(file.getName() + ": " + reason).create());
+    }
+
+    private synchronized void closeChannel(){
+        if(channel == null){
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    /**
+     * Reads a whole chunk from the channel.
+     * @return number of bytes read, less than length only at the end of the channel
+     */
+    private static int read(FileChannel channel, byte[] data, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static class Upload extends ChunkedTransfer {
+
+        private final int chunkSize;
+        private long fileLength;
+        private byte[][] digests;
+
+        private Upload(NetworkInterface client, Number160 key, Number160 domain, File file, int chunkSize) {
+            super(client, key, domain, file);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void begin() {
+            final List<Integer> chunks = new ArrayList<>();
+            try {
+                channel = new RandomAccessFile(file, "r").getChannel();
+                fileLength = channel.size();
+            } catch (IOException e) {
+                fail("Couldn't open: " + e.getMessage());
+                return;
+            }
+            final int chunkCount = (int) ((fileLength + chunkSize - 1) / chunkSize);
+            digests = new byte[chunkCount][];
+            for(int i=0; i<chunkCount; ++i){
+                chunks.add(i);
+            }
+            transferChunks(chunkCount, chunks);
+        }
+
+        @Override
+        protected OperationFuture<Data> startChunk(int index) throws IOException {
+            final FileChannel channel = this.channel;
+            if(channel == null){
+                throw new IOException("Upload has ended");
+            }
+            final long offset = (long) index * chunkSize;
+            final int length = (int) Math.min(chunkSize, fileLength - offset);
+            final byte[] data = new byte[length];
+            if(read(channel, data, offset, length) != length){
+                throw new IOException("File was shortened during upload");
+            }
+            digests[index] = ChunkManifest.digest(data, length);
+            return client.put(ChunkManifest.chunkKey(key, index), domain, new Data(data));
+        }
+
+        @Override
+        protected long chunkTransferred(int index, Data result) {
+            return Math.min(chunkSize, fileLength - (long) index * chunkSize);
+        }
+
+        @Override
+        protected void chunksDone() {
+            final Data manifest;
+            try {
+                manifest = new Data(new ChunkManifest(fileLength, chunkSize, digests));
+            } catch (IOException e) {
+                fail("Couldn't serialize manifest: " + e.getMessage());
+                return;
+            }
+            client.put(key, domain, manifest).addListener(new OperationFuture.Listener<Data>() {
+                @Override
+                public void operationFinished(Operation<Data> operation) {
+                    if(operation.isSuccess()){
+                        succeed();
+                    } else {
+                        fail("Manifest failed: " + operation.getReason());
+                    }
+                }
+            });
+        }
+    }
+
+    private static class Download extends ChunkedTransfer {
+
+        private final File partFile;
+        private ChunkManifest manifest;
+
+        private Download(NetworkInterface client, Number160 key, Number160 domain, File file) {
+            super(client, key, domain, file);
+            this.partFile = new File(file.getPath() + ".part");
+        }
+
+        @Override
+        protected void begin() {
+            client.get(key, domain).addListener(new OperationFuture.Listener<Data>() {
+                @Override
+                public void operationFinished(final Operation<Data> operation) {
+                    ThreadService.submit(ThreadService.Pool.IO, new Runnable() {
+                        @Override
+                        public void run() {
+                            manifestReturned(operation);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void manifestReturned(Operation<Data> operation){
+            if(!operation.isSuccess() || operation.getResult() == null){
+                fail("Manifest failed: " + operation.getReason());
+                return;
+            }
+
+            final List<Integer> missing = new ArrayList<>();
+            try {
+                Object object = operation.getResult().getObject();
+                if(!(object instanceof ChunkManifest)){
+                    fail("Expected a manifest but got " + object);
+                    return;
+                }
+                manifest = (ChunkManifest) object;
+                manifest.validate(MAX_CHUNK_SIZE);
+
+                partFile.getParentFile().mkdirs();
+                channel = new RandomAccessFile(partFile, "rw").getChannel();
+                missing.addAll(missingChunks());
+            } catch (IOException | ClassNotFoundException e) {
+                fail("Couldn't start download: " + e.getMessage());
+                return;
+            }
+            transferChunks(manifest.getChunkCount(), missing);
+        }
+
+        /**
+         * @return chunks that aren't already in the part file
+         */
+        private List<Integer> missingChunks() throws IOException {
+            final List<Integer> missing = new ArrayList<>();
+            final byte[] data = new byte[manifest.getChunkSize()];
+            final long partLength = channel.size();
+
+            for(int i=0; i<manifest.getChunkCount(); ++i){
+                final int length = manifest.length(i);
+                if(manifest.offset(i) + length > partLength ||
+                        !manifest.matches(i, data, read(channel, data, manifest.offset(i), length))){
+                    missing.add(i);
+                }
+            }
+            return missing;
+        }
+
+        @Override
+        protected OperationFuture<Data> startChunk(int index) {
+            return client.get(ChunkManifest.chunkKey(key, index), domain);
+        }
+
+        @Override
+        protected long chunkTransferred(int index, Data result) throws IOException {
+            final FileChannel channel = this.channel;
+            if(result == null || channel == null){
+                throw new IOException("Nothing to write");
+            }
+            final byte[] data = result.getData();
+            if(!manifest.matches(index, data, data.length)){
+                throw new IOException("Chunk doesn't match the manifest");
+            }
+            //Positional writes, so that the chunks may be written concurrently
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while(buffer.hasRemaining()){
+                channel.write(buffer, manifest.offset(index) + buffer.position());
+            }
+            return data.length;
+        }
+
+        @Override
+        protected void chunksDone() {
+            final FileChannel channel = this.channel;
+            if(channel == null){
+                fail("Download has ended");
+                return;
+            }
+            try {
+                channel.truncate(manifest.getFileLength());
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                fail("Couldn't finish " + partFile + ": " + e.getMessage());
+                return;
+            }
+            if((file.exists() && !file.delete()) || !partFile.renameTo(file)){
+                fail("Couldn't rename " + partFile);
+                return;
+            }
+            succeed();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package se.chalmers.gdcn.files;
+
+import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files that workers have downloaded, stored by the hash of their contents so that a file that several projects
+ * depend on is only downloaded once.
+ *
+ * Files are hard linked between the store and the project directories, or copied where links aren't supported.
+ * When the store holds more than gdcn.cache.maxBytes the least recently used files are removed from it, which
+ * doesn't remove them from the projects that use them.
+ */
+class DependencyCache {
+
+    private static final long MAX_BYTES = Long.getLong("gdcn.cache.maxBytes", 1L << 30);
+
+    private static DependencyCache instance = null;
+
+    private final File directory;
+    private final long maxBytes;
+
+    //Access ordered, so that the first entry is the least recently used
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    //Hashes of files that have been read, which stay valid as long as the files aren't modified
+    private final Map<String, Hashed> hashed = new ConcurrentHashMap<>();
+
+    static synchronized DependencyCache instance(){
+        if(instance == null){
+            instance = new DependencyCache(new File(PathManager.contentCacheDir()), MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the files that are already in the directory, in the order they were stored.
+     * @param directory directory of the store
+     * @param maxBytes bytes the store may hold
+     */
+    DependencyCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+
+        File[] files = directory.listFiles();
+        if(files == null){
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this){
+            for(File file : files){
+                if(file.isFile() && isHash(file.getName())){
+                    entries.put(file.getName(), file.length());
+                    bytes += file.length();
+                }
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @param file file to hash
+     * @return SHA-1 of the file contents in hex, read again only if the file has been modified since last time
+     * @throws IOException if the file couldn't be read
+     */
+    String contentHash(File file) throws IOException {
+        final String path = file.getAbsolutePath();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+
+        Hashed previous = hashed.get(path);
+        if(previous != null && previous.length == length && previous.lastModified == lastModified){
+            return previous.hash;
+        }
+        final String hash = FileManagementUtils.contentHash(file);
+        hashed.put(path, new Hashed(length, lastModified, hash));
+        return hash;
+    }
+
+    /**
+     * Puts the file with the given hash at target, if the store has it.
+     * @param hash hash of the contents
+     * @param target where the file shall be
+     * @return true if target now has the contents
+     * @throws IOException if the file couldn't be linked or copied
+     */
+    synchronized boolean fetch(String hash, File target) throws IOException {
+        if(!isHash(hash) || !entries.containsKey(hash)){
+            return false;
+        }
+        final File stored = new File(directory, hash);
+        if(!stored.isFile() || !hash.equals(contentHash(stored))){
+            //Was modified through a link in some project, or removed
+            System.out.println("Stored file " + hash + " is no longer valid");
+            remove(hash);
+            return false;
+        }
+        //Marks it as recently used. Isn't written to the file, since that would modify the links in projects too
+        entries.get(hash);
+
+        target.getParentFile().mkdirs();
+        link(stored, target);
+        return true;
+    }
+
+    /**
+     * Adds a file to the store, if it isn't already there.
+     * @param hash hash of the contents, that the caller has verified
+     * @param file file
+     * @throws IOException if the file couldn't be linked or copied
+     */
+    synchronized void store(String hash, File file) throws IOException {
+        if(!isHash(hash)){
+            throw new IllegalArgumentException("Not a content hash: " + hash);
+        }
+        if(entries.containsKey(hash)){
+            return;
+        }
+        final File stored = new File(directory, hash);
+        link(file, stored);
+        entries.put(hash, stored.length());
+        bytes += stored.length();
+        evict();
+    }
+
+    /**
+     * @return number of bytes in the store
+     */
+    synchronized long size(){
+        return bytes;
+    }
+
+    /**
+     * Hashes come from the job owner and are used as file names, so they must not be paths.
+     */
+    private static boolean isHash(String hash){
+        return hash != null && hash.matches("[0-9a-f]{40}");
+    }
+
+    private static void link(File existing, File link) throws IOException {
+        Files.deleteIfExists(link.toPath());
+        try {
+            Files.createLink(link.toPath(), existing.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            //Different file systems, or links aren't supported
+            Files.copy(existing.toPath(), link.toPath());
+        }
+    }
+
+    private void evict(){
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        //Keeps the newest file even if it is larger than the store
+        while(bytes > maxBytes && entries.size() > 1){
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.getValue();
+            delete(eldest.getKey());
+        }
+    }
+
+    private void remove(String hash){
+        Long length = entries.remove(hash);
+        if(length != null){
+            bytes -= length;
+        }
+        delete(hash);
+    }
+
+    private void delete(String hash){
+        final File stored = new File(directory, hash);
+        hashed.remove(stored.getAbsolutePath());
+        if(stored.exists() && !stored.delete()){
+            System.out.println("Failed to delete stored file " + stored);
+        }
+    }
+
+    private static class Hashed {
+        private final long length;
+        private final long lastModified;
+        private final String hash;
+
+        private Hashed(long length, long lastModified, String hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
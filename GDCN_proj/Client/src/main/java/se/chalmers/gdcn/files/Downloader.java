@@ -1,23 +1,27 @@
 package se.chalmers.gdcn.files;
 
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.storage.Data;
-import se.chalmers.gdcn.communicationToUI.CommandWord;
 import se.chalmers.gdcn.communicationToUI.NetworkInterface;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskFailureListener;
 import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * Created by HalfLeif on 2014-03-05.
+ *
+ * Files that have a content hash are verified against it, and are taken from the {@link DependencyCache} if another
+ * project already has downloaded them.
  */
 public class Downloader extends AbstractFileMaster {
 
     private final PeerAddress jobOwner;
+    private final DependencyCache cache = DependencyCache.instance();
 
     public Downloader(TaskMeta taskMeta, String projectName, NetworkInterface client, PeerAddress jobOwner,TaskFailureListener taskFailureListener) throws TaskMetaDataException {
-        super(taskMeta, client, taskFailureListener, CommandWord.GET, PathManager.worker(projectName));
+        super(taskMeta, client, taskFailureListener, PathManager.worker(projectName));
 
         this.jobOwner = jobOwner;
     }
@@ -28,7 +32,23 @@ public class Downloader extends AbstractFileMaster {
      */
     @Override
     protected void ifFileExist(FileDep fileDep) {
-        System.out.println("Found file: " + FileManagementUtils.pathTo(pathManager, fileDep));
+        File file = FileManagementUtils.pathTo(pathManager, fileDep);
+        String hash = fileDep.getContentHash();
+        if(hash != null){
+            try {
+                if(!hash.equals(cache.contentHash(file))){
+                    System.out.println("Found stale file: " + file);
+                    ifFileDoNotExist(fileDep);
+                    return;
+                }
+                cache.store(hash, file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                ifFileDoNotExist(fileDep);
+                return;
+            }
+        }
+        System.out.println("Found file: " + file);
         super.fileDependencyResolved(fileDep);
     }
 
@@ -37,18 +57,46 @@ public class Downloader extends AbstractFileMaster {
      */
     @Override
     protected void ifFileDoNotExist(FileDep fileDep) {
-        System.out.println("Didn't find file " + FileManagementUtils.pathTo(pathManager, fileDep));
-        client.get(fileDep.getDhtKey(), jobOwner.getID());
-        //Handling OperationFinished is done in AbstractFileMaster
+        File file = FileManagementUtils.pathTo(pathManager, fileDep);
+        String hash = fileDep.getContentHash();
+        try {
+            if(hash != null && cache.fetch(hash, file)){
+                System.out.println("Found file in cache: " + file);
+                super.fileDependencyResolved(fileDep);
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Didn't find file " + file);
+        transfer(fileDep);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected OperationFuture<Long> startTransfer(FileDep fileDep) {
+        return ChunkedTransfer.download(client, fileDep.getDhtKey(), jobOwner.getID(),
+                FileManagementUtils.pathTo(pathManager, fileDep));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected void operationForDependentFileSuccess(FileDep fileDep, Object result) {
+    protected void operationForDependentFileSuccess(FileDep fileDep, Object result) throws IOException {
         File file = FileManagementUtils.pathTo(pathManager, fileDep);
-        Data data = (Data) result;
-        FileManagementUtils.toFile(file, data.getData());
+        String hash = fileDep.getContentHash();
+        if(hash != null){
+            if(!hash.equals(cache.contentHash(file))){
+                if(!file.delete()){
+                    System.out.println("Failed to delete " + file);
+                }
+                throw new IOException("Downloaded " + file + " doesn't match its content hash");
+            }
+            cache.store(hash, file);
+        }
+        System.out.println("Downloaded " + file);
     }
 }
@@ -1,7 +1,11 @@
 package se.chalmers.gdcn.files;
 
 import net.tomp2p.peers.Number160;
+import se.chalmers.gdcn.utils.BinaryFormat;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -22,6 +26,9 @@ public class FileDep implements Serializable {
     //TODO put checksum elsewhere
     final private int checkSum;
 
+    //SHA-1 of the contents in hex, set by the job owner when the job is uploaded
+    private String contentHash = null;
+
     FileDep(String fileName, String fileLocation, Number160 dhtKey, boolean sticky, int checkSum) {
         this.fileName = fileName;
         this.fileLocation = fileLocation;
@@ -84,4 +91,50 @@ public class FileDep implements Serializable {
     public int getCheckSum() {
         return checkSum;
     }
+
+    /**
+     * @return SHA-1 of the file contents in hex, or null if it isn't known
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Writes this dependency in the binary format of messages.
+     * @param out output
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        BinaryFormat.writeString(out, fileName);
+        BinaryFormat.writeString(out, fileLocation);
+        out.writeBoolean(dhtKey != null);
+        if(dhtKey != null){
+            BinaryFormat.writeNumber160(out, dhtKey);
+        }
+        out.writeBoolean(sticky);
+        out.writeInt(checkSum);
+        out.writeBoolean(contentHash != null);
+        if(contentHash != null){
+            BinaryFormat.writeString(out, contentHash);
+        }
+    }
+
+    /**
+     * @param in input positioned at a dependency written by {@link #writeTo(DataOutput)}
+     * @return the dependency
+     */
+    public static FileDep readFrom(DataInput in) throws IOException {
+        String fileName = BinaryFormat.readString(in);
+        String fileLocation = BinaryFormat.readString(in);
+        Number160 dhtKey = in.readBoolean() ? BinaryFormat.readNumber160(in) : null;
+        boolean sticky = in.readBoolean();
+        FileDep fileDep = new FileDep(fileName, fileLocation, dhtKey, sticky, in.readInt());
+        if(in.readBoolean()){
+            fileDep.setContentHash(BinaryFormat.readString(in));
+        }
+        return fileDep;
+    }
 }
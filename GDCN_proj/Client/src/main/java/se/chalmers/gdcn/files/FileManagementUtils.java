@@ -3,10 +3,13 @@ package se.chalmers.gdcn.files;
 import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
 
 import java.io.*;
-import java.security.DigestInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -14,6 +17,11 @@ import java.util.List;
  */
 public class FileManagementUtils {
 
+    //Files larger than this are mapped into memory instead of read through buffers
+    private static final long MAP_THRESHOLD = Long.getLong("gdcn.io.mapThreshold", 4L << 20);
+    //Bytes mapped at a time, so that large files don't need as much address space
+    private static final int MAP_WINDOW = 64 << 20;
+
     /**
      * Outputs some arbitrary data to file on disk
      *
@@ -26,22 +34,18 @@ public class FileManagementUtils {
         parent.mkdirs();
 
         //TODO use Box class and do checksum, or shall we?
-        BufferedOutputStream outputStream = null;
         try {
-            outputStream = new BufferedOutputStream(new FileOutputStream(file));
-            outputStream.write(data);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            FileChannel channel = new FileOutputStream(file).getChannel();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
                 }
+            } finally {
+                channel.close();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -50,35 +54,144 @@ public class FileManagementUtils {
      *
      * @param file File to read from
      * @return File contents in binary format
-     * @throws IOException
+     * @throws IOException if the file couldn't be read, is too large for an array or changed length while read
      */
     public static byte[] fromFile(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            final long size = channel.size();
+            if(size > Integer.MAX_VALUE){
+                throw new IOException(file + " is too large to read into memory: " + size + " bytes");
+            }
+            byte[] data = new byte[(int) size];
+            if(size > MAP_THRESHOLD){
+                for(long position = 0; position < size; position += MAP_WINDOW){
+                    final int length = (int) Math.min(MAP_WINDOW, size - position);
+                    channel.map(FileChannel.MapMode.READ_ONLY, position, length).get(data, (int) position, length);
+                }
+            } else {
+                readFully(channel, file, data, 0);
+            }
+            return data;
+        } finally {
+            channel.close();
+        }
+    }
 
-        InputStream inputStream = null;
-
+    /**
+     * Reads part of a file on disk
+     *
+     * @param file File to read from
+     * @param offset Position of the first byte to read
+     * @param length Number of bytes to read
+     * @return Part of the file contents
+     * @throws IOException if the file is shorter than offset + length
+     */
+    public static byte[] fromFile(File file, long offset, int length) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
         try {
-            //TODO Possibly use MD5 instead, if SHA-1 is too slow
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] data = new byte[length];
+            readFully(channel, file, data, offset);
+            return data;
+        } finally {
+            channel.close();
+        }
+    }
 
-            inputStream = new BufferedInputStream(new FileInputStream(file));
-            DigestInputStream digestInputStream = new DigestInputStream(inputStream, digest);
+    /**
+     * Compares a file with data without reading the file into an array.
+     *
+     * @param file File to compare
+     * @param data Expected contents
+     * @return true if the file holds exactly data
+     * @throws IOException if the file couldn't be read
+     */
+    public static boolean contentEquals(File file, byte[] data) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            final long size = channel.size();
+            if(size != data.length){
+                return false;
+            }
+            if(size <= MAP_THRESHOLD){
+                byte[] contents = new byte[(int) size];
+                readFully(channel, file, contents, 0);
+                return Arrays.equals(contents, data);
+            }
+            for(long position = 0; position < size; position += MAP_WINDOW){
+                final int length = (int) Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if(!mapped.equals(ByteBuffer.wrap(data, (int) position, length))){
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
 
-            byte[] data = new byte[(int) file.length()];
+    /**
+     * Reads the whole file to compute its digest, without holding more than a buffer of it in memory. Large files are
+     * mapped and given to the digest directly.
+     *
+     * @param file File to read from
+     * @return SHA-1 of the file contents
+     * @throws IOException if the file couldn't be read
+     */
+    public static byte[] digest(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is missing", e);
+        }
 
-            //TODO actually use digest
-            digestInputStream.read(data);
-            byte[] digestArray = digest.digest();
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            final long size = channel.size();
+            if(size > MAP_THRESHOLD){
+                for(long position = 0; position < size; position += MAP_WINDOW){
+                    final int length = (int) Math.min(MAP_WINDOW, size - position);
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                while(channel.read(buffer) >= 0){
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            return digest.digest();
+        } finally {
+            channel.close();
+        }
+    }
 
-            return data;
+    /**
+     * @param file File to read from
+     * @return SHA-1 of the file contents in hex, see {@link #digest(File)}
+     * @throws IOException if the file couldn't be read
+     */
+    public static String contentHash(File file) throws IOException {
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest(file)){
+            hex.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+        }
+        return hex.toString();
+    }
 
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } finally {
-            if (inputStream != null) {
-                inputStream.close();
+    /**
+     * Fills data from the channel, since a single read may return fewer bytes than asked for.
+     */
+    private static void readFully(FileChannel channel, File file, byte[] data, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                throw new EOFException(file + " ended after " + (offset + buffer.position()) + " bytes");
             }
         }
-        return null;
     }
 
     /**
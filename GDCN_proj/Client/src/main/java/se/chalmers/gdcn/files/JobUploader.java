@@ -1,9 +1,8 @@
 package se.chalmers.gdcn.files;
 
 import net.tomp2p.peers.Number160;
-import net.tomp2p.storage.Data;
-import se.chalmers.gdcn.communicationToUI.CommandWord;
 import se.chalmers.gdcn.communicationToUI.NetworkInterface;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
 import se.chalmers.gdcn.replica.ReplicaManager;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskFailureListener;
 import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
@@ -11,21 +10,15 @@ import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Created by HalfLeif on 2014-03-05.
  */
 public class JobUploader extends AbstractFileMaster{
 
-    private final TaskFailureListener taskFailureListener;
-
     private JobUploader(PathManager pathManager, TaskMeta taskMeta, NetworkInterface client, TaskFailureListener taskFailureListener) throws TaskMetaDataException {
-        super(taskMeta, client, taskFailureListener, CommandWord.PUT, pathManager);
-        this.taskFailureListener = taskFailureListener;
+        super(taskMeta, client, taskFailureListener, pathManager);
     }
 
     /**
@@ -61,7 +54,7 @@ public class JobUploader extends AbstractFileMaster{
         }
 
         List<TaskMeta> taskMetas = new ArrayList<>();
-
+        Map<File, String> contentHashes = new HashMap<>();
 
         for(FileDep fileDep : dependencyTasks){
             TaskMeta taskMeta = AbstractFileMaster.readMetaFile( FileManagementUtils.pathTo(manager, fileDep));
@@ -70,9 +63,11 @@ public class JobUploader extends AbstractFileMaster{
             taskMeta.getModule().setDhtKey(Number160.createHash(taskMeta.getModule().getFileName()));
 
             setFileDepDHTKey(taskMeta.getModule());
+            setContentHash(manager, taskMeta.getModule(), contentHashes);
 
             for(FileDep f : taskMeta.getDependencies()) {
                 setFileDepDHTKey(f);
+                setContentHash(manager, f, contentHashes);
             }
 
             allFileDependencies.add(taskMeta.getModule());
@@ -95,19 +90,16 @@ public class JobUploader extends AbstractFileMaster{
      */
     @Override
     protected void ifFileExist(FileDep fileDep) {
-        File file = FileManagementUtils.pathTo(pathManager, fileDep);
-
-        try {
-//            System.out.println("Put " + FileManagementUtils.pathTo(pathManager, fileDep));
-            Data data = new Data(FileManagementUtils.fromFile(file));
-            client.put(fileDep.getDhtKey(), client.getID(), data);
-            //Handling OperationFinished is done in AbstractFileMaster
+        transfer(fileDep);
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            taskFailureListener.taskFailed(taskMeta.getTaskName(), "Failed to serialize: " + FileManagementUtils.pathTo(pathManager, fileDep) +
-                    "\n"+e.getMessage());
-        }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected OperationFuture<Long> startTransfer(FileDep fileDep) {
+        File file = FileManagementUtils.pathTo(pathManager, fileDep);
+        return ChunkedTransfer.upload(client, fileDep.getDhtKey(), client.getID(), file);
     }
 
     /**
@@ -115,7 +107,7 @@ public class JobUploader extends AbstractFileMaster{
      */
     @Override
     protected void ifFileDoNotExist(FileDep fileDep) {
-        taskFailureListener.taskFailed(taskMeta.getTaskName(), "Unable to resolve "+ FileManagementUtils.pathTo(pathManager, fileDep));
+        dependencyFailed(fileDep, "Unable to resolve "+ FileManagementUtils.pathTo(pathManager, fileDep));
     }
 
     /**
@@ -124,12 +116,32 @@ public class JobUploader extends AbstractFileMaster{
     @Override
     protected void operationForDependentFileSuccess(FileDep fileDep, Object result) {
         System.out.println("Successfully put " + fileDep.getFileName());
-        super.fileDependencyResolved(fileDep);
     }
 
     private static void setFileDepDHTKey(FileDep f) {
         f.setDhtKey(Number160.createHash(f.getFileName()));
     }
 
+    /**
+     * Lets workers verify the file and share it between projects. Files that are missing are left without hash,
+     * they fail the upload later on.
+     */
+    private static void setContentHash(PathManager manager, FileDep f, Map<File, String> contentHashes) throws TaskMetaDataException {
+        File file = FileManagementUtils.pathTo(manager, f);
+        if(!file.isFile()){
+            return;
+        }
+        String hash = contentHashes.get(file);
+        if(hash == null){
+            try {
+                hash = FileManagementUtils.contentHash(file);
+            } catch (IOException e) {
+                throw new TaskMetaDataException("Failed to read " + file + ": " + e.getMessage());
+            }
+            contentHashes.put(file, hash);
+        }
+        f.setContentHash(hash);
+    }
+
 
 }
@@ -1,5 +1,10 @@
 package se.chalmers.gdcn.files;
 
+import se.chalmers.gdcn.utils.BinaryFormat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -58,4 +63,39 @@ public class TaskMeta implements Serializable {
     public List<FileDep> getDependencies() {
         return new ArrayList<>(dependencies);
     }
+
+    /**
+     * Writes this meta data in the binary format of messages.
+     * @param out output
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        BinaryFormat.writeString(out, taskName);
+        out.writeBoolean(module != null);
+        if(module != null){
+            module.writeTo(out);
+        }
+        out.writeInt(dependencies.size());
+        for(FileDep dependency : dependencies){
+            dependency.writeTo(out);
+        }
+    }
+
+    /**
+     * @param in input positioned at meta data written by {@link #writeTo(DataOutput)}
+     * @return the meta data
+     */
+    public static TaskMeta readFrom(DataInput in) throws IOException {
+        String taskName = BinaryFormat.readString(in);
+        FileDep module = in.readBoolean() ? FileDep.readFrom(in) : null;
+        final int size = in.readInt();
+        if(size < 0){
+            throw new IOException("Invalid number of dependencies: " + size);
+        }
+        //Capacity isn't trusted, the input runs out if the size is wrong
+        List<FileDep> dependencies = new ArrayList<>(Math.min(size, 16));
+        for(int i=0; i<size; ++i){
+            dependencies.add(FileDep.readFrom(in));
+        }
+        return new TaskMeta(taskName, module, dependencies);
+    }
 }
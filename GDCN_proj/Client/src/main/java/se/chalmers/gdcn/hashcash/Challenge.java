@@ -1,16 +1,19 @@
 package se.chalmers.gdcn.hashcash;
 
+import se.chalmers.gdcn.utils.BinaryFormat;
+
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.BitSet;
-import java.util.Random;
+import java.util.concurrent.Executor;
 
 /**
  * Created by Leif on 2014-03-29.
@@ -28,6 +31,13 @@ public class Challenge implements Serializable {
         this.mac = mac.clone();
     }
 
+    private Challenge(HashCash.Purpose purpose, byte[] seed, int difficulty, byte[] mac) {
+        this.purpose = purpose;
+        this.seed = seed;
+        this.difficulty = difficulty;
+        this.mac = mac;
+    }
+
     byte[] getMAC() {
         return mac.clone();
     }
@@ -65,27 +75,42 @@ public class Challenge implements Serializable {
     }
 
     private byte[] generateMAC(Key key) throws InvalidKeyException {
-        Mac macGen = null;
-        try {
-            macGen = Mac.getInstance(key.getAlgorithm());
-            macGen.init(key);
-            macGen.update(purpose.toString().getBytes("UTF-8"));
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            //TODO Something went really wrong here, present it to the user in some way?
-        } catch (NoSuchAlgorithmException e) {
-            throw new InvalidKeyException("The key must be compatible with javax.crypto.Mac");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            //TODO Tell the user that UTF-8 is needed.
-        }
+        Mac macGen = ThreadDigests.get().mac(key);
+        updateMAC(macGen);
+        return macGen.doFinal();
+    }
 
+    private void updateMAC(Mac macGen) {
+        macGen.update(purpose.bytes());
         macGen.update(seed);
-        return macGen.doFinal(ByteBuffer.allocate(4).putInt(difficulty).array());
+        //Difficulty as big endian int
+        macGen.update((byte) (difficulty >>> 24));
+        macGen.update((byte) (difficulty >>> 16));
+        macGen.update((byte) (difficulty >>> 8));
+        macGen.update((byte) difficulty);
     }
 
     public boolean isAuthentic(Key key) throws InvalidKeyException {
-        return Arrays.equals(this.mac, generateMAC(key));
+        ThreadDigests digests = ThreadDigests.get();
+        Mac macGen = digests.mac(key);
+        updateMAC(macGen);
+
+        byte[] buffer = digests.macBuffer();
+        try {
+            macGen.doFinal(buffer, 0);
+        } catch (ShortBufferException e) {
+            //Buffer is made to fit the Mac
+            throw new IllegalStateException(e);
+        }
+        return Arrays.equals(this.mac, buffer);
+    }
+
+    /**
+     * @param seed seed to compare with
+     * @return true if seed is the seed of this challenge
+     */
+    boolean hasSeed(byte[] seed) {
+        return Arrays.equals(this.seed, seed);
     }
 
     public byte[] getSeed() {
@@ -93,19 +118,44 @@ public class Challenge implements Serializable {
     }
 
     /**
-     * Solves the Challenge.
+     * Solves the Challenge in the calling thread.
      * @return A solution such that this.solved(solution) == true
      */
     public Solution solve() {
-        Random random = new Random();
-        byte[] testToken;
+        return new ChallengeSolver(this, 1).solve();
+    }
 
-        do {
-            testToken = new byte[random.nextInt(32)];
-            random.nextBytes(testToken);
-        } while (!isCorrectToken(testToken));
+    /**
+     * Solves the Challenge using several threads. The calling thread takes part in the search.
+     * Use {@link ChallengeSolver} directly to be able to cancel it.
+     * @param executor Executor that runs the other searches.
+     * @param threads Total number of threads to search with, including the calling thread.
+     * @return A solution such that this.solved(solution) == true, or null if the calling thread was interrupted.
+     */
+    public Solution solve(Executor executor, int threads) {
+        return new ChallengeSolver(this, threads).solve(executor);
+    }
 
-        return new Solution(testToken,this);
+    /**
+     * Writes this challenge in the binary format of messages.
+     * @param out output
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(purpose.ordinal());
+        out.writeInt(difficulty);
+        BinaryFormat.writeBytes(out, seed);
+        BinaryFormat.writeBytes(out, mac);
+    }
+
+    /**
+     * @param in input positioned at a challenge written by {@link #writeTo(DataOutput)}
+     * @return the challenge
+     */
+    public static Challenge readFrom(DataInput in) throws IOException {
+        HashCash.Purpose purpose = BinaryFormat.toEnum(HashCash.Purpose.values(), in.readByte());
+        int difficulty = in.readInt();
+        byte[] seed = BinaryFormat.readBytes(in);
+        return new Challenge(purpose, seed, difficulty, BinaryFormat.readBytes(in));
     }
 
     @Override
@@ -116,19 +166,23 @@ public class Challenge implements Serializable {
     }
 
     static byte[] hash(byte[] seed, byte[] token) {
-        try {
-            MessageDigest md = MessageDigest.getInstance(HashCash.HASH_ALGORITHM);
-
-            md.update(seed);
-            md.update(token);
-
-            return md.digest();
+        return hash(seed, token, ThreadDigests.get()).clone();
+    }
 
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            //TODO Something went really wrong here, present it to the user in some way?
+    /**
+     * @return hash of seed and token in the hash buffer of digests
+     */
+    private static byte[] hash(byte[] seed, byte[] token, ThreadDigests digests) {
+        MessageDigest md = digests.digest;
+        md.update(seed);
+        md.update(token);
+        try {
+            md.digest(digests.hash, 0, digests.hash.length);
+        } catch (DigestException e) {
+            //Buffer is made to fit the digest
+            throw new IllegalStateException(e);
         }
-        return null;
+        return digests.hash;
     }
 
     /**
@@ -137,16 +191,28 @@ public class Challenge implements Serializable {
      * @return True if the token is a solution to the challenge, false otherwise.
      */
     public boolean isCorrectToken(byte[] token) {
-        return checkZeros(hash(seed,token));
+        return checkZeros(hash(seed, token, ThreadDigests.get()));
     }
 
-    boolean checkZeros(byte[] hash) {
-        BitSet hashBits = BitSet.valueOf(hash);
-        BitSet zeros = new BitSet(difficulty);
-
-        zeros.clear();
-        zeros.or(hashBits);
+    /**
+     * Checks that the first bits of the hash are zero.
+     * Bits are numbered as in {@link java.util.BitSet#valueOf(byte[])}, ie bit 0 is the lowest bit of the first byte.
+     * @param hash hash to check
+     * @param bits number of bits from the start that must be zero
+     * @return true if the bits are zero
+     */
+    static boolean hasLeadingZeros(byte[] hash, int bits) {
+        final int bytes = Math.min(bits >> 3, hash.length);
+        for(int i=0; i<bytes; ++i){
+            if(hash[i] != 0){
+                return false;
+            }
+        }
+        final int rest = bits & 7;
+        return bits <= 0 || bytes == hash.length || rest == 0 || (hash[bytes] & ((1 << rest) - 1)) == 0;
+    }
 
-        return zeros.get(0,difficulty-1).isEmpty();
+    boolean checkZeros(byte[] hash) {
+        return hasLeadingZeros(hash, difficulty-1);
     }
 }
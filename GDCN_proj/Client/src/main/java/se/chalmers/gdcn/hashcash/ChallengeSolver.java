@@ -0,0 +1,149 @@
+package se.chalmers.gdcn.hashcash;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Solves a {@link Challenge} by searching a counter based token space that is split between several searches.
+ * Search number i tries the counters i, i+n, i+2n... where n is the number of searches,
+ * so no token is tried twice and the searches need no coordination except when one finds a solution.
+ *
+ * The thread that calls {@link #solve(Executor)} runs the first search itself. The others are submitted to the
+ * executor, hence solving still makes progress even if the executor is busy or is the one running the caller.
+ */
+public class ChallengeSolver {
+
+    //Number of attempts between checks for interruption
+    private static final int CHECK_INTERVAL = 1 << 12;
+
+    private final Challenge challenge;
+    private final byte[] seed;
+    private final int searches;
+
+    private final AtomicReference<byte[]> solution = new AtomicReference<>(null);
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param challenge challenge to solve
+     * @param searches number of searches to split the work between, typically the number of cores
+     */
+    public ChallengeSolver(Challenge challenge, int searches) {
+        if(searches < 1){
+            throw new IllegalArgumentException("Must have at least one search: " + searches);
+        }
+        this.challenge = challenge;
+        this.seed = challenge.getSeed();
+        this.searches = searches;
+    }
+
+    /**
+     * Solves the challenge in the calling thread only.
+     * @return solution or null if cancelled
+     */
+    public Solution solve(){
+        return solve(null);
+    }
+
+    /**
+     * Solves the challenge. Blocks until a solution is found or the solver is cancelled.
+     * Interrupting the calling thread cancels the solver.
+     * @param executor executor to run the other searches, null to only search in the calling thread
+     * @return solution or null if cancelled
+     */
+    public Solution solve(Executor executor){
+        if(executor != null){
+            for(int i=1; i<searches; ++i){
+                executor.execute(new Search(i, false));
+            }
+        }
+        new Search(0, true).run();
+
+        byte[] token = solution.get();
+        return token == null ? null : new Solution(token, challenge);
+    }
+
+    /**
+     * Stops all searches. A call to solve that is blocked will return null.
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    /**
+     * @return true if the solver was cancelled before a solution was found
+     */
+    public boolean isCancelled() {
+        return cancelled && solution.get() == null;
+    }
+
+    private boolean isRunning(){
+        return !cancelled && solution.get() == null;
+    }
+
+    /**
+     * Tries every counter of one residue class, reusing the same digest and buffers for each attempt.
+     */
+    private class Search implements Runnable {
+        private final int start;
+        private final boolean caller;
+
+        private Search(int start, boolean caller) {
+            this.start = start;
+            this.caller = caller;
+        }
+
+        @Override
+        public void run() {
+            final MessageDigest md;
+            try {
+                md = MessageDigest.getInstance(HashCash.HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                cancel();
+                return;
+            }
+
+            final int zeros = challenge.difficulty - 1;
+            final byte[] token = new byte[8];
+            final byte[] hash = new byte[md.getDigestLength()];
+
+            long counter = start;
+            int attempts = 0;
+            while(isRunning()){
+                write(counter, token);
+                md.update(seed);
+                md.update(token);
+                try {
+                    md.digest(hash, 0, hash.length);
+                } catch (DigestException e) {
+                    e.printStackTrace();
+                    cancel();
+                    return;
+                }
+
+                if(Challenge.hasLeadingZeros(hash, zeros)){
+                    solution.compareAndSet(null, token.clone());
+                    return;
+                }
+
+                counter += searches;
+                if(++attempts == CHECK_INTERVAL){
+                    attempts = 0;
+                    if(caller && Thread.currentThread().isInterrupted()){
+                        cancel();
+                    }
+                }
+            }
+        }
+
+        private void write(long counter, byte[] token){
+            for(int i=token.length-1; i>=0; --i){
+                token[i] = (byte) counter;
+                counter >>>= 8;
+            }
+        }
+    }
+}
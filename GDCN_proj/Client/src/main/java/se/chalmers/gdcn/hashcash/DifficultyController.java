@@ -0,0 +1,187 @@
+package se.chalmers.gdcn.hashcash;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides the difficulty of new challenges from the load of the job owner.
+ *
+ * The load is the largest of the request rate and the number of requests waiting to be handled, each divided by its
+ * target. The replicas that are being worked on aren't part of it, since they follow from the size of the jobs rather
+ * than from how hard the job owner is pressed, and a large job shall not make its honest workers work harder.
+ * The difficulty is raised one bit per update while the load is above one,
+ * which doubles the work of each worker, and lowered one bit while the load is below {@link #LOW_LOAD}.
+ * Easy (AUTH) and hard (REG) challenges are raised and lowered together within their own bounds.
+ */
+public class DifficultyController {
+
+    /**
+     * Load below which the difficulty is lowered. Is kept well below one to not oscillate.
+     */
+    public static final double LOW_LOAD = 0.5;
+
+    private final int minEasy, maxEasy, minHard, maxHard;
+
+    private double targetRate = 20;
+    private int targetQueue = 10;
+
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private long lastUpdate;
+
+    private volatile int easyDifficulty;
+    private volatile int hardDifficulty;
+
+    //Statistics of last update
+    private volatile double lastRate = 0;
+    private volatile int lastQueue = 0;
+    private volatile double lastLoad = 0;
+
+    /**
+     * Creates a controller that never changes the difficulties.
+     * @param easy The difficulty of easy challenges.
+     * @param hard The difficulty of hard challenges.
+     */
+    public DifficultyController(int easy, int hard) {
+        this(easy, easy, hard, hard);
+    }
+
+    /**
+     * Creates a controller that starts at the lower bounds.
+     * @param minEasy Lowest difficulty of easy challenges.
+     * @param maxEasy Highest difficulty of easy challenges.
+     * @param minHard Lowest difficulty of hard challenges.
+     * @param maxHard Highest difficulty of hard challenges.
+     */
+    public DifficultyController(int minEasy, int maxEasy, int minHard, int maxHard) {
+        if(minEasy > maxEasy || minHard > maxHard){
+            throw new IllegalArgumentException("Lower bound must not exceed upper bound");
+        }
+        this.minEasy = minEasy;
+        this.maxEasy = maxEasy;
+        this.minHard = minHard;
+        this.maxHard = maxHard;
+
+        easyDifficulty = minEasy;
+        hardDifficulty = minHard;
+        lastUpdate = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the load that one job owner is expected to handle.
+     * @param requestRate requests per second
+     * @param queueDepth requests waiting to be handled
+     */
+    public synchronized void setTargets(double requestRate, int queueDepth){
+        if(requestRate <= 0 || queueDepth <= 0){
+            throw new IllegalArgumentException("Targets must be positive");
+        }
+        this.targetRate = requestRate;
+        this.targetQueue = queueDepth;
+    }
+
+    /**
+     * Counts a request for the request rate.
+     */
+    public void requestReceived(){
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Measures the load and adjusts the difficulties. Is meant to be called periodically.
+     * @param queueDepth number of requests waiting to be handled
+     */
+    public void update(int queueDepth){
+        update(System.currentTimeMillis(), queueDepth);
+    }
+
+    synchronized void update(long now, int queueDepth){
+        final long elapsed = Math.max(1, now - lastUpdate);
+        lastUpdate = now;
+
+        final double rate = requests.getAndSet(0) * 1000.0 / elapsed;
+        final double load = Math.max(rate / targetRate, (double) queueDepth / targetQueue);
+
+        if(load > 1){
+            easyDifficulty = Math.min(maxEasy, easyDifficulty + 1);
+            hardDifficulty = Math.min(maxHard, hardDifficulty + 1);
+        } else if(load < LOW_LOAD){
+            easyDifficulty = Math.max(minEasy, easyDifficulty - 1);
+            hardDifficulty = Math.max(minHard, hardDifficulty - 1);
+        }
+
+        lastRate = rate;
+        lastQueue = queueDepth;
+        lastLoad = load;
+    }
+
+    /**
+     * @return difficulty of new easy challenges, used for authentication
+     */
+    public int getEasyDifficulty() {
+        return easyDifficulty;
+    }
+
+    /**
+     * @return difficulty of new hard challenges, used for registration
+     */
+    public int getHardDifficulty() {
+        return hardDifficulty;
+    }
+
+    /**
+     * @return current difficulties and the load they were decided from
+     */
+    public Statistics statistics(){
+        return new Statistics(easyDifficulty, hardDifficulty, lastRate, lastQueue, lastLoad);
+    }
+
+    /**
+     * Snapshot of the difficulties and the last measured load.
+     */
+    public static class Statistics {
+        private final int easyDifficulty;
+        private final int hardDifficulty;
+        private final double requestRate;
+        private final int queueDepth;
+        private final double load;
+
+        private Statistics(int easyDifficulty, int hardDifficulty, double requestRate, int queueDepth, double load) {
+            this.easyDifficulty = easyDifficulty;
+            this.hardDifficulty = hardDifficulty;
+            this.requestRate = requestRate;
+            this.queueDepth = queueDepth;
+            this.load = load;
+        }
+
+        public int getEasyDifficulty() {
+            return easyDifficulty;
+        }
+
+        public int getHardDifficulty() {
+            return hardDifficulty;
+        }
+
+        /**
+         * @return requests per second
+         */
+        public double getRequestRate() {
+            return requestRate;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return load relative to the targets, above one means overloaded
+         */
+        public double getLoad() {
+            return load;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Difficulty{easy=%d, hard=%d, rate=%.1f/s, queue=%d, load=%.2f}",
+                    easyDifficulty, hardDifficulty, requestRate, queueDepth, load);
+        }
+    }
+}
@@ -2,9 +2,16 @@ package se.chalmers.gdcn.hashcash;
 
 import se.chalmers.gdcn.network.WorkerID;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Created by weeeeeew on 2014-03-31.
@@ -12,10 +19,33 @@ import java.security.*;
 public class HashCash {
     public final static String HASH_ALGORITHM = "SHA-1";
     
-    private final int hardDifficulty, easyDifficulty;
+    private final DifficultyController difficulty;
     private final SecretKey key;
 
-    public static enum Purpose { REG, AUTH, NONE }
+    //Workers choose their own IDs, so only the prefixes of the most recent workers are kept
+    private static final int SEED_PREFIX_CACHE_SIZE = 256;
+    private final Map<WorkerID, SeedPrefix> seedPrefixes = Collections.synchronizedMap(
+            new LinkedHashMap<WorkerID, SeedPrefix>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<WorkerID, SeedPrefix> eldest) {
+                    return size() > SEED_PREFIX_CACHE_SIZE;
+                }
+            });
+
+    private static final byte[] SESSION = "SESSION".getBytes(Charset.forName("UTF-8"));
+
+    public static enum Purpose {
+        REG, AUTH, NONE;
+
+        private final byte[] bytes = name().getBytes(Charset.forName("UTF-8"));
+
+        /**
+         * @return UTF-8 bytes of the name, must not be modified
+         */
+        byte[] bytes(){
+            return bytes;
+        }
+    }
 
     /**
      * Creates a new HashCash-cookie instance with standard difficulties.
@@ -39,9 +69,23 @@ public class HashCash {
      * @param hard The difficulty of hard challenges.
      */
     public HashCash(SecretKey key, int easy, int hard) {
+        this(key, new DifficultyController(easy, hard));
+    }
+
+    /**
+     * Creates a new HashCash-cookie instance with difficulties that adapt to the load.
+     * The supplied key is used to validate solutions.
+     * @param key A key for MACing, must be compatible with javax.crypto.Mac. At least SHA-256 is recommended,
+     *            which can be generated with KeyGenerator.getInstance("HmacSHA256").generateKey()
+     * @param difficulty Controller that decides the difficulty of new challenges.
+     */
+    public HashCash(SecretKey key, DifficultyController difficulty) {
         this.key = key;
-        hardDifficulty = hard;
-        easyDifficulty = easy;
+        this.difficulty = difficulty;
+    }
+
+    public DifficultyController getDifficultyController() {
+        return difficulty;
     }
 
     /**
@@ -62,13 +106,7 @@ public class HashCash {
      * @return The challenge.
      */
     public Challenge generateChallenge(Purpose purpose, String seed, int difficulty) {
-        try {
-            return new Challenge(purpose, hash(seed), difficulty, key);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            //TODO Tell the user that the key supplied to the HashCash is invalid.
-            return null;
-        }
+        return generateChallenge(purpose, hash(seed), difficulty);
     }
 
     /**
@@ -79,9 +117,7 @@ public class HashCash {
      * @return The challenge.
      */
     public Challenge generateRegistrationChallenge(WorkerID jobOwner, WorkerID worker, int score) {
-        String seed = jobOwner.toString() + worker + score;
-
-        return generateChallenge(Purpose.REG, seed, hardDifficulty);
+        return generateChallenge(Purpose.REG, seed(jobOwner, worker, score), difficulty.getHardDifficulty());
     }
 
     /**
@@ -92,9 +128,17 @@ public class HashCash {
      * @return The challenge.
      */
     public Challenge generateAuthenticationChallenge(WorkerID jobOwner, WorkerID worker, int score) {
-        String seed = jobOwner.toString() + worker + score;
+        return generateChallenge(Purpose.AUTH, seed(jobOwner, worker, score), difficulty.getEasyDifficulty());
+    }
 
-        return generateChallenge(Purpose.AUTH, seed, easyDifficulty);
+    private Challenge generateChallenge(Purpose purpose, byte[] seed, int difficulty) {
+        try {
+            return new Challenge(purpose, seed, difficulty, key);
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+            //TODO Tell the user that the key supplied to the HashCash is invalid.
+            return null;
+        }
     }
 
     /**
@@ -106,9 +150,114 @@ public class HashCash {
      * @return True if the worker solved the solution, false otherwise.
      */
     public boolean validateSolution(Solution solution, WorkerID jobOwner, WorkerID worker, int score) throws InvalidKeyException {
-        byte[] seed = hash(jobOwner.toString() + worker + score);
+        return solution.isValid(key, seed(jobOwner, worker, score));
+    }
 
-        return solution.isValid(key,seed);
+    /**
+     * Hash of the string jobOwner + worker + score, without building the string more than once per worker.
+     * @return seed in the buffer of this thread, see {@link ThreadDigests}
+     */
+    private byte[] seed(WorkerID jobOwner, WorkerID worker, int score) {
+        ThreadDigests digests = ThreadDigests.get();
+        MessageDigest md = digests.digest;
+        md.update(seedPrefix(jobOwner, worker));
+        digests.updateDecimal(score);
+        try {
+            md.digest(digests.seed, 0, digests.seed.length);
+        } catch (DigestException e) {
+            //Buffer is made to fit the digest
+            throw new IllegalStateException(e);
+        }
+        return digests.seed;
+    }
+
+    /**
+     * @return number of workers whose seed prefix is kept
+     */
+    int cachedSeedPrefixes() {
+        return seedPrefixes.size();
+    }
+
+    /**
+     * @return UTF-8 bytes of the string jobOwner + worker, must not be modified
+     */
+    private byte[] seedPrefix(WorkerID jobOwner, WorkerID worker) {
+        SeedPrefix prefix = seedPrefixes.get(worker);
+        if(prefix == null || !prefix.isOf(jobOwner)){
+            prefix = new SeedPrefix(jobOwner, worker);
+            seedPrefixes.put(worker, prefix);
+        }
+        return prefix.bytes;
+    }
+
+    /**
+     * Issues a token that lets a worker request tasks without solving challenges until it expires.
+     * @param jobOwner The issuer of the token.
+     * @param worker The worker that gets the token.
+     * @param reputation The worker's current reputation.
+     * @param lifetime Milliseconds until the token expires.
+     * @return The token.
+     */
+    public SessionToken issueSessionToken(WorkerID jobOwner, WorkerID worker, int reputation, long lifetime) throws InvalidKeyException {
+        final long expires = System.currentTimeMillis() + lifetime;
+        Mac mac = ThreadDigests.get().mac(key);
+        updateSessionMAC(mac, jobOwner, worker, expires, reputation);
+        return new SessionToken(expires, reputation, mac.doFinal());
+    }
+
+    /**
+     * Checks that a session token is authentic and hasn't expired.
+     * Whether the worker still deserves the token must be checked by the caller.
+     * @param token The token to check.
+     * @param jobOwner The issuer of the token.
+     * @param worker The worker that claims to own the token.
+     * @return True if the token was issued to this worker by this job owner and is still valid.
+     */
+    public boolean validateSessionToken(SessionToken token, WorkerID jobOwner, WorkerID worker) throws InvalidKeyException {
+        if(token.isExpired(System.currentTimeMillis())){
+            return false;
+        }
+
+        ThreadDigests digests = ThreadDigests.get();
+        Mac mac = digests.mac(key);
+        updateSessionMAC(mac, jobOwner, worker, token.getExpires(), token.getReputation());
+        byte[] buffer = digests.macBuffer();
+        try {
+            mac.doFinal(buffer, 0);
+        } catch (ShortBufferException e) {
+            //Buffer is made to fit the Mac
+            throw new IllegalStateException(e);
+        }
+        return Arrays.equals(token.getMAC(), buffer);
+    }
+
+    private void updateSessionMAC(Mac mac, WorkerID jobOwner, WorkerID worker, long expires, int reputation) {
+        //Never the start of a challenge MAC, which starts with the name of a purpose
+        mac.update(SESSION);
+        mac.update(seedPrefix(jobOwner, worker));
+        for(int shift=56; shift>=0; shift-=8){
+            mac.update((byte) (expires >>> shift));
+        }
+        for(int shift=24; shift>=0; shift-=8){
+            mac.update((byte) (reputation >>> shift));
+        }
+    }
+
+    /**
+     * UTF-8 bytes of the string jobOwner + worker
+     */
+    private static class SeedPrefix {
+        private final WorkerID jobOwner;
+        private final byte[] bytes;
+
+        private SeedPrefix(WorkerID jobOwner, WorkerID worker) {
+            this.jobOwner = jobOwner;
+            this.bytes = (jobOwner.toString() + worker).getBytes(Charset.forName("UTF-8"));
+        }
+
+        private boolean isOf(WorkerID jobOwner){
+            return this.jobOwner == jobOwner || this.jobOwner.equals(jobOwner);
+        }
     }
 
     private static byte[] hash(String message) {
@@ -0,0 +1,80 @@
+package se.chalmers.gdcn.hashcash;
+
+import se.chalmers.gdcn.utils.BinaryFormat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Proof that a worker with reputation has recently solved a challenge for a job owner.
+ * Lets the worker request tasks without solving a new challenge each time until it expires.
+ *
+ * The token is MACed by the job owner, see {@link HashCash#issueSessionToken}.
+ */
+public class SessionToken implements Serializable {
+    private final long expires;
+    private final int reputation;
+    private final byte[] mac;
+
+    SessionToken(long expires, int reputation, byte[] mac) {
+        this.expires = expires;
+        this.reputation = reputation;
+        this.mac = mac;
+    }
+
+    /**
+     * @return date in millis when this token is no longer accepted
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * @param now current time in millis
+     * @return true if this token is no longer accepted
+     */
+    public boolean isExpired(long now) {
+        return now >= expires;
+    }
+
+    /**
+     * @return reputation of the worker when this token was issued
+     */
+    public int getReputation() {
+        return reputation;
+    }
+
+    byte[] getMAC() {
+        return mac;
+    }
+
+    /**
+     * Writes this token in the binary format of messages.
+     * @param out output
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(expires);
+        out.writeInt(reputation);
+        BinaryFormat.writeBytes(out, mac);
+    }
+
+    /**
+     * @param in input positioned at a token written by {@link #writeTo(DataOutput)}
+     * @return the token
+     */
+    public static SessionToken readFrom(DataInput in) throws IOException {
+        long expires = in.readLong();
+        int reputation = in.readInt();
+        return new SessionToken(expires, reputation, BinaryFormat.readBytes(in));
+    }
+
+    @Override
+    public String toString() {
+        return "SessionToken{" +
+                "expires=" + expires +
+                ", reputation=" + reputation +
+                '}';
+    }
+}
@@ -1,11 +1,14 @@
 package se.chalmers.gdcn.hashcash;
 
+import se.chalmers.gdcn.utils.BinaryFormat;
 import se.chalmers.gdcn.utils.ByteArray;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.util.Arrays;
 
 /**
  * Created by Leif on 2014-03-29.
@@ -44,7 +47,7 @@ public class Solution implements Serializable {
      * @throws InvalidKeyException
      */
     public boolean isValid(Key key, byte[] seed) throws InvalidKeyException {
-        return isValid(key) && Arrays.equals(seed,challenge.getSeed());
+        return challenge.hasSeed(seed) && isValid(key);
     }
 
     /**
@@ -65,6 +68,24 @@ public class Solution implements Serializable {
         return challenge.isCorrectToken(token);
     }
 
+    /**
+     * Writes this solution in the binary format of messages.
+     * @param out output
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        challenge.writeTo(out);
+        BinaryFormat.writeBytes(out, token);
+    }
+
+    /**
+     * @param in input positioned at a solution written by {@link #writeTo(DataOutput)}
+     * @return the solution
+     */
+    public static Solution readFrom(DataInput in) throws IOException {
+        Challenge challenge = Challenge.readFrom(in);
+        return new Solution(BinaryFormat.readBytes(in), challenge);
+    }
+
     @Override
     public String toString() {
         return "Solution{"+
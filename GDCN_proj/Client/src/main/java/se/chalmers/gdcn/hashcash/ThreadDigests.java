@@ -0,0 +1,91 @@
+package se.chalmers.gdcn.hashcash;
+
+import javax.crypto.Mac;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest, Mac and buffers of one thread. Challenges are verified on every request for a task,
+ * these are reused so that verification doesn't create any objects once the thread has verified once.
+ *
+ * Content of the buffers is only valid until the next call on the same thread.
+ */
+final class ThreadDigests {
+
+    private static final ThreadLocal<ThreadDigests> LOCAL = new ThreadLocal<ThreadDigests>(){
+        @Override
+        protected ThreadDigests initialValue() {
+            return new ThreadDigests();
+        }
+    };
+
+    final MessageDigest digest;
+    final byte[] hash;
+    final byte[] seed;
+    private final byte[] digits = new byte[10];
+
+    private Key macKey = null;
+    private Mac mac = null;
+    private byte[] macBuffer = null;
+
+    private ThreadDigests() {
+        try {
+            digest = MessageDigest.getInstance(HashCash.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HashCash.HASH_ALGORITHM + " is required", e);
+        }
+        hash = new byte[digest.getDigestLength()];
+        seed = new byte[digest.getDigestLength()];
+    }
+
+    static ThreadDigests get(){
+        return LOCAL.get();
+    }
+
+    /**
+     * @param key key to MAC with
+     * @return Mac initialized with the key. Is only initialized again if the key changes.
+     * @throws InvalidKeyException if the key can't be used with javax.crypto.Mac
+     */
+    Mac mac(Key key) throws InvalidKeyException {
+        if(key != macKey){
+            try {
+                mac = Mac.getInstance(key.getAlgorithm());
+            } catch (NoSuchAlgorithmException e) {
+                throw new InvalidKeyException("The key must be compatible with javax.crypto.Mac");
+            }
+            macKey = null;
+            mac.init(key);
+            macKey = key;
+            macBuffer = new byte[mac.getMacLength()];
+        }
+        return mac;
+    }
+
+    /**
+     * @return buffer that fits the output of the last Mac returned by {@link #mac(Key)}
+     */
+    byte[] macBuffer(){
+        return macBuffer;
+    }
+
+    /**
+     * Digests the number as the UTF-8 bytes of {@link Integer#toString(int)}.
+     * @param number number
+     */
+    void updateDecimal(int number){
+        long value = number;
+        if(value < 0){
+            digest.update((byte) '-');
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        digest.update(digits, start, digits.length - start);
+    }
+}
@@ -0,0 +1,228 @@
+package se.chalmers.gdcn.network;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests are handled before anything is decoded, so that a flooding peer is rejected at the cost
+ * of a map lookup instead of a decoded message and a MAC.
+ *
+ * Each peer has a token bucket that refills at a fixed rate, so it may send a burst of requests but not keep
+ * sending faster than the rate. On top of that only a fixed number of requests are handled at once, which also
+ * limits many peers that each stay below their rate.
+ */
+public class AdmissionControl {
+
+    public static enum Decision {
+        ADMITTED,
+        /**
+         * The peer has sent too many requests
+         */
+        RATE_LIMITED,
+        /**
+         * Too many requests are handled at once
+         */
+        BUSY
+    }
+
+    private final double rate;
+    private final double burst;
+    private final int maxPeers;
+
+    private final Semaphore concurrency;
+    private final ConcurrentMap<Object, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLong rateLimited = new AtomicLong(0);
+    private final AtomicLong busy = new AtomicLong(0);
+    private final AtomicLong lastForget = new AtomicLong(System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+
+    /**
+     * Reads the limits from the system properties gdcn.admission.rate (requests per second of each peer),
+     * gdcn.admission.burst, gdcn.admission.concurrency and gdcn.admission.peers (peers that are remembered).
+     */
+    AdmissionControl() {
+        this("gdcn.admission", 10, 20);
+    }
+
+    /**
+     * Reads the limits from the system properties that start with prefix, see {@link #AdmissionControl()}.
+     * @param prefix prefix of the properties
+     * @param rate requests per second each peer may send if the property isn't set
+     * @param burst requests a peer that has been quiet may send at once if the property isn't set
+     */
+    AdmissionControl(String prefix, int rate, int burst) {
+        this(Integer.getInteger(prefix + ".rate", rate),
+                Integer.getInteger(prefix + ".burst", burst),
+                Integer.getInteger(prefix + ".concurrency", Runtime.getRuntime().availableProcessors() * 4),
+                Integer.getInteger(prefix + ".peers", 10000));
+    }
+
+    /**
+     * @param rate requests per second each peer may send
+     * @param burst requests a peer that has been quiet may send at once
+     * @param concurrency requests that may be handled at once
+     * @param maxPeers number of peers to remember before idle peers are forgotten
+     */
+    AdmissionControl(double rate, double burst, int concurrency, int maxPeers) {
+        if(rate <= 0 || burst < 1 || concurrency < 1 || maxPeers < 1){
+            throw new IllegalArgumentException("Invalid limits");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.maxPeers = maxPeers;
+        this.concurrency = new Semaphore(concurrency);
+    }
+
+    /**
+     * If the request is admitted, {@link #done()} must be called when it has been handled.
+     * @param peer key of the sending peer
+     * @return whether the request may be handled
+     */
+    Decision admit(Object peer){
+        final long now = System.nanoTime();
+
+        Bucket bucket = buckets.get(peer);
+        if(bucket == null){
+            if(buckets.size() >= maxPeers){
+                forgetIdle(now);
+                if(buckets.size() >= maxPeers){
+                    //Every remembered peer is sending, new peers have to wait
+                    busy.incrementAndGet();
+                    return Decision.BUSY;
+                }
+            }
+            Bucket created = new Bucket(burst, now);
+            bucket = buckets.putIfAbsent(peer, created);
+            if(bucket == null){
+                bucket = created;
+            }
+        }
+
+        if(!bucket.take(now)){
+            rateLimited.incrementAndGet();
+            return Decision.RATE_LIMITED;
+        }
+        if(!concurrency.tryAcquire()){
+            //Isn't the fault of the peer, which shall have its token when it retries
+            bucket.giveBack();
+            busy.incrementAndGet();
+            return Decision.BUSY;
+        }
+        admitted.incrementAndGet();
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * Called when an admitted request has been handled.
+     */
+    void done(){
+        concurrency.release();
+    }
+
+    /**
+     * @return milliseconds a rejected peer should wait before it has a token again
+     */
+    long retryAfter(){
+        return Math.max(1, (long) Math.ceil(1000 / rate));
+    }
+
+    /**
+     * A bucket that has filled up is no different from a new bucket, so it may be forgotten.
+     * Runs at most once per second so that a flood of new peers doesn't make every request go through all buckets.
+     */
+    private void forgetIdle(long now){
+        final long last = lastForget.get();
+        if(now - last < TimeUnit.SECONDS.toNanos(1) || !lastForget.compareAndSet(last, now)){
+            return;
+        }
+        Iterator<Bucket> iterator = buckets.values().iterator();
+        while(iterator.hasNext()){
+            if(iterator.next().isFull(now)){
+                iterator.remove();
+            }
+        }
+    }
+
+    private class Bucket {
+        private double tokens;
+        private long lastRefill;
+
+        private Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        private synchronized boolean take(long now){
+            refill(now);
+            if(tokens < 1){
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        private synchronized void giveBack(){
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        private synchronized boolean isFull(long now){
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now){
+            if(now > lastRefill){
+                tokens = Math.min(burst, tokens + rate * (now - lastRefill) / TimeUnit.SECONDS.toNanos(1));
+                lastRefill = now;
+            }
+        }
+    }
+
+    public Statistics statistics(){
+        return new Statistics(admitted.get(), rateLimited.get(), busy.get(), buckets.size());
+    }
+
+    public static class Statistics {
+        private final long admitted;
+        private final long rateLimited;
+        private final long busy;
+        private final int peers;
+
+        private Statistics(long admitted, long rateLimited, long busy, int peers) {
+            this.admitted = admitted;
+            this.rateLimited = rateLimited;
+            this.busy = busy;
+            this.peers = peers;
+        }
+
+        public long getAdmitted() {
+            return admitted;
+        }
+
+        public long getRateLimited() {
+            return rateLimited;
+        }
+
+        public long getBusy() {
+            return busy;
+        }
+
+        /**
+         * @return number of peers that have a bucket
+         */
+        public int getPeers() {
+            return peers;
+        }
+
+        @Override
+        public String toString() {
+            return "Admission{admitted=" + admitted + ", rateLimited=" + rateLimited + ", busy=" + busy +
+                    ", peers=" + peers + "}";
+        }
+    }
+}
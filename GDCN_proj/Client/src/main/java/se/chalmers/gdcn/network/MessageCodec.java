@@ -0,0 +1,360 @@
+package se.chalmers.gdcn.network;
+
+import se.chalmers.gdcn.hashcash.Challenge;
+import se.chalmers.gdcn.hashcash.SessionToken;
+import se.chalmers.gdcn.hashcash.Solution;
+import se.chalmers.gdcn.replica.ReplicaBox;
+import se.chalmers.gdcn.replica.ReplicaManager.ReplicaID;
+import se.chalmers.gdcn.utils.BinaryFormat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+
+/**
+ * Compact binary format of {@link NetworkMessage}, used instead of Java serialization that writes the class
+ * descriptors of every object in every message.
+ *
+ * A message is the format version, the type of the NetworkMessage and its payload. Every payload starts with the
+ * ordinal of its {@link Payload}, which knows how to write and read that class. Classes without a Payload of their
+ * own are Java serialized, so any Serializable can still be sent.
+ *
+ * The ordinals of the enums are part of the format: append new values last and change {@link #VERSION} if the
+ * format of an existing value changes.
+ */
+class MessageCodec {
+
+    static final byte VERSION = 1;
+
+    //Decoding public keys is the most expensive part of decoding, and the same few peers send most messages
+    private static final int WORKER_CACHE_SIZE = 256;
+    private static final Map<ByteBuffer, WorkerID> workers = Collections.synchronizedMap(
+            new LinkedHashMap<ByteBuffer, WorkerID>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, WorkerID> eldest) {
+                    return size() > WORKER_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * @param message message
+     * @return message in binary format
+     * @throws IOException if a Java serialized payload isn't serializable
+     */
+    static byte[] encode(NetworkMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeByte(message.getType().ordinal());
+        writePayload(out, message.getObject());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param data message in binary format
+     * @return message
+     * @throws IOException if the message is malformed or of another version
+     */
+    static NetworkMessage decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final byte version = in.readByte();
+        if(version != VERSION){
+            throw new IOException("Unsupported message format version: " + version);
+        }
+        NetworkMessage.Type type = BinaryFormat.toEnum(NetworkMessage.Type.values(), in.readByte());
+        Object payload = readPayload(in);
+        if(payload != null && !(payload instanceof Serializable)){
+            throw new IOException("Payload isn't Serializable: " + payload.getClass());
+        }
+        return new NetworkMessage((Serializable) payload, type);
+    }
+
+    /**
+     * Reads only the type of a message, which is cheap compared to decoding it.
+     * @param data message as received
+     * @return type of the message, or null if it isn't a message
+     */
+    static NetworkMessage.Type peekType(Object data){
+        if(data instanceof NetworkMessage){
+            return ((NetworkMessage) data).getType();
+        }
+        if(!(data instanceof byte[])){
+            return null;
+        }
+        final byte[] bytes = (byte[]) data;
+        final NetworkMessage.Type[] types = NetworkMessage.Type.values();
+        if(bytes.length < 2 || bytes[0] != VERSION || bytes[1] < 0 || bytes[1] >= types.length){
+            return null;
+        }
+        return types[bytes[1]];
+    }
+
+    private static void writePayload(DataOutput out, Object object) throws IOException {
+        Payload payload = object == null ? Payload.NULL : Payload.of(object.getClass());
+        out.writeByte(payload.ordinal());
+        payload.write(out, object);
+    }
+
+    private static Object readPayload(DataInput in) throws IOException {
+        return BinaryFormat.toEnum(Payload.values(), in.readByte()).read(in);
+    }
+
+    private static void writeWorkerID(DataOutput out, WorkerID workerID) throws IOException {
+        PublicKey publicKey = workerID.getPublicKey();
+        BinaryFormat.writeString(out, publicKey.getAlgorithm());
+        BinaryFormat.writeBytes(out, publicKey.getEncoded());
+    }
+
+    private static WorkerID readWorkerID(DataInput in) throws IOException {
+        final String algorithm = BinaryFormat.readString(in);
+        final byte[] encoded = BinaryFormat.readBytes(in);
+
+        final ByteBuffer key = ByteBuffer.wrap(encoded);
+        WorkerID workerID = workers.get(key);
+        if(workerID != null && workerID.getPublicKey().getAlgorithm().equals(algorithm)){
+            return workerID;
+        }
+        try {
+            workerID = new WorkerID(KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid public key", e);
+        }
+        workers.put(key, workerID);
+        return workerID;
+    }
+
+    /**
+     * Encoder of each class that is sent in messages.
+     */
+    private static enum Payload {
+        NULL(Void.class) {
+            @Override
+            void write(DataOutput out, Object object) {
+            }
+
+            @Override
+            Object read(DataInput in) {
+                return null;
+            }
+        },
+        STRING(String.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                BinaryFormat.writeString(out, (String) object);
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                return BinaryFormat.readString(in);
+            }
+        },
+        TASK_MESSAGE(TaskMessage.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                TaskMessage taskMessage = (TaskMessage) object;
+                out.writeByte(taskMessage.getType().ordinal());
+                writeWorkerID(out, taskMessage.getSenderID());
+                writePayload(out, taskMessage.getActualContent());
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                TaskMessageType type = BinaryFormat.toEnum(TaskMessageType.values(), in.readByte());
+                WorkerID sender = readWorkerID(in);
+                return new TaskMessage(type, sender, readPayload(in));
+            }
+        },
+        CHALLENGE(Challenge.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                ((Challenge) object).writeTo(out);
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                return Challenge.readFrom(in);
+            }
+        },
+        SOLUTION(Solution.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                ((Solution) object).writeTo(out);
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                return Solution.readFrom(in);
+            }
+        },
+        SESSION_TOKEN(SessionToken.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                ((SessionToken) object).writeTo(out);
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                return SessionToken.readFrom(in);
+            }
+        },
+        TASK_REQUEST(TaskRequest.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                TaskRequest taskRequest = (TaskRequest) object;
+                out.writeInt(taskRequest.getCapacity());
+                writePayload(out, taskRequest.getProof());
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                final int capacity = in.readInt();
+                Object proof = readPayload(in);
+                if(proof != null && !(proof instanceof Serializable)){
+                    throw new IOException("Proof isn't Serializable: " + proof.getClass());
+                }
+                return new TaskRequest((Serializable) proof, capacity);
+            }
+        },
+        REPLICA_BOX(ReplicaBox.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                ((ReplicaBox) object).writeTo(out);
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                return ReplicaBox.readFrom(in);
+            }
+        },
+        TASK_LEASE(TaskLease.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                TaskLease taskLease = (TaskLease) object;
+                out.writeInt(taskLease.getReplicaBoxes().size());
+                for(ReplicaBox replicaBox : taskLease.getReplicaBoxes()){
+                    replicaBox.writeTo(out);
+                }
+                out.writeBoolean(taskLease.getSessionToken() != null);
+                if(taskLease.getSessionToken() != null){
+                    taskLease.getSessionToken().writeTo(out);
+                }
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                final int size = in.readInt();
+                if(size < 0){
+                    throw new IOException("Invalid number of replicas: " + size);
+                }
+                List<ReplicaBox> replicaBoxes = new ArrayList<>(Math.min(size, 16));
+                for(int i=0; i<size; ++i){
+                    replicaBoxes.add(ReplicaBox.readFrom(in));
+                }
+                SessionToken sessionToken = in.readBoolean() ? SessionToken.readFrom(in) : null;
+                return new TaskLease(replicaBoxes, sessionToken);
+            }
+        },
+        FAIL_MESSAGE(FailMessage.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                FailMessage failMessage = (FailMessage) object;
+                BinaryFormat.writeString(out, failMessage.getReplicaID().toString());
+                //Reason is often the message of an exception, which may be null
+                out.writeBoolean(failMessage.getReason() != null);
+                if(failMessage.getReason() != null){
+                    BinaryFormat.writeString(out, failMessage.getReason());
+                }
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                ReplicaID replicaID = new ReplicaID(BinaryFormat.readString(in));
+                String reason = in.readBoolean() ? BinaryFormat.readString(in) : null;
+                return new FailMessage(reason, replicaID);
+            }
+        },
+        REPLICA_ID(ReplicaID.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                BinaryFormat.writeString(out, object.toString());
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                return new ReplicaID(BinaryFormat.readString(in));
+            }
+        },
+        RESULT_CHUNK(ResultChunk.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                ResultChunk resultChunk = (ResultChunk) object;
+                BinaryFormat.writeString(out, resultChunk.getReplicaID().toString());
+                out.writeInt(resultChunk.getOffset());
+                out.writeInt(resultChunk.getResultLength());
+                BinaryFormat.writeBytes(out, resultChunk.getData());
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                ReplicaID replicaID = new ReplicaID(BinaryFormat.readString(in));
+                final int offset = in.readInt();
+                final int resultLength = in.readInt();
+                return new ResultChunk(replicaID, offset, resultLength, BinaryFormat.readBytes(in));
+            }
+        },
+        SERIALIZED(Serializable.class) {
+            @Override
+            void write(DataOutput out, Object object) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+                objectOut.writeObject(object);
+                objectOut.close();
+                BinaryFormat.writeBytes(out, bytes.toByteArray());
+            }
+
+            @Override
+            Object read(DataInput in) throws IOException {
+                ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(BinaryFormat.readBytes(in)));
+                try {
+                    return objectIn.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                } finally {
+                    objectIn.close();
+                }
+            }
+        };
+
+        private static final Map<Class<?>, Payload> byClass = new HashMap<>();
+        static {
+            for(Payload payload : values()){
+                byClass.put(payload.type, payload);
+            }
+        }
+
+        private final Class<?> type;
+
+        Payload(Class<?> type) {
+            this.type = type;
+        }
+
+        /**
+         * Subclasses are Java serialized, so that they are read back as the same class.
+         * @param type class of an object
+         * @return payload of exactly this class
+         */
+        static Payload of(Class<?> type){
+            Payload payload = byClass.get(type);
+            return payload == null ? SERIALIZED : payload;
+        }
+
+        abstract void write(DataOutput out, Object object) throws IOException;
+
+        abstract Object read(DataInput in) throws IOException;
+    }
+}
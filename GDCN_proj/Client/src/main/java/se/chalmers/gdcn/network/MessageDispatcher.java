@@ -0,0 +1,230 @@
+package se.chalmers.gdcn.network;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Routes each {@link TaskMessageType} to its own handler, so that messages are handled in the network threads
+ * in parallel instead of one at a time.
+ *
+ * Each handler has a {@link Policy}. Handlers that only read shared state, or change it through classes that
+ * have their own locking such as ReplicaManager, may run fully in parallel. Handlers that read and then change
+ * state of the sender run one at a time per sender.
+ */
+public class MessageDispatcher {
+
+    public static enum Policy {
+        /**
+         * Any number of messages are handled at once
+         */
+        PARALLEL,
+        /**
+         * Messages from the same sender are handled one at a time, messages from different senders in parallel
+         */
+        PER_SENDER
+    }
+
+    /**
+     * Handles requests of one type.
+     */
+    static interface RequestHandler {
+        Serializable handle(TaskMessage taskMessage);
+    }
+
+    /**
+     * Handles messages of one type that aren't answered.
+     */
+    static interface NoReplyHandler {
+        void handle(TaskMessage taskMessage);
+    }
+
+    private static final int SENDER_LOCK_STRIPES = 64;
+
+    private final Map<TaskMessageType, Route> routes = new EnumMap<>(TaskMessageType.class);
+    private final ReentrantLock[] senderLocks = new ReentrantLock[SENDER_LOCK_STRIPES];
+    private final AtomicInteger handling = new AtomicInteger(0);
+
+    MessageDispatcher() {
+        for(int i=0; i<senderLocks.length; ++i){
+            senderLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Must be called before messages arrive, routes aren't changed while dispatching.
+     * @param type type of request
+     * @param policy how the requests may run concurrently
+     * @param handler handler that answers the requests
+     */
+    void onRequest(TaskMessageType type, Policy policy, RequestHandler handler){
+        routes.put(type, new Route(type, policy, handler, null));
+    }
+
+    /**
+     * Must be called before messages arrive, routes aren't changed while dispatching.
+     * @param type type of message
+     * @param policy how the messages may run concurrently
+     * @param handler handler of the messages
+     */
+    void onNoReply(TaskMessageType type, Policy policy, NoReplyHandler handler){
+        routes.put(type, new Route(type, policy, null, handler));
+    }
+
+    /**
+     * @param taskMessage request
+     * @return answer of the handler
+     * @throws UnsupportedOperationException if there is no handler of requests of this type
+     */
+    Serializable request(TaskMessage taskMessage){
+        final Route route = routes.get(taskMessage.getType());
+        if(route == null || route.requestHandler == null){
+            throw new UnsupportedOperationException("Unsupported request: "+taskMessage.getType());
+        }
+        final long start = System.nanoTime();
+        handling.incrementAndGet();
+        final ReentrantLock lock = lock(route, taskMessage);
+        try{
+            return route.requestHandler.handle(taskMessage);
+        } finally {
+            if(lock != null){
+                lock.unlock();
+            }
+            handling.decrementAndGet();
+            route.record(start);
+        }
+    }
+
+    /**
+     * @param taskMessage message
+     * @throws UnsupportedOperationException if there is no handler of messages of this type
+     */
+    void noReply(TaskMessage taskMessage){
+        final Route route = routes.get(taskMessage.getType());
+        if(route == null || route.noReplyHandler == null){
+            throw new UnsupportedOperationException("Unsupported request: "+taskMessage.getType());
+        }
+        final long start = System.nanoTime();
+        handling.incrementAndGet();
+        final ReentrantLock lock = lock(route, taskMessage);
+        try{
+            route.noReplyHandler.handle(taskMessage);
+        } finally {
+            if(lock != null){
+                lock.unlock();
+            }
+            handling.decrementAndGet();
+            route.record(start);
+        }
+    }
+
+    /**
+     * Takes the lock of the sender if the policy requires it. Time spent waiting is counted in the statistics.
+     * @return the lock that was taken, or null
+     */
+    private ReentrantLock lock(Route route, TaskMessage taskMessage){
+        if(route.policy != Policy.PER_SENDER){
+            return null;
+        }
+        final WorkerID sender = taskMessage.getSenderID();
+        final ReentrantLock lock = senderLocks[((sender == null ? 0 : sender.hashCode()) & 0x7fffffff) % senderLocks.length];
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * @return number of messages that are being handled or wait for the lock of their sender
+     */
+    int handling(){
+        return handling.get();
+    }
+
+    /**
+     * @return statistics of every type that has a handler
+     */
+    List<Statistics> statistics(){
+        List<Statistics> statistics = new ArrayList<>();
+        for(Route route : routes.values()){
+            statistics.add(route.statistics());
+        }
+        return statistics;
+    }
+
+    private static class Route {
+        private final TaskMessageType type;
+        private final Policy policy;
+        private final RequestHandler requestHandler;
+        private final NoReplyHandler noReplyHandler;
+
+        private final AtomicLong handled = new AtomicLong(0);
+        private final AtomicLong totalTime = new AtomicLong(0);
+
+        private Route(TaskMessageType type, Policy policy, RequestHandler requestHandler, NoReplyHandler noReplyHandler) {
+            this.type = type;
+            this.policy = policy;
+            this.requestHandler = requestHandler;
+            this.noReplyHandler = noReplyHandler;
+        }
+
+        private void record(long start){
+            handled.incrementAndGet();
+            totalTime.addAndGet(System.nanoTime() - start);
+        }
+
+        private Statistics statistics(){
+            final long handled = this.handled.get();
+            final long average = handled == 0 ? 0 : totalTime.get() / handled;
+            return new Statistics(type.name(), policy, handled, TimeUnit.NANOSECONDS.toMicros(average));
+        }
+    }
+
+    /**
+     * Snapshot of the messages of one type.
+     */
+    public static class Statistics {
+        private final String type;
+        private final Policy policy;
+        private final long handled;
+        private final long averageTime;
+
+        private Statistics(String type, Policy policy, long handled, long averageTime) {
+            this.type = type;
+            this.policy = policy;
+            this.handled = handled;
+            this.averageTime = averageTime;
+        }
+
+        /**
+         * @return name of the message type
+         */
+        public String getType() {
+            return type;
+        }
+
+        public Policy getPolicy() {
+            return policy;
+        }
+
+        public long getHandled() {
+            return handled;
+        }
+
+        /**
+         * @return average microseconds to handle a message, including waiting for the lock of the sender
+         */
+        public long getAverageTime() {
+            return averageTime;
+        }
+
+        @Override
+        public String toString() {
+            return type + "{" + policy + ", handled=" + handled + ", averageTime=" + averageTime + "us}";
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package se.chalmers.gdcn.network;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -27,33 +28,38 @@ public class NetworkMessage implements Serializable {
 
     /**
      * Encrypt message using receiving peer's public key
-     * @return encrypted message
+     * @return encrypted message, in the binary format of {@link MessageCodec}
      */
     public Object encrypt(){
         //TODO encrypt and sign message
-//        try {
-//            return new Data(this);
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
+        try {
+            return MessageCodec.encode(this);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         return this;
     }
 
     /**
      * Decrypt message using private key
      * @param data Encrypted message
-     * @return Decrypted message
+     * @return Decrypted message, or null if data isn't a message
      */
     public static NetworkMessage decrypt(Object data){
-//        //TODO decrypt message
-//        try {
-//            return (NetworkMessage) data.getObject();
-//        } catch (ClassNotFoundException e) {
-//            e.printStackTrace();
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-        return (NetworkMessage) data;
+        //TODO decrypt message
+        if(data instanceof byte[]){
+            try {
+                return MessageCodec.decode((byte[]) data);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        if(data instanceof NetworkMessage){
+            //Could not be encoded by the sender
+            return (NetworkMessage) data;
+        }
+        return null;
     }
 
     @Override
@@ -66,7 +72,13 @@ public class NetworkMessage implements Serializable {
 
     public static enum Type {
         REQUEST,
-        NO_REPLY
+        NO_REPLY,
+        REPLY,
+        /**
+         * Answer to a request that was rejected before it was handled. The object is milliseconds to wait before
+         * sending it again.
+         */
+        BUSY
     }
 
 
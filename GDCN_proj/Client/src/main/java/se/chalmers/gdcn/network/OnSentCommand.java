@@ -0,0 +1,8 @@
+package se.chalmers.gdcn.network;
+
+/**
+ * Is told whether a message without reply reached the receiver.
+ */
+public interface OnSentCommand {
+    void execute(boolean success);
+}
@@ -7,6 +7,7 @@ import net.tomp2p.p2p.RequestP2PConfiguration;
 import net.tomp2p.p2p.builder.SendBuilder;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.ObjectDataReply;
+import se.chalmers.gdcn.utils.TimerService;
 
 import java.io.Serializable;
 
@@ -21,6 +22,17 @@ abstract class Passer {
 
     private final static RequestP2PConfiguration requestConfiguration = new RequestP2PConfiguration(1, 10, 0, false, true);
 
+    //Times a request that was rejected as busy is sent again before giving up
+    private final static int BUSY_RETRIES = 3;
+
+    private final AdmissionControl admissionControl = new AdmissionControl();
+    //Results and failures come in bursts of chunks, so messages without reply have a larger limit of their own
+    private final AdmissionControl noReplyAdmission = new AdmissionControl("gdcn.admission.noReply", 200, 400);
+    //Same answer to every rejected request, so rejecting costs nothing but the lookup
+    private final Object busyReply = new NetworkMessage(admissionControl.retryAfter(), NetworkMessage.Type.BUSY).encrypt();
+    private final Object noReplyBusyReply = new NetworkMessage(noReplyAdmission.retryAfter(),
+            NetworkMessage.Type.BUSY).encrypt();
+
     protected Passer(final Peer peer) {
         this.peer = peer;
         peer.setObjectDataReply(new ObjectDataReply() {
@@ -32,27 +44,56 @@ abstract class Passer {
                     //System.out.println("in Passer: ERROR! sender is myself!!!");
                 }
 
-                NetworkMessage message = NetworkMessage.decrypt( request);
-                if(message == null){
-                    //Error has occurred in decrypt
-                    System.out.println("Decrypt returned NULL!");
-                    return "Decrypt was NULL";
+                //Every type is limited, the type is chosen by the sender. Senders retry messages that were rejected
+                final boolean noReply = MessageCodec.peekType(request) == NetworkMessage.Type.NO_REPLY;
+                final AdmissionControl admission = noReply ? noReplyAdmission : admissionControl;
+                if(admission.admit(sender.getID()) != AdmissionControl.Decision.ADMITTED){
+                    return noReply ? noReplyBusyReply : busyReply;
                 }
-                //Disabled for demo
-                //System.out.println("ObjectDataReply received: " + message.toString());
-
-                switch (message.getType()){
-                    case REQUEST:
-                        return handleRequest(sender, message.getObject());
-                    case NO_REPLY:
-                        handleNoReply(sender, message.getObject());
-                        return "Message was Handled in some way...";
+                try {
+                    return handle(sender, request);
+                } finally {
+                    admission.done();
                 }
-                return "Message was read but not Handled! Type: "+message.getType().name();
             }
         });
     }
 
+    private Object handle(PeerAddress sender, Object request){
+        NetworkMessage message = NetworkMessage.decrypt( request);
+        if(message == null){
+            //Error has occurred in decrypt
+            System.out.println("Decrypt returned NULL!");
+            return "Decrypt was NULL";
+        }
+        //Disabled for demo
+        //System.out.println("ObjectDataReply received: " + message.toString());
+
+        switch (message.getType()){
+            case REQUEST:
+                return new NetworkMessage(handleRequest(sender, message.getObject()),
+                        NetworkMessage.Type.REPLY).encrypt();
+            case NO_REPLY:
+                handleNoReply(sender, message.getObject());
+                return "Message was Handled in some way...";
+        }
+        return "Message was read but not Handled! Type: "+message.getType().name();
+    }
+
+    /**
+     * @return how many requests have been admitted and rejected
+     */
+    public AdmissionControl.Statistics getAdmissionStatistics(){
+        return admissionControl.statistics();
+    }
+
+    /**
+     * @return how many messages without reply have been admitted and rejected
+     */
+    public AdmissionControl.Statistics getNoReplyAdmissionStatistics(){
+        return noReplyAdmission.statistics();
+    }
+
     /**
      * Handle a Request call from sender
      * @param sender Peer sending
@@ -76,6 +117,24 @@ abstract class Passer {
      * @param onReturn what you will do when it answers
      */
     protected void sendRequest(final PeerAddress receiver, Serializable message, final OnReplyCommand onReturn){
+        sendRequest(receiver, message, onReturn, null);
+    }
+
+    /**
+     * Send a message to this Peer and expect an answer
+     *
+     * @param receiver peer
+     * @param message message
+     * @param onReturn what you will do when it answers
+     * @param onFailed Is run if the message couldn't be sent or the peer stayed busy, can be null
+     */
+    protected void sendRequest(final PeerAddress receiver, Serializable message, final OnReplyCommand onReturn,
+                               final Runnable onFailed){
+        sendRequest(receiver, message, onReturn, onFailed, BUSY_RETRIES);
+    }
+
+    private void sendRequest(final PeerAddress receiver, final Serializable message, final OnReplyCommand onReturn,
+                             final Runnable onFailed, final int retries){
         SendBuilder sendBuilder = peer.send(receiver.getID());
 
         final NetworkMessage networkMessage = new NetworkMessage(message, NetworkMessage.Type.REQUEST);
@@ -87,12 +146,26 @@ abstract class Passer {
                 if(!future.isSuccess()){
                     System.out.println("Error sending " + networkMessage.toString());
                     System.out.println("WHY: "+future.getFailedReason());
+                    if(onFailed != null){
+                        onFailed.run();
+                    }
                     return;
                 }
 
                 System.out.println("Success sending " + networkMessage.toString() + " to " + print(receiver));
                 for(PeerAddress address : future.getRawDirectData2().keySet()){
                     Object answer = future.getRawDirectData2().get(address);
+                    //Errors are answered with plain strings
+                    NetworkMessage reply = NetworkMessage.decrypt(answer);
+                    if(reply != null && reply.getType() == NetworkMessage.Type.BUSY){
+                        final Object retryAfter = reply.getObject();
+                        retryBusy(receiver, message, onReturn, onFailed, retries,
+                                retryAfter instanceof Long ? (Long) retryAfter : 1000);
+                        continue;
+                    }
+                    if(reply != null){
+                        answer = reply.getObject();
+                    }
                     onReturn.execute(answer);
                     System.out.println(print(address)+" answered with "+answer);
                 }
@@ -100,12 +173,62 @@ abstract class Passer {
         });
     }
 
+    private void retryBusy(final PeerAddress receiver, final Serializable message, final OnReplyCommand onReturn,
+                           final Runnable onFailed, final int retries, long retryAfter){
+        if(retries <= 0){
+            System.out.println(print(receiver)+" is busy, gave up sending " + message);
+            if(onFailed != null){
+                onFailed.run();
+            }
+            return;
+        }
+        System.out.println(print(receiver)+" is busy, retry in " + retryAfter + " ms");
+        TimerService.delay(new Runnable() {
+            @Override
+            public void run() {
+                sendRequest(receiver, message, onReturn, onFailed, retries - 1);
+            }
+        }, retryAfter * (BUSY_RETRIES - retries + 1));
+    }
+
+    private void retryBusyNoReply(final PeerAddress receiver, final Serializable message, final OnSentCommand onSent,
+                                  final int retries, long retryAfter){
+        if(retries <= 0){
+            System.out.println(print(receiver)+" is busy, gave up sending " + message);
+            if(onSent != null){
+                onSent.execute(false);
+            }
+            return;
+        }
+        TimerService.delay(new Runnable() {
+            @Override
+            public void run() {
+                sendNoReplyMessage(receiver, message, onSent, retries - 1);
+            }
+        }, retryAfter * (BUSY_RETRIES - retries + 1));
+    }
+
     /**
      * Send message to a peer without expecting something in reply
      * @param receiver peer
      * @param message message
      */
     protected void sendNoReplyMessage(PeerAddress receiver, Serializable message){
+        sendNoReplyMessage(receiver, message, null);
+    }
+
+    /**
+     * Send message to a peer without expecting something in reply
+     * @param receiver peer
+     * @param message message
+     * @param onSent Can be null, is told whether the message reached the peer
+     */
+    protected void sendNoReplyMessage(PeerAddress receiver, Serializable message, final OnSentCommand onSent){
+        sendNoReplyMessage(receiver, message, onSent, BUSY_RETRIES);
+    }
+
+    private void sendNoReplyMessage(final PeerAddress receiver, final Serializable message, final OnSentCommand onSent,
+                                    final int retries){
         SendBuilder sendBuilder = peer.send(receiver.getID());
 
         final NetworkMessage networkMessage = new NetworkMessage(message, NetworkMessage.Type.NO_REPLY);
@@ -117,10 +240,25 @@ abstract class Passer {
                 if(!future.isSuccess()){
                     System.out.println("Error sending " + networkMessage.toString());
                     System.out.println("WHY: "+future.getFailedReason());
+                    if(onSent != null){
+                        onSent.execute(false);
+                    }
                     return;
                 }
+                for(Object answer : future.getRawDirectData2().values()){
+                    NetworkMessage reply = NetworkMessage.decrypt(answer);
+                    if(reply != null && reply.getType() == NetworkMessage.Type.BUSY){
+                        final Object retryAfter = reply.getObject();
+                        retryBusyNoReply(receiver, message, onSent, retries,
+                                retryAfter instanceof Long ? (Long) retryAfter : 1000);
+                        return;
+                    }
+                }
                 //Disabled for demo
                 System.out.println("Success sending " + networkMessage.toString());
+                if(onSent != null){
+                    onSent.execute(true);
+                }
             }
         });
     }
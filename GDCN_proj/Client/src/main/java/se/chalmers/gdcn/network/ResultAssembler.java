@@ -0,0 +1,204 @@
+package se.chalmers.gdcn.network;
+
+import se.chalmers.gdcn.replica.ReplicaManager.ReplicaID;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Puts together the results that workers send directly in chunks.
+ * Chunks may arrive in any order and more than once.
+ *
+ * The declared length of a result is not trusted: a result only grows as far as its chunks reach, and the bytes that
+ * incomplete results hold are bounded both per worker and in total.
+ */
+class ResultAssembler {
+
+    private final int maxResultLength;
+    private final long maxBytes;
+    private final long maxWorkerBytes;
+    private final ConcurrentHashMap<ReplicaID, Assembly> assemblies = new ConcurrentHashMap<>();
+
+    //Bytes held by incomplete results, guarded by this
+    private long bytes = 0;
+    private final Map<WorkerID, Long> workerBytes = new HashMap<>();
+
+    /**
+     * @param maxResultLength Largest result in bytes that is accepted
+     * @param maxBytes Most bytes that incomplete results may hold together
+     * @param maxWorkerBytes Most bytes that incomplete results of one worker may hold
+     */
+    ResultAssembler(int maxResultLength, long maxBytes, long maxWorkerBytes) {
+        this.maxResultLength = maxResultLength;
+        this.maxBytes = maxBytes;
+        this.maxWorkerBytes = maxWorkerBytes;
+    }
+
+    /**
+     * @param worker Worker that sent the chunk
+     * @param chunk Chunk of a result
+     * @return the whole result if this was the last missing chunk, otherwise null
+     * @throws IllegalArgumentException if the chunk doesn't fit the result, or the worker holds too many bytes of
+     * incomplete results. The result is forgotten in the latter case.
+     * @throws IllegalStateException if incomplete results of all workers hold too many bytes. The result is forgotten.
+     */
+    byte[] add(WorkerID worker, ResultChunk chunk){
+        final int resultLength = chunk.getResultLength();
+        final int length = chunk.getData().length;
+        if(resultLength < 0 || resultLength > maxResultLength){
+            throw new IllegalArgumentException("Result of " + resultLength + " bytes isn't accepted");
+        }
+        if(chunk.getOffset() < 0 || length > resultLength - chunk.getOffset()){
+            throw new IllegalArgumentException("Chunk is outside of the result: " + chunk);
+        }
+        if(chunk.isWhole()){
+            return chunk.getData();
+        }
+
+        final ReplicaID replicaID = chunk.getReplicaID();
+        while(true){
+            Assembly assembly = assemblies.get(replicaID);
+            if(assembly == null){
+                assembly = new Assembly(worker, resultLength);
+                Assembly previous = assemblies.putIfAbsent(replicaID, assembly);
+                if(previous != null){
+                    assembly = previous;
+                }
+            }
+
+            synchronized (assembly){
+                if(assembly.discarded){
+                    //Was purged or rejected meanwhile, starts over
+                    assemblies.remove(replicaID, assembly);
+                    continue;
+                }
+                if(assembly.resultLength != resultLength){
+                    throw new IllegalArgumentException("Chunk has another result length than earlier chunks: " + chunk);
+                }
+                if(!assembly.worker.equals(worker)){
+                    throw new IllegalArgumentException("Chunk was sent by another worker than earlier chunks: " + chunk);
+                }
+                if(assembly.complete){
+                    //Duplicate of a chunk of a result that was already given
+                    return null;
+                }
+
+                final int end = chunk.getOffset() + length;
+                if(end > assembly.result.length){
+                    //Grows geometrically so that chunks in order copy the result a few times only
+                    final int grown = Math.min(resultLength, Math.max(end, 2 * assembly.result.length));
+                    try {
+                        reserve(worker, grown - assembly.result.length);
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        discard(replicaID, assembly);
+                        throw e;
+                    }
+                    assembly.result = Arrays.copyOf(assembly.result, grown);
+                }
+
+                assembly.lastUpdate = System.currentTimeMillis();
+                System.arraycopy(chunk.getData(), 0, assembly.result, chunk.getOffset(), length);
+                assembly.received.set(chunk.getOffset(), end);
+                //Bytes before the first missing byte never go missing again
+                assembly.firstMissing = assembly.received.nextClearBit(assembly.firstMissing);
+                if(assembly.firstMissing < resultLength){
+                    return null;
+                }
+                assembly.complete = true;
+                release(worker, assembly.result.length);
+                assemblies.remove(replicaID, assembly);
+                return assembly.result;
+            }
+        }
+    }
+
+    /**
+     * Forgets results that have not received a chunk for a while, such as when the worker went offline.
+     * @param maxAge milliseconds since the last chunk
+     */
+    void purge(long maxAge){
+        final long oldest = System.currentTimeMillis() - maxAge;
+        Iterator<Map.Entry<ReplicaID, Assembly>> iterator = assemblies.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<ReplicaID, Assembly> entry = iterator.next();
+            Assembly assembly = entry.getValue();
+            synchronized (assembly){
+                if(!assembly.complete && !assembly.discarded && assembly.lastUpdate < oldest){
+                    discard(entry.getKey(), assembly);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of results that are missing chunks
+     */
+    int incompleteResults(){
+        return assemblies.size();
+    }
+
+    /**
+     * @return bytes that results that are missing chunks hold
+     */
+    synchronized long heldBytes(){
+        return bytes;
+    }
+
+    /**
+     * Must hold the lock of the assembly
+     */
+    private void discard(ReplicaID replicaID, Assembly assembly){
+        assembly.discarded = true;
+        release(assembly.worker, assembly.result.length);
+        assemblies.remove(replicaID, assembly);
+    }
+
+    private synchronized void reserve(WorkerID worker, int length){
+        final Long held = workerBytes.get(worker);
+        final long workerHeld = held == null ? 0 : held;
+        if(workerHeld + length > maxWorkerBytes){
+            throw new IllegalArgumentException("Worker would hold " + (workerHeld + length) +
+                    " bytes of incomplete results");
+        }
+        if(bytes + length > maxBytes){
+            throw new IllegalStateException("Incomplete results would hold " + (bytes + length) + " bytes");
+        }
+        workerBytes.put(worker, workerHeld + length);
+        bytes += length;
+    }
+
+    private synchronized void release(WorkerID worker, int length){
+        if(length == 0){
+            return;
+        }
+        final long workerHeld = workerBytes.get(worker) - length;
+        if(workerHeld == 0){
+            workerBytes.remove(worker);
+        } else {
+            workerBytes.put(worker, workerHeld);
+        }
+        bytes -= length;
+    }
+
+    private static class Assembly {
+        private final WorkerID worker;
+        private final int resultLength;
+        //Only as long as the chunks that have been received reach
+        private byte[] result = new byte[0];
+        //One bit per byte of the result
+        private final BitSet received = new BitSet();
+        private int firstMissing = 0;
+        private boolean complete = false;
+        private boolean discarded = false;
+        private long lastUpdate = System.currentTimeMillis();
+
+        private Assembly(WorkerID worker, int resultLength) {
+            this.worker = worker;
+            this.resultLength = resultLength;
+        }
+    }
+}
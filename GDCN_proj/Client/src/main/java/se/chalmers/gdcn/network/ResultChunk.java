@@ -0,0 +1,62 @@
+package se.chalmers.gdcn.network;
+
+import se.chalmers.gdcn.replica.ReplicaManager.ReplicaID;
+
+import java.io.Serializable;
+
+/**
+ * Part of the result of a replica that is sent directly to the job owner.
+ * Small results are sent whole in one chunk.
+ */
+class ResultChunk implements Serializable {
+    private final ReplicaID replicaID;
+    private final int offset;
+    private final int resultLength;
+    private final byte[] data;
+
+    ResultChunk(ReplicaID replicaID, int offset, int resultLength, byte[] data) {
+        this.replicaID = replicaID;
+        this.offset = offset;
+        this.resultLength = resultLength;
+        this.data = data;
+    }
+
+    public ReplicaID getReplicaID() {
+        return replicaID;
+    }
+
+    /**
+     * @return position of this chunk in the result
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the whole result
+     */
+    public int getResultLength() {
+        return resultLength;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return true if this chunk holds the whole result
+     */
+    public boolean isWhole() {
+        return offset == 0 && data.length == resultLength;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultChunk{" +
+                "replicaID=" + replicaID +
+                ", offset=" + offset +
+                ", length=" + data.length +
+                ", resultLength=" + resultLength +
+                '}';
+    }
+}
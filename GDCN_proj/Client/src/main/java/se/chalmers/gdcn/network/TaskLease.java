@@ -0,0 +1,44 @@
+package se.chalmers.gdcn.network;
+
+import se.chalmers.gdcn.hashcash.SessionToken;
+import se.chalmers.gdcn.replica.ReplicaBox;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Replicas leased to a worker in one answer, possibly together with a token that lets the worker
+ * ask for the next lease without a challenge.
+ */
+class TaskLease implements Serializable {
+    private final List<ReplicaBox> replicaBoxes;
+    private final SessionToken sessionToken;
+
+    /**
+     * @param replicaBoxes replicas to work on
+     * @param sessionToken token or null if the worker has no reputation
+     */
+    TaskLease(List<ReplicaBox> replicaBoxes, SessionToken sessionToken) {
+        this.replicaBoxes = replicaBoxes;
+        this.sessionToken = sessionToken;
+    }
+
+    public List<ReplicaBox> getReplicaBoxes() {
+        return replicaBoxes;
+    }
+
+    /**
+     * @return token or null if none was issued
+     */
+    public SessionToken getSessionToken() {
+        return sessionToken;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskLease{" +
+                "replicaBoxes=" + replicaBoxes +
+                ", sessionToken=" + sessionToken +
+                '}';
+    }
+}
@@ -10,7 +10,10 @@ enum TaskMessageType {
     TASK_FAIL,
     CHALLENGE_FAIL,
     TASK,
+    TASK_LEASE,
+    SESSION_EXPIRED,
     NO_TASK_AVAILABLE,
     RESULT_UPLOADED,
+    RESULT_CHUNK,
     HELLO
 }
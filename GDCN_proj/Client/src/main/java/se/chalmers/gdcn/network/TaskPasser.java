@@ -4,18 +4,20 @@ import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
-import se.chalmers.gdcn.communicationToUI.CommandWord;
 import se.chalmers.gdcn.communicationToUI.NetworkInterface;
 import se.chalmers.gdcn.communicationToUI.Operation;
-import se.chalmers.gdcn.communicationToUI.OperationFinishedListener;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
 import se.chalmers.gdcn.control.TaskManager;
 import se.chalmers.gdcn.control.ThreadService;
+import se.chalmers.gdcn.control.WorkScheduler;
 import se.chalmers.gdcn.control.WorkerReputationManager;
 import se.chalmers.gdcn.demo.WorkerNames;
 import se.chalmers.gdcn.files.DataFilesManager;
 import se.chalmers.gdcn.files.FileManagementUtils;
 import se.chalmers.gdcn.hashcash.Challenge;
+import se.chalmers.gdcn.hashcash.DifficultyController;
 import se.chalmers.gdcn.hashcash.HashCash;
+import se.chalmers.gdcn.hashcash.SessionToken;
 import se.chalmers.gdcn.hashcash.Solution;
 import se.chalmers.gdcn.hashcash.WorkerChallengesManager;
 import se.chalmers.gdcn.replica.ReplicaBox;
@@ -24,6 +26,7 @@ import se.chalmers.gdcn.replica.ReplicaManager.ReplicaID;
 import se.chalmers.gdcn.replica.ReplicaManagerBuilder;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskListener;
 import se.chalmers.gdcn.utils.Time;
+import se.chalmers.gdcn.utils.TimerService;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -32,8 +35,11 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Created by Leif on 2014-03-29.
@@ -49,13 +55,38 @@ public class TaskPasser extends Passer {
     private final NetworkInterface client;
 
     private DataFilesManager dataFilesManager;
-    private Timer timer;
+    private final ScheduledFuture<?> persistence;
 
     private SecretKey secretKey = null;
     private HashCash hashCash = null;
 
+    private final DifficultyController difficultyController = new DifficultyController(
+            Integer.getInteger("gdcn.hashcash.easy.min", 15), Integer.getInteger("gdcn.hashcash.easy.max", 25),
+            Integer.getInteger("gdcn.hashcash.hard.min", 20), Integer.getInteger("gdcn.hashcash.hard.max", 30));
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private final ScheduledFuture<?> difficultyUpdater;
+
     private final WorkerID myWorkerID;
 
+    private static final long SESSION_LIFETIME = 5 * Time.MINUTE.getComparedToMillis();
+    //Most replicas leased in one answer
+    private static final int MAX_LEASE = 16;
+    //Session tokens received from job owners, by the ID of the job owner
+    private final Map<Number160, SessionToken> sessions = new ConcurrentHashMap<>();
+
+    //Results up to this many bytes are sent whole to the job owner, larger results in chunks of this size
+    private static final int RESULT_CHUNK_SIZE = Integer.getInteger("gdcn.result.chunk", 64 * 1024);
+    //Largest result that is sent or accepted
+    private static final int MAX_RESULT_LENGTH = Integer.getInteger("gdcn.result.max", 64 * 1024 * 1024);
+    //Upload results to the DHT for the job owner to fetch, instead of sending them directly
+    private static final boolean RESULTS_IN_DHT = Boolean.getBoolean("gdcn.result.dht");
+    //Most bytes that results that are missing chunks may hold, of all workers and of one worker
+    private static final long MAX_ASSEMBLING = Long.getLong("gdcn.result.assembling", 256L * 1024 * 1024);
+    private static final long MAX_WORKER_ASSEMBLING = Long.getLong("gdcn.result.assemblingPerWorker", MAX_RESULT_LENGTH);
+    private final ResultAssembler resultAssembler = new ResultAssembler(MAX_RESULT_LENGTH, MAX_ASSEMBLING,
+            MAX_WORKER_ASSEMBLING);
+    private final ScheduledFuture<?> resultPurger;
+
     /**
      * Message passer for sending messages regarding tasks. OBS! Only ONE Passer may be present for a Peer.
      *
@@ -86,11 +117,7 @@ public class TaskPasser extends Passer {
         WorkerChallengesManager wcm = dataFilesManager.getWorkerChallengesManager();
         workerChallengesManager = wcm == null ? new WorkerChallengesManager() : wcm;
 
-        try {
-            hashCash = new HashCash(secretKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
+        hashCash = new HashCash(secretKey, difficultyController);
 
         ReplicaManager replicaManager1 = dataFilesManager.getReplicaManager();
 
@@ -103,9 +130,9 @@ public class TaskPasser extends Passer {
             replicaManager.setTaskManager(taskManager);
         }
         workerReputationManager = replicaManager.getWorkerReputationManager();
+        registerHandlers();
 
-        timer = new Timer(true);
-        timer.schedule(new TimerTask() {
+        persistence = TimerService.schedule(new Runnable() {
             @Override
             public void run() {
 //                dataFilesManager.saveWorkerNodeManager(workerNodeManager);
@@ -113,13 +140,30 @@ public class TaskPasser extends Passer {
 
             }
         }, 1000 * 120, 1000 * 120);
+
+        difficultyUpdater = TimerService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                difficultyController.update(dispatcher.handling());
+            }
+        }, 1000, 1000);
+
+        resultPurger = TimerService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                resultAssembler.purge(2 * Time.MINUTE.getComparedToMillis());
+            }
+        }, 1000 * 60, 1000 * 60);
     }
 
     /**
      * Stop timer and save state to file
      */
     public void stopTimer() {
-        timer.cancel();
+        persistence.cancel(false);
+        difficultyUpdater.cancel(false);
+        resultPurger.cancel(false);
+        replicaManager.stopTimer();
 
         dataFilesManager.saveReplicaManager(replicaManager);
         dataFilesManager.saveWorkerChallengesManager(workerChallengesManager);
@@ -158,56 +202,141 @@ public class TaskPasser extends Passer {
      * @param workMethod How the work is done
      */
     public void requestWork(final PeerAddress jobOwner, final boolean autoWork, final WorkMethod workMethod){
+        requestWork(jobOwner, autoWork, workMethod, 1);
+    }
+
+    /**
+     * Requests as many replicas as the scheduler has room for, that haven't already been requested.
+     * @param minimum number of replicas to request also if the scheduler is full, zero to skip the request then
+     */
+    private void requestWork(final PeerAddress jobOwner, final boolean autoWork, final WorkMethod workMethod,
+                             final int minimum){
+        final WorkScheduler.Reservation reservation = taskManager.getWorkScheduler().reserve(minimum);
+        if(reservation.getCount() == 0){
+            System.out.println("Replicas are already requested, skip requesting work from " + Passer.print(jobOwner));
+            return;
+        }
+        final Runnable onFailed = new Runnable() {
+            @Override
+            public void run() {
+                reservation.release();
+            }
+        };
+
+        SessionToken session = sessions.get(jobOwner.getID());
+        if(session != null && !session.isExpired(System.currentTimeMillis())){
+            System.out.println("Request work from " + Passer.print(jobOwner) + " in session");
+
+            sendRequest(jobOwner, new TaskMessage(TaskMessageType.REQUEST_TASK, myWorkerID,
+                    new TaskRequest(session, reservation.getCount())), new OnReplyCommand() {
+                @Override
+                public void execute(Object replyMessageContent) {
+                    onTaskReply(jobOwner, autoWork, workMethod, minimum, reservation, replyMessageContent);
+                }
+            }, onFailed);
+            return;
+        }
+        sessions.remove(jobOwner.getID());
+
         System.out.println("Request work from " + Passer.print(jobOwner));
 
         sendRequest(jobOwner, new TaskMessage(TaskMessageType.REQUEST_CHALLENGE, myWorkerID, ""), new OnReplyCommand() {
             @Override
             public void execute(Object replyMessageContent) {
-                TaskMessage taskMessage = TaskMessage.check(replyMessageContent);
-                if (taskMessage.getType() != TaskMessageType.CHALLENGE) {
-                    throw new IllegalStateException("Should be a Challenge response here!");
+                final Challenge challenge;
+                try {
+                    TaskMessage taskMessage = TaskMessage.check(replyMessageContent);
+                    if (taskMessage.getType() != TaskMessageType.CHALLENGE) {
+                        throw new IllegalStateException("Should be a Challenge response here!");
+                    }
+                    challenge = (Challenge) taskMessage.getActualContent();
+                } catch (RuntimeException e) {
+                    reservation.release();
+                    throw e;
                 }
-
-                final Challenge challenge = (Challenge) taskMessage.getActualContent();
                 System.out.println("Challenge received: " + challenge.toString());
 
-                ThreadService.submit(new Runnable() {
+                ThreadService.submit(ThreadService.Pool.CPU, new Runnable() {
                     @Override
                     public void run() {
-                        Solution challengeSolution = challenge.solve();
+                        Solution challengeSolution = challenge.solve(ThreadService.executor(ThreadService.Pool.CPU),
+                                Runtime.getRuntime().availableProcessors());
+                        if(challengeSolution == null){
+                            //Interrupted, there is nothing to prove
+                            System.out.println("Challenge wasn't solved, skip requesting work");
+                            reservation.release();
+                            return;
+                        }
                         System.out.println("Challenge solved");
 
-                        sendRequest(jobOwner, new TaskMessage(TaskMessageType.REQUEST_TASK, myWorkerID, challengeSolution), new OnReplyCommand() {
+                        sendRequest(jobOwner, new TaskMessage(TaskMessageType.REQUEST_TASK, myWorkerID,
+                                new TaskRequest(challengeSolution, reservation.getCount())), new OnReplyCommand() {
                             @Override
                             public void execute(Object replyMessageContent2) {
-                                TaskMessage taskMessage2 = TaskMessage.check(replyMessageContent2);
-                                switch (taskMessage2.getType()) {
-                                    case TASK:
-                                        ReplicaBox replicaBox = (ReplicaBox) taskMessage2.getActualContent();
-                                        System.out.println("Start processing task, \n\tResultKey: " + replicaBox.getResultKey());
-
-                                        if(workMethod == null){
-                                            workOnTask(jobOwner, replicaBox, autoWork);
-                                        } else {
-                                            workMethod.work(jobOwner, replicaBox, autoWork);
-                                        }
-
-                                        System.out.println("Some Task was received from " + Passer.print(jobOwner));
-                                        break;
-                                    case NO_TASK_AVAILABLE:
-                                        System.out.println("No Task available at " + Passer.print(jobOwner));
-                                        break;
-                                    case CHALLENGE_FAIL:
-                                        throw new IllegalStateException("Solution failed: " + taskMessage2.getActualContent());
-                                    default:
-                                        throw new IllegalStateException("Should be a Challenge response here! " + taskMessage2.getType().name());
-                                }
+                                onTaskReply(jobOwner, autoWork, workMethod, minimum, reservation,
+                                        replyMessageContent2);
                             }
-                        });
+                        }, onFailed);
                     }
                 });
             }
-        });
+        }, onFailed);
+    }
+
+    /**
+     * Handles the answer to REQUEST_TASK, whether a challenge was solved or a session token was used. The
+     * reservation is released when the received replicas have been submitted, or at once if none were received.
+     */
+    private void onTaskReply(PeerAddress jobOwner, boolean autoWork, WorkMethod workMethod, int minimum,
+                             WorkScheduler.Reservation reservation, Object replyMessageContent){
+        try {
+            handleTaskReply(jobOwner, autoWork, workMethod, minimum, reservation,
+                    TaskMessage.check(replyMessageContent));
+        } finally {
+            reservation.release();
+        }
+    }
+
+    private void handleTaskReply(PeerAddress jobOwner, boolean autoWork, WorkMethod workMethod, int minimum,
+                                 WorkScheduler.Reservation reservation, TaskMessage taskMessage){
+        final List<ReplicaBox> replicaBoxes;
+        switch (taskMessage.getType()) {
+            case TASK:
+                replicaBoxes = Collections.singletonList((ReplicaBox) taskMessage.getActualContent());
+                break;
+            case TASK_LEASE:
+                TaskLease taskLease = (TaskLease) taskMessage.getActualContent();
+                if(taskLease.getSessionToken() != null){
+                    sessions.put(jobOwner.getID(), taskLease.getSessionToken());
+                }
+                replicaBoxes = taskLease.getReplicaBoxes();
+                break;
+            case SESSION_EXPIRED:
+                //Reputation may have dropped, go back to solving challenges
+                sessions.remove(jobOwner.getID());
+                reservation.release();
+                requestWork(jobOwner, autoWork, workMethod, minimum);
+                return;
+            case NO_TASK_AVAILABLE:
+                System.out.println("No Task available at " + Passer.print(jobOwner));
+                return;
+            case CHALLENGE_FAIL:
+                throw new IllegalStateException("Solution failed: " + taskMessage.getActualContent());
+            default:
+                throw new IllegalStateException("Should be a Challenge response here! " + taskMessage.getType().name());
+        }
+
+        for(ReplicaBox replicaBox : replicaBoxes){
+            System.out.println("Start processing task, \n\tResultKey: " + replicaBox.getResultKey());
+
+            if(workMethod == null){
+                workOnTask(jobOwner, replicaBox, autoWork);
+            } else {
+                workMethod.work(jobOwner, replicaBox, autoWork);
+            }
+        }
+
+        System.out.println(replicaBoxes.size() + " Tasks were received from " + Passer.print(jobOwner));
     }
 
     public static interface WorkMethod {
@@ -218,34 +347,43 @@ public class TaskPasser extends Passer {
      * Works on this task until finished. Calls job owner when done or when failed.
      * @param jobOwner Peer to send result to
      * @param replicaBox Task (replica) to work on
-     * @param autoWork True -> Will request a new task after successfully finishing a previous task.
+     * @param autoWork True -> Will request new tasks as soon as the scheduler has room for them, which is while
+     *                 the result of this task is uploaded.
      */
     private void workOnTask(final PeerAddress jobOwner, final ReplicaBox replicaBox, final boolean autoWork){
         final StringHolder stringHolder = new StringHolder();
+        final WorkScheduler workScheduler = taskManager.getWorkScheduler();
+
+        Runnable onSlotFreed = !autoWork ? null : new Runnable() {
+            @Override
+            public void run() {
+                requestWork(jobOwner, true, null, 0);
+            }
+        };
 
         taskManager.startTask(jobOwner.getID().toString(), replicaBox.getTaskMeta(), stringHolder, jobOwner,new TaskListener() {
             @Override
             public void taskFinished(final String taskName) {
-
                 final Number160 resultKey = replicaBox.getResultKey();
                 System.out.println("Task " + taskName + " finished. Attempt to upload and notify job owner.");
-
-                client.addListener(new OperationFinishedListener(client, resultKey, CommandWord.PUT) {
-                    @Override
-                    protected void operationFinished(Operation operation) {
-                        if(operation.isSuccess()){
-                            System.out.println("Task "+taskName+" finished. Job owner notified if still online.");
-                            sendNoReplyMessage(jobOwner, new TaskMessage(TaskMessageType.RESULT_UPLOADED, myWorkerID,
-                                    replicaBox.getReplicaID()));
-
-                            if(autoWork){
-                                requestWork(jobOwner, true);
+                final long uploadStart = System.currentTimeMillis();
+
+                if(!RESULTS_IN_DHT){
+                    sendResult(jobOwner, replicaBox.getReplicaID(), new File(stringHolder.getString()), new OnSentCommand() {
+                        @Override
+                        public void execute(boolean success) {
+                            if(success){
+                                workScheduler.record(WorkScheduler.Stage.UPLOAD, System.currentTimeMillis() - uploadStart);
+                                System.out.println("Task "+taskName+" finished. Result sent to job owner.");
+                                System.out.println(workScheduler.statistics());
+                            } else {
+                                taskFailed(taskName, "Couldn't send result to job owner");
                             }
-                        } else {
-                            taskFailed(taskName, "Couldn't upload result to DHT");
                         }
-                    }
-                });
+                    });
+                    return;
+                }
+
                 //TODO sign result with private key... Might want to use the class 'Box' or similar for signing
                 byte[] result = null;
                 try {
@@ -256,7 +394,20 @@ public class TaskPasser extends Passer {
                 }
                 if(result != null){
                     System.out.println("\nResult holds "+result.length+" bytes.");
-                    client.put(resultKey, jobOwner.getID(), new Data(result));
+                    client.put(resultKey, jobOwner.getID(), new Data(result)).addListener(new OperationFuture.Listener<Data>() {
+                        @Override
+                        public void operationFinished(Operation<Data> operation) {
+                            if(operation.isSuccess()){
+                                workScheduler.record(WorkScheduler.Stage.UPLOAD, System.currentTimeMillis() - uploadStart);
+                                System.out.println("Task "+taskName+" finished. Job owner notified if still online.");
+                                System.out.println(workScheduler.statistics());
+                                sendNoReplyMessage(jobOwner, new TaskMessage(TaskMessageType.RESULT_UPLOADED, myWorkerID,
+                                        replicaBox.getReplicaID()));
+                            } else {
+                                taskFailed(taskName, "Couldn't upload result to DHT");
+                            }
+                        }
+                    });
                 }
             }
 
@@ -266,100 +417,294 @@ public class TaskPasser extends Passer {
                 sendNoReplyMessage(jobOwner, new TaskMessage(TaskMessageType.TASK_FAIL, myWorkerID,
                         new FailMessage(reason, replicaBox.getReplicaID())));
             }
+        }, onSlotFreed);
+
+    }
+
+    /**
+     * Sends a result directly to the job owner instead of through the DHT. Small results are sent whole,
+     * larger results one chunk at a time without reading the whole file into memory.
+     * @param jobOwner Peer to send result to
+     * @param replicaID Replica the result is of
+     * @param resultFile File holding the result
+     * @param onSent Is told when the last chunk has arrived or a chunk couldn't be sent
+     */
+    private void sendResult(PeerAddress jobOwner, ReplicaID replicaID, File resultFile, OnSentCommand onSent){
+        final long resultLength = resultFile.length();
+        if(!resultFile.isFile() || resultLength > MAX_RESULT_LENGTH){
+            System.out.println("Result " + resultFile + " of " + resultLength + " bytes can't be sent");
+            onSent.execute(false);
+            return;
+        }
+        System.out.println("\nResult holds "+resultLength+" bytes.");
+        sendResultChunk(jobOwner, replicaID, resultFile, 0, (int) resultLength, onSent);
+    }
+
+    private void sendResultChunk(final PeerAddress jobOwner, final ReplicaID replicaID, final File resultFile,
+                                 final int offset, final int resultLength, final OnSentCommand onSent){
+        final int length = Math.min(RESULT_CHUNK_SIZE, resultLength - offset);
+        final byte[] data;
+        try {
+            data = FileManagementUtils.fromFile(resultFile, offset, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            onSent.execute(false);
+            return;
+        }
+
+        sendNoReplyMessage(jobOwner, new TaskMessage(TaskMessageType.RESULT_CHUNK, myWorkerID,
+                new ResultChunk(replicaID, offset, resultLength, data)), new OnSentCommand() {
+            @Override
+            public void execute(boolean success) {
+                if(!success || offset + length >= resultLength){
+                    onSent.execute(success);
+                    return;
+                }
+                //Next chunk is read from disk, which shouldn't be done in the network thread
+                ThreadService.submit(ThreadService.Pool.IO, new Runnable() {
+                    @Override
+                    public void run() {
+                        sendResultChunk(jobOwner, replicaID, resultFile, offset + length, resultLength, onSent);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return controller of the difficulty of challenges given by this job owner
+     */
+    public DifficultyController getDifficultyController() {
+        return difficultyController;
+    }
+
+    /**
+     * Routes every type of message to its handler. Only answering REQUEST_TASK changes state of the sender
+     * that was read before, so only those requests are handled one at a time for each worker.
+     */
+    private void registerHandlers(){
+        dispatcher.onRequest(TaskMessageType.REQUEST_CHALLENGE, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.RequestHandler() {
+            @Override
+            public Serializable handle(TaskMessage taskMessage) {
+                return giveChallenge(taskMessage.getSenderID());
+            }
+        });
+        //The score of the worker is read to validate the solution and then changed
+        dispatcher.onRequest(TaskMessageType.REQUEST_TASK, MessageDispatcher.Policy.PER_SENDER,
+                new MessageDispatcher.RequestHandler() {
+            @Override
+            public Serializable handle(TaskMessage taskMessage) {
+                return handleTaskRequest(taskMessage.getSenderID(), taskMessage.getActualContent());
+            }
+        });
+        dispatcher.onRequest(TaskMessageType.HELLO, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.RequestHandler() {
+            @Override
+            public Serializable handle(TaskMessage taskMessage) {
+                System.out.println("Received Hello: "+taskMessage.getActualContent().toString());
+                return new TaskMessage(TaskMessageType.HELLO, myWorkerID, "Hi, I heard you said "+taskMessage.getActualContent());
+            }
         });
 
+        dispatcher.onNoReply(TaskMessageType.RESULT_UPLOADED, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.NoReplyHandler() {
+            @Override
+            public void handle(TaskMessage taskMessage) {
+                resultUploaded((ReplicaID) taskMessage.getActualContent());
+            }
+        });
+        dispatcher.onNoReply(TaskMessageType.RESULT_CHUNK, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.NoReplyHandler() {
+            @Override
+            public void handle(TaskMessage taskMessage) {
+                resultReceived(taskMessage.getSenderID(), (ResultChunk) taskMessage.getActualContent());
+            }
+        });
+        dispatcher.onNoReply(TaskMessageType.TASK_FAIL, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.NoReplyHandler() {
+            @Override
+            public void handle(TaskMessage taskMessage) {
+                taskFailed(taskMessage.getSenderID(), (FailMessage) taskMessage.getActualContent());
+            }
+        });
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    synchronized protected Serializable handleRequest(PeerAddress sender, Object messageContent) {
-
+    protected Serializable handleRequest(PeerAddress sender, Object messageContent) {
+        difficultyController.requestReceived();
         TaskMessage taskMessage = TaskMessage.check(messageContent);
-        WorkerID workerID = taskMessage.getSenderID();
-        final WorkerNames names = WorkerNames.getInstance();
-        names.registerName(workerID);
+        WorkerNames.getInstance().registerName(taskMessage.getSenderID());
+        return dispatcher.request(taskMessage);
+    }
 
-        switch(taskMessage.getType()){
-            case REQUEST_CHALLENGE:
+    /**
+     * @return statistics of the messages this peer has handled, by type
+     */
+    public List<MessageDispatcher.Statistics> getMessageStatistics() {
+        return dispatcher.statistics();
+    }
 
-//                System.out.println("Received request for a Challenge from "+print(sender));
-                System.out.println(names.getName(workerID)+" requests a Challenge.");
+    private TaskMessage giveChallenge(WorkerID workerID) {
+        System.out.println(WorkerNames.getInstance().getName(workerID)+" requests a Challenge.");
 
-                int score = workerChallengesManager.getCurrentScore(workerID);
+        int score = workerChallengesManager.getCurrentScore(workerID);
 
-                Challenge challenge = workerReputationManager.hasWorkerReputation(workerID)?
-                        hashCash.generateAuthenticationChallenge(myWorkerID, workerID, score)
-                        : hashCash.generateRegistrationChallenge(myWorkerID, workerID, score);
-                return new TaskMessage(TaskMessageType.CHALLENGE, myWorkerID, challenge);
+        Challenge challenge = workerReputationManager.hasWorkerReputation(workerID)?
+                hashCash.generateAuthenticationChallenge(myWorkerID, workerID, score)
+                : hashCash.generateRegistrationChallenge(myWorkerID, workerID, score);
+        return new TaskMessage(TaskMessageType.CHALLENGE, myWorkerID, challenge);
+    }
 
-            case REQUEST_TASK:
+    private TaskMessage handleTaskRequest(WorkerID workerID, Object proof) {
+        System.out.println(WorkerNames.getInstance().getName(workerID)+" requests a Task.");
 
-//                System.out.println("Received request for a Task from "+print(sender));
-                System.out.println(names.getName(workerID)+" requests a Task.");
-                Solution solution = (Solution) taskMessage.getActualContent();
+        //Workers that don't send a TaskRequest get a single replica and no session
+        int capacity = 0;
+        if(proof instanceof TaskRequest){
+            TaskRequest taskRequest = (TaskRequest) proof;
+            proof = taskRequest.getProof();
+            capacity = Math.max(1, Math.min(MAX_LEASE, taskRequest.getCapacity()));
+        }
 
-                score = workerChallengesManager.getCurrentScore(workerID);
+        if(proof instanceof SessionToken && capacity > 0){
+            return giveTasksInSession(workerID, (SessionToken) proof, capacity);
+        }
+        if(!(proof instanceof Solution)){
+            return new TaskMessage(TaskMessageType.CHALLENGE_FAIL, myWorkerID, "No solution was provided");
+        }
+        Solution solution = (Solution) proof;
 
-                try {
-                    if(hashCash.validateSolution(solution, myWorkerID, workerID, score)) {
-                        workerChallengesManager.solvedChallenge(workerID,solution);
+        int score = workerChallengesManager.getCurrentScore(workerID);
 
-                        if(solution.getPurpose() == HashCash.Purpose.REG) {
-                            workerReputationManager.registerWorker(workerID);
-                        }
-                        ReplicaBox replicaBox = replicaManager.giveReplicaToWorker(workerID);
-                        if(replicaBox==null){
-                            return new TaskMessage(TaskMessageType.NO_TASK_AVAILABLE, myWorkerID, "");
-                        }
-                        System.out.println("Gave replica "+replicaBox.getReplicaID()+"\n\tResultKey: "+replicaBox.getResultKey());
-                        return new TaskMessage(TaskMessageType.TASK, myWorkerID, replicaBox);
+        try {
+            if(hashCash.validateSolution(solution, myWorkerID, workerID, score)) {
+                workerChallengesManager.solvedChallenge(workerID,solution);
 
-                    } else {
-                        workerReputationManager.reportWorker(workerID);
-                        return new TaskMessage(TaskMessageType.CHALLENGE_FAIL, myWorkerID, "Provided solution was FALSE!");
-                    }
-                } catch (InvalidKeyException e) {
-                    e.printStackTrace();
+                if(solution.getPurpose() == HashCash.Purpose.REG) {
+                    workerReputationManager.registerWorker(workerID);
                 }
+                return capacity > 0 ? leaseTasks(workerID, capacity) : giveTask(workerID);
 
-            case HELLO:
-                System.out.println("Received Hello: "+taskMessage.getActualContent().toString());
-                return new TaskMessage(TaskMessageType.HELLO, myWorkerID, "Hi, I heard you said "+taskMessage.getActualContent());
+            } else {
+                workerReputationManager.reportWorker(workerID);
+                return new TaskMessage(TaskMessageType.CHALLENGE_FAIL, myWorkerID, "Provided solution was FALSE!");
+            }
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+            return new TaskMessage(TaskMessageType.CHALLENGE_FAIL, myWorkerID, "Solution couldn't be validated");
+        }
+    }
 
-            default:
-                throw new UnsupportedOperationException("Unsupported request: "+taskMessage.getType());
+    /**
+     * Gives a single replica to a worker that has proven itself.
+     * @param workerID worker
+     * @return answer to REQUEST_TASK
+     */
+    private TaskMessage giveTask(WorkerID workerID) {
+        ReplicaBox replicaBox = replicaManager.giveReplicaToWorker(workerID);
+        if(replicaBox==null){
+            return new TaskMessage(TaskMessageType.NO_TASK_AVAILABLE, myWorkerID, "");
+        }
+        System.out.println("Gave replica "+replicaBox.getReplicaID()+"\n\tResultKey: "+replicaBox.getResultKey());
+        return new TaskMessage(TaskMessageType.TASK, myWorkerID, replicaBox);
+    }
+
+    /**
+     * Leases replicas to a worker that has proven itself. Workers with reputation also get a session token.
+     * @param workerID worker
+     * @param capacity most number of replicas to lease
+     * @return answer to REQUEST_TASK
+     */
+    private TaskMessage leaseTasks(WorkerID workerID, int capacity) throws InvalidKeyException {
+        List<ReplicaBox> replicaBoxes = replicaManager.giveReplicasToWorker(workerID, capacity);
+        if(replicaBoxes.isEmpty()){
+            return new TaskMessage(TaskMessageType.NO_TASK_AVAILABLE, myWorkerID, "");
+        }
+        for(ReplicaBox replicaBox : replicaBoxes){
+            System.out.println("Gave replica "+replicaBox.getReplicaID()+"\n\tResultKey: "+replicaBox.getResultKey());
         }
 
+        SessionToken sessionToken = null;
+        if(workerReputationManager.hasWorkerReputation(workerID)){
+            sessionToken = hashCash.issueSessionToken(myWorkerID, workerID,
+                    workerReputationManager.getReputation(workerID), SESSION_LIFETIME);
+        }
+        return new TaskMessage(TaskMessageType.TASK_LEASE, myWorkerID, new TaskLease(replicaBoxes, sessionToken));
+    }
+
+    /**
+     * Leases replicas without a challenge if the token is valid and the reputation of the worker
+     * hasn't dropped since the token was issued.
+     * @param workerID worker
+     * @param sessionToken token the worker got with its last lease
+     * @param capacity most number of replicas to lease
+     * @return answer to REQUEST_TASK
+     */
+    private TaskMessage giveTasksInSession(WorkerID workerID, SessionToken sessionToken, int capacity){
+        try {
+            if(hashCash.validateSessionToken(sessionToken, myWorkerID, workerID)
+                    && workerReputationManager.hasWorkerReputation(workerID)
+                    && workerReputationManager.getReputation(workerID) >= sessionToken.getReputation()){
+                return leaseTasks(workerID, capacity);
+            }
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        }
+        return new TaskMessage(TaskMessageType.SESSION_EXPIRED, myWorkerID, "");
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    synchronized protected void handleNoReply(PeerAddress sender, Object messageContent) {
-        TaskMessage taskMessage = TaskMessage.check(messageContent);
+    protected void handleNoReply(PeerAddress sender, Object messageContent) {
+        dispatcher.noReply(TaskMessage.check(messageContent));
+    }
 
-        switch (taskMessage.getType()){
-            case RESULT_UPLOADED:
-                resultUploaded((ReplicaID) taskMessage.getActualContent());
-                break;
-            case TASK_FAIL:
-                FailMessage failMessage = (FailMessage) taskMessage.getActualContent();
-                WorkerID worker = taskMessage.getSenderID();
-                //TODO check reputation as well?
-                //TODO handle in ReplicaManager instead
-                if(replicaManager.isWorkerAssignedReplica(worker, failMessage.getReplicaID())){
-                    System.out.println("My task failed! Reason: "+failMessage.getReason());
-                    replicaManager.replicaFailed(failMessage.getReplicaID());
-                } else {
-                    System.out.println("Warning! A worker node reported a failure in a task it was not participating in...");
-                    workerReputationManager.reportWorker(worker);
-                }
-                break;
-            default:
-                throw new UnsupportedOperationException("Unsupported request: "+taskMessage.getType());
+    private void taskFailed(WorkerID worker, FailMessage failMessage){
+        //TODO check reputation as well?
+        //TODO handle in ReplicaManager instead
+        if(replicaManager.isWorkerAssignedReplica(worker, failMessage.getReplicaID())){
+            System.out.println("My task failed! Reason: "+failMessage.getReason());
+            replicaManager.replicaFailed(failMessage.getReplicaID());
+        } else {
+            System.out.println("Warning! A worker node reported a failure in a task it was not participating in...");
+            workerReputationManager.reportWorker(worker);
+        }
+    }
+
+    /**
+     * Handles a result that was sent directly, which saves the round trips to the DHT.
+     * @param worker Worker that sent the result
+     * @param resultChunk Whole result or a part of it
+     */
+    private void resultReceived(WorkerID worker, ResultChunk resultChunk){
+        final ReplicaID replicaID = resultChunk.getReplicaID();
+        if(!replicaManager.isWorkerAssignedReplica(worker, replicaID)){
+            System.out.println("Warning! A worker node sent a result of a task it was not participating in...");
+            workerReputationManager.reportWorker(worker);
+            return;
+        }
+
+        final byte[] result;
+        try {
+            result = resultAssembler.add(worker, resultChunk);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Warning! A worker node sent a malformed result: " + e.getMessage());
+            workerReputationManager.reportWorker(worker);
+            return;
+        } catch (IllegalStateException e) {
+            //Not the fault of this worker, the replica times out and is given again
+            System.out.println("Dropped a result of " + replicaID + ": " + e.getMessage());
+            return;
+        }
+        if(result != null){
+            System.out.println("Replica was completed: "+replicaID+"\n\tresult holds "+result.length+" bytes.");
+            replicaManager.replicaFinished(replicaID, result);
         }
     }
 
@@ -373,12 +718,12 @@ public class TaskPasser extends Passer {
         final Number160 resultKey = replicaManager.getReplicaResultKey(replicaID);
 //        System.out.println("\tResultKey: "+resultKey);
 
-        client.addListener(new OperationFinishedListener(client, resultKey, CommandWord.GET) {
+        client.get(resultKey, client.getID()).addListener(new OperationFuture.Listener<Data>() {
             @Override
-            protected void operationFinished(Operation operation) {
+            public void operationFinished(Operation<Data> operation) {
                 if (operation.isSuccess()) {
 //                    System.out.println("RESULT RAW: "+operation.getResult().toString());
-                    Data resultData = (Data) operation.getResult();
+                    Data resultData = operation.getResult();
 
                     byte[] resultArray = resultData.getData();
                     System.out.println("Result downloaded successfully, \n\tresult holds "+resultArray.length+" bytes.");
@@ -389,8 +734,6 @@ public class TaskPasser extends Passer {
                 }
             }
         });
-        client.get(resultKey, client.getID());
-
     }
 
     public ReplicaManager getReplicaManager() {
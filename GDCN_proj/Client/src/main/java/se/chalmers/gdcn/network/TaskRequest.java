@@ -0,0 +1,36 @@
+package se.chalmers.gdcn.network;
+
+import java.io.Serializable;
+
+/**
+ * Request for a lease of replicas. Proves the right to work either by a solved challenge or by a session token.
+ */
+class TaskRequest implements Serializable {
+    private final Serializable proof;
+    private final int capacity;
+
+    /**
+     * @param proof {@link se.chalmers.gdcn.hashcash.Solution} or {@link se.chalmers.gdcn.hashcash.SessionToken}
+     * @param capacity number of replicas the worker can work on now
+     */
+    TaskRequest(Serializable proof, int capacity) {
+        this.proof = proof;
+        this.capacity = capacity;
+    }
+
+    public Serializable getProof() {
+        return proof;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskRequest{" +
+                "proof=" + proof +
+                ", capacity=" + capacity +
+                '}';
+    }
+}
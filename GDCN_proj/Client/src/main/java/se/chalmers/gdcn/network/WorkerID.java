@@ -15,6 +15,10 @@ public class WorkerID implements Serializable {
         this.publicKey = publicKey;
     }
 
+    PublicKey getPublicKey() {
+        return publicKey;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -7,9 +7,9 @@ import se.chalmers.gdcn.utils.ByteArray;
 
 import java.io.File;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by Leif on 2014-04-15.
@@ -18,7 +18,7 @@ import java.util.Set;
  */
 public class Archive implements Serializable {
 
-    private final Map<TaskID, CanonicalResult> resultMap = new HashMap<>();
+    private final Map<TaskID, CanonicalResult> resultMap = new ConcurrentHashMap<>();
 
     /**
      * Archive a result
@@ -0,0 +1,176 @@
+package se.chalmers.gdcn.replica;
+
+import se.chalmers.gdcn.network.WorkerID;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Index used by {@link ReplicaManager} to decide which task a worker should get a replica of.
+ *
+ * Tasks are kept sorted by {@link TaskComparator} and every task gets a dense index when loaded.
+ * The tasks already given to a worker are remembered in a bitmap keyed by that index,
+ * so a lookup walks the sorted set from the worker's reputation and skips given tasks
+ * instead of copying the whole set for every request.
+ *
+ * Every task a lookup skips has been given to the worker and is still assignable, so a lookup looks at no more
+ * than {@link #givenCount(WorkerID)} + 1 tasks, see {@link #lastVisited()}. More precisely it skips only the
+ * tasks of the worker that are still in the sorted set, and never depends on the number of tasks in the index.
+ *
+ * Not thread safe, is guarded by the lock of the ReplicaManager.
+ */
+class AssignmentIndex implements Serializable {
+
+    private final TreeSet<TaskCompare> taskDatas = new TreeSet<>(new TaskComparator());
+    private final Map<WorkerID, BitSet> givenTasks = new HashMap<>();
+
+    private int nextIndex = 0;
+    //Tasks looked at by the last lookup
+    private transient int visited = 0;
+
+    /**
+     * Adds a new task to the index and gives it a dense index.
+     * @param taskData new task
+     * @return false if the task was present already
+     */
+    boolean load(TaskData taskData){
+        if(!taskDatas.add(taskData)){
+            return false;
+        }
+        if(taskData.denseIndex() < 0){
+            taskData.setDenseIndex(nextIndex++);
+        }
+        return true;
+    }
+
+    /**
+     * Reinserts a task that was removed using {@link AssignmentIndex#remove(TaskData)}.
+     * OBS! Remove and add the task around every change of its state since its sorted position depends on it.
+     * @param taskData task
+     */
+    void add(TaskData taskData){
+        if(taskData.denseIndex() < 0){
+            throw new IllegalStateException("TaskData must be loaded before it is added! "+taskData);
+        }
+        taskDatas.add(taskData);
+    }
+
+    /**
+     * Removes task from the sorted set. Its dense index and the bitmaps of the workers are kept.
+     * @param taskData task
+     * @return if the task was present
+     */
+    boolean remove(TaskData taskData){
+        return taskDatas.remove(taskData);
+    }
+
+    /**
+     * @return task with lowest value
+     * @throws NoSuchElementException if there are no tasks
+     */
+    TaskData first(){
+        return (TaskData) taskDatas.first();
+    }
+
+    /**
+     * @return number of tasks that can be assigned
+     */
+    int size(){
+        return taskDatas.size();
+    }
+
+    /**
+     * Finds the most appropriate task for this worker that it hasn't been given already.
+     * Chooses floor of the reputation first and ceiling if there is no floor, as {@link TaskData#value()} expects.
+     *
+     * @param worker Worker node
+     * @param reputation reputation of the worker
+     * @return task or null if there is no task left for this worker
+     */
+    TaskData bestFor(WorkerID worker, final float reputation){
+        TaskCompare reputationCompare = new TaskCompare() {
+            @Override
+            public float value() {
+                return reputation;
+            }
+            @Override
+            public String order() {
+                return "";
+            }
+        };
+        BitSet given = givenTasks.get(worker);
+
+        visited = 0;
+        TaskData taskData = firstNotGiven(taskDatas.headSet(reputationCompare, true).descendingIterator(), given);
+        if(taskData == null){
+            //Warning, might not fulfill reputation demand!
+            taskData = firstNotGiven(taskDatas.tailSet(reputationCompare, false).iterator(), given);
+        }
+        return taskData;
+    }
+
+    /**
+     * @param worker Worker node
+     * @param taskData task that a replica was given of
+     */
+    void markGiven(WorkerID worker, TaskData taskData){
+        BitSet given = givenTasks.get(worker);
+        if(given == null){
+            given = new BitSet();
+            givenTasks.put(worker, given);
+        }
+        given.set(taskData.denseIndex());
+    }
+
+    /**
+     * @param worker Worker node
+     * @param taskData task that shall not be excluded for this worker anymore
+     */
+    void unmarkGiven(WorkerID worker, TaskData taskData){
+        BitSet given = givenTasks.get(worker);
+        if(given == null){
+            return;
+        }
+        given.clear(taskData.denseIndex());
+        if(given.isEmpty()){
+            givenTasks.remove(worker);
+        }
+    }
+
+    /**
+     * @param worker Worker node
+     * @param taskData task
+     * @return true if worker has been given a replica of this task
+     */
+    boolean isGiven(WorkerID worker, TaskData taskData){
+        BitSet given = givenTasks.get(worker);
+        return given != null && given.get(taskData.denseIndex());
+    }
+
+    /**
+     * @param worker Worker node
+     * @return number of tasks this worker has been given replicas of
+     */
+    int givenCount(WorkerID worker){
+        BitSet given = givenTasks.get(worker);
+        return given == null ? 0 : given.cardinality();
+    }
+
+    /**
+     * @return number of tasks the last call to {@link #bestFor(WorkerID, float)} looked at
+     */
+    int lastVisited(){
+        return visited;
+    }
+
+    private TaskData firstNotGiven(Iterator<TaskCompare> iterator, BitSet given){
+        while(iterator.hasNext()){
+            TaskData taskData = (TaskData) iterator.next();
+            ++visited;
+            if(given == null || !given.get(taskData.denseIndex())){
+                return taskData;
+            }
+        }
+        return null;
+    }
+}
@@ -1,6 +1,5 @@
 package se.chalmers.gdcn.replica;
 
-import edu.emory.mathcs.backport.java.util.Arrays;
 import se.chalmers.gdcn.files.FileManagementUtils;
 import se.chalmers.gdcn.network.WorkerID;
 import se.chalmers.gdcn.utils.ByteArray;
@@ -37,7 +36,7 @@ public class CanonicalResult  implements Serializable{
      */
     public boolean compareNewWorker(ByteArray data, WorkerID newWorker) throws IOException {
         if (hash != data.hashCode()) return false;
-        if (Arrays.equals(FileManagementUtils.fromFile(location), data.getData())) {
+        if (FileManagementUtils.contentEquals(location, data.getData())) {
             advocatingWorkers.add(newWorker);
             return true;
         }
@@ -3,7 +3,11 @@ package se.chalmers.gdcn.replica;
 import se.chalmers.gdcn.files.TaskMeta;
 import net.tomp2p.peers.Number160;
 import se.chalmers.gdcn.replica.ReplicaManager.ReplicaID;
+import se.chalmers.gdcn.utils.BinaryFormat;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Random;
 
@@ -30,6 +34,32 @@ public class ReplicaBox implements Serializable {
         this.replicaID = generateReplicaID(taskMeta);
     }
 
+    private ReplicaBox(ReplicaID replicaID, TaskMeta taskMeta, Number160 resultKey) {
+        this.replicaID = replicaID;
+        this.taskMeta = taskMeta;
+        this.resultKey = resultKey;
+    }
+
+    /**
+     * Writes this replica in the binary format of messages.
+     * @param out output
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        BinaryFormat.writeString(out, replicaID.toString());
+        BinaryFormat.writeNumber160(out, resultKey);
+        taskMeta.writeTo(out);
+    }
+
+    /**
+     * @param in input positioned at a replica written by {@link #writeTo(DataOutput)}
+     * @return the replica
+     */
+    public static ReplicaBox readFrom(DataInput in) throws IOException {
+        ReplicaID replicaID = new ReplicaID(BinaryFormat.readString(in));
+        Number160 resultKey = BinaryFormat.readNumber160(in);
+        return new ReplicaBox(replicaID, TaskMeta.readFrom(in), resultKey);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
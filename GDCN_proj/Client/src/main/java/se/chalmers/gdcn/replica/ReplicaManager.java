@@ -26,39 +26,56 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Leif on 2014-03-31.
  *
- * //TODO reader-writer synchronization instead of common mutex?
+ * Synchronization: the state of each task is guarded by a lock striped by {@link TaskID} so that validating
+ * the results of one task doesn't stall assignments or results of other tasks. The {@link AssignmentIndex}
+ * is guarded by its own lock which is only held shortly and always taken after the task lock.
+ * The maps of replicas are concurrent so that the read only queries don't take any lock at all.
+ *
+ * Validation is done by threads of its own, see {@link ValidationQueue}. Returning a result only records it and
+ * enqueues validation, the outcome is applied to reputation and archive afterwards holding the lock of the task.
  */
 public class ReplicaManager implements Serializable, Cloneable{
 
+    private static final int TASK_LOCK_STRIPES = 64;
+    private static final int VALIDATION_QUEUE_SIZE = 64;
+
     private final int REPLICAS;
     private final int EXPECTED_REPUTATION;
 
     private final Time TIME_UNIT;
     private final int CALENDAR_VALUE;
 
-    private transient TaskRunner runner;
+    private transient volatile TaskRunner runner;
 
     private final Archive archive;
     private final WorkerReputationManager workerReputationManager;
     private final WorkerTimeoutManager workerTimeoutManager;
     private final SerializableReplicaTimer replicaTimer;
 
-    private final Map<ReplicaID, Replica> replicaMap = new HashMap<>();
-    private final Map<ReplicaID, TaskData> taskDataMap = new HashMap<>();
-    private final Map<TaskID, TaskResultData> resultDataMap = new HashMap<>();
+    private final Map<ReplicaID, Replica> replicaMap = new ConcurrentHashMap<>();
+    private final Map<ReplicaID, TaskData> taskDataMap = new ConcurrentHashMap<>();
+    private final Map<TaskID, TaskResultData> resultDataMap = new ConcurrentHashMap<>();
+
+    private final AssignmentIndex assignmentIndex = new AssignmentIndex(); // Used for decision making based on reputation
 
-    private final Map<WorkerID, Set<TaskData>> assignedTasks = new HashMap<>();
-    private final TreeSet<TaskCompare> taskDatas = new TreeSet<>(new TaskComparator()); // Used for decision making based on reputation
+    private final ReentrantLock assignmentLock = new ReentrantLock();
+    private final ReentrantLock[] taskLocks = new ReentrantLock[TASK_LOCK_STRIPES];
+
+    private transient ValidationQueue validationQueue = new ValidationQueue();
 
     //For testing:
-    private boolean workSelfIfRequired = true;
-    private transient PropertyChangeListener validationListener = null;
+    private volatile boolean workSelfIfRequired = true;
+    private transient volatile PropertyChangeListener validationListener = null;
 
     public static class ReplicaID extends Identifier{
         public ReplicaID(String id) {
@@ -73,14 +90,16 @@ public class ReplicaManager implements Serializable, Cloneable{
     }
 
     /**
-     * Contains information about the status of a task
+     * Contains information about the status of a task.
+     * Guarded by the lock of the task, except pendingReplicas that may be read without lock.
      */
     private static class TaskResultData implements Serializable{
         final Set<ReplicaID> failedReplicas = new HashSet<>();
         final Set<ReplicaID> outdatedReplicas = new HashSet<>();
-        final Set<ReplicaID> pendingReplicas = new HashSet<>();
+        final Set<ReplicaID> pendingReplicas = Collections.newSetFromMap(new ConcurrentHashMap<ReplicaID, Boolean>());
         final Set<ReplicaID> excessPendingReplicas = new HashSet<>();
         final Map<ReplicaID, byte[]> returnedReplicas = new HashMap<>();
+        boolean validating = false;
     }
 
 
@@ -100,11 +119,15 @@ public class ReplicaManager implements Serializable, Cloneable{
         workerTimeoutManager = new WorkerTimeoutManager(updateInterval*2, timeUnit, calendarValue*3);
         archive = new Archive();
 
+        for(int i=0; i<taskLocks.length; ++i){
+            taskLocks[i] = new ReentrantLock();
+        }
+
         this.runner = runner;
         resumeTimer();
     }
 
-    public synchronized void setTaskManager(TaskRunner taskManager) {
+    public void setTaskManager(TaskRunner taskManager) {
         this.runner = taskManager;
     }
 
@@ -124,7 +147,7 @@ public class ReplicaManager implements Serializable, Cloneable{
      * Mainly intended for testing
      * @param workSelfIfRequired true if allow JobOwner to work himself if there are too few active workers
      */
-    public synchronized void setWorkSelfIfRequired(boolean workSelfIfRequired) {
+    public void setWorkSelfIfRequired(boolean workSelfIfRequired) {
         this.workSelfIfRequired = workSelfIfRequired;
     }
 
@@ -133,23 +156,33 @@ public class ReplicaManager implements Serializable, Cloneable{
      * Is called in constructor.
      */
     public void resumeTimer(){
+        replicaTimer.start();
         if(runner != null){
-            runner.submit(replicaTimer.createUpdater());
-            runner.submit(workerTimeoutManager.timerRunner());
-        } else {
-            //In testing...
-            SerializableTimer.resume(replicaTimer);
-//            workerTimeoutManager.resumeTimer();
+            workerTimeoutManager.startTimer();
         }
+        //else in testing...
+    }
+
+    /**
+     * Stops the timers, pending timeouts are kept. Resume with {@link ReplicaManager#resumeTimer()}.
+     */
+    public void stopTimer(){
+        replicaTimer.stop();
+        workerTimeoutManager.stopTimer();
     }
 
     /**
      * Load TaskMeta objects to make replicas of
      * @param tasks List of TaskMeta objects
      */
-    public synchronized void loadTasksAndReplicate(String jobName, List<TaskMeta> tasks){
-        for(TaskMeta task : tasks){
-            taskDatas.add(new TaskData(task, jobName, REPLICAS, EXPECTED_REPUTATION));
+    public void loadTasksAndReplicate(String jobName, List<TaskMeta> tasks){
+        assignmentLock.lock();
+        try{
+            for(TaskMeta task : tasks){
+                assignmentIndex.load(new TaskData(task, jobName, REPLICAS, EXPECTED_REPUTATION));
+            }
+        } finally {
+            assignmentLock.unlock();
         }
     }
 
@@ -158,50 +191,109 @@ public class ReplicaManager implements Serializable, Cloneable{
      * @return Replica info if there are any. Returns null if queue is empty.
      *
      */
-    public synchronized ReplicaBox giveReplicaToWorker(WorkerID worker){
+    public ReplicaBox giveReplicaToWorker(WorkerID worker){
         workerTimeoutManager.activate(worker);
 
-        Set<TaskData> alreadyGiven = assignedTasks.get(worker);
-        if(alreadyGiven == null){
-            alreadyGiven = new HashSet<>();
-            assignedTasks.put(worker, alreadyGiven);
+        ReplicaBox replicaBox = giveReplica(worker, workerReputationManager.getReputation(worker));
+        if(replicaBox == null){
+            printNoTaskLeft(worker);
         }
+        return replicaBox;
+    }
 
-        //Shallow copy intended
-        TreeSet<TaskCompare> notGiven = (TreeSet<TaskCompare>) taskDatas.clone();
-        notGiven.removeAll(alreadyGiven);
-        if(notGiven.size()==0){
-            //No task left to work on for that worker
-
-            //TODO remove this output
-            System.out.println("ReplicaManager: tasks "+taskDatas.size());
-            System.out.println("ReplicaManager: alreadyGiven "+alreadyGiven.size());
-            return null;
-        }
+    /**
+     * Leases several replicas at once. Each replica is chosen as by {@link #giveReplicaToWorker(WorkerID)}
+     * and times out on its own.
+     * @param worker Worker node
+     * @param max Most number of replicas to give
+     * @return Replica infos in the order they were chosen. Is empty if queue is empty.
+     */
+    public List<ReplicaBox> giveReplicasToWorker(WorkerID worker, int max){
+        workerTimeoutManager.activate(worker);
 
         final int workerReputation = workerReputationManager.getReputation(worker);
-        TaskCompare reputationCompare = new TaskCompare() {
-            @Override
-            public float value() {
-                return workerReputation;
+        List<ReplicaBox> replicaBoxes = new ArrayList<>();
+        while(replicaBoxes.size() < max){
+            ReplicaBox replicaBox = giveReplica(worker, workerReputation);
+            if(replicaBox == null){
+                break;
             }
-            @Override
-            public String order() {
-                return "";
-            }
-        };
+            replicaBoxes.add(replicaBox);
+        }
+
+        if(replicaBoxes.isEmpty()){
+            printNoTaskLeft(worker);
+        }
+        return replicaBoxes;
+    }
+
+    /**
+     * @return Replica info or null if there is no task left for this worker
+     */
+    private ReplicaBox giveReplica(WorkerID worker, int workerReputation){
         //Assign task in a smart manner
-        TaskData taskData = (TaskData) notGiven.floor(reputationCompare);
-        if(taskData == null){
-            //Warning, might not fulfill reputation demand!
-            taskData = (TaskData) notGiven.ceiling(reputationCompare);
+        TaskData candidate = bestTaskFor(worker, workerReputation);
+        while(candidate != null){
+            final ReentrantLock taskLock = taskLock(candidate.taskID());
+            taskLock.lock();
+            try{
+                final TaskMeta taskMeta;
+                final boolean excess;
+
+                assignmentLock.lock();
+                try{
+                    //Another thread might have changed the order before the task lock was taken
+                    TaskData taskData = assignmentIndex.bestFor(worker, workerReputation);
+                    if(taskData != candidate){
+                        candidate = taskData;
+                        continue;
+                    }
+
+                    assignmentIndex.remove(taskData);
+                    //TaskData changes state internally which affects its sorted position! Remove and insert!
+                    taskMeta = taskData.giveTask(worker, workerReputation);
+                    assignmentIndex.add(taskData);
+                    assignmentIndex.markGiven(worker, taskData);
+
+                    excess = taskData.enoughReturned();
+                } finally {
+                    assignmentLock.unlock();
+                }
+
+                return registerReplica(worker, candidate, taskMeta, excess);
+            } finally {
+                taskLock.unlock();
+            }
         }
 
-        taskDatas.remove(taskData);
-        //TaskData changes state internally which affects its sorted position! Remove and insert!
-        TaskMeta taskMeta = taskData.giveTask(worker, workerReputation);
-        taskDatas.add(taskData);
+        //No task left to work on for that worker
+        return null;
+    }
+
+    private void printNoTaskLeft(WorkerID worker){
+        //TODO remove this output
+        assignmentLock.lock();
+        try{
+            System.out.println("ReplicaManager: tasks "+assignmentIndex.size());
+            System.out.println("ReplicaManager: alreadyGiven "+assignmentIndex.givenCount(worker));
+        } finally {
+            assignmentLock.unlock();
+        }
+    }
+
+    private TaskData bestTaskFor(WorkerID worker, int workerReputation){
+        assignmentLock.lock();
+        try{
+            return assignmentIndex.bestFor(worker, workerReputation);
+        } finally {
+            assignmentLock.unlock();
+        }
+    }
 
+    /**
+     * Must hold the lock of the task.
+     */
+    private ReplicaBox registerReplica(WorkerID worker, TaskData taskData, TaskMeta taskMeta, boolean excess){
         ReplicaBox replicaBox = new ReplicaBox(taskMeta);
         //ReplicaBox constructor randomizes a new ID. Must check for no reuse.
         while (replicaMap.containsKey(replicaBox.getReplicaID())){
@@ -211,7 +303,6 @@ public class ReplicaManager implements Serializable, Cloneable{
         final ReplicaID replicaID = replicaBox.getReplicaID();
 
         //Update state:
-        alreadyGiven.add(taskData);
         taskDataMap.put(replicaID, taskData);
         replicaMap.put(replicaID, new Replica(replicaBox, worker));
 
@@ -224,7 +315,7 @@ public class ReplicaManager implements Serializable, Cloneable{
             resultDataMap.put(taskData.taskID(), taskResultData);
         }
 
-        if(taskData.enoughReturned()){
+        if(excess){
             taskResultData.excessPendingReplicas.add(replicaID);
 //            throw new AssertionError("EXCESS PENDING REPLICA");
 //            return null;
@@ -240,7 +331,7 @@ public class ReplicaManager implements Serializable, Cloneable{
      * @param replicaID ID of a replica
      * @return Key for the result file in DHT
      */
-    public synchronized Number160 getReplicaResultKey(ReplicaID replicaID){
+    public Number160 getReplicaResultKey(ReplicaID replicaID){
         final Replica replica = replicaMap.get(replicaID);
         if(replica == null){
             throw new IllegalStateException("Error: Replica was not found!");
@@ -254,43 +345,65 @@ public class ReplicaManager implements Serializable, Cloneable{
      *
      * This replica didn't get any answer within given time limit.
      * Doesn't have to report worker, he might still come up with an answer.
+     *
+     * The timer calls this without holding its own lock, so the replica may have been returned, failed or validated
+     * since it timed out. Nothing is done then.
      * @param replicaID Replica that was outdated
      */
-    public synchronized void replicaOutdated(ReplicaID replicaID){
+    public void replicaOutdated(ReplicaID replicaID){
         TaskData taskData = taskDataMap.get(replicaID);
         if(taskData == null){
-            throw new IllegalStateException("Couldn't find TaskData in taskDataMap!");
+            //Has been validated already
+            return;
         }
 
-        TaskResultData resultData = resultDataMap.get(taskData.taskID());
-        awaitingReplica(resultData, replicaID);
+        final FollowUp followUp;
+        final ReentrantLock taskLock = taskLock(taskData.taskID());
+        taskLock.lock();
+        try{
+            TaskResultData resultData = resultDataMap.get(taskData.taskID());
+            final Replica replica = replicaMap.get(replicaID);
+            if(resultData == null || replica == null || !(resultData.pendingReplicas.contains(replicaID)
+                    || resultData.excessPendingReplicas.contains(replicaID))){
+                //Has been returned or failed already
+                return;
+            }
+            awaitingReplica(resultData, replicaID);
 
-        taskDatas.remove(taskData);
-        taskData.timedOut(replicaMap.get(replicaID).getWorker());
-        taskDatas.add(taskData);
+            updateTaskData(taskData, replica.getWorker(), true);
 
-        resultData.outdatedReplicas.add(replicaID);
-        decideValidate(replicaID, taskData, resultData);
+            resultData.outdatedReplicas.add(replicaID);
+            followUp = decideValidate(replicaID, taskData, resultData);
+        } finally {
+            taskLock.unlock();
+        }
+        followUp.run();
     }
 
-    public synchronized void replicaFailed(ReplicaID replicaID){
+    public void replicaFailed(ReplicaID replicaID){
         TaskData taskData = taskDataMap.get(replicaID);
         if(taskData == null){
             throw new IllegalStateException("Couldn't find TaskData in taskDataMap!");
         }
 
-        TaskResultData resultData = resultDataMap.get(taskData.taskID());
-        awaitingReplica(resultData, replicaID);
+        final FollowUp followUp;
+        final ReentrantLock taskLock = taskLock(taskData.taskID());
+        taskLock.lock();
+        try{
+            TaskResultData resultData = resultDataMap.get(taskData.taskID());
+            awaitingReplica(resultData, replicaID);
 
-        taskDatas.remove(taskData);
-        taskData.returned(replicaMap.get(replicaID).getWorker());
-        taskDatas.add(taskData);
+            updateTaskData(taskData, replicaMap.get(replicaID).getWorker(), false);
 
-        resultData.failedReplicas.add(replicaID);
-        decideValidate(replicaID, taskData, resultData);
+            resultData.failedReplicas.add(replicaID);
+            followUp = decideValidate(replicaID, taskData, resultData);
+        } finally {
+            taskLock.unlock();
+        }
+        followUp.run();
     }
 
-    public synchronized void replicaFinished(ReplicaID replicaID, byte[] result){
+    public void replicaFinished(ReplicaID replicaID, byte[] result){
         if(result == null){
             throw new IllegalArgumentException("Error: don't give null result!");
         }
@@ -299,15 +412,53 @@ public class ReplicaManager implements Serializable, Cloneable{
             throw new IllegalStateException("Couldn't find TaskData in taskDataMap!");
         }
 
-        TaskResultData resultData = resultDataMap.get(taskData.taskID());
-        awaitingReplica(resultData, replicaID);
+        final FollowUp followUp;
+        final ReentrantLock taskLock = taskLock(taskData.taskID());
+        taskLock.lock();
+        try{
+            TaskResultData resultData = resultDataMap.get(taskData.taskID());
+            awaitingReplica(resultData, replicaID);
+
+            updateTaskData(taskData, replicaMap.get(replicaID).getWorker(), false);
+
+            resultData.returnedReplicas.put(replicaID, result);
+            followUp = decideValidate(replicaID, taskData, resultData);
+        } finally {
+            taskLock.unlock();
+        }
+        followUp.run();
+    }
 
-        taskDatas.remove(taskData);
-        taskData.returned(replicaMap.get(replicaID).getWorker());
-        taskDatas.add(taskData);
+    /**
+     * Must hold the lock of the task. Re-sorts the task in the assignment index,
+     * unless it has been taken out of the index for validation.
+     * @param taskData task
+     * @param worker worker of the replica
+     * @param timedOut true if replica was outdated, false if it was returned
+     */
+    private void updateTaskData(TaskData taskData, WorkerID worker, boolean timedOut){
+        assignmentLock.lock();
+        try{
+            boolean assignable = assignmentIndex.remove(taskData);
+            if(timedOut){
+                taskData.timedOut(worker);
+            } else {
+                taskData.returned(worker);
+            }
+            if(assignable){
+                assignmentIndex.add(taskData);
+            }
+        } finally {
+            assignmentLock.unlock();
+        }
+    }
 
-        resultData.returnedReplicas.put(replicaID, result);
-        decideValidate(replicaID, taskData, resultData);
+    /**
+     * @param taskID task
+     * @return the lock guarding the state of this task
+     */
+    private ReentrantLock taskLock(TaskID taskID){
+        return taskLocks[(taskID.hashCode() & 0x7fffffff) % taskLocks.length];
     }
 
     private void awaitingReplica(TaskResultData resultData, ReplicaID replicaID){
@@ -323,36 +474,51 @@ public class ReplicaManager implements Serializable, Cloneable{
         throw new IllegalStateException("Expected replicaID to be in pendingReplicas or outdatedReplicas!");
     }
 
-    private void decideValidate(ReplicaID replicaID, TaskData taskData, TaskResultData resultData){
+    /**
+     * Must hold the lock of the task.
+     * @return work to do after the lock of the task is released.
+     */
+    private FollowUp decideValidate(ReplicaID replicaID, TaskData taskData, TaskResultData resultData){
         //Make sure timeout will not be called on this replicaID:
         replicaTimer.remove(replicaID);
 
-        if( workSelfIfRequired && !isThereTaskWithEnoughReputationAlready() && sumActiveReputation() < EXPECTED_REPUTATION){
-            //TODO loops here
-            workSelf();
+        final FollowUp followUp = new FollowUp();
+        //TODO loops here
+        followUp.workSelf = workSelfIfRequired && !isThereTaskWithEnoughReputationAlready()
+                && sumActiveReputation() < EXPECTED_REPUTATION;
+
+        if(resultData.validating){
+            //Is handled as a latecomer when the validation is done
+            return followUp;
         }
 
         if(! taskData.enoughReturned()){
             //Ignore - cannot validate yet
-            return;
+            return followUp;
         }
         //Can validate
 
         if(resultData.pendingReplicas.size() > 0){
             //Wait for some more replicas that was given previously
             //However don't wait on "excess" replicas
-            return;
+            return followUp;
         }
 
         CanonicalResult archivedResult = archive.getArchivedResult(taskData.taskID());
         if(archivedResult == null){
             //First validation
-            validateResults(taskData, resultData);
+            Validation validation = prepareValidation(taskData, resultData);
+            if(validation != null){
+                followUp.validations.add(validation);
+            }
         } else {
             //Has validated before: compare previous result
-            ByteArray byteArray = new ByteArray(resultData.returnedReplicas.get(replicaID));
-            validateLatecomer(archivedResult, taskData, replicaID, byteArray);
+            byte[] result = resultData.returnedReplicas.remove(replicaID);
+            if(result != null){
+                followUp.validations.add(new LatecomerValidation(taskData, replicaID, new ByteArray(result)));
+            }
         }
+        return followUp;
     }
 
     private float sumActiveReputation(){
@@ -409,10 +575,18 @@ public class ReplicaManager implements Serializable, Cloneable{
                 public void taskFailed(String taskName, String reason) {
                     System.out.println("ERROR "+taskName+": "+reason);
 
-                    taskResultData.failedReplicas.add(replicaID);
-                    runner.getTaskListener().taskFailed(taskName, reason);
+                    final FollowUp followUp;
+                    final ReentrantLock taskLock = taskLock(taskData.taskID());
+                    taskLock.lock();
+                    try{
+                        taskResultData.failedReplicas.add(replicaID);
+                        runner.getTaskListener().taskFailed(taskName, reason);
 
-                    decideValidate(replicaID, taskData, taskResultData);
+                        followUp = decideValidate(replicaID, taskData, taskResultData);
+                    } finally {
+                        taskLock.unlock();
+                    }
+                    followUp.run();
                 }
             });
 
@@ -426,122 +600,275 @@ public class ReplicaManager implements Serializable, Cloneable{
      * @return true if there is a task that has enough reputation worked on it
      */
     private boolean isThereTaskWithEnoughReputationAlready(){
-        return taskDatas.first().value() < 0;
+        assignmentLock.lock();
+        try{
+            if(assignmentIndex.size() == 0){
+                //All tasks are validated or being validated, nothing to work on
+                return true;
+            }
+            return assignmentIndex.first().value() < 0;
+        } finally {
+            assignmentLock.unlock();
+        }
     }
 
-    private void validateResults(TaskData taskData, TaskResultData resultData){
-
-        String jobName = taskData.getJobName();
-        Map<ByteArray, Set<ReplicaID>> resultMap = EqualityControl.compareData(resultData.returnedReplicas);
+    /**
+     * Must hold the lock of the task. Takes the task out of assignment while it is validated.
+     * @return validation to run or null if there is nothing to validate
+     */
+    private Validation prepareValidation(TaskData taskData, TaskResultData resultData){
+        Map<ReplicaID, byte[]> returnedReplicas = new HashMap<>(resultData.returnedReplicas);
+        Map<ByteArray, Set<ReplicaID>> resultMap = EqualityControl.compareData(returnedReplicas);
 
         if(resultMap.size() == 0){
             //Happens when all workers say a task failed
             //TODO handle
-            return;
+            return null;
         }
 
-        Set<WorkerID> correctWorkers = new HashSet<>();
-        double bestQuality = 0;
-        ByteArray bestResult = null;
-        Map<ByteArray,TrustQuality> trustMap;
+        resultData.validating = true;
+        assignmentLock.lock();
+        try{
+            assignmentIndex.remove(taskData);
+        } finally {
+            assignmentLock.unlock();
+        }
+        return new Validation(taskData, resultData, returnedReplicas.keySet(), resultMap);
+    }
 
-        //TODO Implement choice of automatic or manual result validation
-        try {
-            if (validationListener == null) {
-                trustMap = QualityControl.compareQuality(jobName, taskData.getTaskMeta(), resultMap.keySet());
-            } else { //For testing:
-                validationListener.propertyChange(new PropertyChangeEvent(this, "Validate", taskData, resultMap));
-                byte[] bytes = resultData.returnedReplicas.values().iterator().next();
-                trustMap = new HashMap<>();
-                trustMap.put(new ByteArray(bytes), TrustQuality.trustworthy(1));
+    /**
+     * Must hold the lock of the task, or have the only reference to this. Undoes {@link #prepareValidation} for a
+     * validation that won't finish. The returned results are kept and validated together with the next one.
+     */
+    private void abortValidation(TaskData taskData, TaskResultData resultData){
+        resultData.validating = false;
+        assignmentLock.lock();
+        try{
+            assignmentIndex.remove(taskData);
+            assignmentIndex.add(taskData);
+        } finally {
+            assignmentLock.unlock();
+        }
+    }
+
+    /**
+     * Work that must be done after the lock of the task is released.
+     */
+    private class FollowUp {
+        private boolean workSelf = false;
+        private final List<Runnable> validations = new ArrayList<>();
+
+        private void run(){
+            for(Runnable validation : validations){
+                validationQueue.execute(validation);
             }
+            if(workSelf){
+                workSelf();
+            }
+        }
+    }
 
-            System.out.println("\nValidate "+taskData.getTaskMeta().getTaskName()+":");
+    /**
+     * Validates the returned results of a task. The quality is compared without holding any lock,
+     * then the trust is applied to reputation and archive while holding the lock of the task.
+     */
+    private class Validation implements Runnable {
+        private final TaskData taskData;
+        private final TaskResultData resultData;
+        private final Set<ReplicaID> validatedReplicas;
+        private final Map<ByteArray, Set<ReplicaID>> resultMap;
+
+        private Validation(TaskData taskData, TaskResultData resultData, Set<ReplicaID> validatedReplicas,
+                           Map<ByteArray, Set<ReplicaID>> resultMap) {
+            this.taskData = taskData;
+            this.resultData = resultData;
+            this.validatedReplicas = validatedReplicas;
+            this.resultMap = resultMap;
+        }
 
-            for(ByteArray byteArray : trustMap.keySet()){
-                TrustQuality trust = trustMap.get(byteArray);
-                Set<ReplicaID> replicaIDs = resultMap.get(byteArray);
+        @Override
+        public void run() {
+            Map<ByteArray,TrustQuality> trustMap = null;
+
+            //TODO Implement choice of automatic or manual result validation
+            try {
+                PropertyChangeListener listener = validationListener;
+                if (listener == null) {
+                    trustMap = QualityControl.compareQuality(taskData.getJobName(), taskData.getTaskMeta(), resultMap.keySet());
+                } else { //For testing:
+                    listener.propertyChange(new PropertyChangeEvent(ReplicaManager.this, "Validate", taskData, resultMap));
+                    trustMap = new HashMap<>();
+                    trustMap.put(resultMap.keySet().iterator().next(), TrustQuality.trustworthy(1));
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
 
-                if(trust.getTrust().equals(Trust.TRUSTWORTHY)){
-                    bestQuality = trust.getQuality();
-                    bestResult = byteArray;
+            FollowUp followUp = null;
+            final ReentrantLock taskLock = taskLock(taskData.taskID());
+            taskLock.lock();
+            try{
+                followUp = apply(trustMap);
+            } finally {
+                if(followUp == null){
+                    //Failed half way, let the task be worked on and validated again
+                    abortValidation(taskData, resultData);
                 }
+                taskLock.unlock();
+            }
+            followUp.run();
+        }
+
+        /**
+         * Must hold the lock of the task.
+         * @param trustMap trust of each result, null if quality couldn't be compared
+         * @return latecomers that returned during validation
+         */
+        private FollowUp apply(Map<ByteArray,TrustQuality> trustMap){
+            Set<WorkerID> correctWorkers = new HashSet<>();
+            double bestQuality = 0;
+            ByteArray bestResult = null;
+
+            if(trustMap != null){
+                System.out.println("\nValidate "+taskData.getTaskMeta().getTaskName()+":");
+
+                for(ByteArray byteArray : trustMap.keySet()){
+                    TrustQuality trust = trustMap.get(byteArray);
+                    Set<ReplicaID> replicaIDs = resultMap.get(byteArray);
+
+                    if(trust.getTrust().equals(Trust.TRUSTWORTHY)){
+                        bestQuality = trust.getQuality();
+                        bestResult = byteArray;
+                    }
 
-                for(ReplicaID replicaID:replicaIDs){
-                    WorkerID worker = replicaMap.get(replicaID).getWorker();
-
-//                  System.out.println("\t"+WorkerNames.getInstance().getName(worker) +
-//                          " was found to be "+trust.getTrust().name() +
-//                          (trust.getTrust() == Trust.UNKNOWN ? "" : " with quality " +
-//                          trust.getQuality()));
-                    System.out.print("\t"+WorkerNames.getInstance().getName(worker) + " was found to be ");
-                    switch (trust.getTrust()){
-                        case TRUSTWORTHY:
-                            System.out.printf(FormatString.colour(trust.getTrust().name(), FormatString.Colour.GREEN) +
-                                    " with quality " + "%.3f\n", trust.getQuality());
-                            workerReputationManager.promoteWorker(worker);
-                            correctWorkers.add(worker);
-                            break;
-                        case DECEITFUL:
-                            System.out.printf(FormatString.colour(trust.getTrust().name(), FormatString.Colour.YELLOW) +
-                                    " with quality " + "%.3f\n", trust.getQuality());
-                            workerReputationManager.reportWorker(worker);
-                            break;
-                        case UNKNOWN:
-                            System.out.println(FormatString.colour(trust.getTrust().name(), FormatString.Colour.YELLOW));
-                            //ignore
-                            break;
+                    for(ReplicaID replicaID:replicaIDs){
+                        Replica replica = replicaMap.get(replicaID);
+                        if(replica == null){
+                            //Was removed while validating
+                            taskDataMap.remove(replicaID);
+                            continue;
+                        }
+                        WorkerID worker = replica.getWorker();
+
+//                      System.out.println("\t"+WorkerNames.getInstance().getName(worker) +
+//                              " was found to be "+trust.getTrust().name() +
+//                              (trust.getTrust() == Trust.UNKNOWN ? "" : " with quality " +
+//                              trust.getQuality()));
+                        System.out.print("\t"+WorkerNames.getInstance().getName(worker) + " was found to be ");
+                        switch (trust.getTrust()){
+                            case TRUSTWORTHY:
+                                System.out.printf(FormatString.colour(trust.getTrust().name(), FormatString.Colour.GREEN) +
+                                        " with quality " + "%.3f\n", trust.getQuality());
+                                workerReputationManager.promoteWorker(worker);
+                                correctWorkers.add(worker);
+                                break;
+                            case DECEITFUL:
+                                System.out.printf(FormatString.colour(trust.getTrust().name(), FormatString.Colour.YELLOW) +
+                                        " with quality " + "%.3f\n", trust.getQuality());
+                                workerReputationManager.reportWorker(worker);
+                                break;
+                            case UNKNOWN:
+                                System.out.println(FormatString.colour(trust.getTrust().name(), FormatString.Colour.YELLOW));
+                                //ignore
+                                break;
+                        }
+                        //Clean for each ReplicaID
+                        assignmentLock.lock();
+                        try{
+                            assignmentIndex.unmarkGiven(worker, taskData);
+                        } finally {
+                            assignmentLock.unlock();
+                        }
+                        replicaMap.remove(replicaID);
+                        taskDataMap.remove(replicaID);
                     }
-                    //Clean for each ReplicaID
-                    assignedTasks.get(worker).remove(taskData);
-                    replicaMap.remove(replicaID);
-                    taskDataMap.remove(replicaID);
                 }
             }
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
 
-        //Clean up and store data:
-        if(bestResult != null){
-            taskDatas.remove(taskData);
+            resultData.validating = false;
+            final FollowUp followUp = new FollowUp();
 
-            //Disabled for demo
-            //System.out.println("\tThe best result had the quality: "+trustMap.get(bestResult).getQuality());
-            System.out.println();
+            //Clean up and store data:
+            if(bestResult != null){
+                //Disabled for demo
+                //System.out.println("\tThe best result had the quality: "+trustMap.get(bestResult).getQuality());
+                System.out.println();
 
-            //OBS currently, this happens even when there are some workers who say a replica failed
-            archive.archiveResult(taskData, bestResult, bestQuality, correctWorkers);
+                //OBS currently, this happens even when there are some workers who say a replica failed
+                archive.archiveResult(taskData, bestResult, bestQuality, correctWorkers);
 
-            if(resultData.excessPendingReplicas.size()==0 && resultData.pendingReplicas.size()==0
-                    && resultData.outdatedReplicas.size()==0){
-                resultDataMap.remove(taskData.taskID());
-            } else {
+                //Results that were returned during validation are compared to the archived result
+                resultData.returnedReplicas.keySet().removeAll(validatedReplicas);
+                for(Map.Entry<ReplicaID, byte[]> latecomer : resultData.returnedReplicas.entrySet()){
+                    followUp.validations.add(new LatecomerValidation(taskData, latecomer.getKey(), new ByteArray(latecomer.getValue())));
+                }
                 resultData.returnedReplicas.clear();
-            }
 
-        } else {
-            //Notify
-            throw new IllegalStateException("No data was acceptable, probably an error in quality function");
+                if(resultData.excessPendingReplicas.size()==0 && resultData.pendingReplicas.size()==0
+                        && resultData.outdatedReplicas.size()==0){
+                    resultDataMap.remove(taskData.taskID());
+                }
+
+            } else {
+                //Notify
+                new IllegalStateException("No data was acceptable, probably an error in quality function").printStackTrace();
+
+                //Let the task be worked on again
+                assignmentLock.lock();
+                try{
+                    assignmentIndex.add(taskData);
+                } finally {
+                    assignmentLock.unlock();
+                }
+            }
+            return followUp;
         }
     }
 
-    private void validateLatecomer(CanonicalResult archivedResult, TaskData taskData, ReplicaID replicaID, ByteArray byteArray){
-        if(validationListener != null){
-            //For testing:
-            validationListener.propertyChange(new PropertyChangeEvent(this, "Late", taskData, replicaID));
-            return;
+    /**
+     * Compares a result that was returned after the task was validated with the archived result.
+     */
+    private class LatecomerValidation implements Runnable {
+        private final TaskData taskData;
+        private final ReplicaID replicaID;
+        private final ByteArray byteArray;
+
+        private LatecomerValidation(TaskData taskData, ReplicaID replicaID, ByteArray byteArray) {
+            this.taskData = taskData;
+            this.replicaID = replicaID;
+            this.byteArray = byteArray;
         }
 
-        try {
-            WorkerID worker = replicaMap.get(replicaID).getWorker();
-            boolean resultEqual = archivedResult.compareNewWorker(byteArray, worker);
+        @Override
+        public void run() {
+            PropertyChangeListener listener = validationListener;
+            if(listener != null){
+                //For testing:
+                listener.propertyChange(new PropertyChangeEvent(ReplicaManager.this, "Late", taskData, replicaID));
+                return;
+            }
+
+            final ReentrantLock taskLock = taskLock(taskData.taskID());
+            try {
+                Replica replica = replicaMap.get(replicaID);
+                if(replica == null){
+                    //Was removed meanwhile
+                    return;
+                }
+                WorkerID worker = replica.getWorker();
+
+                taskLock.lock();
+                try{
+                    CanonicalResult archivedResult = archive.getArchivedResult(taskData.taskID());
+                    if(archivedResult.compareNewWorker(byteArray, worker)){
+                        workerReputationManager.promoteWorker(worker);
+                        return;
+                    }
+                } finally {
+                    taskLock.unlock();
+                }
 
-            if(resultEqual){
-                workerReputationManager.promoteWorker(worker);
-                archivedResult.getAdvocatingWorkers().add(worker);
-            } else {
                 TrustQuality trustQuality = QualityControl.singleQualityTest(taskData.getJobName(), taskData.getTaskMeta(), byteArray);
 
                 switch (trustQuality.getTrust()){
@@ -559,27 +886,35 @@ public class ReplicaManager implements Serializable, Cloneable{
 
                 double lateQuality = trustQuality.getQuality();
 
-                if(archivedResult.getQuality() > lateQuality){
-                    workerReputationManager.reportWorker(worker);
+                taskLock.lock();
+                try{
+                    //Might have been replaced by another latecomer meanwhile
+                    CanonicalResult archivedResult = archive.getArchivedResult(taskData.taskID());
 
-                } else if(archivedResult.getQuality() < lateQuality){
-                    workerReputationManager.promoteWorker(worker);
+                    if(archivedResult.getQuality() > lateQuality){
+                        workerReputationManager.reportWorker(worker);
 
-                    Set<WorkerID> advocating = archivedResult.getAdvocatingWorkers();
-                    for(WorkerID w : advocating){
-                        workerReputationManager.reportWorker(w);
-                    }
-                    HashSet<WorkerID> workerIDs = new HashSet<>();
-                    workerIDs.add(worker);
-                    archive.archiveResult(taskData, byteArray, lateQuality, workerIDs);
+                    } else if(archivedResult.getQuality() < lateQuality){
+                        workerReputationManager.promoteWorker(worker);
+
+                        Set<WorkerID> advocating = archivedResult.getAdvocatingWorkers();
+                        for(WorkerID w : advocating){
+                            workerReputationManager.reportWorker(w);
+                        }
+                        HashSet<WorkerID> workerIDs = new HashSet<>();
+                        workerIDs.add(worker);
+                        archive.archiveResult(taskData, byteArray, lateQuality, workerIDs);
 
-                } else {
-                    //Equal quality but different result
-                    workerReputationManager.promoteWorker(worker);
+                    } else {
+                        //Equal quality but different result
+                        workerReputationManager.promoteWorker(worker);
+                    }
+                } finally {
+                    taskLock.unlock();
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
@@ -589,7 +924,7 @@ public class ReplicaManager implements Serializable, Cloneable{
      * @param replicaID ID of a replica
      * @return true only if worker was assigned this replica, otherwise false.
      */
-    public synchronized boolean isWorkerAssignedReplica(WorkerID workerID, ReplicaID replicaID){
+    public boolean isWorkerAssignedReplica(WorkerID workerID, ReplicaID replicaID){
         if(workerID==null || replicaID == null){
             return false;
         }
@@ -597,7 +932,18 @@ public class ReplicaManager implements Serializable, Cloneable{
         return replica != null && replica.getWorker().equals(workerID);
     }
 
-    public synchronized Set<ReplicaID> pendingReplicaIDs(){
+    /**
+     * @return number of replicas that are being worked on, without copying them
+     */
+    public int pendingReplicaCount(){
+        int count = 0;
+        for(TaskResultData taskResultData : resultDataMap.values()){
+            count += taskResultData.pendingReplicas.size();
+        }
+        return count;
+    }
+
+    public Set<ReplicaID> pendingReplicaIDs(){
         Set<ReplicaID> replicaIDs = new HashSet<>();
         for(TaskResultData taskResultData : resultDataMap.values()){
             replicaIDs.addAll(taskResultData.pendingReplicas);
@@ -608,15 +954,108 @@ public class ReplicaManager implements Serializable, Cloneable{
     /**
      * @return Map with pending replicas and respective location key. Results may or not be uploaded in DHT
      */
-    public synchronized Map<ReplicaID, Number160> pendingResults(){
+    public Map<ReplicaID, Number160> pendingResults(){
         Map<ReplicaID, Number160> pending = new HashMap<>();
         for(ReplicaID replicaID : pendingReplicaIDs()){
             Replica replica = replicaMap.get(replicaID);
+            if(replica == null){
+                //Was validated concurrently
+                continue;
+            }
             pending.put(replicaID, replica.getReplicaBox().getResultKey());
         }
         return pending;
     }
 
+    /**
+     * Takes every lock so that a consistent state is written.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        for(ReentrantLock taskLock : taskLocks){
+            taskLock.lock();
+        }
+        assignmentLock.lock();
+        try{
+            out.defaultWriteObject();
+        } finally {
+            assignmentLock.unlock();
+            for(ReentrantLock taskLock : taskLocks){
+                taskLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Validations that were running when this was written are lost, so their tasks are given out again.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        validationQueue = new ValidationQueue();
+
+        Map<TaskID, TaskData> validatingTasks = new HashMap<>();
+        for(TaskData taskData : taskDataMap.values()){
+            TaskResultData resultData = resultDataMap.get(taskData.taskID());
+            if(resultData != null && resultData.validating){
+                validatingTasks.put(taskData.taskID(), taskData);
+            }
+        }
+        for(TaskData taskData : validatingTasks.values()){
+            abortValidation(taskData, resultDataMap.get(taskData.taskID()));
+        }
+    }
+
+    /**
+     * Quality control runs its programs in the process pool of {@link se.chalmers.gdcn.control.ThreadService} and
+     * waits for them, hence validation has threads of its own and is never run by the threads that enqueue it.
+     *
+     * Enqueuing never blocks either, since network and process threads enqueue. Validations wait in a backlog, which
+     * holds at most one validation per task and its latecomers, until a submitter thread gets one of the places of
+     * the executor, which are as many as its threads and VALIDATION_QUEUE_SIZE more.
+     */
+    private static class ValidationQueue {
+        private final int threads = Runtime.getRuntime().availableProcessors();
+        private final Semaphore places = new Semaphore(threads + VALIDATION_QUEUE_SIZE);
+        //Bounded by the places rather than by its queue, since a place is released before its thread is free
+        private final ThreadPoolExecutor executor = executor(threads, "Validation",
+                new LinkedBlockingQueue<Runnable>());
+        private final ThreadPoolExecutor submitter = executor(1, "Validation submitter",
+                new LinkedBlockingQueue<Runnable>());
+
+        private void execute(final Runnable validation){
+            submitter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    places.acquireUninterruptibly();
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                validation.run();
+                            } finally {
+                                places.release();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private static ThreadPoolExecutor executor(int threads, final String name, BlockingQueue<Runnable> queue){
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, queue,
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            //ReplicaManager has no shutdown, don't keep idle threads
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
 
     private class SerializableReplicaTimer extends SerializableTimer<ReplicaID>{
         /**
@@ -25,6 +25,8 @@ class TaskData implements TaskCompare, Serializable{
     private int replicasToBeReturned;
     private float reputationToBeReturned;
 
+    private int denseIndex = -1;
+
     /**
      * Creates a TaskData instance
      * @param taskMeta meta info of the task
@@ -124,6 +126,17 @@ class TaskData implements TaskCompare, Serializable{
         return taskID;
     }
 
+    /**
+     * @return index given by {@link AssignmentIndex}, negative if not yet loaded
+     */
+    int denseIndex() {
+        return denseIndex;
+    }
+
+    void setDenseIndex(int denseIndex) {
+        this.denseIndex = denseIndex;
+    }
+
     /**
      * {@inheritDoc}
      */
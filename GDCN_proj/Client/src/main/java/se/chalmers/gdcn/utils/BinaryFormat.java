@@ -0,0 +1,83 @@
+package se.chalmers.gdcn.utils;
+
+import net.tomp2p.peers.Number160;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Helpers for the compact binary format of messages, see {@link se.chalmers.gdcn.network.NetworkMessage#encrypt()}.
+ * Lengths are checked when reading, and long arrays are read in increments, so that a malformed message cannot
+ * allocate much more than it holds.
+ */
+public class BinaryFormat {
+
+    /**
+     * Longest byte array or string that is read
+     */
+    public static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NUMBER160_BYTES = 20;
+    //Arrays longer than this grow as their bytes are read, instead of trusting the length
+    private static final int READ_INCREMENT = 64 * 1024;
+
+    public static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static byte[] readBytes(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if(length < 0 || length > MAX_LENGTH){
+            throw new IOException("Invalid length: " + length);
+        }
+        byte[] bytes = new byte[Math.min(length, READ_INCREMENT)];
+        int read = 0;
+        while(true){
+            in.readFully(bytes, read, bytes.length - read);
+            read = bytes.length;
+            if(read == length){
+                return bytes;
+            }
+            bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+        }
+    }
+
+    /**
+     * Unlike {@link DataOutput#writeUTF(String)} the string may be longer than 65535 bytes.
+     */
+    public static void writeString(DataOutput out, String string) throws IOException {
+        writeBytes(out, string.getBytes(UTF8));
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return new String(readBytes(in), UTF8);
+    }
+
+    public static void writeNumber160(DataOutput out, Number160 number) throws IOException {
+        out.write(number.toByteArray());
+    }
+
+    public static Number160 readNumber160(DataInput in) throws IOException {
+        byte[] bytes = new byte[NUMBER160_BYTES];
+        in.readFully(bytes);
+        return new Number160(bytes);
+    }
+
+    /**
+     * @param values values of the enum
+     * @param ordinal ordinal that was read
+     * @return the value with the ordinal
+     * @throws IOException if no value has the ordinal
+     */
+    public static <E extends Enum<E>> E toEnum(E[] values, int ordinal) throws IOException {
+        if(ordinal < 0 || ordinal >= values.length){
+            throw new IOException("Invalid ordinal: " + ordinal);
+        }
+        return values[ordinal];
+    }
+}
@@ -2,53 +2,99 @@ package se.chalmers.gdcn.utils;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Created by Leif on 2014-04-16.
  *
  * Fully serializable timer. Creates runnable that can update the thread.
+ *
+ * Timeouts are kept in a hashed timing wheel: each slot holds the elements whose deadline falls in one update
+ * interval, modulo the number of slots. Together with an index from element to its timeout this makes
+ * add, remove and reset constant time regardless of how many timeouts are pending.
+ *
+ * The clock is run by the shared {@link TimerService}.
  */
 public abstract class SerializableTimer<E> implements Serializable {
 
+    private static final int WHEEL_SIZE = 512;
+
     private final long UPDATE_TIME;
-    private final PriorityQueue<Timeout<E>> queue = new PriorityQueue<>();
+
+    private final List<Set<E>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final Map<E, Timeout> timeouts = new HashMap<>();
+
+    //All slots up to and including this tick have been handled
+    private long handledTick;
+
+    private transient ScheduledFuture<?> clock = null;
+
+    //Statistics of the clock
+    private transient volatile long ticks = 0;
+    private transient volatile long lastLatency = 0;
+    private transient volatile long maxLatency = 0;
+    private transient volatile int lastOutdated = 0;
+    private transient long expectedTick = 0;
 
     /**
      * @param updateTime Number of Milliseconds between check queue
      */
     public SerializableTimer(long updateTime) {
         UPDATE_TIME =  updateTime;
+        for(int i=0; i<WHEEL_SIZE; ++i){
+            wheel.add(new HashSet<E>());
+        }
+        handledTick = tick(System.currentTimeMillis()) - 1;
+    }
+
+    /**
+     * Starts the clock that updates this timer, unless it is running already.
+     * Must be called after being deserialized since the clock isn't serialized.
+     */
+    public final synchronized void start(){
+        if(clock != null){
+            return;
+        }
+        expectedTick = System.currentTimeMillis() + UPDATE_TIME/2;
+        clock = TimerService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        }, UPDATE_TIME/2, UPDATE_TIME);
+        TimerService.register(this);
+    }
+
+    /**
+     * Stops the clock. Pending timeouts are kept and will be handled if started again.
+     */
+    public final synchronized void stop(){
+        if(clock == null){
+            return;
+        }
+        clock.cancel(false);
+        clock = null;
+        TimerService.unregister(this);
     }
 
     /**
      * Clock that updates this timer. This class must be Serializable which {@link java.util.Timer} isn't.
-     * @return Runnable
+     * @return Runnable that starts the clock
      */
     public final Runnable createUpdater(){
         return new Runnable() {
             @Override
             public void run() {
-                Timer timer = new Timer(true);
-                timer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        update();
-                    }
-                }, UPDATE_TIME/2, UPDATE_TIME);
+                start();
             }
         };
     }
 
     /**
-     * @param timer Timer to be resumed
-     * @return Daemon thread that runs the timer
+     * @return statistics of the clock of this timer
      */
-    public static Thread resume(SerializableTimer timer){
-        Thread timerThread = new Thread(timer.createUpdater());
-        timerThread.setDaemon(true);
-
-        timerThread.start();
-        return timerThread;
+    public final Statistics statistics(){
+        return new Statistics(getClass().getSimpleName(), size(), ticks, lastLatency, maxLatency, lastOutdated);
     }
 
     /**
@@ -57,8 +103,14 @@ public abstract class SerializableTimer<E> implements Serializable {
      * @param date absolute date when <code>handleTimeout()</code> will be called
      */
     public final synchronized void add(E element, Date date){
-        Timeout<E> timeout = new Timeout<>(element, date);
-        queue.add(timeout);
+        remove(element);
+
+        final long time = date.getTime();
+        //Dates in the past are put in the next slot to handle
+        final long tick = Math.max(tick(time), handledTick + 1);
+
+        timeouts.put(element, new Timeout(time, tick));
+        slot(tick).add(element);
     }
 
     /**
@@ -67,9 +119,12 @@ public abstract class SerializableTimer<E> implements Serializable {
      * @return if an element was removed.
      */
     public final synchronized boolean remove(E element){
-        //Should work since Timeout equals only depend on element
-        Timeout<E> timeout = new Timeout<>(element, null);
-        return queue.remove(timeout);
+        Timeout timeout = timeouts.remove(element);
+        if(timeout == null){
+            return false;
+        }
+        slot(timeout.tick).remove(element);
+        return true;
     }
 
     /**
@@ -78,27 +133,82 @@ public abstract class SerializableTimer<E> implements Serializable {
      * @return if element was removed before adding
      */
     public final synchronized boolean reset(E element, Date date){
-        boolean removed = false;
-        if(remove(element)){
-            removed = true;
-        }
+        boolean removed = timeouts.containsKey(element);
         add(element, date);
         return removed;
     }
 
+    /**
+     * @return number of pending timeouts
+     */
+    public final synchronized int size(){
+        return timeouts.size();
+    }
+
     /**
      * Called by clock to check the queue.
+     * Timeouts are handled without holding the lock of this timer, so that handleTimeout may take other locks.
      */
-    private synchronized void update(){
-        final Date currentTime = new Date();
-        if(queue.peek()==null){
+    private void update(){
+        final long currentTime = System.currentTimeMillis();
+        final List<E> outdated = outdated(currentTime);
+
+        final long latency = Math.max(0, currentTime - expectedTick);
+        expectedTick += UPDATE_TIME;
+        lastLatency = latency;
+        maxLatency = Math.max(maxLatency, latency);
+        lastOutdated = outdated.size();
+        ticks++;
+
+        for(E element : outdated){
+            try{
+                handleTimeout(element);
+            } catch (RuntimeException e){
+                //Would otherwise cancel the clock
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Removes the elements whose date is before currentTime.
+     * @param currentTime current time in millis
+     * @return outdated elements in order of slot
+     */
+    private synchronized List<E> outdated(final long currentTime){
+        final long currentTick = tick(currentTime);
+        if(timeouts.isEmpty()){
             //Queue empty, ignore
-            return;
+            handledTick = Math.max(handledTick, currentTick - 1);
+            return Collections.emptyList();
         }
-        while(queue.peek()!=null && queue.peek().getDate().compareTo(currentTime) < 0){
-            Timeout<E> outdated = queue.remove();
-            handleTimeout(outdated.element);
+
+        List<E> outdated = new ArrayList<>();
+        //Each slot only needs to be visited once even if the clock has been away longer than a revolution
+        final long firstTick = Math.max(handledTick + 1, currentTick - WHEEL_SIZE + 1);
+        for(long tick = firstTick; tick <= currentTick; ++tick){
+            Iterator<E> iterator = slot(tick).iterator();
+            while(iterator.hasNext()){
+                E element = iterator.next();
+                Timeout timeout = timeouts.get(element);
+                if(timeout.tick <= currentTick && timeout.time < currentTime){
+                    iterator.remove();
+                    timeouts.remove(element);
+                    outdated.add(element);
+                }
+            }
         }
+        //The current slot may still contain timeouts later in this tick, visit it again next update
+        handledTick = Math.max(handledTick, currentTick - 1);
+        return outdated;
+    }
+
+    private long tick(long time){
+        return time / UPDATE_TIME;
+    }
+
+    private Set<E> slot(long tick){
+        return wheel.get((int) (tick % WHEEL_SIZE));
     }
 
     /**
@@ -107,50 +217,78 @@ public abstract class SerializableTimer<E> implements Serializable {
      */
     protected abstract void handleTimeout(E element);
 
-    private static class Timeout<E> implements Serializable, Comparable<Timeout>{
-
-        private final Date date;
-        private final E element;
+    /**
+     * Snapshot of how well the clock of a timer keeps up.
+     */
+    public static class Statistics {
+        private final String name;
+        private final int pending;
+        private final long ticks;
+        private final long lastLatency;
+        private final long maxLatency;
+        private final int lastOutdated;
 
-        private Timeout(E element, Date date) {
-            this.date = date;
-            this.element = element;
+        private Statistics(String name, int pending, long ticks, long lastLatency, long maxLatency, int lastOutdated) {
+            this.name = name;
+            this.pending = pending;
+            this.ticks = ticks;
+            this.lastLatency = lastLatency;
+            this.maxLatency = maxLatency;
+            this.lastOutdated = lastOutdated;
         }
 
-        public E getElement() {
-            return element;
+        public String getName() {
+            return name;
         }
 
-        public Date getDate() {
-            return date;
+        /**
+         * @return number of timeouts that are waiting
+         */
+        public int getPending() {
+            return pending;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof Timeout)) return false;
-
-            Timeout timeout = (Timeout) o;
+        public long getTicks() {
+            return ticks;
+        }
 
-            if (!element.equals(timeout.element)) return false;
+        /**
+         * @return milliseconds the last tick was late
+         */
+        public long getLastLatency() {
+            return lastLatency;
+        }
 
-            return true;
+        /**
+         * @return most milliseconds a tick has been late
+         */
+        public long getMaxLatency() {
+            return maxLatency;
         }
 
-        @Override
-        public int hashCode() {
-            return element.hashCode();
+        /**
+         * @return number of timeouts handled in the last tick
+         */
+        public int getLastOutdated() {
+            return lastOutdated;
         }
 
         @Override
-        public int compareTo(Timeout replicaTimeout) {
-            if(replicaTimeout==null){
-                return 1;
-            }
-            return date.compareTo(replicaTimeout.date);
+        public String toString() {
+            return name + "{pending=" + pending + ", ticks=" + ticks + ", lastLatency=" + lastLatency +
+                    "ms, maxLatency=" + maxLatency + "ms, lastOutdated=" + lastOutdated + "}";
         }
     }
 
+    private static class Timeout implements Serializable{
 
+        private final long time;
+        private final long tick;
+
+        private Timeout(long time, long tick) {
+            this.time = time;
+            this.tick = tick;
+        }
+    }
 
 }
@@ -0,0 +1,81 @@
+package se.chalmers.gdcn.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Process wide scheduler that runs the clocks of every {@link SerializableTimer} and other periodic tasks,
+ * instead of one {@link java.util.Timer} thread each.
+ */
+public class TimerService {
+
+    private static final int THREADS = 2;
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TimerService");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Set<SerializableTimer> timers = Collections.newSetFromMap(new ConcurrentHashMap<SerializableTimer, Boolean>());
+
+    private static TimerService instance = null;
+
+    private TimerService() {
+        //Cancelled clocks shall not stay in the queue until their next tick
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private static synchronized TimerService instance(){
+        if(instance == null){
+            instance = new TimerService();
+        }
+        return instance;
+    }
+
+    /**
+     * Runs task periodically. Cancel the returned future to stop it.
+     * @param task task to run
+     * @param initialDelay milliseconds before first run
+     * @param period milliseconds between runs
+     * @return future of the task
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long initialDelay, long period){
+        return instance().scheduler.scheduleAtFixedRate(task, initialDelay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs task once.
+     * @param task task to run
+     * @param delay milliseconds before it runs
+     * @return future of the task
+     */
+    public static ScheduledFuture<?> delay(Runnable task, long delay){
+        return instance().scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return statistics of every running {@link SerializableTimer}
+     */
+    public static List<SerializableTimer.Statistics> statistics(){
+        List<SerializableTimer.Statistics> statistics = new ArrayList<>();
+        for(SerializableTimer timer : instance().timers){
+            statistics.add(timer.statistics());
+        }
+        return statistics;
+    }
+
+    static void register(SerializableTimer timer){
+        instance().timers.add(timer);
+    }
+
+    static void unregister(SerializableTimer timer){
+        instance().timers.remove(timer);
+    }
+}
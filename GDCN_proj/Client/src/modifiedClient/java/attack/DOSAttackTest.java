@@ -15,6 +15,7 @@ import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by HalfLeif on 2014-04-09.
@@ -26,6 +27,10 @@ import java.util.concurrent.Semaphore;
  */
 public class DOSAttackTest {
 
+    //Job owner to attack, may be set to a local peer to measure how many requests it handles
+    private static final String HOST = System.getProperty("gdcn.attack.host", "narrens.olf.sgsnet.se");
+    private static final int PORT = Integer.getInteger("gdcn.attack.port", 4001);
+
     private Peer[] peers;
     private TaskPasserDOS[] taskPassers;
 
@@ -80,10 +85,10 @@ public class DOSAttackTest {
     public void reAttackTest(){
         Peer peer = DeceitfulNetworkUtils.createPeer(17677);
         TaskPasserDOS taskPasserDOS = new TaskPasserDOS(peer);
-        final int messages = 500;
+        final int messages = Integer.getInteger("gdcn.attack.messages", 500);
 
         try {
-            DeceitfulNetworkUtils.bootstrap(peer, "narrens.olf.sgsnet.se", 4001, bootstrapDone);
+            DeceitfulNetworkUtils.bootstrap(peer, HOST, PORT, bootstrapDone);
 //            boots.acquireUninterruptibly();
             Thread.sleep(100);
 
@@ -100,11 +105,20 @@ public class DOSAttackTest {
 
 
             Date beforeChallenge = new Date();
-            challenges.acquireUninterruptibly(messages);
-            Date afterChallenge = new Date();
+            Date afterChallenge = beforeChallenge;
+            int received = 0;
+            //Requests rejected by admission control are never answered with a challenge
+            while(received < messages && challenges.tryAcquire(5, TimeUnit.SECONDS)){
+                ++received;
+                afterChallenge = new Date();
+            }
 
             final long challengeDiff = afterChallenge.getTime()-beforeChallenge.getTime();
             System.out.println("\tReceive challenges: "+challengeDiff);
+            System.out.println("\tChallenges received: "+received+" of "+messages);
+
+            final long total = afterChallenge.getTime()-beforePeer.getTime();
+            System.out.println("\tChallenges per second: "+(received * 1000L / Math.max(1, total)));
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -127,7 +141,7 @@ public class DOSAttackTest {
 
 
             for(int ix=0; ix<sybils; ++ix){
-                DeceitfulNetworkUtils.bootstrap(peers[ix], "narrens.olf.sgsnet.se", 4001, bootstrapDone);
+                DeceitfulNetworkUtils.bootstrap(peers[ix], HOST, PORT, bootstrapDone);
             }
             System.out.println("\tAwait bootstrap");
 //            boots.acquireUninterruptibly((sybils * 3) / 4);
@@ -4,6 +4,7 @@ import se.chalmers.gdcn.communicationToUI.CommandWord;
 import se.chalmers.gdcn.communicationToUI.NetworkInterface;
 import se.chalmers.gdcn.communicationToUI.Operation;
 import se.chalmers.gdcn.communicationToUI.OperationFinishedSupport;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.p2p.Peer;
@@ -116,7 +117,8 @@ public class DenyTaskAttack {
             private OperationFinishedSupport notifier = new OperationFinishedSupport(this);
 
             @Override
-            public void put(final Number160 key, final Data value) {
+            public OperationFuture<Data> put(final Number160 key, final Data value) {
+                final OperationFuture<Data> operationFuture = new OperationFuture<>();
                 FutureDHT futureDHT = peer.put(key).setData(value).start();
                 futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() {
 
@@ -124,9 +126,12 @@ public class DenyTaskAttack {
                     public void operationComplete(FutureDHT future) throws Exception {
                         boolean success = future.isSuccess();
 
-                        notifier.fireOperationFinished(CommandWord.PUT, new Operation.OperationBuilder<Data>(success).setResult(value).setKey(key).create());
+                        Operation<Data> operation = new Operation.OperationBuilder<Data>(success).setResult(value).setKey(key).create();
+                        operationFuture.complete(operation);
+                        notifier.fireOperationFinished(CommandWord.PUT, operation);
                     }
                 });
+                return operationFuture;
             }
 
             @Override
@@ -141,13 +146,13 @@ public class DenyTaskAttack {
 
             //Not supported in this test:
             @Override
-            public void put(String name, Data value) {}
+            public OperationFuture<Data> put(String name, Data value) {return new OperationFuture<Data>();}
 
             @Override
-            public void get(String name) {}
+            public OperationFuture<Data> get(String name) {return new OperationFuture<Data>();}
 
             @Override
-            public void get(Number160 key) {}
+            public OperationFuture<Data> get(Number160 key) {return new OperationFuture<Data>();}
 
             @Override
             public void start(int port) {}
@@ -174,13 +179,13 @@ public class DenyTaskAttack {
             public void send(String msg) {}
 
             @Override
-            public void put(Number160 key, Number160 domain, Data value) {
-
+            public OperationFuture<Data> put(Number160 key, Number160 domain, Data value) {
+                return new OperationFuture<Data>();
             }
 
             @Override
-            public void get(Number160 key, Number160 domain) {
-
+            public OperationFuture<Data> get(Number160 key, Number160 domain) {
+                return new OperationFuture<Data>();
             }
 
             @Override
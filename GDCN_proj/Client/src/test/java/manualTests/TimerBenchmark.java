@@ -0,0 +1,152 @@
+package manualTests;
+
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.utils.SerializableTimer;
+
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Compares {@link SerializableTimer} with the PriorityQueue it used before, for many pending timeouts.
+ * Run manually, prints nanoseconds per operation.
+ */
+public class TimerBenchmark {
+
+    private static final int[] PENDING = {10000, 100000, 1000000};
+    private static final int OPERATIONS = 500;
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void wheelTest(){
+        for(int pending : PENDING){
+            final WheelTimer timer = new WheelTimer();
+            measure("Wheel", pending, new Ops() {
+                @Override
+                public void add(Integer element, Date date) {
+                    timer.add(element, date);
+                }
+
+                @Override
+                public void remove(Integer element) {
+                    timer.remove(element);
+                }
+
+                @Override
+                public void reset(Integer element, Date date) {
+                    timer.reset(element, date);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void priorityQueueTest(){
+        for(int pending : PENDING){
+            final QueueTimer timer = new QueueTimer();
+            measure("PriorityQueue", pending, new Ops() {
+                @Override
+                public void add(Integer element, Date date) {
+                    timer.add(element, date);
+                }
+
+                @Override
+                public void remove(Integer element) {
+                    timer.remove(element);
+                }
+
+                @Override
+                public void reset(Integer element, Date date) {
+                    timer.reset(element, date);
+                }
+            });
+        }
+    }
+
+    private static void measure(String name, int pending, Ops ops){
+        final Random random = new Random(pending);
+        final long now = System.currentTimeMillis();
+
+        for(int i=0; i<pending; ++i){
+            ops.add(i, new Date(now + 60000 + random.nextInt(600000)));
+        }
+
+        long best = Long.MAX_VALUE;
+        for(int round=0; round<ROUNDS; ++round){
+            long start = System.nanoTime();
+            for(int i=0; i<OPERATIONS; ++i){
+                Integer element = random.nextInt(pending);
+                Date date = new Date(now + 60000 + random.nextInt(600000));
+                //Same mix as a job owner: reset on every request and remove on every result
+                ops.reset(element, date);
+                ops.remove(element);
+                ops.add(element, date);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        System.out.println(name + " with " + pending + " pending: " + best / (3 * OPERATIONS) + " ns/op");
+    }
+
+    private static interface Ops {
+        void add(Integer element, Date date);
+        void remove(Integer element);
+        void reset(Integer element, Date date);
+    }
+
+    private static class WheelTimer extends SerializableTimer<Integer> {
+        private WheelTimer() {
+            super(50000);
+        }
+
+        @Override
+        protected void handleTimeout(Integer element) {
+        }
+    }
+
+    /**
+     * How SerializableTimer was implemented before
+     */
+    private static class QueueTimer {
+        private final PriorityQueue<Timeout> queue = new PriorityQueue<>();
+
+        void add(Integer element, Date date){
+            queue.add(new Timeout(element, date));
+        }
+
+        boolean remove(Integer element){
+            return queue.remove(new Timeout(element, null));
+        }
+
+        boolean reset(Integer element, Date date){
+            boolean removed = remove(element);
+            add(element, date);
+            return removed;
+        }
+    }
+
+    private static class Timeout implements Comparable<Timeout> {
+        private final Integer element;
+        private final Date date;
+
+        private Timeout(Integer element, Date date) {
+            this.element = element;
+            this.date = date;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Timeout && element.equals(((Timeout) o).element);
+        }
+
+        @Override
+        public int hashCode() {
+            return element.hashCode();
+        }
+
+        @Override
+        public int compareTo(Timeout timeout) {
+            return date.compareTo(timeout.date);
+        }
+    }
+}
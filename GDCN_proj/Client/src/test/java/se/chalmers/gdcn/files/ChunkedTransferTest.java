@@ -0,0 +1,221 @@
+package se.chalmers.gdcn.files;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.communicationToUI.NetworkInterface;
+import se.chalmers.gdcn.communicationToUI.Operation;
+import se.chalmers.gdcn.communicationToUI.Operation.OperationBuilder;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
+import utils.TestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link ChunkedTransfer} against a DHT in memory.
+ *
+ * Is in this package since ChunkedTransfer is package private.
+ */
+public class ChunkedTransferTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private final Number160 key = Number160.createHash("File");
+    private final Number160 domain = Number160.createHash("Owner");
+
+    private File directory;
+    private MemoryDHT dht;
+    private NetworkInterface client;
+
+    @BeforeMethod
+    public void setupMethod(){
+        directory = TestUtils.tempDir("gdcn-chunk-test-");
+        dht = new MemoryDHT();
+        client = dht.client();
+    }
+
+    @AfterMethod
+    public void cleanupMethod(){
+        TestUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        final byte[] contents = TestUtils.randomBytes(3500, 1);
+        final File source = TestUtils.write(directory, "source", contents);
+        final File target = new File(directory, "target");
+
+        Operation<Long> upload = ChunkedTransfer.upload(client, key, domain, source, CHUNK_SIZE).await(5, TimeUnit.SECONDS);
+        assert upload != null && upload.isSuccess();
+        assert upload.getResult() == 3500;
+        //Four chunks and the manifest
+        assert dht.values.size() == 5;
+
+        Operation<Long> download = ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS);
+        assert download != null && download.isSuccess();
+        assert download.getResult() == 3500;
+        assert Arrays.equals(FileManagementUtils.fromFile(target), contents);
+        assert !new File(target.getPath() + ".part").exists();
+    }
+
+    @Test
+    public void emptyFileTest() throws Exception {
+        final File source = TestUtils.write(directory, "source", new byte[0]);
+        final File target = new File(directory, "target");
+
+        assert ChunkedTransfer.upload(client, key, domain, source, CHUNK_SIZE).await(5, TimeUnit.SECONDS).isSuccess();
+        assert ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS).isSuccess();
+        assert target.exists() && target.length() == 0;
+    }
+
+    @Test
+    public void resumeTest() throws Exception {
+        final byte[] contents = TestUtils.randomBytes(10 * CHUNK_SIZE, 2);
+        final File source = TestUtils.write(directory, "source", contents);
+        final File target = new File(directory, "target");
+        assert ChunkedTransfer.upload(client, key, domain, source, CHUNK_SIZE).await(5, TimeUnit.SECONDS).isSuccess();
+
+        dht.failing.add(ChunkManifest.chunkKey(key, 7));
+        Operation<Long> failed = ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS);
+        assert failed != null && !failed.isSuccess();
+        assert !target.exists();
+
+        //Only the chunks that weren't written are fetched again
+        dht.failing.clear();
+        final int getsBefore = dht.gets.get();
+        Operation<Long> resumed = ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS);
+        assert resumed != null && resumed.isSuccess();
+        assert dht.gets.get() - getsBefore < 10 + 1;
+        assert resumed.getResult() < contents.length;
+        assert Arrays.equals(FileManagementUtils.fromFile(target), contents);
+    }
+
+    @Test
+    public void corruptChunkTest() throws Exception {
+        final File source = TestUtils.write(directory, "source", TestUtils.randomBytes(2500, 3));
+        final File target = new File(directory, "target");
+        assert ChunkedTransfer.upload(client, key, domain, source, CHUNK_SIZE).await(5, TimeUnit.SECONDS).isSuccess();
+
+        dht.values.put(ChunkManifest.chunkKey(key, 1), new Data(TestUtils.randomBytes(CHUNK_SIZE, 4)));
+        Operation<Long> download = ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS);
+        assert download != null && !download.isSuccess();
+        assert !target.exists();
+    }
+
+    @Test
+    public void missingManifestTest() throws Exception {
+        Operation<Long> download = ChunkedTransfer.download(client, key, domain, new File(directory, "target"))
+                .await(5, TimeUnit.SECONDS);
+        assert download != null && !download.isSuccess();
+    }
+
+    @Test
+    public void invalidManifestTest() throws Exception {
+        final File target = new File(directory, "target");
+
+        //Chunks that would have to be held in memory at once are refused
+        dht.values.put(key, new Data(new ChunkManifest(Integer.MAX_VALUE - 1, Integer.MAX_VALUE - 1,
+                new byte[][]{new byte[20]})));
+        Operation<Long> download = ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS);
+        assert download != null && !download.isSuccess();
+
+        dht.values.put(key, new Data(new ChunkManifest(2 * CHUNK_SIZE, CHUNK_SIZE,
+                new byte[][]{new byte[20], new byte[3]})));
+        download = ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS);
+        assert download != null && !download.isSuccess();
+        assert !new File(target.getPath() + ".part").exists();
+    }
+
+    @Test
+    public void concurrentDownloadTest() throws Exception {
+        final byte[] contents = TestUtils.randomBytes(4 * CHUNK_SIZE, 5);
+        final File source = TestUtils.write(directory, "source", contents);
+        final File target = new File(directory, "target");
+        assert ChunkedTransfer.upload(client, key, domain, source, CHUNK_SIZE).await(5, TimeUnit.SECONDS).isSuccess();
+
+        //Keeps the first download running while the others start
+        dht.held = new CountDownLatch(1);
+        final int getsBefore = dht.gets.get();
+        OperationFuture<Long> first = ChunkedTransfer.download(client, key, domain, target);
+        OperationFuture<Long> second = ChunkedTransfer.download(client, key, domain, target);
+        OperationFuture<Long> other = ChunkedTransfer.download(client, Number160.createHash("Other"), domain, target);
+        dht.held.countDown();
+
+        assert first.await(5, TimeUnit.SECONDS).isSuccess();
+        assert second.await(5, TimeUnit.SECONDS).isSuccess();
+        //Another file can't share the .part file and is retried later
+        assert !other.await(5, TimeUnit.SECONDS).isSuccess();
+        //The manifest and four chunks, once
+        assert dht.gets.get() - getsBefore == 5;
+        assert Arrays.equals(FileManagementUtils.fromFile(target), contents);
+
+        //Once done, the file may be downloaded again
+        assert ChunkedTransfer.download(client, key, domain, target).await(5, TimeUnit.SECONDS).isSuccess();
+        assert dht.gets.get() - getsBefore == 10;
+    }
+
+    /**
+     * Puts and gets of one domain, that are completed directly.
+     */
+    private static class MemoryDHT {
+        private final ConcurrentMap<Number160, Data> values = new ConcurrentHashMap<>();
+        private final Set<Number160> failing = Collections.newSetFromMap(new ConcurrentHashMap<Number160, Boolean>());
+        private final AtomicInteger gets = new AtomicInteger(0);
+        //Gets aren't completed until this is counted down, if it is set
+        private volatile CountDownLatch held = null;
+
+        private NetworkInterface client(){
+            return (NetworkInterface) Proxy.newProxyInstance(NetworkInterface.class.getClassLoader(),
+                    new Class[]{NetworkInterface.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                    final Number160 key = (Number160) args[0];
+                    final OperationFuture<Data> future = new OperationFuture<>();
+                    if(method.getName().equals("put")){
+                        values.put(key, (Data) args[2]);
+                        future.complete(new OperationBuilder<Data>(true).setKey(key).create());
+                    } else if(method.getName().equals("get")){
+                        gets.incrementAndGet();
+                        final Data data = values.get(key);
+                        final boolean success = data != null && !failing.contains(key);
+                        final Operation<Data> operation = new OperationBuilder<Data>(success).setKey(key)
+                                .setResult(success ? data : null).create();
+                        final CountDownLatch held = MemoryDHT.this.held;
+                        if(held == null){
+                            future.complete(operation);
+                        } else {
+                            new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        held.await();
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                    future.complete(operation);
+                                }
+                            }).start();
+                        }
+                    } else {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return future;
+                }
+            });
+        }
+    }
+}
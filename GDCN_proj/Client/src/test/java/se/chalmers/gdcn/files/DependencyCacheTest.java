@@ -0,0 +1,101 @@
+package se.chalmers.gdcn.files;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests that {@link DependencyCache} gives back what was stored, notices modified files and removes the least
+ * recently used files when it is full.
+ *
+ * Is in this package since DependencyCache is package private.
+ */
+public class DependencyCacheTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void setupMethod(){
+        directory = TestUtils.tempDir("gdcn-cache-test-");
+    }
+
+    @AfterMethod
+    public void cleanupMethod(){
+        TestUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void fetchTest() throws IOException {
+        DependencyCache cache = new DependencyCache(new File(directory, "cache"), 10000);
+        final byte[] contents = TestUtils.randomBytes(1000, 1);
+        final File file = TestUtils.write(directory, "projectA/resources/input.raw", contents);
+        final String hash = cache.contentHash(file);
+        assert hash.equals(FileManagementUtils.contentHash(file));
+
+        final File other = new File(directory, "projectB/resources/input.raw");
+        assert !cache.fetch(hash, other);
+        cache.store(hash, file);
+        assert cache.fetch(hash, other);
+        assert Arrays.equals(FileManagementUtils.fromFile(other), contents);
+        assert cache.size() == 1000;
+
+        //A new cache on the same directory finds what was stored
+        DependencyCache reopened = new DependencyCache(new File(directory, "cache"), 10000);
+        assert reopened.fetch(hash, new File(directory, "projectC/resources/input.raw"));
+    }
+
+    @Test
+    public void modifiedTest() throws IOException {
+        DependencyCache cache = new DependencyCache(new File(directory, "cache"), 10000);
+        final File file = TestUtils.write(directory, "projectA/input.raw", TestUtils.randomBytes(1000, 1));
+        final String hash = cache.contentHash(file);
+        cache.store(hash, file);
+
+        //Changes the stored file too if they are linked
+        FileManagementUtils.toFile(new File(directory, "cache/" + hash), TestUtils.randomBytes(900, 2));
+        assert !hash.equals(cache.contentHash(new File(directory, "cache/" + hash)));
+        assert !cache.fetch(hash, new File(directory, "projectB/input.raw"));
+        assert cache.size() == 0;
+    }
+
+    @Test
+    public void evictTest() throws IOException {
+        DependencyCache cache = new DependencyCache(new File(directory, "cache"), 2500);
+        String[] hashes = new String[3];
+        for(int i=0; i<hashes.length; ++i){
+            File file = TestUtils.write(directory, "project/input" + i, TestUtils.randomBytes(1000, i));
+            hashes[i] = cache.contentHash(file);
+            cache.store(hashes[i], file);
+            if(i == 1){
+                //Makes the first file more recently used than the second
+                assert cache.fetch(hashes[0], new File(directory, "other/input0"));
+            }
+        }
+
+        assert cache.size() == 2000;
+        assert cache.fetch(hashes[0], new File(directory, "other/input0"));
+        assert !cache.fetch(hashes[1], new File(directory, "other/input1"));
+        assert cache.fetch(hashes[2], new File(directory, "other/input2"));
+    }
+
+    @Test
+    public void invalidHashTest() throws IOException {
+        DependencyCache cache = new DependencyCache(new File(directory, "cache"), 10000);
+        final File file = TestUtils.write(directory, "project/input", TestUtils.randomBytes(10, 1));
+        assert !cache.fetch("../project/input", new File(directory, "other/input"));
+
+        boolean rejected = false;
+        try {
+            cache.store("../stored", file);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assert rejected;
+    }
+
+}
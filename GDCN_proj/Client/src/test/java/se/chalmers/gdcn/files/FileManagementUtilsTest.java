@@ -0,0 +1,134 @@
+package se.chalmers.gdcn.files;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import utils.TestUtils;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Tests that files are read and compared correctly, both the small files that are read through buffers and the large
+ * ones that are mapped. The benchmark compares with reading through streams as before, runs only if gdcn.benchmark is
+ * set and uses a file of gdcn.benchmark.megabytes.
+ */
+public class FileManagementUtilsTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void setupMethod(){
+        directory = TestUtils.tempDir("gdcn-files-test-");
+    }
+
+    @AfterMethod
+    public void cleanupMethod(){
+        TestUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void smallFileTest() throws Exception {
+        roundTrip(TestUtils.randomBytes(1000, 1));
+        roundTrip(new byte[0]);
+    }
+
+    @Test
+    public void largeFileTest() throws Exception {
+        //Larger than the mapping threshold and not a multiple of anything
+        roundTrip(TestUtils.randomBytes((5 << 20) + 17, 2));
+    }
+
+    @Test
+    public void partTest() throws IOException {
+        final byte[] contents = TestUtils.randomBytes(1000, 3);
+        final File file = write(contents);
+        assert Arrays.equals(FileManagementUtils.fromFile(file, 100, 200), Arrays.copyOfRange(contents, 100, 300));
+
+        boolean failed = false;
+        try {
+            FileManagementUtils.fromFile(file, 900, 200);
+        } catch (EOFException e) {
+            failed = true;
+        }
+        assert failed;
+    }
+
+    @Test
+    public void benchmarkTest() throws Exception {
+        if(!Boolean.getBoolean("gdcn.benchmark")){
+            throw new SkipException("Measured only if gdcn.benchmark is set");
+        }
+        final int megabytes = Integer.getInteger("gdcn.benchmark.megabytes", 16);
+        final File file = write(TestUtils.randomBytes(megabytes << 20, 4));
+
+        //Warms up both, so that neither is measured while it is compiled
+        for(int round=0; round<2; ++round){
+            long start = System.nanoTime();
+            byte[] data = oldFromFile(file);
+            final long oldRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assert Arrays.equals(oldFromFile(file), data);
+            final long oldCompared = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            data = FileManagementUtils.fromFile(file);
+            final long read = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assert FileManagementUtils.contentEquals(file, data);
+            final long compared = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            FileManagementUtils.contentHash(file);
+            final long hashed = System.nanoTime() - start;
+
+            if(round > 0){
+                System.out.println("FileManagementUtils on " + megabytes + " MB: read " + read / 1000000 +
+                        " ms (streams " + oldRead / 1000000 + " ms), compared " + compared / 1000000 +
+                        " ms (streams " + oldCompared / 1000000 + " ms), hashed " + hashed / 1000000 + " ms");
+            }
+        }
+    }
+
+    private void roundTrip(byte[] contents) throws Exception {
+        final File file = write(contents);
+        assert Arrays.equals(FileManagementUtils.fromFile(file), contents);
+        assert FileManagementUtils.contentEquals(file, contents);
+        assert Arrays.equals(FileManagementUtils.digest(file), MessageDigest.getInstance("SHA-1").digest(contents));
+
+        if(contents.length > 0){
+            byte[] changed = contents.clone();
+            changed[changed.length - 1] ^= 1;
+            assert !FileManagementUtils.contentEquals(file, changed);
+            assert !FileManagementUtils.contentEquals(file, Arrays.copyOf(contents, contents.length - 1));
+        }
+    }
+
+    /**
+     * How FileManagementUtils.fromFile was implemented before, except that the array is filled even if a read
+     * returns less. Comparing a file used to be reading it like this and comparing the arrays.
+     */
+    private static byte[] oldFromFile(File file) throws Exception {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            DataInputStream digestInputStream = new DataInputStream(new DigestInputStream(inputStream, digest));
+
+            byte[] data = new byte[(int) file.length()];
+            digestInputStream.readFully(data);
+            digest.digest();
+            return data;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private File write(byte[] contents){
+        return TestUtils.write(directory, "file" + System.nanoTime(), contents);
+    }
+}
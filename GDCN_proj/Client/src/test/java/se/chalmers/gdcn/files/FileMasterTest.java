@@ -0,0 +1,202 @@
+package se.chalmers.gdcn.files;
+
+import net.tomp2p.peers.Number160;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.communicationToUI.Operation;
+import se.chalmers.gdcn.communicationToUI.Operation.OperationBuilder;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
+import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskFailureListener;
+import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
+import utils.TestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that {@link AbstractFileMaster} limits the transfers that run at once, retries failed transfers and reports
+ * a failed task once.
+ *
+ * Is in this package since AbstractFileMaster is package private.
+ */
+public class FileMasterTest {
+
+    private static final int FILES = 10;
+
+    private Properties previousPaths;
+    private File root;
+
+    @BeforeClass
+    public void setupClass(){
+        //No file of the test project exists, so every dependency is transferred
+        previousPaths = PathManager.getPaths();
+        root = TestUtils.tempDir("gdcn-filemaster-test-");
+        Properties paths = new Properties();
+        for(String key : new String[]{"bin_path", "data_path", "job_path", "settings_path"}){
+            paths.setProperty(key, root.getAbsolutePath() + File.separator);
+        }
+        PathManager.loadFromProperties(paths);
+    }
+
+    @AfterClass
+    public void cleanupClass(){
+        //Other tests see the paths they saw before
+        PathManager.loadFromProperties(previousPaths);
+        TestUtils.deleteRecursively(root);
+    }
+
+    @Test
+    public void boundedTransfersTest() throws Exception {
+        final TestFileMaster fileMaster = new TestFileMaster(taskMeta(FILES));
+        final OperationFuture<Void> resolved = fileMaster.resolve();
+        assert fileMaster.started.size() == 4;
+
+        for(int i=0; i<FILES; ++i){
+            OperationFuture<Long> transfer = fileMaster.started.poll(5, TimeUnit.SECONDS);
+            assert transfer != null;
+            assert !resolved.isDone();
+            transfer.complete(new OperationBuilder<Long>(true).create());
+        }
+
+        Operation<Void> operation = resolved.await(5, TimeUnit.SECONDS);
+        assert operation != null && operation.isSuccess();
+        assert fileMaster.maxRunning.get() <= 4;
+        assert fileMaster.succeeded.get() == FILES;
+        assert fileMaster.failures.isEmpty();
+    }
+
+    @Test
+    public void retryTest() throws Exception {
+        final TestFileMaster fileMaster = new TestFileMaster(taskMeta(1));
+        final OperationFuture<Void> resolved = fileMaster.resolve();
+
+        fileMaster.started.poll(5, TimeUnit.SECONDS).complete(new OperationBuilder<Long>(false).create());
+        OperationFuture<Long> retry = fileMaster.started.poll(5, TimeUnit.SECONDS);
+        assert retry != null;
+        retry.complete(new OperationBuilder<Long>(true).create());
+
+        Operation<Void> operation = resolved.await(5, TimeUnit.SECONDS);
+        assert operation != null && operation.isSuccess();
+        assert fileMaster.succeeded.get() == 1;
+    }
+
+    @Test
+    public void failTest() throws Exception {
+        final TestFileMaster fileMaster = new TestFileMaster(taskMeta(1));
+        final OperationFuture<Void> resolved = fileMaster.resolve();
+
+        for(int i=0; i<3; ++i){
+            fileMaster.started.poll(5, TimeUnit.SECONDS).complete(new OperationBuilder<Long>(false).create());
+        }
+
+        Operation<Void> operation = resolved.await(5, TimeUnit.SECONDS);
+        assert operation != null && !operation.isSuccess();
+        //Is reported after the future is completed
+        assert fileMaster.failures.poll(5, TimeUnit.SECONDS) != null;
+        assert fileMaster.failures.isEmpty();
+        assert fileMaster.started.isEmpty();
+    }
+
+    @Test
+    public void failOnceTest() throws Exception {
+        final TestFileMaster fileMaster = new TestFileMaster(taskMeta(FILES));
+        final OperationFuture<Void> resolved = fileMaster.resolve();
+
+        //Every running transfer gives up at the same time
+        for(int attempt=0; attempt<3; ++attempt){
+            List<OperationFuture<Long>> running = new ArrayList<>();
+            for(int i=0; i<4; ++i){
+                OperationFuture<Long> transfer = fileMaster.started.poll(5, TimeUnit.SECONDS);
+                assert transfer != null;
+                running.add(transfer);
+            }
+            for(OperationFuture<Long> transfer : running){
+                transfer.complete(new OperationBuilder<Long>(false).create());
+            }
+        }
+
+        Operation<Void> operation = resolved.await(5, TimeUnit.SECONDS);
+        assert operation != null && !operation.isSuccess();
+        assert fileMaster.failures.poll(5, TimeUnit.SECONDS) != null;
+        //The other transfers return after the task has failed
+        TestUtils.nap(200);
+        assert fileMaster.failures.isEmpty() : fileMaster.failures;
+        assert fileMaster.started.isEmpty();
+    }
+
+    private static TaskMeta taskMeta(int files){
+        List<FileDep> deps = new ArrayList<>();
+        for(int i=0; i<files; ++i){
+            deps.add(new FileDep("File" + i, "resources", Number160.createHash("File" + i), false, 0));
+        }
+        return new TaskMeta("Task", null, deps);
+    }
+
+    /**
+     * Transfers every missing file, the test completes the transfers.
+     */
+    private static class TestFileMaster extends AbstractFileMaster {
+
+        private final BlockingQueue<OperationFuture<Long>> started = new LinkedBlockingQueue<>();
+        private final BlockingQueue<String> failures;
+
+        private final AtomicInteger running = new AtomicInteger(0);
+        private final AtomicInteger maxRunning = new AtomicInteger(0);
+        private final AtomicInteger succeeded = new AtomicInteger(0);
+
+        private TestFileMaster(TaskMeta taskMeta) throws TaskMetaDataException {
+            this(taskMeta, new LinkedBlockingQueue<String>());
+        }
+
+        private TestFileMaster(TaskMeta taskMeta, final BlockingQueue<String> failures) throws TaskMetaDataException {
+            super(taskMeta, null, new TaskFailureListener() {
+                @Override
+                public void taskFailed(String taskName, String reason) {
+                    failures.add(reason);
+                }
+            }, PathManager.worker("FileMasterTest"));
+            this.failures = failures;
+        }
+
+        @Override
+        protected void ifFileExist(FileDep fileDep) {
+            fileDependencyResolved(fileDep);
+        }
+
+        @Override
+        protected void ifFileDoNotExist(FileDep fileDep) {
+            transfer(fileDep);
+        }
+
+        @Override
+        protected OperationFuture<Long> startTransfer(FileDep fileDep) {
+            final int now = running.incrementAndGet();
+            int max;
+            do {
+                max = maxRunning.get();
+            } while(now > max && !maxRunning.compareAndSet(max, now));
+
+            final OperationFuture<Long> future = new OperationFuture<>();
+            future.addListener(new OperationFuture.Listener<Long>() {
+                @Override
+                public void operationFinished(Operation<Long> operation) {
+                    running.decrementAndGet();
+                }
+            });
+            started.add(future);
+            return future;
+        }
+
+        @Override
+        protected void operationForDependentFileSuccess(FileDep fileDep, Object result) {
+            succeeded.incrementAndGet();
+        }
+    }
+}
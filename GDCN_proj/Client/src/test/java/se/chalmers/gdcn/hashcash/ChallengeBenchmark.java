@@ -0,0 +1,125 @@
+package se.chalmers.gdcn.hashcash;
+
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.network.WorkerID;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compares {@link HashCash#validateSolution} with how solutions were verified before.
+ * Run manually, prints verifications per second and bytes allocated per verification.
+ *
+ * Is in this package since the old verification needs the token and MAC of the challenge.
+ */
+public class ChallengeBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int VERIFICATIONS = 100000;
+
+    private final SecretKey key;
+    private final HashCash hashCash;
+    private final WorkerID jobOwner, worker;
+    private final Challenge challenge;
+    private final Solution solution;
+
+    public ChallengeBenchmark() throws Exception {
+        key = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        hashCash = new HashCash(key, 8, 8);
+
+        KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
+        jobOwner = new WorkerID(keygen.generateKeyPair().getPublic());
+        worker = new WorkerID(keygen.generateKeyPair().getPublic());
+        challenge = hashCash.generateAuthenticationChallenge(jobOwner, worker, 3);
+        solution = challenge.solve();
+    }
+
+    @Test
+    public void verifyTest() throws Exception {
+        measure("Thread local", new Verification() {
+            @Override
+            public boolean verify() throws Exception {
+                return hashCash.validateSolution(solution, jobOwner, worker, 3);
+            }
+        });
+    }
+
+    @Test
+    public void oldVerifyTest() throws Exception {
+        measure("Old", new Verification() {
+            @Override
+            public boolean verify() throws Exception {
+                return oldValidateSolution(challenge, solution, jobOwner, worker, 3);
+            }
+        });
+    }
+
+    private static void measure(String name, Verification verification) throws Exception {
+        for(int i=0; i<WARMUP; ++i){
+            assert verification.verify();
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadID = Thread.currentThread().getId();
+        final long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadID);
+        final long start = System.nanoTime();
+
+        boolean valid = true;
+        for(int i=0; i<VERIFICATIONS; ++i){
+            valid &= verification.verify();
+        }
+
+        final long time = System.nanoTime() - start;
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadID) - allocatedBefore;
+        assert valid;
+
+        System.out.println(name + ": " + VERIFICATIONS * 1000000000L / time + " verifications/s, " +
+                allocated / VERIFICATIONS + " bytes/verification");
+    }
+
+    private static interface Verification {
+        boolean verify() throws Exception;
+    }
+
+    /**
+     * How HashCash.validateSolution was implemented before
+     */
+    private boolean oldValidateSolution(Challenge challenge, Solution solution, WorkerID jobOwner, WorkerID worker,
+                                        int score) throws Exception {
+        MessageDigest md = MessageDigest.getInstance(HashCash.HASH_ALGORITHM);
+        md.update((jobOwner.toString() + worker + score).getBytes("UTF-8"));
+        byte[] seed = md.digest();
+
+        return oldIsAuthentic(challenge) && oldIsSolution(challenge, seed, solution.getToken())
+                && Arrays.equals(seed, challenge.getSeed());
+    }
+
+    private boolean oldIsAuthentic(Challenge challenge) throws Exception {
+        Mac macGen = Mac.getInstance(key.getAlgorithm());
+        macGen.init(key);
+        macGen.update(challenge.getPurpose().toString().getBytes("UTF-8"));
+        macGen.update(challenge.getSeed());
+        byte[] mac = macGen.doFinal(ByteBuffer.allocate(4).putInt(challenge.difficulty).array());
+        return Arrays.equals(challenge.getMAC(), mac);
+    }
+
+    private static boolean oldIsSolution(Challenge challenge, byte[] seed, byte[] token) throws Exception {
+        MessageDigest md = MessageDigest.getInstance(HashCash.HASH_ALGORITHM);
+        md.update(seed);
+        md.update(token);
+        BitSet hashBits = BitSet.valueOf(md.digest());
+        BitSet zeros = new BitSet(challenge.difficulty);
+
+        zeros.clear();
+        zeros.or(hashBits);
+
+        return zeros.get(0, challenge.difficulty - 1).isEmpty();
+    }
+}
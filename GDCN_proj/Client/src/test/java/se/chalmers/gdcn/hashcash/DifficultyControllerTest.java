@@ -0,0 +1,115 @@
+package se.chalmers.gdcn.hashcash;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.network.WorkerID;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.KeyPairGenerator;
+
+/**
+ * Tests that {@link DifficultyController} follows the load within its bounds.
+ */
+public class DifficultyControllerTest {
+
+    private DifficultyController controller;
+    private long now;
+
+    @BeforeMethod
+    public void setupMethod(){
+        controller = new DifficultyController(10, 12, 20, 23);
+        controller.setTargets(10, 5);
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void idleTest(){
+        update(0, 0);
+        assert controller.getEasyDifficulty() == 10;
+        assert controller.getHardDifficulty() == 20;
+    }
+
+    @Test
+    public void requestRateTest(){
+        //20 requests per second is twice the target
+        update(20, 0);
+        assert controller.getEasyDifficulty() == 11;
+        assert controller.getHardDifficulty() == 21;
+        assert controller.statistics().getRequestRate() == 20;
+    }
+
+    @Test
+    public void largeJobTest(){
+        //A job of thousands of replicas, leased to honest workers who ask a few times per second
+        for(int i=0; i<60; ++i){
+            update(3, 1);
+        }
+        assert controller.getEasyDifficulty() == 10;
+        assert controller.getHardDifficulty() == 20;
+    }
+
+    @Test
+    public void queueTest(){
+        update(0, 6);
+        assert controller.getHardDifficulty() == 21;
+    }
+
+    @Test
+    public void boundsTest(){
+        for(int i=0; i<10; ++i){
+            update(100, 0);
+        }
+        assert controller.getEasyDifficulty() == 12;
+        assert controller.getHardDifficulty() == 23;
+
+        for(int i=0; i<10; ++i){
+            update(0, 0);
+        }
+        assert controller.getEasyDifficulty() == 10;
+        assert controller.getHardDifficulty() == 20;
+    }
+
+    @Test
+    public void steadyTest(){
+        update(100, 0);
+        //Between the low load and the target nothing changes
+        update(7, 0);
+        assert controller.getEasyDifficulty() == 11;
+        assert controller.getHardDifficulty() == 21;
+    }
+
+    @Test
+    public void fixedTest(){
+        DifficultyController fixed = new DifficultyController(15, 20);
+        for(int i=0; i<100; ++i){
+            fixed.requestReceived();
+        }
+        fixed.update(1000);
+        assert fixed.getEasyDifficulty() == 15;
+        assert fixed.getHardDifficulty() == 20;
+    }
+
+    @Test
+    public void challengeTest() throws Exception {
+        SecretKey key = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        HashCash hashCash = new HashCash(key, controller);
+        update(100, 0);
+
+        WorkerID jobOwner = new WorkerID(KeyPairGenerator.getInstance("RSA").generateKeyPair().getPublic());
+        Challenge challenge = hashCash.generateAuthenticationChallenge(jobOwner, jobOwner, 0);
+        assert challenge.difficulty == 11;
+        assert hashCash.validateSolution(challenge.solve(), jobOwner, jobOwner, 0);
+    }
+
+    /**
+     * Simulates one second
+     */
+    private void update(int requests, int queue){
+        for(int i=0; i<requests; ++i){
+            controller.requestReceived();
+        }
+        now += 1000;
+        controller.update(now, queue);
+    }
+}
@@ -7,8 +7,10 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import java.math.BigInteger;
 import java.security.KeyPairGenerator;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Random;
+import java.util.concurrent.*;
 
 /**
  * Created by Leif on 2014-03-29.
@@ -114,6 +116,23 @@ public class HashCashTest {
         assert !hc.validateSolution(solution, jobOwner, worker, score+1);
     }
 
+    @Test
+    public void testSeedPrefixesBounded() throws Exception {
+        HashCash hashCash = new HashCash(key1, 1, 1);
+        //Elliptic curve keys are much faster to generate than RSA keys
+        KeyPairGenerator ecKeygen = KeyPairGenerator.getInstance("EC");
+        WorkerID jobOwner = randomWorkerID();
+        WorkerID worker = randomWorkerID();
+
+        Solution solution = hashCash.generateAuthenticationChallenge(jobOwner, worker, 0).solve();
+        for(int i=0; i<1000; ++i){
+            hashCash.generateAuthenticationChallenge(jobOwner, new WorkerID(ecKeygen.generateKeyPair().getPublic()), 0);
+        }
+        assert hashCash.cachedSeedPrefixes() <= 256;
+        //The prefix of a forgotten worker is made again
+        assert hashCash.validateSolution(solution, jobOwner, worker, 0);
+    }
+
     @Test
     public void testRegSolution() throws Exception {
         WorkerID jobOwner = randomWorkerID();
@@ -161,6 +180,98 @@ public class HashCashTest {
         assert !hc.validateSolution(s1,jo,w,wcm.getCurrentScore(w));
     }
 
+    @Test
+    public void testLeadingZeros() {
+        for(int difficulty=1; difficulty<=170; ++difficulty){
+            Challenge challenge = hc.generateChallenge(randomString(), difficulty);
+            for(int i=0; i<50; ++i){
+                byte[] hash = new byte[20];
+                random.nextBytes(hash);
+                //Clear a random number of the first bits so that both outcomes are tested
+                BitSet bits = BitSet.valueOf(hash);
+                bits.clear(0, random.nextInt(difficulty + 8));
+                byte[] cleared = Arrays.copyOf(bits.toByteArray(), 20);
+
+                assert challenge.checkZeros(cleared) == Challenge.hasLeadingZeros(cleared, difficulty - 1);
+            }
+        }
+    }
+
+    @Test
+    public void testSeed() throws Exception {
+        WorkerID jo = randomWorkerID(), w = randomWorkerID();
+
+        for(int score : new int[]{0, 7, -12, Integer.MAX_VALUE, Integer.MIN_VALUE}){
+            Challenge challenge = hc.generateAuthenticationChallenge(jo, w, score);
+            Challenge expected = hc.generateChallenge(HashCash.Purpose.AUTH, jo.toString() + w + score, 20);
+
+            assert Arrays.equals(challenge.getSeed(), expected.getSeed());
+            assert Arrays.equals(challenge.getMAC(), expected.getMAC());
+        }
+    }
+
+    @Test
+    public void testSessionToken() throws Exception {
+        WorkerID jo = randomWorkerID(), w = randomWorkerID(), other = randomWorkerID();
+        SessionToken token = hc.issueSessionToken(jo, w, 3, 60000);
+
+        assert hc.validateSessionToken(token, jo, w);
+        assert !hc.validateSessionToken(token, jo, other);
+        assert !hc.validateSessionToken(token, other, w);
+        assert !new HashCash(key2, 20, 22).validateSessionToken(token, jo, w);
+
+        SessionToken raised = new SessionToken(token.getExpires(), 4, token.getMAC());
+        assert !hc.validateSessionToken(raised, jo, w);
+        SessionToken extended = new SessionToken(token.getExpires() + 1, 3, token.getMAC());
+        assert !hc.validateSessionToken(extended, jo, w);
+    }
+
+    @Test
+    public void testExpiredSessionToken() throws Exception {
+        WorkerID jo = randomWorkerID(), w = randomWorkerID();
+        SessionToken token = hc.issueSessionToken(jo, w, 3, -1);
+
+        assert token.isExpired(System.currentTimeMillis());
+        assert !hc.validateSessionToken(token, jo, w);
+    }
+
+    @Test
+    public void testParallelSolution() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try{
+            Challenge challenge = hc.generateChallenge(randomString(), 16);
+            Solution solution = challenge.solve(executor, 4);
+
+            assert solution.isValid(key1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelSolver() throws Exception {
+        //Practically impossible to solve
+        Challenge challenge = hc.generateChallenge(randomString(), 120);
+        final ChallengeSolver solver = new ChallengeSolver(challenge, 2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try{
+            Future<Solution> future = executor.submit(new Callable<Solution>() {
+                @Override
+                public Solution call() throws Exception {
+                    return solver.solve(null);
+                }
+            });
+            Thread.sleep(50);
+            solver.cancel();
+
+            assert future.get(1, TimeUnit.SECONDS) == null;
+            assert solver.isCancelled();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private String randomString() {
         return new BigInteger(130, random).toString(32);
     }
@@ -0,0 +1,122 @@
+package se.chalmers.gdcn.network;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.hashcash.HashCash;
+import utils.WorkerHolder;
+
+import javax.crypto.KeyGenerator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local version of the flood in attack.DOSAttackTest: attackers send REQUEST_CHALLENGE as fast as they can to a
+ * job owner with a few network threads, while one worker sends requests a bit slower than the rate it is allowed.
+ * Run manually, prints the latency the worker sees with and without {@link AdmissionControl}.
+ *
+ * Is in this package since AdmissionControl is package private.
+ */
+public class AdmissionControlBenchmark {
+
+    private static final int NETWORK_THREADS = 4;
+    private static final int ATTACKERS = 8;
+    private static final int WORKER_REQUESTS = 50;
+    private static final int WORKER_INTERVAL = 110;
+
+    private HashCash hashCash;
+    private WorkerID jobOwner;
+
+    @BeforeClass
+    public void setupClass() throws Exception {
+        hashCash = new HashCash(KeyGenerator.getInstance("HmacSHA256").generateKey());
+        jobOwner = WorkerHolder.getMyWorkerID();
+    }
+
+    @Test
+    public void floodTest() throws Exception {
+        flood("Without admission control", null);
+        flood("With admission control", new AdmissionControl(10, 20, NETWORK_THREADS * 4, 10000));
+    }
+
+    private void flood(String name, final AdmissionControl admissionControl) throws Exception {
+        final ThreadPoolExecutor network = new ThreadPoolExecutor(NETWORK_THREADS, NETWORK_THREADS, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        final AtomicLong challenges = new AtomicLong(0);
+        final AtomicLong rejected = new AtomicLong(0);
+        final CountDownLatch stop = new CountDownLatch(1);
+
+        Thread[] attackers = new Thread[ATTACKERS];
+        for(int i=0; i<attackers.length; ++i){
+            final String attacker = "Attacker" + i;
+            attackers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while(stop.getCount() > 0){
+                        //Keeps the queue of the network threads full, as a socket buffer would be
+                        if(network.getQueue().size() > 1000){
+                            Thread.yield();
+                            continue;
+                        }
+                        network.submit(request(attacker, admissionControl, challenges, rejected));
+                    }
+                }
+            });
+            attackers[i].start();
+        }
+
+        long totalLatency = 0;
+        long maxLatency = 0;
+        int answered = 0;
+        for(int i=0; i<WORKER_REQUESTS; ++i){
+            Thread.sleep(WORKER_INTERVAL);
+            final long start = System.nanoTime();
+            Future<?> future = network.submit(request("Worker", admissionControl, challenges, rejected));
+            if((Boolean) future.get()){
+                final long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+                ++answered;
+            }
+        }
+
+        stop.countDown();
+        for(Thread attacker : attackers){
+            attacker.join();
+        }
+        network.shutdownNow();
+
+        System.out.println(String.format("%-26s worker answered %3d/%d, average %7d us, max %7d us, " +
+                "challenges %8d, rejected %8d", name, answered, WORKER_REQUESTS,
+                answered == 0 ? 0 : totalLatency / answered, maxLatency, challenges.get(), rejected.get()));
+    }
+
+    /**
+     * @return request that is true if it was answered with a challenge
+     */
+    private Callable<Boolean> request(final String peer, final AdmissionControl admissionControl,
+                                      final AtomicLong challenges, final AtomicLong rejected){
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if(admissionControl == null){
+                    return challenge();
+                }
+                if(admissionControl.admit(peer) != AdmissionControl.Decision.ADMITTED){
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                try {
+                    return challenge();
+                } finally {
+                    admissionControl.done();
+                }
+            }
+
+            private boolean challenge(){
+                hashCash.generateRegistrationChallenge(jobOwner, jobOwner, 0);
+                challenges.incrementAndGet();
+                return true;
+            }
+        };
+    }
+}
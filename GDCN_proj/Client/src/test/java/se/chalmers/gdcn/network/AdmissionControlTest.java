@@ -0,0 +1,90 @@
+package se.chalmers.gdcn.network;
+
+import org.testng.annotations.Test;
+
+import static se.chalmers.gdcn.network.AdmissionControl.Decision.*;
+
+/**
+ * Tests the token buckets and the concurrency limit of {@link AdmissionControl}.
+ */
+public class AdmissionControlTest {
+
+    @Test
+    public void burstTest(){
+        AdmissionControl admissionControl = new AdmissionControl(1, 3, 100, 100);
+        for(int i=0; i<3; ++i){
+            assert admissionControl.admit("A") == ADMITTED;
+            admissionControl.done();
+        }
+        assert admissionControl.admit("A") == RATE_LIMITED;
+
+        //Other peers have buckets of their own
+        assert admissionControl.admit("B") == ADMITTED;
+        admissionControl.done();
+
+        AdmissionControl.Statistics statistics = admissionControl.statistics();
+        assert statistics.getAdmitted() == 4;
+        assert statistics.getRateLimited() == 1;
+        assert statistics.getPeers() == 2;
+    }
+
+    @Test
+    public void refillTest() throws InterruptedException {
+        AdmissionControl admissionControl = new AdmissionControl(50, 1, 100, 100);
+        assert admissionControl.admit("A") == ADMITTED;
+        admissionControl.done();
+        assert admissionControl.admit("A") == RATE_LIMITED;
+
+        Thread.sleep(admissionControl.retryAfter() * 2);
+        assert admissionControl.admit("A") == ADMITTED;
+        admissionControl.done();
+    }
+
+    @Test
+    public void concurrencyTest(){
+        AdmissionControl admissionControl = new AdmissionControl(100, 100, 2, 100);
+        assert admissionControl.admit("A") == ADMITTED;
+        assert admissionControl.admit("B") == ADMITTED;
+        assert admissionControl.admit("C") == BUSY;
+
+        admissionControl.done();
+        assert admissionControl.admit("C") == ADMITTED;
+        assert admissionControl.statistics().getBusy() == 1;
+    }
+
+    @Test
+    public void busyKeepsTokenTest(){
+        AdmissionControl admissionControl = new AdmissionControl(0.001, 1, 1, 100);
+        assert admissionControl.admit("A") == ADMITTED;
+        assert admissionControl.admit("B") == BUSY;
+
+        //B didn't spend its only token on the rejected request
+        admissionControl.done();
+        assert admissionControl.admit("B") == ADMITTED;
+    }
+
+    @Test
+    public void forgetTest() throws InterruptedException {
+        AdmissionControl admissionControl = new AdmissionControl(100, 1, 100, 2);
+        assert admissionControl.admit("A") == ADMITTED;
+        assert admissionControl.admit("B") == ADMITTED;
+
+        //Neither bucket has refilled yet, so there is no room for another peer
+        assert admissionControl.admit("C") == BUSY;
+
+        Thread.sleep(1100);
+        assert admissionControl.admit("C") == ADMITTED;
+        assert admissionControl.statistics().getPeers() == 1;
+    }
+
+    @Test
+    public void invalidTest(){
+        boolean rejected = false;
+        try {
+            new AdmissionControl(0, 1, 1, 1);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assert rejected;
+    }
+}
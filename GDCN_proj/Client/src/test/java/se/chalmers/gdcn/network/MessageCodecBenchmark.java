@@ -0,0 +1,127 @@
+package se.chalmers.gdcn.network;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.control.WorkerReputationManager;
+import se.chalmers.gdcn.hashcash.HashCash;
+import se.chalmers.gdcn.replica.ReplicaBox;
+import se.chalmers.gdcn.replica.ReplicaManager;
+import se.chalmers.gdcn.replica.ReplicaManagerBuilder;
+import utils.TaskHolder;
+import utils.TestUtils;
+import utils.WorkerHolder;
+
+import javax.crypto.KeyGenerator;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the binary format of {@link MessageCodec} with the Java serialization that was used before.
+ * Run manually, prints the encoded size and the time to encode and decode each kind of message.
+ *
+ * Is in this package since the messages are package private.
+ */
+public class MessageCodecBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int MESSAGES = 100000;
+
+    private final List<NetworkMessage> messages = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    @BeforeClass
+    public void setupClass() throws Exception {
+        WorkerID worker = WorkerHolder.getWorkerA();
+        HashCash hashCash = new HashCash(KeyGenerator.getInstance("HmacSHA256").generateKey(), 5, 8);
+
+        WorkerReputationManager workerReputationManager = new WorkerReputationManager(WorkerHolder.getMyWorkerID());
+        workerReputationManager.registerWorker(worker);
+        ReplicaManager replicaManager = new ReplicaManagerBuilder(workerReputationManager).create();
+        replicaManager.setWorkSelfIfRequired(false);
+        TestUtils.loadMeta(TaskHolder.getTaskA(), replicaManager);
+        ReplicaBox replicaBox = replicaManager.giveReplicaToWorker(worker);
+
+        List<ReplicaBox> replicaBoxes = new ArrayList<>();
+        for(int i=0; i<4; ++i){
+            replicaBoxes.add(replicaBox);
+        }
+
+        add("REQUEST_CHALLENGE", new TaskMessage(TaskMessageType.REQUEST_CHALLENGE, worker, ""));
+        add("CHALLENGE", new TaskMessage(TaskMessageType.CHALLENGE, worker,
+                hashCash.generateAuthenticationChallenge(worker, worker, 0)));
+        add("REQUEST_TASK", new TaskMessage(TaskMessageType.REQUEST_TASK, worker,
+                new TaskRequest(hashCash.generateAuthenticationChallenge(worker, worker, 0).solve(), 4)));
+        add("TASK", new TaskMessage(TaskMessageType.TASK, worker, replicaBox));
+        add("TASK_LEASE", new TaskMessage(TaskMessageType.TASK_LEASE, worker, new TaskLease(replicaBoxes,
+                hashCash.issueSessionToken(worker, worker, 3, 60000))));
+        add("RESULT_UPLOADED", new TaskMessage(TaskMessageType.RESULT_UPLOADED, worker, replicaBox.getReplicaID()));
+        add("TASK_FAIL", new TaskMessage(TaskMessageType.TASK_FAIL, worker,
+                new FailMessage("Some reason", replicaBox.getReplicaID())));
+    }
+
+    private void add(String name, TaskMessage taskMessage){
+        names.add(name);
+        messages.add(new NetworkMessage(taskMessage, NetworkMessage.Type.REQUEST));
+    }
+
+    @Test
+    public void compareTest() throws Exception {
+        for(int i=0; i<messages.size(); ++i){
+            final NetworkMessage message = messages.get(i);
+            final int binarySize = MessageCodec.encode(message).length;
+            final int serializedSize = serialize(message).length;
+
+            final long binary = measure(new Codec() {
+                @Override
+                public Object roundTrip() throws Exception {
+                    return MessageCodec.decode(MessageCodec.encode(message));
+                }
+            });
+            final long serialized = measure(new Codec() {
+                @Override
+                public Object roundTrip() throws Exception {
+                    return deserialize(serialize(message));
+                }
+            });
+
+            System.out.println(String.format("%-18s binary: %5d bytes %7d ns, serialized: %5d bytes %7d ns",
+                    names.get(i), binarySize, binary, serializedSize, serialized));
+        }
+    }
+
+    /**
+     * @return average nanos of encoding and decoding once
+     */
+    private static long measure(Codec codec) throws Exception {
+        for(int i=0; i<WARMUP; ++i){
+            codec.roundTrip();
+        }
+        final long start = System.nanoTime();
+        for(int i=0; i<MESSAGES; ++i){
+            codec.roundTrip();
+        }
+        return (System.nanoTime() - start) / MESSAGES;
+    }
+
+    private static interface Codec {
+        Object roundTrip() throws Exception;
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package se.chalmers.gdcn.network;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.control.WorkerReputationManager;
+import se.chalmers.gdcn.hashcash.Challenge;
+import se.chalmers.gdcn.hashcash.HashCash;
+import se.chalmers.gdcn.hashcash.SessionToken;
+import se.chalmers.gdcn.hashcash.Solution;
+import se.chalmers.gdcn.replica.ReplicaBox;
+import se.chalmers.gdcn.replica.ReplicaManager;
+import se.chalmers.gdcn.replica.ReplicaManager.ReplicaID;
+import se.chalmers.gdcn.replica.ReplicaManagerBuilder;
+import se.chalmers.gdcn.utils.BinaryFormat;
+import utils.TaskHolder;
+import utils.TestUtils;
+import utils.WorkerHolder;
+
+import javax.crypto.KeyGenerator;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that every kind of message survives the binary format of {@link MessageCodec}.
+ */
+public class MessageCodecTest {
+
+    private WorkerID worker;
+    private HashCash hashCash;
+    private ReplicaBox replicaBox;
+
+    @BeforeClass
+    public void setupClass() throws Exception {
+        worker = WorkerHolder.getWorkerA();
+        hashCash = new HashCash(KeyGenerator.getInstance("HmacSHA256").generateKey(), 5, 8);
+
+        WorkerReputationManager workerReputationManager = new WorkerReputationManager(WorkerHolder.getMyWorkerID());
+        workerReputationManager.registerWorker(worker);
+        ReplicaManager replicaManager = new ReplicaManagerBuilder(workerReputationManager).create();
+        replicaManager.setWorkSelfIfRequired(false);
+        TestUtils.loadMeta(TaskHolder.getTaskA(), replicaManager);
+        replicaBox = replicaManager.giveReplicaToWorker(worker);
+    }
+
+    @Test
+    public void stringTest() throws IOException {
+        TaskMessage decoded = roundTrip(new TaskMessage(TaskMessageType.HELLO, worker, "Hi"));
+        assert decoded.getType() == TaskMessageType.HELLO;
+        assert decoded.getSenderID().equals(worker);
+        assert decoded.getActualContent().equals("Hi");
+    }
+
+    @Test
+    public void challengeTest() throws Exception {
+        Challenge challenge = hashCash.generateAuthenticationChallenge(worker, worker, 0);
+        Challenge decoded = (Challenge) content(TaskMessageType.CHALLENGE, challenge);
+        assert decoded.getPurpose() == HashCash.Purpose.AUTH;
+        assert decoded.difficulty == challenge.difficulty;
+
+        //The worker solves the decoded challenge and the job owner validates the decoded solution
+        Solution solution = (Solution) content(TaskMessageType.REQUEST_TASK, decoded.solve());
+        assert hashCash.validateSolution(solution, worker, worker, 0);
+    }
+
+    @Test
+    public void taskRequestTest() throws Exception {
+        SessionToken token = hashCash.issueSessionToken(worker, worker, 3, 60000);
+        TaskRequest decoded = (TaskRequest) content(TaskMessageType.REQUEST_TASK, new TaskRequest(token, 4));
+        assert decoded.getCapacity() == 4;
+        assert hashCash.validateSessionToken((SessionToken) decoded.getProof(), worker, worker);
+        assert ((SessionToken) decoded.getProof()).getReputation() == 3;
+    }
+
+    @Test
+    public void replicaBoxTest() throws IOException {
+        assert replicaBox != null;
+        final String hash = "2fd4e1c67a2d28fced849ee1bb76e7391b93eb12";
+        replicaBox.getTaskMeta().getModule().setContentHash(hash);
+
+        ReplicaBox decoded = (ReplicaBox) content(TaskMessageType.TASK, replicaBox);
+        assert decoded.equals(replicaBox);
+        assert decoded.getTaskMeta().getDependencies().equals(replicaBox.getTaskMeta().getDependencies());
+        assert decoded.getTaskMeta().getModule().getDhtKey().equals(replicaBox.getTaskMeta().getModule().getDhtKey());
+        assert hash.equals(decoded.getTaskMeta().getModule().getContentHash());
+        assert decoded.getTaskMeta().getDependencies().get(0).getContentHash() == null;
+    }
+
+    @Test
+    public void taskLeaseTest() throws IOException {
+        List<ReplicaBox> replicaBoxes = new ArrayList<>();
+        replicaBoxes.add(replicaBox);
+        replicaBoxes.add(replicaBox);
+
+        TaskLease decoded = (TaskLease) content(TaskMessageType.TASK_LEASE, new TaskLease(replicaBoxes, null));
+        assert decoded.getReplicaBoxes().equals(replicaBoxes);
+        assert decoded.getSessionToken() == null;
+    }
+
+    @Test
+    public void resultTest() throws IOException {
+        ReplicaID replicaID = new ReplicaID("replica");
+        assert content(TaskMessageType.RESULT_UPLOADED, replicaID).equals(replicaID);
+
+        FailMessage failMessage = (FailMessage) content(TaskMessageType.TASK_FAIL, new FailMessage(null, replicaID));
+        assert failMessage.getReplicaID().equals(replicaID);
+        assert failMessage.getReason() == null;
+
+        byte[] data = {1, 2, 3};
+        ResultChunk chunk = (ResultChunk) content(TaskMessageType.RESULT_CHUNK, new ResultChunk(replicaID, 7, 10, data));
+        assert chunk.getReplicaID().equals(replicaID);
+        assert chunk.getOffset() == 7;
+        assert chunk.getResultLength() == 10;
+        assert Arrays.equals(chunk.getData(), data);
+    }
+
+    @Test
+    public void serializedTest() throws IOException {
+        ArrayList<String> list = new ArrayList<>();
+        list.add("Some data");
+        assert content(TaskMessageType.HELLO, list).equals(list);
+    }
+
+    @Test
+    public void versionTest() throws IOException {
+        byte[] encoded = MessageCodec.encode(new NetworkMessage("Data", NetworkMessage.Type.REQUEST));
+        encoded[0] = MessageCodec.VERSION + 1;
+        assert NetworkMessage.decrypt(encoded) == null;
+    }
+
+    @Test
+    public void malformedTest() throws IOException {
+        byte[] encoded = MessageCodec.encode(new NetworkMessage(
+                new TaskMessage(TaskMessageType.TASK, worker, replicaBox), NetworkMessage.Type.REPLY));
+        assert NetworkMessage.decrypt(Arrays.copyOf(encoded, encoded.length - 1)) == null;
+    }
+
+    @Test
+    public void lengthTest() throws IOException {
+        //Longer than one increment of reading
+        byte[] data = new byte[200 * 1000 + 7];
+        data[data.length - 1] = 5;
+        ResultChunk chunk = (ResultChunk) content(TaskMessageType.RESULT_CHUNK,
+                new ResultChunk(new ReplicaID("replica"), 0, data.length, data));
+        assert Arrays.equals(chunk.getData(), data);
+
+        //Claims the longest array there may be but holds a few bytes
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BinaryFormat.MAX_LENGTH);
+        out.write(new byte[]{1, 2, 3});
+        boolean failed = false;
+        try {
+            BinaryFormat.readBytes(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        } catch (EOFException e) {
+            failed = true;
+        }
+        assert failed;
+    }
+
+    private Object content(TaskMessageType type, Serializable content) throws IOException {
+        return roundTrip(new TaskMessage(type, worker, content)).getActualContent();
+    }
+
+    private static TaskMessage roundTrip(TaskMessage taskMessage) throws IOException {
+        NetworkMessage decoded = MessageCodec.decode(MessageCodec.encode(
+                new NetworkMessage(taskMessage, NetworkMessage.Type.REQUEST)));
+        assert decoded.getType() == NetworkMessage.Type.REQUEST;
+        return TaskMessage.check(decoded.getObject());
+    }
+}
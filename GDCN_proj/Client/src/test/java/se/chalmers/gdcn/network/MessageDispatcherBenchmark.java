@@ -0,0 +1,154 @@
+package se.chalmers.gdcn.network;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.hashcash.Challenge;
+import se.chalmers.gdcn.hashcash.HashCash;
+import se.chalmers.gdcn.hashcash.Solution;
+import se.chalmers.gdcn.hashcash.WorkerChallengesManager;
+import utils.WorkerHolder;
+
+import javax.crypto.KeyGenerator;
+import java.io.Serializable;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local version of attack.DOSAttackTest: network threads hand REQUEST_CHALLENGE and REQUEST_TASK messages of many
+ * workers to the same handlers as TaskPasser, once under one monitor as TaskPasser handled them before
+ * {@link MessageDispatcher} and once through it. Run manually, prints challenges and task requests per second.
+ *
+ * Workers solve their challenges on the network threads too, as they would on the same machine. Difficulty is
+ * kept at 1 so that mostly the work of the job owner is measured.
+ *
+ * Is in this package since MessageDispatcher is package private.
+ */
+public class MessageDispatcherBenchmark {
+
+    private static final int NETWORK_THREADS = 8;
+    private static final int WORKERS_PER_THREAD = 8;
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 3000;
+
+    private HashCash hashCash;
+    private WorkerID jobOwner;
+    private final List<WorkerID> workers = new ArrayList<>();
+
+    @BeforeClass
+    public void setupClass() throws Exception {
+        hashCash = new HashCash(KeyGenerator.getInstance("HmacSHA256").generateKey(), 1, 1);
+        jobOwner = WorkerHolder.getMyWorkerID();
+        for(int i=0; i<NETWORK_THREADS * WORKERS_PER_THREAD; ++i){
+            workers.add(WorkerHolder.generate());
+        }
+    }
+
+    @Test
+    public void dispatchTest() throws Exception {
+        //Both are run once first, so that neither is measured while the handlers are compiled
+        for(int round=0; round<2; ++round){
+            measure("One monitor", true, round > 0);
+            measure("Message dispatcher", false, round > 0);
+        }
+    }
+
+    private void measure(String name, final boolean oneMonitor, boolean print) throws Exception {
+        final MessageDispatcher dispatcher = dispatcher(new WorkerChallengesManager());
+        final AtomicLong challenges = new AtomicLong(0);
+        final AtomicLong tasks = new AtomicLong(0);
+        final AtomicLong rejected = new AtomicLong(0);
+        final CountDownLatch stop = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[NETWORK_THREADS];
+        for(int t=0; t<threads.length; ++t){
+            final List<WorkerID> myWorkers = workers.subList(t * WORKERS_PER_THREAD, (t+1) * WORKERS_PER_THREAD);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i=0; stop.getCount() > 0; ++i){
+                        final WorkerID worker = myWorkers.get(i % myWorkers.size());
+                        TaskMessage answer = request(dispatcher, oneMonitor,
+                                new TaskMessage(TaskMessageType.REQUEST_CHALLENGE, worker, ""));
+                        challenges.incrementAndGet();
+
+                        Solution solution = ((Challenge) answer.getActualContent()).solve();
+                        answer = request(dispatcher, oneMonitor,
+                                new TaskMessage(TaskMessageType.REQUEST_TASK, worker, solution));
+                        tasks.incrementAndGet();
+                        if(answer.getType() == TaskMessageType.CHALLENGE_FAIL){
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        Thread.sleep(WARMUP_MILLIS);
+        final long challengesBefore = challenges.get();
+        final long tasksBefore = tasks.get();
+        Thread.sleep(MEASURE_MILLIS);
+        final long challengesHandled = challenges.get() - challengesBefore;
+        final long tasksHandled = tasks.get() - tasksBefore;
+
+        stop.countDown();
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        if(print){
+            System.out.println(String.format("%-20s %8d challenges/s, %8d task requests/s, rejected %d", name,
+                    challengesHandled * 1000 / MEASURE_MILLIS, tasksHandled * 1000 / MEASURE_MILLIS, rejected.get()));
+        }
+    }
+
+    private static TaskMessage request(MessageDispatcher dispatcher, boolean oneMonitor, TaskMessage taskMessage){
+        if(oneMonitor){
+            synchronized (dispatcher){
+                return (TaskMessage) dispatcher.request(taskMessage);
+            }
+        }
+        return (TaskMessage) dispatcher.request(taskMessage);
+    }
+
+    /**
+     * Handlers that do what TaskPasser does when answering a challenge, and when answering a solution without
+     * handing out replicas.
+     */
+    private MessageDispatcher dispatcher(final WorkerChallengesManager workerChallengesManager){
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        dispatcher.onRequest(TaskMessageType.REQUEST_CHALLENGE, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.RequestHandler() {
+            @Override
+            public Serializable handle(TaskMessage taskMessage) {
+                WorkerID worker = taskMessage.getSenderID();
+                int score = workerChallengesManager.getCurrentScore(worker);
+                Challenge challenge = hashCash.generateRegistrationChallenge(jobOwner, worker, score);
+                return new TaskMessage(TaskMessageType.CHALLENGE, jobOwner, challenge);
+            }
+        });
+        dispatcher.onRequest(TaskMessageType.REQUEST_TASK, MessageDispatcher.Policy.PER_SENDER,
+                new MessageDispatcher.RequestHandler() {
+            @Override
+            public Serializable handle(TaskMessage taskMessage) {
+                WorkerID worker = taskMessage.getSenderID();
+                Solution solution = (Solution) taskMessage.getActualContent();
+                int score = workerChallengesManager.getCurrentScore(worker);
+                try {
+                    if(hashCash.validateSolution(solution, jobOwner, worker, score)){
+                        workerChallengesManager.solvedChallenge(worker, solution);
+                        //As if every task had been handed out
+                        return new TaskMessage(TaskMessageType.NO_TASK_AVAILABLE, jobOwner, null);
+                    }
+                } catch (InvalidKeyException e) {
+                    e.printStackTrace();
+                }
+                return new TaskMessage(TaskMessageType.CHALLENGE_FAIL, jobOwner, "Provided solution was FALSE!");
+            }
+        });
+        return dispatcher;
+    }
+}
@@ -0,0 +1,135 @@
+package se.chalmers.gdcn.network;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import utils.WorkerHolder;
+
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that {@link MessageDispatcher} runs handlers as concurrently as their policy allows.
+ */
+public class MessageDispatcherTest {
+
+    private MessageDispatcher dispatcher;
+
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final AtomicInteger maxRunning = new AtomicInteger(0);
+
+    @BeforeMethod
+    public void setupMethod(){
+        dispatcher = new MessageDispatcher();
+        running.set(0);
+        maxRunning.set(0);
+    }
+
+    @Test
+    public void parallelTest() throws InterruptedException {
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        dispatcher.onRequest(TaskMessageType.REQUEST_CHALLENGE, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.RequestHandler() {
+            @Override
+            public Serializable handle(TaskMessage taskMessage) {
+                bothRunning.countDown();
+                try {
+                    //Only returns if the other request is handled at the same time
+                    return bothRunning.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        });
+
+        final boolean[] answers = new boolean[2];
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                answers[1] = (Boolean) dispatcher.request(message(TaskMessageType.REQUEST_CHALLENGE, WorkerHolder.getWorkerA()));
+            }
+        });
+        other.start();
+        answers[0] = (Boolean) dispatcher.request(message(TaskMessageType.REQUEST_CHALLENGE, WorkerHolder.getWorkerA()));
+        other.join();
+
+        assert answers[0] && answers[1];
+    }
+
+    @Test
+    public void perSenderTest() throws InterruptedException {
+        dispatcher.onNoReply(TaskMessageType.TASK_FAIL, MessageDispatcher.Policy.PER_SENDER,
+                new MessageDispatcher.NoReplyHandler() {
+            @Override
+            public void handle(TaskMessage taskMessage) {
+                final int now = running.incrementAndGet();
+                if(now > maxRunning.get()){
+                    maxRunning.set(now);
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                running.decrementAndGet();
+            }
+        });
+
+        Thread[] threads = new Thread[4];
+        for(int i=0; i<threads.length; ++i){
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0; j<10; ++j){
+                        dispatcher.noReply(message(TaskMessageType.TASK_FAIL, WorkerHolder.getWorkerA()));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        assert maxRunning.get() == 1;
+        assert dispatcher.handling() == 0;
+
+        MessageDispatcher.Statistics statistics = dispatcher.statistics().get(0);
+        assert statistics.getType().equals(TaskMessageType.TASK_FAIL.name());
+        assert statistics.getPolicy() == MessageDispatcher.Policy.PER_SENDER;
+        assert statistics.getHandled() == 40;
+    }
+
+    @Test
+    public void unsupportedTest(){
+        dispatcher.onNoReply(TaskMessageType.RESULT_UPLOADED, MessageDispatcher.Policy.PARALLEL,
+                new MessageDispatcher.NoReplyHandler() {
+            @Override
+            public void handle(TaskMessage taskMessage) {
+            }
+        });
+
+        //A message that isn't a request can't be answered
+        boolean rejected = false;
+        try {
+            dispatcher.request(message(TaskMessageType.RESULT_UPLOADED, WorkerHolder.getWorkerA()));
+        } catch (UnsupportedOperationException e) {
+            rejected = true;
+        }
+        assert rejected;
+
+        rejected = false;
+        try {
+            dispatcher.noReply(message(TaskMessageType.TASK, WorkerHolder.getWorkerA()));
+        } catch (UnsupportedOperationException e) {
+            rejected = true;
+        }
+        assert rejected;
+        assert dispatcher.handling() == 0;
+    }
+
+    private static TaskMessage message(TaskMessageType type, WorkerID sender){
+        return new TaskMessage(type, sender, "");
+    }
+}
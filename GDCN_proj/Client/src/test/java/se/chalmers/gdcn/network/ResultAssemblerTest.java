@@ -0,0 +1,145 @@
+package se.chalmers.gdcn.network;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.replica.ReplicaManager.ReplicaID;
+import utils.WorkerHolder;
+
+import java.util.Arrays;
+
+/**
+ * Tests that {@link ResultAssembler} puts together chunks of results in any order, and bounds the bytes that incomplete
+ * results hold.
+ */
+public class ResultAssemblerTest {
+
+    private ResultAssembler assembler;
+    private WorkerID worker;
+    private ReplicaID replicaID;
+    private byte[] result;
+
+    @BeforeMethod
+    public void setupMethod(){
+        assembler = new ResultAssembler(1000, 1500, 1000);
+        worker = WorkerHolder.getWorkerA();
+        replicaID = new ReplicaID("replica");
+        result = new byte[100];
+        for(int i=0; i<result.length; ++i){
+            result[i] = (byte) i;
+        }
+    }
+
+    @Test
+    public void wholeTest(){
+        assert Arrays.equals(result, assembler.add(worker, chunk(0, 100)));
+        assert assembler.incompleteResults() == 0;
+    }
+
+    @Test
+    public void inOrderTest(){
+        assert assembler.add(worker, chunk(0, 40)) == null;
+        assert assembler.add(worker, chunk(40, 40)) == null;
+        assert assembler.incompleteResults() == 1;
+        assert Arrays.equals(result, assembler.add(worker, chunk(80, 20)));
+        assert assembler.incompleteResults() == 0;
+    }
+
+    @Test
+    public void outOfOrderTest(){
+        assert assembler.add(worker, chunk(80, 20)) == null;
+        assert assembler.add(worker, chunk(0, 40)) == null;
+        //Duplicates don't complete the result
+        assert assembler.add(worker, chunk(80, 20)) == null;
+        assert Arrays.equals(result, assembler.add(worker, chunk(40, 40)));
+    }
+
+    @Test
+    public void overlapTest(){
+        assert assembler.add(worker, chunk(0, 40)) == null;
+        assert assembler.add(worker, chunk(20, 40)) == null;
+        assert assembler.add(worker, chunk(60, 30)) == null;
+        assert Arrays.equals(result, assembler.add(worker, chunk(90, 10)));
+    }
+
+    @Test
+    public void outsideTest(){
+        assert rejected(new ResultChunk(replicaID, 90, 100, new byte[20]));
+        assert rejected(new ResultChunk(replicaID, -10, 100, new byte[20]));
+    }
+
+    @Test
+    public void tooLargeTest(){
+        assert rejected(new ResultChunk(replicaID, 0, 2000, new byte[20]));
+    }
+
+    @Test
+    public void changedLengthTest(){
+        assembler.add(worker, chunk(0, 40));
+        assert rejected(new ResultChunk(replicaID, 40, 120, new byte[40]));
+    }
+
+    @Test
+    public void purgeTest() throws InterruptedException {
+        assembler.add(worker, chunk(0, 40));
+        assembler.purge(1000);
+        assert assembler.incompleteResults() == 1;
+        Thread.sleep(10);
+        assembler.purge(0);
+        assert assembler.incompleteResults() == 0;
+        assert assembler.heldBytes() == 0;
+    }
+
+    @Test
+    public void growTest(){
+        //The declared length isn't allocated up front
+        assert assembler.add(worker, new ResultChunk(replicaID, 0, 1000, new byte[10])) == null;
+        assert assembler.heldBytes() < 1000;
+        assert assembler.add(worker, new ResultChunk(replicaID, 10, 1000, new byte[10])) == null;
+        assert assembler.heldBytes() < 1000;
+
+        assert assembler.add(worker, new ResultChunk(replicaID, 20, 1000, new byte[980])).length == 1000;
+        assert assembler.heldBytes() == 0;
+    }
+
+    @Test
+    public void workerShareTest(){
+        assert assembler.add(worker, new ResultChunk(new ReplicaID("a"), 990, 1000, new byte[10])) == null;
+        assert assembler.heldBytes() == 1000;
+        //The worker already holds its share
+        assert rejected(new ResultChunk(new ReplicaID("b"), 990, 1000, new byte[10]));
+        assert assembler.incompleteResults() == 1;
+        assert assembler.heldBytes() == 1000;
+    }
+
+    @Test
+    public void totalTest(){
+        WorkerID other = WorkerHolder.getWorkerB();
+        assert assembler.add(worker, new ResultChunk(new ReplicaID("a"), 990, 1000, new byte[10])) == null;
+        boolean full = false;
+        try {
+            assembler.add(other, new ResultChunk(new ReplicaID("b"), 990, 1000, new byte[10]));
+        } catch (IllegalStateException e){
+            full = true;
+        }
+        assert full;
+        assert assembler.heldBytes() == 1000;
+
+        //Released when the result is purged
+        assembler.purge(-1000);
+        assert assembler.heldBytes() == 0;
+        assert assembler.add(other, new ResultChunk(new ReplicaID("b"), 990, 1000, new byte[10])) == null;
+    }
+
+    private boolean rejected(ResultChunk chunk){
+        try{
+            assembler.add(worker, chunk);
+        } catch (IllegalArgumentException e){
+            return true;
+        }
+        return false;
+    }
+
+    private ResultChunk chunk(int offset, int length){
+        return new ResultChunk(replicaID, offset, result.length, Arrays.copyOfRange(result, offset, offset + length));
+    }
+}
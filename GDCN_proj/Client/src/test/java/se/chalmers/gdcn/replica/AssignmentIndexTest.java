@@ -0,0 +1,194 @@
+package se.chalmers.gdcn.replica;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.files.TaskMeta;
+import se.chalmers.gdcn.network.WorkerID;
+import utils.TaskHolder;
+import utils.WorkerHolder;
+
+import java.util.*;
+
+/**
+ * Tests that {@link AssignmentIndex} chooses the same tasks as floor/ceiling on a copied TreeSet did.
+ */
+public class AssignmentIndexTest {
+
+    private static final float REPUTATION = 3f;
+    private static final int REPLICAS = 2;
+
+    private AssignmentIndex index;
+
+    private TaskData taskA;
+    private TaskData taskB;
+
+    private WorkerID workerA;
+    private WorkerID workerB;
+    private WorkerID workerC;
+
+    @BeforeClass
+    public void setupClass() {
+        workerA = WorkerHolder.getWorkerA();
+        workerB = WorkerHolder.getWorkerB();
+        workerC = WorkerHolder.getWorkerC();
+    }
+
+    @BeforeMethod
+    public void setupMethod(){
+        index = new AssignmentIndex();
+        taskA = create(TaskHolder.getTaskA(), "job");
+        taskB = create(TaskHolder.getTaskB(), "job");
+    }
+
+    @Test
+    public void loadTest(){
+        assert index.load(taskA);
+        assert index.load(taskB);
+        assert ! index.load(create(TaskHolder.getTaskA(), "job"));
+
+        assert index.size() == 2;
+        assert taskA.denseIndex() != taskB.denseIndex();
+    }
+
+    @Test
+    public void emptyTest(){
+        assert null == index.bestFor(workerA, 0);
+    }
+
+    @Test
+    public void excludeTest(){
+        index.load(taskA);
+        TaskData first = index.bestFor(workerA, 0);
+        assert first == taskA;
+
+        give(workerA, first, 0);
+        assert index.isGiven(workerA, taskA);
+        assert null == index.bestFor(workerA, 0);
+        assert taskA == index.bestFor(workerB, 0);
+
+        index.unmarkGiven(workerA, taskA);
+        assert ! index.isGiven(workerA, taskA);
+        assert taskA == index.bestFor(workerA, 0);
+    }
+
+    @Test
+    public void givenCountTest(){
+        index.load(taskA);
+        index.load(taskB);
+
+        give(workerA, index.bestFor(workerA, 0), 0);
+        give(workerA, index.bestFor(workerA, 0), 0);
+
+        assert index.givenCount(workerA) == 2;
+        assert index.givenCount(workerB) == 0;
+    }
+
+    @Test
+    public void skipBoundTest(){
+        final Random random = new Random(2384712L);
+        final int tasks = 200;
+        List<TaskData> loaded = new ArrayList<>();
+        for(int i=0; i<tasks; ++i){
+            TaskData taskData = create(TaskHolder.getTaskA(), "job" + i);
+            index.load(taskData);
+            loaded.add(taskData);
+        }
+
+        //Tasks given to other workers don't cost anything to skip
+        for(TaskData taskData : loaded){
+            give(workerB, taskData, random.nextInt(6));
+        }
+
+        for(int round=0; round<tasks/2; ++round){
+            TaskData taskData = index.bestFor(workerA, random.nextInt(6));
+            assert taskData != null;
+            assert index.lastVisited() <= index.givenCount(workerA) + 1 : "Visited " + index.lastVisited() +
+                    " tasks with " + index.givenCount(workerA) + " given";
+            give(workerA, taskData, random.nextInt(6));
+        }
+
+        assert index.bestFor(workerC, 0) != null;
+        assert index.lastVisited() == 1;
+
+        //Given tasks that are no longer assignable aren't looked at
+        for(TaskData taskData : loaded){
+            if(index.isGiven(workerA, taskData)){
+                index.remove(taskData);
+            }
+        }
+        assert index.bestFor(workerA, 0) != null;
+        assert index.lastVisited() == 1;
+    }
+
+    @Test
+    public void sameAsCopyTest(){
+        final Random random = new Random(9823745L);
+        final List<WorkerID> workers = Arrays.asList(workerA, workerB, workerC);
+        final int tasks = 40;
+
+        TreeSet<TaskCompare> reference = new TreeSet<>(new TaskComparator());
+        Map<WorkerID, Set<TaskData>> alreadyGiven = new HashMap<>();
+        for(WorkerID worker : workers){
+            alreadyGiven.put(worker, new HashSet<TaskData>());
+        }
+
+        for(int i=0; i<tasks; ++i){
+            TaskData taskData = create(TaskHolder.getTaskA(), "job" + i);
+            index.load(taskData);
+            reference.add(taskData);
+        }
+
+        for(int round=0; round<200; ++round){
+            WorkerID worker = workers.get(random.nextInt(workers.size()));
+            final float reputation = random.nextInt(6);
+
+            TaskData expected = referenceChoice(reference, alreadyGiven.get(worker), reputation);
+            TaskData actual = index.bestFor(worker, reputation);
+            assert expected == actual : "Round "+round+": expected "+expected+" but was "+actual;
+
+            if(actual == null){
+                continue;
+            }
+            reference.remove(actual);
+            give(worker, actual, reputation);
+            reference.add(actual);
+            alreadyGiven.get(worker).add(actual);
+        }
+    }
+
+    private void give(WorkerID worker, TaskData taskData, float reputation){
+        index.remove(taskData);
+        taskData.giveTask(worker, reputation);
+        index.add(taskData);
+        index.markGiven(worker, taskData);
+    }
+
+    /**
+     * The way ReplicaManager used to choose task
+     */
+    private static TaskData referenceChoice(TreeSet<TaskCompare> taskDatas, Set<TaskData> given, final float reputation){
+        TreeSet<TaskCompare> notGiven = (TreeSet<TaskCompare>) taskDatas.clone();
+        notGiven.removeAll(given);
+
+        TaskCompare reputationCompare = new TaskCompare() {
+            @Override
+            public float value() {
+                return reputation;
+            }
+            @Override
+            public String order() {
+                return "";
+            }
+        };
+        TaskData taskData = (TaskData) notGiven.floor(reputationCompare);
+        if(taskData == null){
+            taskData = (TaskData) notGiven.ceiling(reputationCompare);
+        }
+        return taskData;
+    }
+
+    private static TaskData create(TaskMeta meta, String job){
+        return new TaskData(meta, job, REPLICAS, REPUTATION);
+    }
+}
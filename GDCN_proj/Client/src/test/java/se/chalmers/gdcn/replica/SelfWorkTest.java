@@ -6,6 +6,7 @@ import net.tomp2p.storage.Data;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import se.chalmers.gdcn.communicationToUI.ClientInterface;
+import se.chalmers.gdcn.communicationToUI.OperationFuture;
 import se.chalmers.gdcn.control.TaskManager;
 import se.chalmers.gdcn.control.TaskRunner;
 import se.chalmers.gdcn.network.WorkerID;
@@ -182,23 +183,23 @@ public class SelfWorkTest {
             }
 
             @Override
-            public void put(String name, Data value) {
-
+            public OperationFuture<Data> put(String name, Data value) {
+                return new OperationFuture<Data>();
             }
 
             @Override
-            public void put(Number160 key, Data value) {
-
+            public OperationFuture<Data> put(Number160 key, Data value) {
+                return new OperationFuture<Data>();
             }
 
             @Override
-            public void get(String name) {
-
+            public OperationFuture<Data> get(String name) {
+                return new OperationFuture<Data>();
             }
 
             @Override
-            public void get(Number160 key) {
-
+            public OperationFuture<Data> get(Number160 key) {
+                return new OperationFuture<Data>();
             }
 
             @Override
@@ -222,13 +223,13 @@ public class SelfWorkTest {
             }
 
             @Override
-            public void put(Number160 key, Number160 domain, Data value) {
-
+            public OperationFuture<Data> put(Number160 key, Number160 domain, Data value) {
+                return new OperationFuture<Data>();
             }
 
             @Override
-            public void get(Number160 key, Number160 domain) {
-
+            public OperationFuture<Data> get(Number160 key, Number160 domain) {
+                return new OperationFuture<Data>();
             }
 
             @Override
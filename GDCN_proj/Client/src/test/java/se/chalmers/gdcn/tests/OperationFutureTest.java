@@ -0,0 +1,123 @@
+package se.chalmers.gdcn.tests;
+
+import net.tomp2p.peers.Number160;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.communicationToUI.*;
+import se.chalmers.gdcn.communicationToUI.Operation.OperationBuilder;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link OperationFuture} and that {@link OperationFinishedSupport} only tells keyed listeners about their
+ * own operation.
+ */
+public class OperationFutureTest {
+
+    @Test
+    public void completeTest() throws InterruptedException {
+        final OperationFuture<String> future = new OperationFuture<>();
+        final AtomicInteger told = new AtomicInteger(0);
+        future.addListener(new OperationFuture.Listener<String>() {
+            @Override
+            public void operationFinished(Operation<String> operation) {
+                told.incrementAndGet();
+            }
+        });
+
+        assert !future.isDone();
+        assert future.await(1, TimeUnit.MILLISECONDS) == null;
+
+        Operation<String> operation = new OperationBuilder<String>(true).setResult("Result").create();
+        assert future.complete(operation);
+        assert !future.complete(new OperationBuilder<String>(false).create());
+
+        assert future.isDone();
+        assert future.await() == operation;
+        assert told.get() == 1;
+
+        //Listeners added later are told directly
+        future.addListener(new OperationFuture.Listener<String>() {
+            @Override
+            public void operationFinished(Operation<String> operation) {
+                told.incrementAndGet();
+            }
+        });
+        assert told.get() == 2;
+    }
+
+    @Test
+    public void failingListenerTest(){
+        final OperationFuture<String> future = new OperationFuture<>();
+        final AtomicInteger told = new AtomicInteger(0);
+        future.addListener(new OperationFuture.Listener<String>() {
+            @Override
+            public void operationFinished(Operation<String> operation) {
+                throw new IllegalStateException("Expected by test");
+            }
+        });
+        future.addListener(new OperationFuture.Listener<String>() {
+            @Override
+            public void operationFinished(Operation<String> operation) {
+                told.incrementAndGet();
+            }
+        });
+
+        future.complete(new OperationBuilder<String>(true).create());
+        assert told.get() == 1;
+    }
+
+    @Test
+    public void keyedListenerTest(){
+        final OperationFinishedSupport support = new OperationFinishedSupport(this);
+        final Number160 key = Number160.createHash("Key");
+        final AtomicInteger keyedTold = new AtomicInteger(0);
+        final AtomicInteger allTold = new AtomicInteger(0);
+
+        support.addListener(new OperationFinishedListener(clientOf(support), key, CommandWord.GET) {
+            @Override
+            protected void operationFinished(Operation operation) {
+                keyedTold.incrementAndGet();
+            }
+        });
+        support.addListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                allTold.incrementAndGet();
+            }
+        });
+
+        support.fireOperationFinished(CommandWord.PUT, new OperationBuilder<>(true).setKey(key).create());
+        support.fireOperationFinished(CommandWord.GET, new OperationBuilder<>(true).setKey(Number160.createHash("Other")).create());
+        assert keyedTold.get() == 0;
+
+        support.fireOperationFinished(CommandWord.GET, new OperationBuilder<>(true).setKey(Number160.createHash("Key")).create());
+        assert keyedTold.get() == 1;
+
+        //The listener removed itself
+        support.fireOperationFinished(CommandWord.GET, new OperationBuilder<>(true).setKey(key).create());
+        assert keyedTold.get() == 1;
+        assert allTold.get() == 4;
+    }
+
+    /**
+     * @return client that only adds and removes listeners
+     */
+    private static NetworkInterface clientOf(final OperationFinishedSupport support){
+        return (NetworkInterface) Proxy.newProxyInstance(NetworkInterface.class.getClassLoader(),
+                new Class[]{NetworkInterface.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if(method.getName().equals("removeListener")){
+                    support.removeListener((PropertyChangeListener) args[0]);
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,188 @@
+package se.chalmers.gdcn.tests;
+
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.control.WorkerReputationManager;
+import se.chalmers.gdcn.files.TaskMeta;
+import se.chalmers.gdcn.network.WorkerID;
+import se.chalmers.gdcn.replica.ReplicaBox;
+import se.chalmers.gdcn.replica.ReplicaManager;
+import se.chalmers.gdcn.replica.ReplicaManagerBuilder;
+import utils.TaskHolder;
+import utils.TestUtils;
+import utils.WorkerHolder;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many workers asks for replicas and returns results concurrently.
+ * Validation is made slow on purpose to show that it doesn't stall the other tasks.
+ *
+ * Every run checks that each replica is given exactly once and that every result is validated. The time of one
+ * thread compared to several is only measured if gdcn.benchmark is set, and several threads must then not be
+ * noticeably slower than one.
+ */
+public class ReplicaManagerStressTest {
+
+    private static final int TASKS = 200;
+    private static final int WORKERS = 8;
+    private static final int VALIDATION_MILLIS = 2;
+    private static final int REPLICAS = 2;
+
+    private final List<WorkerID> workers = new ArrayList<>();
+    private TaskMeta taskMeta;
+
+    @BeforeClass
+    public void setupClass(){
+        taskMeta = TaskHolder.getTaskA();
+        for(int i=0; i<WORKERS; ++i){
+            workers.add(WorkerHolder.generate());
+        }
+    }
+
+    @Test
+    public void singleThreadTest() throws InterruptedException {
+        run(workers.subList(0, 2), 1);
+    }
+
+    @Test
+    public void multiThreadTest() throws InterruptedException {
+        run(workers, WORKERS);
+    }
+
+    @Test
+    public void throughputTest() throws InterruptedException {
+        if(!Boolean.getBoolean("gdcn.benchmark")){
+            throw new SkipException("Measured only if gdcn.benchmark is set");
+        }
+        //Warms up so that the first measured run isn't slowed down by compilation
+        run(workers, WORKERS);
+        long single = run(workers, 1);
+        long multi = run(workers, WORKERS);
+
+        System.out.println("ReplicaManagerStressTest: 1 thread " + single + " ms, " + WORKERS + " threads " + multi + " ms");
+        //Threads contend for the locks of the same tasks, but must not be slower than one thread doing it all
+        assert multi <= single * 3 / 2 : WORKERS + " threads took " + multi + " ms, 1 thread " + single + " ms";
+    }
+
+    /**
+     * @param workers workers to give replicas to
+     * @param threads number of threads that share the workers
+     * @return time in milliseconds
+     */
+    private long run(final List<WorkerID> workers, int threads) throws InterruptedException {
+        final ReplicaManager replicaManager = createManager(workers);
+        final AtomicInteger validations = new AtomicInteger(0);
+        replicaManager.setValidationListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if("Validate".equals(evt.getPropertyName())){
+                    validations.incrementAndGet();
+                    //Simulates the work of quality control
+                    TestUtils.nap(VALIDATION_MILLIS);
+                }
+            }
+        });
+
+        final Set<ReplicaManager.ReplicaID> given =
+                Collections.newSetFromMap(new ConcurrentHashMap<ReplicaManager.ReplicaID, Boolean>());
+        final AtomicInteger finished = new AtomicInteger(0);
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for(int t=0; t<threads; ++t){
+            final List<WorkerID> myWorkers = new ArrayList<>();
+            for(int w=t; w<workers.size(); w+=threads){
+                myWorkers.add(workers.get(w));
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        work(replicaManager, myWorkers, given, finished);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long startTime = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        //Validation is done asynchronously
+        for(int i=0; i<1000 && validations.get() < TASKS; ++i){
+            TestUtils.nap(5);
+        }
+        long time = System.currentTimeMillis() - startTime;
+
+        assert errors.isEmpty() : errors.peek();
+        //Tasks waiting for validation may be given once more, see ReplicaManager#registerReplica
+        assert given.size() >= TASKS * REPLICAS : "Gave " + given.size() + " of " + TASKS * REPLICAS + " replicas";
+        assert finished.get() == given.size() : "Returned " + finished.get() + " of " + given.size() + " results";
+        assert validations.get() == TASKS : "Validated " + validations.get() + " of " + TASKS;
+        assert replicaManager.pendingReplicaIDs().isEmpty();
+        return time;
+    }
+
+    /**
+     * @param given replicas given so far by any thread
+     * @param finished number of results returned by any thread
+     */
+    private void work(ReplicaManager replicaManager, List<WorkerID> myWorkers, Set<ReplicaManager.ReplicaID> given,
+                      AtomicInteger finished){
+        List<WorkerID> active = new ArrayList<>(myWorkers);
+        while(!active.isEmpty()){
+            Collections.shuffle(active);
+            WorkerID worker = active.get(0);
+
+            ReplicaBox replicaBox = replicaManager.giveReplicaToWorker(worker);
+            if(replicaBox == null){
+                active.remove(worker);
+                continue;
+            }
+
+            ReplicaManager.ReplicaID replicaID = replicaBox.getReplicaID();
+            assert given.add(replicaID) : "Replica " + replicaID + " was given twice";
+            assert replicaManager.isWorkerAssignedReplica(worker, replicaID);
+            assert replicaBox.getResultKey().equals(replicaManager.getReplicaResultKey(replicaID));
+            replicaManager.pendingResults();
+
+            replicaManager.replicaFinished(replicaID, new byte[]{1, 2, 3});
+            finished.incrementAndGet();
+        }
+    }
+
+    private ReplicaManager createManager(List<WorkerID> workers){
+        WorkerReputationManager workerReputationManager = new WorkerReputationManager(WorkerHolder.getMyWorkerID());
+        for(WorkerID worker : workers){
+            workerReputationManager.registerWorker(worker);
+        }
+
+        ReplicaManagerBuilder builder = new ReplicaManagerBuilder(workerReputationManager);
+        builder.setReplicas(REPLICAS);
+        builder.setExpectedReputation(0);
+
+        ReplicaManager replicaManager = builder.create();
+        replicaManager.setWorkSelfIfRequired(false);
+
+        List<TaskMeta> taskMetas = new ArrayList<>();
+        taskMetas.add(taskMeta);
+        for(int i=0; i<TASKS; ++i){
+            replicaManager.loadTasksAndReplicate("StressJob" + i, taskMetas);
+        }
+        return replicaManager;
+    }
+}
@@ -20,7 +20,11 @@ import utils.WorkerHolder;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -201,6 +205,46 @@ public class ReplicaManagerTest {
         assert pending.contains(replicaBoxB.getReplicaID());
     }
 
+    @Test
+    public void leaseTest(){
+        loadMeta(taskMetaA);
+        loadMeta(taskMetaB);
+
+        List<ReplicaBox> lease = replicaManager.giveReplicasToWorker(workerA, 5);
+        //Only one replica of each task per worker
+        assert lease.size() == 2;
+        assert ! lease.get(0).getTaskMeta().getTaskName().equals(lease.get(1).getTaskMeta().getTaskName());
+
+        Set<ReplicaID> pending = replicaManager.pendingReplicaIDs();
+        assert pending.size() == 2;
+        assert replicaManager.pendingReplicaCount() == 2;
+        for(ReplicaBox replicaBox : lease){
+            assert pending.contains(replicaBox.getReplicaID());
+            assert replicaManager.isWorkerAssignedReplica(workerA, replicaBox.getReplicaID());
+        }
+
+        assert replicaManager.giveReplicasToWorker(workerA, 5).isEmpty();
+        assert replicaManager.giveReplicasToWorker(workerB, 1).size() == 1;
+    }
+
+    @Test
+    public void leaseTimeoutTest(){
+        builder.setTimeoutLength(1, Time.MILLISECOND);
+        builder.setTimerUpdateInterval(15, Time.MILLISECOND);
+        replicaManager = builder.create();
+        replicaManager.setWorkSelfIfRequired(false);
+
+        loadMeta(taskMetaA);
+        loadMeta(taskMetaB);
+        List<ReplicaBox> lease = replicaManager.giveReplicasToWorker(workerA, 2);
+        assert lease.size() == 2;
+
+        //Each replica times out on its own
+        replicaManager.replicaFinished(lease.get(0).getReplicaID(), new byte[1]);
+        TestUtils.nap(25);
+        assert replicaManager.pendingReplicaIDs().size() == 0;
+    }
+
     @Test
     public void outdateTimerTest(){
         builder.setTimeoutLength(1, Time.MILLISECOND);
@@ -236,13 +280,48 @@ public class ReplicaManagerTest {
 
         replicaManager.replicaFinished(replicaBoxA.getReplicaID(), new byte[1]);
 
-        boolean exceptionThrown = false;
-        try {
-            replicaManager.replicaOutdated(replicaBoxA.getReplicaID());
-        } catch (Exception e) {
-            exceptionThrown = true;
+        //The timer may have taken the timeout just before the result came, which is ignored
+        replicaManager.replicaOutdated(replicaBoxA.getReplicaID());
+        assert replicaManager.pendingReplicaIDs().size() == 0;
+    }
+
+    @Test
+    public void outdateRaceTest() throws InterruptedException {
+        builder.setExpectedReputation(0);
+        builder.setReplicas(1);
+        replicaManager = builder.create();
+        replicaManager.setWorkSelfIfRequired(false);
+
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        for(int i=0; i<100; ++i){
+            loadMeta(taskMetaA);
+            final ReplicaID replicaID = replicaManager.giveReplicaToWorker(workerA).getReplicaID();
+
+            //The timer handles a timeout after it has released its lock, as the result arrives
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread timer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        replicaManager.replicaOutdated(replicaID);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            timer.start();
+            start.countDown();
+            try {
+                replicaManager.replicaFinished(replicaID, new byte[1]);
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+            timer.join();
         }
-        assert exceptionThrown;
+
+        assert errors.isEmpty() : errors.peek();
+        assert replicaManager.pendingReplicaIDs().size() == 0;
     }
 
     @Test
@@ -367,7 +446,7 @@ public class ReplicaManagerTest {
 
         replicaManager.replicaFinished(replicaBoxB.getReplicaID(), result);
         //Validate here
-        assert counter.availablePermits() == 1;
+        awaitPermits(counter, 1);
 
         assert null == replicaManager.giveReplicaToWorker(workerC);
         //excess replica not allowed after Validation!
@@ -428,12 +507,12 @@ public class ReplicaManagerTest {
         replicaManager.replicaOutdated(replicaBoxB.getReplicaID());
         //Validate here
 
-        assert validCounter.availablePermits() == 1;
+        awaitPermits(validCounter, 1);
 
         //Late comer
         replicaManager.replicaFinished(replicaBoxB.getReplicaID(), result);
 
-        assert lateCounter.availablePermits() == 1;
+        awaitPermits(lateCounter, 1);
     }
 
     @Test
@@ -475,15 +554,72 @@ public class ReplicaManagerTest {
 
         replicaManager.replicaFinished(replicaBoxB.getReplicaID(), result);
         //Validate now, do not wait for excess workers!
-        assert validCounter.availablePermits() == 1;
+        awaitPermits(validCounter, 1);
 
         //First late comer
         replicaManager.replicaFinished(replicaBoxC.getReplicaID(), result);
-        assert lateCounter.availablePermits() == 1;
+        awaitPermits(lateCounter, 1);
 
         //Second late comer
         replicaManager.replicaFinished(replicaBoxD.getReplicaID(), result);
-        assert lateCounter.availablePermits() == 2;
+        awaitPermits(lateCounter, 2);
+    }
+
+    @Test
+    public void failedValidationTest(){
+        builder.setExpectedReputation(0);
+        builder.setReplicas(1);
+        replicaManager = builder.create();
+
+        final Semaphore validCounter = new Semaphore(0);
+        replicaManager.setValidationListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                validCounter.release();
+                if(validCounter.availablePermits() == 1){
+                    throw new IllegalStateException("Expected by test");
+                }
+            }
+        });
+
+        loadMeta(taskMetaA);
+        ReplicaBox replicaBoxA = replicaManager.giveReplicaToWorker(workerA);
+        replicaManager.replicaFinished(replicaBoxA.getReplicaID(), new byte[0]);
+        awaitPermits(validCounter, 1);
+
+        //The task is given out again and validated with the next result
+        ReplicaBox replicaBoxB = awaitReplica(replicaManager, workerB);
+        replicaManager.replicaFinished(replicaBoxB.getReplicaID(), new byte[0]);
+        awaitPermits(validCounter, 2);
+        assert null == replicaManager.giveReplicaToWorker(workerC);
+    }
+
+    @Test
+    public void serializeValidatingTest() throws Exception {
+        builder.setExpectedReputation(0);
+        builder.setReplicas(1);
+        replicaManager = builder.create();
+
+        final Semaphore validating = new Semaphore(0);
+        final Semaphore release = new Semaphore(0);
+        replicaManager.setValidationListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                validating.release();
+                release.acquireUninterruptibly();
+            }
+        });
+
+        loadMeta(taskMetaA);
+        ReplicaBox replicaBoxA = replicaManager.giveReplicaToWorker(workerA);
+        replicaManager.replicaFinished(replicaBoxA.getReplicaID(), new byte[0]);
+        awaitPermits(validating, 1);
+
+        //Written while the validation runs, which isn't written with it
+        ReplicaManager copy = (ReplicaManager) new Data(replicaManager).getObject();
+        release.release();
+
+        assert null != copy.giveReplicaToWorker(workerB);
     }
 
     private void promote(WorkerID workerID, int times){
@@ -496,4 +632,29 @@ public class ReplicaManagerTest {
         TestUtils.loadMeta(taskMeta, this.replicaManager);
     }
 
+    /**
+     * Validation is done asynchronously, wait a while for the task to be given out again.
+     */
+    private static ReplicaBox awaitReplica(ReplicaManager replicaManager, WorkerID worker){
+        ReplicaBox replicaBox = null;
+        for(int i=0; i<100 && replicaBox == null; ++i){
+            replicaBox = replicaManager.giveReplicaToWorker(worker);
+            if(replicaBox == null){
+                TestUtils.nap(10);
+            }
+        }
+        assert replicaBox != null;
+        return replicaBox;
+    }
+
+    /**
+     * Validation is done asynchronously, wait a while for it.
+     */
+    private static void awaitPermits(Semaphore semaphore, int permits){
+        for(int i=0; i<100 && semaphore.availablePermits() < permits; ++i){
+            TestUtils.nap(10);
+        }
+        assert semaphore.availablePermits() == permits;
+    }
+
 }
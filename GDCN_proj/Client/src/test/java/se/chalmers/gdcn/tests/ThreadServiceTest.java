@@ -0,0 +1,101 @@
+package se.chalmers.gdcn.tests;
+
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.control.ThreadService;
+import se.chalmers.gdcn.control.ThreadService.Pool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the pools of {@link ThreadService} are separated and measured.
+ */
+public class ThreadServiceTest {
+
+    @Test
+    public void blockedIOTest() throws InterruptedException {
+        final int size = ThreadService.statistics(Pool.IO).getSize();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(size);
+
+        //Fill the IO pool with waiting tasks, plus one more in queue
+        for(int i=0; i<size+1; ++i){
+            ThreadService.submit(Pool.IO, new Runnable() {
+                @Override
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        assert blocked.await(1, TimeUnit.SECONDS);
+
+        ThreadService.Statistics statistics = ThreadService.statistics(Pool.IO);
+        assert statistics.getActive() == size;
+        assert statistics.getQueued() == 1;
+
+        final CountDownLatch solved = new CountDownLatch(1);
+        ThreadService.submit(Pool.CPU, new Runnable() {
+            @Override
+            public void run() {
+                solved.countDown();
+            }
+        });
+        assert solved.await(1, TimeUnit.SECONDS);
+
+        release.countDown();
+    }
+
+    @Test
+    public void completedTest() throws InterruptedException {
+        final long before = ThreadService.statistics(Pool.PROCESS).getCompleted();
+        final CountDownLatch done = new CountDownLatch(10);
+        for(int i=0; i<10; ++i){
+            ThreadService.submit(Pool.PROCESS, new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assert done.await(1, TimeUnit.SECONDS);
+
+        //Completion is recorded after the task itself has run
+        for(int i=0; i<100 && ThreadService.statistics(Pool.PROCESS).getCompleted() < before + 10; ++i){
+            Thread.sleep(5);
+        }
+        assert ThreadService.statistics(Pool.PROCESS).getCompleted() == before + 10;
+    }
+
+    @Test
+    public void exceptionTest() throws InterruptedException {
+        ThreadService.submit(Pool.CPU, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected by test");
+            }
+        });
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ThreadService.submit(Pool.CPU, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assert done.await(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void resizeTest(){
+        final int size = ThreadService.statistics(Pool.CPU).getSize();
+        ThreadService.setPoolSize(Pool.CPU, size + 2);
+        assert ThreadService.statistics(Pool.CPU).getSize() == size + 2;
+        ThreadService.setPoolSize(Pool.CPU, size);
+        assert ThreadService.statistics(Pool.CPU).getSize() == size;
+    }
+}
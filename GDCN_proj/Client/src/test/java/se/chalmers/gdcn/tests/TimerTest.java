@@ -73,6 +73,41 @@ public class TimerTest implements Serializable{
         assert timeouts.size() == 2;
     }
 
+    @Test
+    public void resetTest(){
+        timer = new TestTimer(20);
+        timer.add(stringA, futureDate(0));
+        timer.add(stringB, futureDate(-10));
+
+        assert timer.reset(stringA, futureDate(200));
+        assert ! timer.reset(stringC, futureDate(-10));
+        assert timer.size() == 3;
+
+        start(timer);
+        TestUtils.nap(40);
+        assert ! timeouts.contains(stringA);
+        assert timeouts.size() == 2;
+        assert timer.size() == 1;
+    }
+
+    @Test
+    public void stopTest(){
+        timer = new TestTimer(10);
+        start(timer);
+        TestUtils.nap(30);
+        assert timer.statistics().getTicks() > 0;
+
+        timer.stop();
+        timer.add(stringA, futureDate(-10));
+        TestUtils.nap(30);
+        assert timeouts.size() == 0;
+        assert timer.statistics().getPending() == 1;
+
+        timer.start();
+        TestUtils.nap(30);
+        assert timeouts.contains(stringA);
+    }
+
     @Test
     public void multiUpdateTest(){
         timer = new TestTimer(50);
@@ -0,0 +1,190 @@
+package se.chalmers.gdcn.tests;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import se.chalmers.gdcn.control.WorkScheduler;
+import se.chalmers.gdcn.control.WorkScheduler.Stage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that {@link WorkScheduler} keeps its slots busy and prefetches the next jobs.
+ */
+public class WorkSchedulerTest {
+
+    private WorkScheduler scheduler;
+    //Executions waiting to be run by the test
+    private List<Runnable> executions;
+    private AtomicInteger executed;
+    private AtomicInteger refills;
+
+    private final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            refills.incrementAndGet();
+        }
+    };
+
+    @BeforeMethod
+    public void setupMethod(){
+        executions = new ArrayList<>();
+        executed = new AtomicInteger(0);
+        refills = new AtomicInteger(0);
+        scheduler = new WorkScheduler(2, 1, direct, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                executions.add(runnable);
+            }
+        });
+    }
+
+    @Test
+    public void inFlightTest(){
+        assert scheduler.freeCapacity() == 3;
+        for(int i=0; i<4; ++i){
+            scheduler.submit(new TestJob(true, true), refill);
+        }
+
+        //Two jobs hold the slots and two are downloaded and waiting
+        assert executions.size() == 2;
+        assert scheduler.statistics().getRunning() == 2;
+        assert scheduler.statistics().getReady() == 2;
+        assert scheduler.freeCapacity() == 0;
+
+        //The slot is given straight to a waiting job
+        executions.get(0).run();
+        assert executed.get() == 1;
+        assert executions.size() == 3;
+        assert scheduler.statistics().getRunning() == 2;
+        assert scheduler.statistics().getReady() == 1;
+        assert refills.get() == 0;
+    }
+
+    @Test
+    public void refillTest(){
+        scheduler.submit(new TestJob(true, true), refill);
+        scheduler.submit(new TestJob(true, false), refill);
+
+        executions.get(0).run();
+        assert refills.get() == 1;
+
+        //Failed jobs don't ask for more
+        executions.get(1).run();
+        assert refills.get() == 1;
+
+        assert scheduler.freeCapacity() == 3;
+        assert scheduler.statistics().getRunning() == 0;
+        assert scheduler.statistics().getExecuted() == 2;
+    }
+
+    @Test
+    public void failedDownloadTest(){
+        scheduler.submit(new TestJob(false, true), refill);
+
+        assert executions.isEmpty();
+        assert scheduler.freeCapacity() == 3;
+        assert scheduler.statistics().getDownloading() == 0;
+    }
+
+    @Test
+    public void prefetchTest(){
+        //Jobs are downloaded while every slot is busy
+        WorkScheduler single = new WorkScheduler(1, 3, direct, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                executions.add(runnable);
+            }
+        });
+        final AtomicInteger prepared = new AtomicInteger(0);
+        for(int i=0; i<4; ++i){
+            single.submit(new TestJob(true, true){
+                @Override
+                public void prepare(WorkScheduler.Prepared onPrepared) {
+                    prepared.incrementAndGet();
+                    onPrepared.prepared(true);
+                }
+            }, null);
+        }
+        assert prepared.get() == 4;
+        assert executions.size() == 1;
+        assert single.statistics().getReady() == 3;
+    }
+
+    @Test
+    public void reserveTest(){
+        WorkScheduler.Reservation reservation = scheduler.reserve(0);
+        assert reservation.getCount() == 3;
+
+        //Requested jobs aren't requested again before the answer arrives
+        assert scheduler.freeCapacity() == 0;
+        assert scheduler.reserve(0).getCount() == 0;
+        WorkScheduler.Reservation forced = scheduler.reserve(1);
+        assert forced.getCount() == 1;
+        forced.release();
+
+        //Fewer jobs arrived than were requested
+        scheduler.submit(new TestJob(true, true), refill);
+        scheduler.submit(new TestJob(true, true), refill);
+        reservation.release();
+        reservation.release();
+        assert scheduler.freeCapacity() == 1;
+
+        executions.get(0).run();
+        assert refills.get() == 1;
+        assert scheduler.freeCapacity() == 2;
+    }
+
+    @Test
+    public void reservedRefillTest(){
+        scheduler.submit(new TestJob(true, true), refill);
+        WorkScheduler.Reservation reservation = scheduler.reserve(0);
+        assert reservation.getCount() == 2;
+
+        //Only the freed slot is requested, the others already are
+        executions.get(0).run();
+        assert refills.get() == 1;
+        assert scheduler.freeCapacity() == 1;
+
+        reservation.release();
+        assert scheduler.freeCapacity() == 3;
+    }
+
+    @Test
+    public void stageTest(){
+        scheduler.record(Stage.UPLOAD, 10);
+        scheduler.record(Stage.UPLOAD, 30);
+        assert scheduler.statistics().getAverage(Stage.UPLOAD) == 20;
+        assert scheduler.statistics().getAverage(Stage.COMPILE) == 0;
+    }
+
+    private class TestJob implements WorkScheduler.Job {
+        private final boolean prepare;
+        private final boolean succeed;
+
+        private TestJob(boolean prepare, boolean succeed) {
+            this.prepare = prepare;
+            this.succeed = succeed;
+        }
+
+        @Override
+        public void prepare(WorkScheduler.Prepared onPrepared) {
+            onPrepared.prepared(prepare);
+        }
+
+        @Override
+        public boolean execute() {
+            executed.incrementAndGet();
+            return succeed;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package utils;
 
+import se.chalmers.gdcn.files.FileManagementUtils;
 import se.chalmers.gdcn.files.TaskMeta;
 import se.chalmers.gdcn.replica.ReplicaManager;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 /**
@@ -31,4 +34,50 @@ public class TestUtils {
         taskMetas.add(taskMeta);
         replicaManager.loadTasksAndReplicate("Job1", taskMetas);
     }
+
+    /**
+     * @param prefix start of the name of the directory
+     * @return new directory in java.io.tmpdir, to be removed with {@link #deleteRecursively(File)}
+     */
+    public static File tempDir(String prefix){
+        File directory = new File(System.getProperty("java.io.tmpdir"), prefix + System.nanoTime());
+        directory.mkdirs();
+        return directory;
+    }
+
+    /**
+     * @param file file or directory to delete, with everything in it
+     */
+    public static void deleteRecursively(File file){
+        File[] files = file.listFiles();
+        if(files != null){
+            for(File f : files){
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @param length number of bytes
+     * @param seed seed of the random bytes, the same seed gives the same bytes
+     * @return random bytes
+     */
+    public static byte[] randomBytes(int length, long seed){
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param directory directory to write in
+     * @param path path of the file in the directory, missing directories are created
+     * @param contents contents of the file
+     * @return the file
+     */
+    public static File write(File directory, String path, byte[] contents){
+        File file = new File(directory, path);
+        FileManagementUtils.toFile(file, contents);
+        return file;
+    }
 }
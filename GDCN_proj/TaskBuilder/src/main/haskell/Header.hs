@@ -9,6 +9,9 @@ import System.Environment
 import System.Exit
 import System.IO
 import System.IO.Error
+import Control.Exception (SomeException, evaluate, try)
+import Control.Monad (replicateM, unless)
+import qualified Data.ByteString as B
 import qualified Data.ByteString.Lazy as BS
 
 -- Imports the module X when compiling with "-DMODULE=X" flag
@@ -21,11 +24,44 @@ typedRun = run
 main :: IO ()
 main = do args <- getArgs
           case args of
-              (outfile:rest) -> do
-                  bss <- mapM BS.readFile rest
-                  let (result, debug) = typedRun bss
-                  BS.writeFile outfile result
-                  putStr debug
+              ["--serve"] -> serve
+              (outfile:rest) -> invoke outfile rest >>= putStr
               _ -> do
                   hPutStrLn stderr "Arguments missing"
                   exitFailure
+
+-- Runs the task once, writing the result to outfile and returning the debug output
+invoke :: FilePath -> [FilePath] -> IO String
+invoke outfile rest = do
+    -- Strict reads, so that a server doesn't keep files open that the task didn't read to the end
+    bss <- mapM (fmap (BS.fromChunks . (:[])) . B.readFile) rest
+    let (result, debug) = typedRun bss
+    BS.writeFile outfile result
+    _ <- evaluate (length debug)
+    return debug
+
+-- Runs the task for every request on stdin until stdin is closed, so that the process is started once.
+-- A request is a line with the number of arguments followed by one argument per line, as they would be given
+-- on the command line. Zero arguments is a health check.
+-- The response is a line "OK n" or "ERR n" followed by n lines of debug output or error message.
+serve :: IO ()
+serve = do hSetEncoding stdin utf8
+           hSetEncoding stdout utf8
+           hSetBuffering stdout (BlockBuffering Nothing)
+           loop
+  where loop = do eof <- isEOF
+                  unless eof $ do
+                      n <- readLn
+                      args <- replicateM n getLine
+                      case args of
+                          [] -> respond "OK" ""
+                          (outfile:rest) -> do
+                              answer <- try (invoke outfile rest)
+                              case answer of
+                                  Right debug -> respond "OK" debug
+                                  Left e -> respond "ERR" (show (e :: SomeException))
+                      loop
+        respond status text = do let ls = lines text
+                                 putStrLn (status ++ " " ++ show (length ls))
+                                 mapM_ putStrLn ls
+                                 hFlush stdout
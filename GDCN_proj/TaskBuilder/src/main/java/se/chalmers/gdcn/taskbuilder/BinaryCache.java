@@ -0,0 +1,423 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled tasks of every project, stored by a hash of everything that goes into the compilation, so that a module
+ * is compiled once per worker instead of once per project and a changed source is never run from an old binary.
+ *
+ * Tasks that need a binary that is being compiled wait for that compilation instead of starting their own, see
+ * {@link #obtain(String, File, Compiler)}. A compilation writes to a file of its own which is then moved into the
+ * store, so that other processes on the same directory don't corrupt it either. Binaries are hard linked into the
+ * project directories, or copied where links aren't supported, and replace the binary of a project in one move so
+ * that replicas that run it meanwhile aren't disturbed. When the store holds more than gdcn.binaryCache.maxBytes the
+ * least recently used binaries are removed from it.
+ */
+public class BinaryCache {
+
+    private static final long MAX_BYTES = Long.getLong("gdcn.binaryCache.maxBytes", 256L << 20);
+    private static final String TEMPORARY = ".tmp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Compiles a binary.
+     */
+    public static interface Compiler {
+        /**
+         * @param output file to write the binary to
+         */
+        void compile(File output) throws IOException, InterruptedException, ExitFailureException;
+    }
+
+    private static BinaryCache instance = null;
+
+    private final File directory;
+    private final long maxBytes;
+
+    //Access ordered, so that the first entry is the least recently used
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    //Compilations that are running, by key
+    private final Map<String, FutureTask<Void>> compilations = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong stored = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
+    private final AtomicLong joined = new AtomicLong(0);
+
+    public static synchronized BinaryCache instance(){
+        if(instance == null){
+            instance = new BinaryCache(new File(PathManager.binaryCacheDir()), MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the binaries that are already in the directory and removes compilations that never finished.
+     * @param directory directory of the store
+     * @param maxBytes bytes the store may hold
+     */
+    BinaryCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+
+        File[] files = directory.listFiles();
+        if(files == null){
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this){
+            for(File file : files){
+                if(file.getName().endsWith(TEMPORARY)){
+                    file.delete();
+                } else if(file.isFile() && isKey(file.getName())){
+                    entries.put(file.getName(), file.length());
+                    bytes += file.length();
+                }
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @param sources files that the binary is compiled from, in an order that doesn't change between compilations
+     * @param flags compiler flags that change the binary, without paths that differ between projects
+     * @return key of the binary
+     * @throws IOException if a source couldn't be read
+     */
+    public static String key(List<File> sources, List<String> flags) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is missing", e);
+        }
+
+        final byte[] buffer = new byte[64 * 1024];
+        for(File source : sources){
+            //Lengths are included so that the contents of one file can't be mistaken for the next
+            digest.update(source.getName().getBytes(UTF8));
+            digest.update(longBytes(source.length()));
+
+            InputStream inputStream = new FileInputStream(source);
+            try {
+                int read;
+                while((read = inputStream.read(buffer)) >= 0){
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+        for(String flag : flags){
+            digest.update(flag.getBytes(UTF8));
+            digest.update((byte) 0);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()){
+            hex.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Puts the binary with the given key at target. If the store doesn't have it, it is compiled unless another
+     * thread already compiles it, in which case this waits for that compilation.
+     * @param key key of the binary
+     * @param target where the binary shall be
+     * @param compiler compiles the binary if no one else does
+     * @return false if the store had the binary, true if it had to be compiled by this or another thread
+     * @throws ExitFailureException if the compilation failed, also when another thread compiled
+     * @throws IOException if the binary couldn't be compiled, linked or copied
+     * @throws InterruptedException if interrupted while compiling or waiting
+     */
+    public boolean obtain(final String key, final File target, final Compiler compiler)
+            throws IOException, InterruptedException, ExitFailureException {
+        final FutureTask<Void> compilation;
+        final boolean compiles;
+        synchronized (this){
+            if(fetch(key, target)){
+                return false;
+            }
+            FutureTask<Void> running = compilations.get(key);
+            compiles = running == null;
+            if(compiles){
+                compilation = new FutureTask<>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        File output = output(key);
+                        try {
+                            compiler.compile(output);
+                        } catch (Exception e) {
+                            Files.deleteIfExists(output.toPath());
+                            throw e;
+                        }
+                        store(key, output, target);
+                        return null;
+                    }
+                });
+                compilations.put(key, compilation);
+            } else {
+                compilation = running;
+                joined.incrementAndGet();
+            }
+        }
+
+        if(compiles){
+            try {
+                compilation.run();
+            } finally {
+                synchronized (this){
+                    compilations.remove(key);
+                }
+            }
+        }
+
+        try {
+            compilation.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof ExitFailureException){
+                throw (ExitFailureException) cause;
+            }
+            if(cause instanceof IOException){
+                throw (IOException) cause;
+            }
+            if(cause instanceof InterruptedException && compiles){
+                throw (InterruptedException) cause;
+            }
+            throw new ExitFailureException("Compilation failed: " + cause, cause);
+        }
+
+        if(!compiles && !fetch(key, target)){
+            throw new IOException("Compiled binary was removed before it was used");
+        }
+        return true;
+    }
+
+    /**
+     * Puts the binary with the given key at target, if the store has it.
+     * @param key key of the binary
+     * @param target where the binary shall be
+     * @return true if target now is the binary
+     * @throws IOException if the binary couldn't be linked or copied
+     */
+    public synchronized boolean fetch(String key, File target) throws IOException {
+        final File binary = new File(directory, key);
+        if(!entries.containsKey(key) || !binary.isFile()){
+            misses.incrementAndGet();
+            if(entries.containsKey(key)){
+                remove(key);
+            }
+            return false;
+        }
+        //Marks it as recently used
+        entries.get(key);
+        hits.incrementAndGet();
+        link(binary, target);
+        return true;
+    }
+
+    /**
+     * @param key key of the binary that will be compiled
+     * @return file that a compilation shall write to before it is stored
+     */
+    public File output(String key){
+        return new File(directory, key + "." + UUID.randomUUID() + TEMPORARY);
+    }
+
+    /**
+     * Moves a compiled binary into the store and puts it at target. If another compilation of the same key has
+     * been stored already, that binary is used instead.
+     * @param key key of the binary
+     * @param output file the compilation wrote to, see {@link #output(String)}
+     * @param target where the binary shall be
+     * @throws IOException if the binary couldn't be moved, linked or copied
+     */
+    public synchronized void store(String key, File output, File target) throws IOException {
+        if(!isKey(key)){
+            throw new IllegalArgumentException("Not a binary key: " + key);
+        }
+        final File binary = new File(directory, key);
+        if(entries.containsKey(key) && binary.isFile()){
+            Files.deleteIfExists(output.toPath());
+        } else {
+            try {
+                Files.move(output.toPath(), binary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(output.toPath(), binary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            final Long previous = entries.put(key, binary.length());
+            if(previous != null){
+                bytes -= previous;
+            }
+            bytes += binary.length();
+            stored.incrementAndGet();
+        }
+        //Links before evicting, so that the new binary can't be removed before it is used
+        link(binary, target);
+        evict();
+    }
+
+    private static boolean isKey(String key){
+        return key != null && key.matches("[0-9a-f]{40}");
+    }
+
+    private static byte[] longBytes(long value){
+        byte[] bytes = new byte[8];
+        for(int i=0; i<8; ++i){
+            bytes[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Puts the binary at target without ever leaving target missing or partly written, since other tasks of the
+     * project may run it meanwhile. The binary is linked or copied next to target and then moved over it.
+     */
+    private static void link(File binary, File target) throws IOException {
+        if(target.exists() && Files.isSameFile(target.toPath(), binary.toPath())){
+            return;
+        }
+        target.getParentFile().mkdirs();
+        final File temporary = new File(target.getParentFile(), target.getName() + "." + UUID.randomUUID() + TEMPORARY);
+        try {
+            try {
+                Files.createLink(temporary.toPath(), binary.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                //Different file systems, or links aren't supported
+                Files.copy(binary.toPath(), temporary.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            try {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    private void evict(){
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        //Keeps the newest binary even if it is larger than the store
+        while(bytes > maxBytes && entries.size() > 1){
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.getValue();
+            evicted.incrementAndGet();
+            delete(eldest.getKey());
+        }
+    }
+
+    private void remove(String key){
+        Long length = entries.remove(key);
+        if(length != null){
+            bytes -= length;
+        }
+        delete(key);
+    }
+
+    private void delete(String key){
+        final File binary = new File(directory, key);
+        if(binary.exists() && !binary.delete()){
+            System.out.println("Failed to delete compiled task " + binary);
+        }
+    }
+
+    public synchronized Statistics statistics(){
+        return new Statistics(hits.get(), misses.get(), stored.get(), evicted.get(), joined.get(), entries.size(),
+                bytes);
+    }
+
+    public static class Statistics {
+        private final long hits;
+        private final long misses;
+        private final long stored;
+        private final long evicted;
+        private final long joined;
+        private final int binaries;
+        private final long bytes;
+
+        private Statistics(long hits, long misses, long stored, long evicted, long joined, int binaries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.stored = stored;
+            this.evicted = evicted;
+            this.joined = joined;
+            this.binaries = binaries;
+            this.bytes = bytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return number of compiled binaries that have been stored
+         */
+        public long getStored() {
+            return stored;
+        }
+
+        public long getEvicted() {
+            return evicted;
+        }
+
+        /**
+         * @return number of times a task waited for a compilation of another task instead of compiling
+         */
+        public long getJoined() {
+            return joined;
+        }
+
+        /**
+         * @return number of binaries in the store
+         */
+        public int getBinaries() {
+            return binaries;
+        }
+
+        /**
+         * @return number of bytes in the store
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "BinaryCache{hits=" + hits + ", misses=" + misses + ", stored=" + stored + ", evicted=" + evicted +
+                    ", joined=" + joined + ", binaries=" + binaries + ", bytes=" + bytes + "}";
+        }
+    }
+}
@@ -1,11 +1,9 @@
 package se.chalmers.gdcn.taskbuilder;
 
-import org.apache.commons.io.IOUtils;
 import se.chalmers.gdcn.taskbuilder.fileManagement.Install;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.List;
 import java.util.Map;
 
@@ -34,20 +32,9 @@ public class HaskellCompiler {
             env.put("GHC_PACKAGE_PATH", Install.HDB_DIR + File.pathSeparator);
         }
 
-        Process proc = null;
-        try {
-            proc = pb.start();
-
-            if (proc.waitFor() != 0) {
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(proc.getErrorStream(), writer, null);
-
-                throw new ExitFailureException(writer.toString());
-            }
-        } finally {
-            if (proc != null) {
-                proc.destroy();
-            }
+        ProcessRunner.Result result = ProcessRunner.instance().run(pb);
+        if (!result.succeeded()) {
+            throw new ExitFailureException(result.failure());
         }
     }
 
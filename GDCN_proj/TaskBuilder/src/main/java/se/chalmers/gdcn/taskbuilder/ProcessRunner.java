@@ -0,0 +1,491 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs external processes, such as compiled tasks, ghc and validators, to completion or until they exceed their
+ * limits.
+ *
+ * Output and error output are read while the process runs, so that a process that writes a lot can't block on a
+ * full pipe. Only the last gdcn.process.outputLimit chars of each are kept. A process that runs longer than
+ * gdcn.process.timeout millis, or uses more than gdcn.process.cpuTimeout millis of CPU time if that is set, is killed
+ * together with every process it has started.
+ *
+ * CPU time, peak memory and the processes started by a process are read from /proc, so they are only available on
+ * Linux. Elsewhere only the wall time limit applies and only the process itself is killed. The processes started by
+ * a process are only looked up if there is a CPU time limit or the process is killed, otherwise only the CPU time
+ * the process has used and waited for is sampled.
+ */
+public class ProcessRunner {
+
+    private static final long TIMEOUT = Long.getLong("gdcn.process.timeout", 30 * 60 * 1000L);
+    private static final long CPU_TIMEOUT = Long.getLong("gdcn.process.cpuTimeout", 0L);
+    private static final int OUTPUT_LIMIT = Integer.getInteger("gdcn.process.outputLimit", 1 << 20);
+
+    //Millis between samples of the CPU time and memory of a running process
+    private static final long POLL_INTERVAL = 50;
+    //Millis to wait for the output of a killed process
+    private static final long DRAIN_TIMEOUT = 1000;
+    //Clock ticks per second of the times in /proc, which is 100 on every Linux platform
+    private static final long TICKS_PER_SECOND = 100;
+
+    private static final File PROC = new File("/proc");
+
+    //Threads that read output of and wait for processes
+    private static final ExecutorService drainers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ProcessRunner");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static ProcessRunner instance = null;
+
+    /**
+     * Limit that made a process be killed.
+     */
+    public static enum Limit {
+        WALL_TIME, CPU_TIME
+    }
+
+    private final long timeout;
+    private final long cpuTimeout;
+    private final int outputLimit;
+    private final long pollInterval;
+
+    public static synchronized ProcessRunner instance(){
+        if(instance == null){
+            instance = new ProcessRunner(TIMEOUT, CPU_TIMEOUT, OUTPUT_LIMIT);
+        }
+        return instance;
+    }
+
+    /**
+     * @param timeout millis a process may run
+     * @param cpuTimeout millis of CPU time a process may use, 0 for no limit
+     * @param outputLimit chars of output and of error output that are kept
+     */
+    ProcessRunner(long timeout, long cpuTimeout, int outputLimit) {
+        this(timeout, cpuTimeout, outputLimit, POLL_INTERVAL);
+    }
+
+    /**
+     * @param pollInterval millis between samples of a running process
+     */
+    ProcessRunner(long timeout, long cpuTimeout, int outputLimit, long pollInterval) {
+        this.timeout = timeout;
+        this.cpuTimeout = cpuTimeout;
+        this.outputLimit = outputLimit;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Starts a process and waits until it has finished or has been killed.
+     * @param processBuilder process to run, of which output and error output must not be redirected
+     * @return exit value, output and resource usage of the process
+     * @throws IOException if the process couldn't be started
+     * @throws InterruptedException if interrupted while waiting, in which case the process is killed
+     */
+    public Result run(ProcessBuilder processBuilder) throws IOException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        final Process process = processBuilder.start();
+        final long pid = pid(process);
+
+        try {
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            //Has already exited
+        }
+        final OutputBuffer output = new OutputBuffer(outputLimit);
+        final OutputBuffer error = new OutputBuffer(outputLimit);
+        final Future<?> outputDrain = drain(process.getInputStream(), output);
+        final Future<?> errorDrain = drain(process.getErrorStream(), error);
+
+        //Is done as soon as the process exits, so that short processes aren't kept waiting for the next sample
+        final Future<Integer> exit = waitFor(process);
+
+        Limit exceeded = null;
+        long cpuTime = -1;
+        long peakMemory = -1;
+        Integer exitValue = null;
+        try {
+            while(exitValue == null){
+                final long remaining = timeout - (System.currentTimeMillis() - start);
+                if(remaining <= 0){
+                    exceeded = Limit.WALL_TIME;
+                } else {
+                    try {
+                        //Without /proc there is nothing to sample, only the wall time limit
+                        exitValue = exit.get(pid > 0 ? Math.min(pollInterval, remaining) : remaining,
+                                TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        //Still runs
+                    } catch (ExecutionException e) {
+                        throw new IOException("Couldn't wait for the process", e.getCause());
+                    }
+
+                    if(pid > 0){
+                        //Only a CPU limit needs the descendants, which takes reading all of /proc
+                        final Set<Long> sampled = cpuTimeout > 0 ? tree(pid) : Collections.singleton(pid);
+                        cpuTime = Math.max(cpuTime, cpuTime(sampled));
+                        peakMemory = Math.max(peakMemory, peakMemory(pid));
+                    }
+                    if(cpuTimeout > 0 && cpuTime > cpuTimeout){
+                        exceeded = Limit.CPU_TIME;
+                    }
+                }
+                if(exceeded != null){
+                    kill(process, pid);
+                    exitValue = process.waitFor();
+                }
+            }
+        } catch (InterruptedException e) {
+            kill(process, pid);
+            throw e;
+        } finally {
+            finish(process, outputDrain, errorDrain);
+        }
+
+        return new Result(exitValue, exceeded, output, error, System.currentTimeMillis() - start, cpuTime,
+                peakMemory);
+    }
+
+    private static Future<Integer> waitFor(final Process process){
+        return drainers.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                return process.waitFor();
+            }
+        });
+    }
+
+    private static Future<?> drain(final InputStream inputStream, final OutputBuffer buffer){
+        return drainers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                Reader reader = new InputStreamReader(inputStream, Charset.defaultCharset());
+                try {
+                    char[] chars = new char[8192];
+                    int read;
+                    while((read = reader.read(chars)) >= 0){
+                        buffer.append(chars, read);
+                    }
+                } finally {
+                    reader.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for the output to be read. If it takes long, some descendant that escaped the kill keeps the pipes open,
+     * and the output so far is used.
+     */
+    private static void finish(Process process, Future<?> outputDrain, Future<?> errorDrain){
+        final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        for(Future<?> drain : Arrays.asList(outputDrain, errorDrain)){
+            try {
+                drain.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                //Output is incomplete
+            }
+        }
+        closeQuietly(process.getInputStream());
+        closeQuietly(process.getErrorStream());
+        process.destroy();
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //Nothing more to do
+        }
+    }
+
+    /**
+     * Kills the process and every process it has started.
+     */
+    private static void kill(Process process, long pid){
+        if(pid > 0){
+            List<String> command = new ArrayList<>();
+            command.add("kill");
+            command.add("-KILL");
+            for(Long member : tree(pid)){
+                command.add(member.toString());
+            }
+            try {
+                Process kill = new ProcessBuilder(command)
+                        .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")))
+                        .redirectErrorStream(true)
+                        .start();
+                kill.waitFor();
+            } catch (IOException e) {
+                System.out.println("Failed to kill processes of " + pid + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        process.destroy();
+    }
+
+    /**
+     * @return process id, or -1 if it isn't available
+     */
+    private static long pid(Process process){
+        try {
+            //Since Java 9
+            Method method = Process.class.getMethod("pid");
+            return (Long) method.invoke(process);
+        } catch (Exception e) {
+            //Earlier versions only have it in the Unix implementation
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the process and all of its descendants that are alive
+     */
+    private static Set<Long> tree(long pid){
+        Set<Long> tree = new LinkedHashSet<>();
+        tree.add(pid);
+
+        Map<Long, List<Long>> children = new HashMap<>();
+        File[] processes = PROC.listFiles();
+        if(processes == null){
+            return tree;
+        }
+        for(File process : processes){
+            if(!process.getName().matches("[0-9]+")){
+                continue;
+            }
+            String[] stat = stat(new File(process, "stat"));
+            if(stat == null){
+                continue;
+            }
+            final Long parent = Long.valueOf(stat[1]);
+            List<Long> siblings = children.get(parent);
+            if(siblings == null){
+                siblings = new ArrayList<>();
+                children.put(parent, siblings);
+            }
+            siblings.add(Long.valueOf(process.getName()));
+        }
+
+        Deque<Long> queue = new ArrayDeque<>(tree);
+        while(!queue.isEmpty()){
+            List<Long> found = children.get(queue.poll());
+            if(found != null){
+                for(Long child : found){
+                    if(tree.add(child)){
+                        queue.add(child);
+                    }
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @return millis of CPU time used by the processes and the children they have waited for, -1 if not available
+     */
+    private static long cpuTime(Set<Long> tree){
+        long ticks = 0;
+        boolean found = false;
+        for(Long pid : tree){
+            String[] stat = stat(new File(PROC, pid + "/stat"));
+            if(stat == null){
+                continue;
+            }
+            found = true;
+            //utime, stime, cutime and cstime
+            for(int field = 11; field <= 14; ++field){
+                ticks += Long.parseLong(stat[field]);
+            }
+        }
+        return found ? ticks * 1000 / TICKS_PER_SECOND : -1;
+    }
+
+    /**
+     * @return peak resident memory of the process in bytes, -1 if not available
+     */
+    private static long peakMemory(long pid){
+        try {
+            for(String line : Files.readAllLines(new File(PROC, pid + "/status").toPath(), Charset.defaultCharset())){
+                if(line.startsWith("VmHWM:")){
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //Has exited, or isn't Linux
+        }
+        return -1;
+    }
+
+    /**
+     * @return the fields of /proc/[pid]/stat after the command name, starting with the state, or null
+     */
+    private static String[] stat(File file){
+        try {
+            String stat = new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset());
+            //The command name is in parentheses and may contain spaces
+            final int end = stat.lastIndexOf(')');
+            if(end < 0){
+                return null;
+            }
+            String[] fields = stat.substring(end + 1).trim().split(" +");
+            return fields.length > 14 ? fields : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the last chars that have been written.
+     */
+    private static class OutputBuffer {
+        private final char[] chars;
+        private int start = 0;
+        private int size = 0;
+        private long dropped = 0;
+
+        private OutputBuffer(int limit) {
+            chars = new char[limit];
+        }
+
+        private synchronized void append(char[] data, int length){
+            for(int i=0; i<length; ++i){
+                if(chars.length == 0){
+                    ++dropped;
+                } else if(size < chars.length){
+                    chars[(start + size++) % chars.length] = data[i];
+                } else {
+                    chars[start] = data[i];
+                    start = (start + 1) % chars.length;
+                    ++dropped;
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder builder = new StringBuilder(size);
+            for(int i=0; i<size; ++i){
+                builder.append(chars[(start + i) % chars.length]);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Outcome of a process.
+     */
+    public static class Result {
+        private final int exitValue;
+        private final Limit exceeded;
+        private final String output;
+        private final String error;
+        private final boolean truncated;
+        private final long wallTime;
+        private final long cpuTime;
+        private final long peakMemory;
+
+        private Result(int exitValue, Limit exceeded, OutputBuffer output, OutputBuffer error, long wallTime,
+                       long cpuTime, long peakMemory) {
+            this.exitValue = exitValue;
+            this.exceeded = exceeded;
+            this.output = output.toString();
+            this.error = error.toString();
+            this.truncated = output.dropped > 0 || error.dropped > 0;
+            this.wallTime = wallTime;
+            this.cpuTime = cpuTime;
+            this.peakMemory = peakMemory;
+        }
+
+        /**
+         * @return true if the process exited with 0 by itself
+         */
+        public boolean succeeded(){
+            return exceeded == null && exitValue == 0;
+        }
+
+        public int getExitValue() {
+            return exitValue;
+        }
+
+        /**
+         * @return limit that made the process be killed, or null if it exited by itself
+         */
+        public Limit getExceeded() {
+            return exceeded;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return true if the beginning of the output or error output was dropped
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        /**
+         * @return millis of CPU time used as last seen while it ran, -1 if not available
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * @return peak resident memory in bytes as last seen while it ran, -1 if not available
+         */
+        public long getPeakMemory() {
+            return peakMemory;
+        }
+
+        /**
+         * @return message that describes why the process failed
+         */
+        public String failure(){
+            if(exceeded != null){
+                return "Killed after exceeding its " + exceeded.name().toLowerCase().replace('_', ' ') + " limit\n"
+                        + error;
+            }
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Process{exitValue=" + exitValue + ", exceeded=" + exceeded + ", wallTime=" + wallTime +
+                    ", cpuTime=" + cpuTime + ", peakMemory=" + peakMemory + ", truncated=" + truncated + "}";
+        }
+    }
+}
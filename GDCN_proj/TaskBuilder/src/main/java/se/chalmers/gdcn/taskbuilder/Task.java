@@ -1,6 +1,5 @@
 package se.chalmers.gdcn.taskbuilder;
 
-import org.apache.commons.io.IOUtils;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.TaskListener;
 import se.chalmers.gdcn.taskbuilder.fileManagement.PathManager;
 import se.chalmers.gdcn.taskbuilder.utils.FormatString;
@@ -26,6 +25,10 @@ public class Task implements Runnable{
 
     private final TaskListener listener;
 
+    //Millis spent in each stage of the last run, -1 if the stage didn't run
+    private volatile long compileTime = -1;
+    private volatile long executeTime = -1;
+
     /**
      *
      * @param projectName Name of local folder to work in
@@ -49,31 +52,53 @@ public class Task implements Runnable{
     }
 
     /**
-     * Compiles task code
+     * @return flags that change the compiled binary, which are part of its key in the {@link BinaryCache}
+     */
+    private List<String> compileFlags(){
+        //TODO Manage trust in a non hardcoded way
+        List<String> flags = new ArrayList<>();
+        flags.add("-DMODULE=" + moduleName);
+        for (String trustedPackage : trustedPackages) {
+            flags.add("-trust");
+            flags.add(trustedPackage);
+        }
+        return flags;
+    }
+
+    /**
+     * @return Header.hs and every file the module may import from the code directory, in a fixed order
      */
-    public void compile(){
-        List<File> dirs = new ArrayList<>();
-        dirs.add(new File(pathManager.taskBinaryDir()));
-        dirs.add(new File(pathManager.projectTempDir()));
-
-        for(File dir : dirs){
-            if(!dir.exists()){
-                dir.mkdirs();
+    private List<File> compileSources(){
+        List<File> sources = new ArrayList<>();
+        File[] code = new File(pathManager.taskCodeDir()).listFiles();
+        if(code != null){
+            Arrays.sort(code);
+            for(File file : code){
+                if(file.isFile()){
+                    sources.add(file);
+                }
             }
         }
+        sources.add(new File(pathManager.header()));
+        return sources;
+    }
 
-        //TODO Manage trust in a non hardcoded way
-        String[] commandInit = {"ghc", "-o", compiledModule(),
-                "-DMODULE=" + moduleName, "-i" + pathManager.taskCodeDir(), pathManager.header(),
-                "-outputdir", pathManager.taskTempDir(taskName)};
+    /**
+     * Compiles task code
+     * @param output file to write the binary to
+     * @param flags flags from {@link #compileFlags()}
+     */
+    private void compile(File output, List<String> flags) throws InterruptedException, IOException, ExitFailureException {
+        File tempDir = new File(pathManager.projectTempDir());
+        if(!tempDir.exists()){
+            tempDir.mkdirs();
+        }
 
         List<String> command = new ArrayList<>();
-        command.addAll(Arrays.asList(commandInit));
-
-        for (String trustedPackage : trustedPackages) {
-            command.add("-trust");
-            command.add(trustedPackage);
-        }
+        command.addAll(Arrays.asList("ghc", "-o", output.getAbsolutePath(),
+                "-i" + pathManager.taskCodeDir(), pathManager.header(),
+                "-outputdir", pathManager.taskTempDir(taskName)));
+        command.addAll(flags);
 
         HaskellCompiler haskellCompiler = new HaskellCompiler();
 
@@ -84,62 +109,76 @@ public class Task implements Runnable{
 
         try {
             haskellCompiler.compile(command);
-        }
-        catch (InterruptedException | IOException | ExitFailureException e) {
-            e.printStackTrace();
-            listener.taskFailed(moduleName, e.getMessage());
         } finally {
             pathManager.deleteTaskTemp(taskName);
         }
     }
 
     /**
-     * Executes a task
+     * Executes a task, in a server from the {@link TaskServerPool} if it is enabled and has a server free, otherwise
+     * in a process of its own
      */
     public void execute(){
-        List<String> command = new ArrayList<>();
-        command.add(compiledModule());
+        List<String> args = new ArrayList<>();
         final String resultFile = pathManager.getResultFilePath(taskName);
-        command.add(resultFile);
-        command.addAll(initDataPaths);
+        args.add(resultFile);
+        args.addAll(initDataPaths);
 
         System.out.println("Running task...");
         System.out.println();
 
-        Process proc = null;
+        if (TaskServerPool.isEnabled()) {
+            try {
+                String output = TaskServerPool.instance().execute(new File(compiledModule()), args);
+                if (output != null) {
+                    finished(output);
+                    return;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                listener.taskFailed(taskName, e.getMessage());
+                return;
+            }
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(compiledModule());
+        command.addAll(args);
 
         try {
-            //proc = new ProcessBuilder(command).inheritIO().start();
-            proc = new ProcessBuilder(command).start();
+            ProcessRunner.Result result = ProcessRunner.instance().run(new ProcessBuilder(command));
+            System.out.println(result);
 
-            if (proc.waitFor() != 0) {
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(proc.getErrorStream(), writer, null);
-                throw new ExitFailureException(writer.toString());
+            if (!result.succeeded()) {
+                throw new ExitFailureException(result.failure());
             }
             else {
-                //TODO Possibly wrap pure result data in a class
-
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(proc.getInputStream(), writer, null);
-                System.out.println("Result of task:");
-                System.out.println(FormatString.colour(writer.toString(), FormatString.Colour.GREEN));
-                System.out.println();
-
-                listener.taskFinished(taskName);
+                finished(result.getOutput());
             }
         }
         catch (Exception e) {
-            if (proc != null) {
-                proc.destroy();
-            }
             e.printStackTrace();
             listener.taskFailed(taskName, e.getMessage());
         }
     }
 
     /**
-     * Compiles and executes a task
+     * @param output debug output of the task, the result is in the result file
+     */
+    private void finished(String output){
+        //TODO Possibly wrap pure result data in a class
+
+        System.out.println("Result of task:");
+        System.out.println(FormatString.colour(output, FormatString.Colour.GREEN));
+        System.out.println();
+
+        listener.taskFinished(taskName);
+    }
+
+    /**
+     * Compiles and executes a task. The binary is taken from the {@link BinaryCache} if the same sources have been
+     * compiled before, in this project or another, or are being compiled by another task. If that compilation fails,
+     * every task that waited for it fails.
      */
     @Override
     public void run(){
@@ -149,13 +188,41 @@ public class Task implements Runnable{
             if (executable.isDirectory()) {
                 throw new IOException(execFilePath + " is a directory.");
             }
-            if (!executable.exists()) {
-                compile();
+            final List<String> flags = compileFlags();
+            String key = BinaryCache.key(compileSources(), flags);
+            BinaryCache cache = BinaryCache.instance();
+
+            long compileStart = System.currentTimeMillis();
+            boolean compiled = cache.obtain(key, executable, new BinaryCache.Compiler() {
+                @Override
+                public void compile(File output) throws IOException, InterruptedException, ExitFailureException {
+                    Task.this.compile(output, flags);
+                }
+            });
+            if (compiled) {
+                compileTime = System.currentTimeMillis() - compileStart;
+                System.out.println(cache.statistics());
             }
+            long start = System.currentTimeMillis();
             execute();
+            executeTime = System.currentTimeMillis() - start;
         } catch (Exception e) {
             e.printStackTrace();
             listener.taskFailed(taskName, e.getMessage());
         }
     }
+
+    /**
+     * @return millis spent compiling in the last run, -1 if an existing binary was used
+     */
+    public long getCompileTime() {
+        return compileTime;
+    }
+
+    /**
+     * @return millis spent executing in the last run, -1 if it didn't execute
+     */
+    public long getExecuteTime() {
+        return executeTime;
+    }
 }
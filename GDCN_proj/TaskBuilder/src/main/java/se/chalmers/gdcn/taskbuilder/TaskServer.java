@@ -0,0 +1,134 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * One long running process of a compiled task, started with --serve, that runs the task for every invocation
+ * instead of being started for each. See the serve loop of Header.hs for the protocol.
+ *
+ * Is used by one thread at a time, see {@link TaskServerPool}.
+ */
+class TaskServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Process process;
+    private final BufferedWriter requests;
+    private final BufferedReader responses;
+
+    private volatile boolean killed = false;
+    private long lastUsed = System.currentTimeMillis();
+
+    /**
+     * @param command command that starts the process in server mode
+     * @throws IOException if the process couldn't be started
+     */
+    TaskServer(List<String> command) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        //Errors of invocations are in the responses, this is only what the runtime prints when it crashes
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        process = processBuilder.start();
+        requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), UTF8));
+        responses = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF8));
+    }
+
+    /**
+     * Runs the task once.
+     * @param args arguments as they would be given to the process on the command line
+     * @return debug output of the task
+     * @throws ExitFailureException if the task failed, in which case the server may be used again
+     * @throws IOException if the server failed, in which case it must not be used again
+     */
+    String invoke(List<String> args) throws IOException, ExitFailureException {
+        for(String arg : args){
+            if(arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0){
+                throw new IllegalArgumentException("Arguments are sent one per line: " + arg);
+            }
+        }
+        try {
+            requests.write(Integer.toString(args.size()));
+            requests.newLine();
+            for(String arg : args){
+                requests.write(arg);
+                requests.newLine();
+            }
+            requests.flush();
+
+            final String status = responses.readLine();
+            if(status == null){
+                throw new IOException("Task server has exited");
+            }
+            final String[] parts = status.split(" ");
+            if(parts.length != 2 || !(parts[0].equals("OK") || parts[0].equals("ERR"))){
+                throw new IOException("Unexpected response from task server: " + status);
+            }
+
+            final int lines = Integer.parseInt(parts[1]);
+            StringBuilder text = new StringBuilder();
+            for(int i=0; i<lines; ++i){
+                final String line = responses.readLine();
+                if(line == null){
+                    throw new IOException("Task server has exited");
+                }
+                text.append(line).append('\n');
+            }
+
+            lastUsed = System.currentTimeMillis();
+            if(parts[0].equals("ERR")){
+                throw new ExitFailureException(text.toString());
+            }
+            return text.toString();
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected response from task server", e);
+        } catch (IOException e) {
+            if(killed){
+                throw new IOException("Task server was killed", e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the process hasn't exited
+     */
+    boolean isAlive(){
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return time the last invocation finished, or the server was started
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Lets the process finish by closing its input.
+     */
+    void stop(){
+        try {
+            requests.close();
+        } catch (IOException e) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Ends the process at once, also if another thread waits for its response.
+     */
+    void kill(){
+        killed = true;
+        process.destroy();
+    }
+
+    boolean isKilled() {
+        return killed;
+    }
+}
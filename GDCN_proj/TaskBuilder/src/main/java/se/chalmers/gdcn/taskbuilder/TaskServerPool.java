@@ -0,0 +1,382 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps compiled tasks running as {@link TaskServer}s, so that replicas of the same module reuse one process instead
+ * of starting one each. Is used only if gdcn.taskServer is set, otherwise every task is run in a process of its own.
+ *
+ * At most gdcn.taskServer.max servers run at once. If every one is busy the task is run in a process of its own,
+ * see {@link #execute(File, List)}. An invocation that takes longer than gdcn.taskServer.timeout millis kills its
+ * server, and servers that have been idle for gdcn.taskServer.idle millis are stopped. An idle server is pinged before
+ * it is reused, and killed if it doesn't answer within gdcn.taskServer.pingTimeout millis.
+ */
+public class TaskServerPool {
+
+    private static final boolean ENABLED = Boolean.getBoolean("gdcn.taskServer");
+    private static final int MAX_SERVERS = Integer.getInteger("gdcn.taskServer.max",
+            Runtime.getRuntime().availableProcessors());
+    private static final long TIMEOUT = Long.getLong("gdcn.taskServer.timeout", 30 * 60 * 1000L);
+    private static final long IDLE = Long.getLong("gdcn.taskServer.idle", 60 * 1000L);
+    private static final long PING_TIMEOUT = Long.getLong("gdcn.taskServer.pingTimeout", 5000L);
+
+    //Servers that have been idle shorter than this are reused without a ping
+    private static final long PING_AFTER = 1000;
+
+    private static TaskServerPool instance = null;
+
+    private final int maxServers;
+    private final long timeout;
+    private final long idle;
+    private final long pingTimeout;
+
+    //Idle servers by binary, the most recently used last
+    private final Map<String, Deque<TaskServer>> idleServers = new HashMap<>();
+    //Servers that are running, busy or idle
+    private int servers = 0;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong invocations = new AtomicLong(0);
+    private final AtomicLong started = new AtomicLong(0);
+    private final AtomicLong restarts = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong fallbacks = new AtomicLong(0);
+
+    /**
+     * @return true if tasks shall be run in task servers
+     */
+    public static boolean isEnabled(){
+        return ENABLED;
+    }
+
+    public static synchronized TaskServerPool instance(){
+        if(instance == null){
+            instance = new TaskServerPool(MAX_SERVERS, TIMEOUT, IDLE, PING_TIMEOUT);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxServers servers that may run at once
+     * @param timeout millis an invocation may take
+     * @param idle millis a server may be idle before it is stopped
+     * @param pingTimeout millis a server may take to answer a ping before it is killed
+     */
+    TaskServerPool(int maxServers, long timeout, long idle, long pingTimeout) {
+        this.maxServers = maxServers;
+        this.timeout = timeout;
+        this.idle = idle;
+        this.pingTimeout = pingTimeout;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TaskServerPool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                stopIdle();
+            }
+        }, idle, idle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a compiled task in a server of that binary. If the server dies, the task is run once more in a new server.
+     * @param binary compiled task, with the header that supports --serve
+     * @param args arguments as they would be given to the binary on the command line
+     * @return debug output of the task, or null if no server was free, in which case the caller runs the task itself
+     * @throws ExitFailureException if the task failed or timed out
+     * @throws IOException if the server couldn't be started or died twice
+     */
+    public String execute(File binary, List<String> args) throws IOException, ExitFailureException {
+        final String key = binary.getAbsolutePath() + ":" + binary.lastModified();
+        TaskServer server = acquire(key, binary);
+        if(server == null){
+            fallbacks.incrementAndGet();
+            return null;
+        }
+
+        boolean restarted = false;
+        while(true){
+            try {
+                String output = invoke(server, args);
+                release(key, server);
+                return output;
+            } catch (ExitFailureException e) {
+                if(server.isKilled()){
+                    discard(server);
+                } else {
+                    release(key, server);
+                }
+                throw e;
+            } catch (IOException e) {
+                discard(server);
+                if(restarted){
+                    throw e;
+                }
+                System.out.println("Task server of " + binary + " died, restarting: " + e.getMessage());
+                restarted = true;
+                restarts.incrementAndGet();
+                server = acquire(key, binary);
+                if(server == null){
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return an idle server of the binary, a new server, or null if the pool is full of busy servers
+     */
+    private TaskServer acquire(String key, File binary) throws IOException {
+        while(true){
+            TaskServer reused = null;
+            TaskServer evicted = null;
+            synchronized (this){
+                Deque<TaskServer> queue = idleServers.get(key);
+                if(queue != null && !queue.isEmpty()){
+                    reused = queue.pollLast();
+                } else if(servers < maxServers){
+                    ++servers;
+                } else {
+                    evicted = pollIdle();
+                    if(evicted == null){
+                        return null;
+                    }
+                }
+            }
+
+            if(reused == null){
+                if(evicted != null){
+                    //Takes the place of a server of another binary
+                    evicted.stop();
+                }
+                return start(binary);
+            }
+            if(usable(reused)){
+                return reused;
+            }
+            discard(reused);
+        }
+    }
+
+    /**
+     * Starts a server in a place that has already been counted.
+     */
+    private TaskServer start(File binary) throws IOException {
+        try {
+            TaskServer server = new TaskServer(command(binary));
+            started.incrementAndGet();
+            return server;
+        } catch (IOException e) {
+            synchronized (this){
+                --servers;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param binary compiled task
+     * @return command that starts a server of the binary
+     */
+    List<String> command(File binary){
+        return Arrays.asList(binary.getAbsolutePath(), "--serve");
+    }
+
+    private boolean usable(TaskServer server){
+        if(server.isKilled() || !server.isAlive()){
+            return false;
+        }
+        return System.currentTimeMillis() - server.getLastUsed() < PING_AFTER || ping(server);
+    }
+
+    /**
+     * @return true if the server answers a request without arguments in time, it is killed otherwise
+     */
+    private boolean ping(TaskServer server){
+        try {
+            watched(server, Collections.<String>emptyList(), pingTimeout);
+            return true;
+        } catch (IOException | ExitFailureException e) {
+            return false;
+        }
+    }
+
+    private String invoke(TaskServer server, List<String> args) throws IOException, ExitFailureException {
+        invocations.incrementAndGet();
+        try {
+            return watched(server, args, timeout);
+        } catch (IOException e) {
+            if(server.isKilled()){
+                //Not retried, the task would most likely time out again
+                timeouts.incrementAndGet();
+                throw new ExitFailureException("Task timed out after " + timeout + " ms", e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Invokes the server, which is killed if it hasn't answered within millis.
+     */
+    private String watched(final TaskServer server, List<String> args, long millis)
+            throws IOException, ExitFailureException {
+        ScheduledFuture<?> watchdog = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                server.kill();
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+        try {
+            return server.invoke(args);
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    private synchronized void release(String key, TaskServer server){
+        Deque<TaskServer> queue = idleServers.get(key);
+        if(queue == null){
+            queue = new ArrayDeque<>();
+            idleServers.put(key, queue);
+        }
+        queue.addLast(server);
+    }
+
+    private void discard(TaskServer server){
+        server.kill();
+        synchronized (this){
+            --servers;
+        }
+    }
+
+    /**
+     * @return the idle server that has been idle longest, removed from the idle servers
+     */
+    private synchronized TaskServer pollIdle(){
+        Deque<TaskServer> oldest = null;
+        for(Deque<TaskServer> queue : idleServers.values()){
+            if(queue.isEmpty()){
+                continue;
+            }
+            if(oldest == null || queue.peekFirst().getLastUsed() < oldest.peekFirst().getLastUsed()){
+                oldest = queue;
+            }
+        }
+        return oldest == null ? null : oldest.pollFirst();
+    }
+
+    private void stopIdle(){
+        final long now = System.currentTimeMillis();
+        List<TaskServer> stopped = new ArrayList<>();
+        synchronized (this){
+            Iterator<Deque<TaskServer>> queues = idleServers.values().iterator();
+            while(queues.hasNext()){
+                Deque<TaskServer> queue = queues.next();
+                while(!queue.isEmpty() && now - queue.peekFirst().getLastUsed() >= idle){
+                    stopped.add(queue.pollFirst());
+                    --servers;
+                }
+                if(queue.isEmpty()){
+                    queues.remove();
+                }
+            }
+        }
+        for(TaskServer server : stopped){
+            server.stop();
+        }
+    }
+
+    /**
+     * Stops every idle server. Busy servers finish their invocation but aren't reused.
+     */
+    public void shutdown(){
+        scheduler.shutdownNow();
+        List<TaskServer> stopped = new ArrayList<>();
+        synchronized (this){
+            for(Deque<TaskServer> queue : idleServers.values()){
+                stopped.addAll(queue);
+                servers -= queue.size();
+            }
+            idleServers.clear();
+        }
+        for(TaskServer server : stopped){
+            server.stop();
+        }
+    }
+
+    public synchronized Statistics statistics(){
+        return new Statistics(invocations.get(), started.get(), restarts.get(), timeouts.get(), fallbacks.get(),
+                servers);
+    }
+
+    public static class Statistics {
+        private final long invocations;
+        private final long started;
+        private final long restarts;
+        private final long timeouts;
+        private final long fallbacks;
+        private final int servers;
+
+        private Statistics(long invocations, long started, long restarts, long timeouts, long fallbacks, int servers) {
+            this.invocations = invocations;
+            this.started = started;
+            this.restarts = restarts;
+            this.timeouts = timeouts;
+            this.fallbacks = fallbacks;
+            this.servers = servers;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        /**
+         * @return number of servers that have been started
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return number of times a task was run again since its server died
+         */
+        public long getRestarts() {
+            return restarts;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * @return number of tasks that were run in a process of their own since every server was busy
+         */
+        public long getFallbacks() {
+            return fallbacks;
+        }
+
+        /**
+         * @return number of servers that are running
+         */
+        public int getServers() {
+            return servers;
+        }
+
+        @Override
+        public String toString() {
+            return "TaskServerPool{invocations=" + invocations + ", started=" + started + ", restarts=" + restarts +
+                    ", timeouts=" + timeouts + ", fallbacks=" + fallbacks + ", servers=" + servers + "}";
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package se.chalmers.gdcn.taskbuilder;
 
-import org.apache.commons.io.IOUtils;
 import se.chalmers.gdcn.taskbuilder.communicationToClient.ValidityListener;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -39,19 +37,15 @@ public class Validifier {
         command.add(program);
         command.add(result);
         command.addAll(taskDeps);
-        Process proc = null;
 
         try {
-            proc = new ProcessBuilder(command).start();
+            ProcessRunner.Result outcome = ProcessRunner.instance().run(new ProcessBuilder(command));
 
-            if (proc.waitFor() == 0) {
+            if (outcome.succeeded()) {
                 // Check output
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(proc.getInputStream(), writer, null);
-
                 try {
                     NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
-                    double quality = numberFormat.parse(writer.toString()).doubleValue();
+                    double quality = numberFormat.parse(outcome.getOutput()).doubleValue();
 
                     // Result accepted
                     listener.validityOk(quality);
@@ -61,18 +55,12 @@ public class Validifier {
                     listener.validityCorrupt();
                 }
             } else {
-                // Program error
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(proc.getErrorStream(), writer, null);
-                listener.validityError(writer.toString());
+                // Program error, or killed for exceeding its limits
+                listener.validityError(outcome.failure());
             }
         }
         catch (IOException | InterruptedException e) {
             listener.validityError(e.toString());
         }
-        finally {
-            if (proc != null)
-                proc.destroy();
-        }
     }
 }
\ No newline at end of file
@@ -19,6 +19,9 @@ public class PathManager {
     private final static String TEMP_FOLDER_NAME = "temp" + File.separator;
     private final static String VALID_FOLDER_NAME = "valid" + File.separator;
     private final static String RESULT_FOLDER_NAME = "result" + File.separator;
+    //Starts with a dot so that it isn't mistaken for a project
+    private final static String CACHE_FOLDER_NAME = ".cache" + File.separator;
+    private final static String BINARY_CACHE_FOLDER_NAME = ".binaries" + File.separator;
 
     private static String headerLocation = null;
     private static String dataPath = null;
@@ -70,6 +73,24 @@ public class PathManager {
         return settingsPath;
     }
 
+    /**
+     *
+     * @return Path to directory where workers keep the files of every project by their content hash
+     */
+    public static String contentCacheDir() {
+        check();
+        return dataPath + CACHE_FOLDER_NAME;
+    }
+
+    /**
+     *
+     * @return Path to directory where workers keep compiled tasks of every project by the hash of their sources
+     */
+    public static String binaryCacheDir() {
+        check();
+        return dataPath + BINARY_CACHE_FOLDER_NAME;
+    }
+
     /**
      *
      * @return Path to Header.hs
@@ -198,11 +219,7 @@ public class PathManager {
         try {
             input = new FileInputStream(file);
             prop.load(input);
-
-            headerLocation = prop.getProperty("bin_path");
-            dataPath = prop.getProperty("data_path");
-            jobPath = prop.getProperty("job_path");
-            settingsPath = prop.getProperty("settings_path");
+            loadFromProperties(prop);
         }
         catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -221,6 +238,34 @@ public class PathManager {
     }
 
 
+    /**
+     *
+     * @param prop Root paths for resources etc, with the keys of the properties file. Missing keys unset the paths,
+     *             so that the default location is loaded again.
+     */
+    public static void loadFromProperties(Properties prop) {
+        headerLocation = prop.getProperty("bin_path");
+        dataPath = prop.getProperty("data_path");
+        jobPath = prop.getProperty("job_path");
+        settingsPath = prop.getProperty("settings_path");
+    }
+
+    /**
+     *
+     * @return Root paths that are used now, which may be given back to {@link #loadFromProperties(Properties)}
+     */
+    public static Properties getPaths() {
+        Properties prop = new Properties();
+        String[][] paths = {{"bin_path", headerLocation}, {"data_path", dataPath}, {"job_path", jobPath},
+                {"settings_path", settingsPath}};
+        for(String[] path : paths){
+            if(path[1] != null){
+                prop.setProperty(path[0], path[1]);
+            }
+        }
+        return prop;
+    }
+
     /**
      * Delete all temp files for this project
      * @return if success
@@ -0,0 +1,291 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the keys of {@link BinaryCache}, that it stores, shares and removes binaries and that tasks that need the
+ * same binary at once share one compilation without disturbing tasks that run it.
+ */
+public class BinaryCacheTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void setupMethod(){
+        directory = new File(System.getProperty("java.io.tmpdir"), "gdcn-binary-test-" + System.nanoTime());
+        directory.mkdirs();
+    }
+
+    @Test
+    public void keyTest() throws IOException {
+        File module = write("code/Prime.hs", "main = print 2");
+        File header = write("Header.hs", "header");
+        List<String> flags = Arrays.asList("-DMODULE=Prime");
+
+        String key = BinaryCache.key(Arrays.asList(module, header), flags);
+        assert key.matches("[0-9a-f]{40}");
+        assert key.equals(BinaryCache.key(Arrays.asList(module, header), flags));
+
+        //Same sources in another project
+        File copy = write("other/code/Prime.hs", "main = print 2");
+        assert key.equals(BinaryCache.key(Arrays.asList(copy, header), flags));
+
+        assert !key.equals(BinaryCache.key(Arrays.asList(module, header), Arrays.asList("-DMODULE=Other")));
+        write("code/Prime.hs", "main = print 3");
+        assert !key.equals(BinaryCache.key(Arrays.asList(module, header), flags));
+    }
+
+    @Test
+    public void storeTest() throws IOException {
+        BinaryCache cache = new BinaryCache(new File(directory, "cache"), 10000);
+        String key = key("A");
+        File projectA = new File(directory, "A/bin/Prime");
+        File projectB = new File(directory, "B/bin/Prime");
+
+        assert !cache.fetch(key, projectA);
+        File output = compile(cache, key, 100);
+        cache.store(key, output, projectA);
+        assert !output.exists();
+        assert projectA.length() == 100;
+
+        assert cache.fetch(key, projectB);
+        assert projectB.length() == 100;
+
+        BinaryCache.Statistics statistics = cache.statistics();
+        assert statistics.getHits() == 1;
+        assert statistics.getMisses() == 1;
+        assert statistics.getStored() == 1;
+        assert statistics.getBinaries() == 1;
+    }
+
+    @Test
+    public void concurrentCompileTest() throws IOException {
+        BinaryCache cache = new BinaryCache(new File(directory, "cache"), 10000);
+        String key = key("A");
+
+        //Both missed the cache and compiled, each to a file of its own
+        File first = compile(cache, key, 100);
+        File second = compile(cache, key, 100);
+        assert !first.equals(second);
+
+        cache.store(key, first, new File(directory, "A/bin/Prime"));
+        cache.store(key, second, new File(directory, "B/bin/Prime"));
+        assert !second.exists();
+        assert new File(directory, "B/bin/Prime").length() == 100;
+        assert cache.statistics().getStored() == 1;
+        assert cache.statistics().getBytes() == 100;
+    }
+
+    @Test
+    public void evictTest() throws IOException {
+        BinaryCache cache = new BinaryCache(new File(directory, "cache"), 250);
+        for(String name : new String[]{"A", "B", "C"}){
+            cache.store(key(name), compile(cache, key(name), 100), new File(directory, name + "/bin/Prime"));
+            if(name.equals("B")){
+                //Makes A more recently used than B
+                assert cache.fetch(key("A"), new File(directory, "D/bin/Prime"));
+            }
+        }
+
+        assert cache.statistics().getEvicted() == 1;
+        assert cache.fetch(key("A"), new File(directory, "E/bin/Prime"));
+        assert !cache.fetch(key("B"), new File(directory, "E/bin/Prime"));
+        //Projects keep their binaries
+        assert new File(directory, "B/bin/Prime").length() == 100;
+    }
+
+    @Test
+    public void reopenTest() throws IOException {
+        BinaryCache cache = new BinaryCache(new File(directory, "cache"), 10000);
+        cache.store(key("A"), compile(cache, key("A"), 100), new File(directory, "A/bin/Prime"));
+        File unfinished = compile(cache, key("B"), 100);
+
+        BinaryCache reopened = new BinaryCache(new File(directory, "cache"), 10000);
+        assert !unfinished.exists();
+        assert reopened.fetch(key("A"), new File(directory, "B/bin/Prime"));
+        assert reopened.statistics().getBinaries() == 1;
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        final BinaryCache cache = new BinaryCache(new File(directory, "cache"), 10000);
+        final String key = key("A");
+        final AtomicInteger compilations = new AtomicInteger(0);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Boolean>> tasks = obtainAll(cache, key, 4, new BinaryCache.Compiler() {
+            @Override
+            public void compile(File output) throws IOException, InterruptedException {
+                compilations.incrementAndGet();
+                release.await();
+                write(output, 100);
+            }
+        });
+        //Lets every task reach the cache before the compilation finishes
+        while(cache.statistics().getJoined() < 3){
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for(Future<Boolean> task : tasks){
+            assert task.get(5, TimeUnit.SECONDS);
+        }
+        assert compilations.get() == 1;
+        for(int i=0; i<4; ++i){
+            assert new File(directory, i + "/bin/Prime").length() == 100;
+        }
+    }
+
+    @Test
+    public void failedCompilationTest() throws Exception {
+        final BinaryCache cache = new BinaryCache(new File(directory, "cache"), 10000);
+        final String key = key("A");
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Boolean>> tasks = obtainAll(cache, key, 3, new BinaryCache.Compiler() {
+            @Override
+            public void compile(File output) throws InterruptedException, ExitFailureException {
+                release.await();
+                throw new ExitFailureException("Expected by test");
+            }
+        });
+        while(cache.statistics().getJoined() < 2){
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for(Future<Boolean> task : tasks){
+            boolean failed = false;
+            try {
+                task.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failed = e.getCause() instanceof ExitFailureException;
+            }
+            assert failed;
+        }
+
+        //Failures aren't remembered, the next task compiles again
+        assert cache.obtain(key, new File(directory, "next/bin/Prime"), new BinaryCache.Compiler() {
+            @Override
+            public void compile(File output) throws IOException {
+                write(output, 100);
+            }
+        });
+        File[] left = new File(directory, "cache").listFiles();
+        assert left != null && left.length == 1;
+    }
+
+    @Test
+    public void obtainWhileRunningTest() throws Exception {
+        final BinaryCache cache = new BinaryCache(new File(directory, "cache"), 10000);
+        final String key = key("A");
+        final File target = new File(directory, "A/bin/Prime");
+        final BinaryCache.Compiler compiler = new BinaryCache.Compiler() {
+            @Override
+            public void compile(File output) throws IOException {
+                write(output, 100);
+            }
+        };
+        assert cache.obtain(key, target, compiler);
+
+        //The first task holds the binary open as if it ran it
+        FileInputStream running = new FileInputStream(target);
+        Object fileKey = Files.readAttributes(target.toPath(), BasicFileAttributes.class).fileKey();
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<Void> other = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        for(int i=0; i<200; ++i){
+                            cache.obtain(key, target, compiler);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                    return null;
+                }
+            });
+            executor.shutdown();
+
+            //The binary of the project never disappears or is partly written while the other task obtains it
+            while(!done.await(0, TimeUnit.MILLISECONDS)){
+                assert target.length() == 100;
+            }
+            other.get(5, TimeUnit.SECONDS);
+
+            assert running.read(new byte[200]) == 100;
+            assert fileKey == null || fileKey.equals(
+                    Files.readAttributes(target.toPath(), BasicFileAttributes.class).fileKey());
+        } finally {
+            running.close();
+        }
+        File[] left = target.getParentFile().listFiles();
+        assert left != null && left.length == 1;
+    }
+
+    /**
+     * Obtains the binary from as many threads at once, each for a project of its own
+     */
+    private List<Future<Boolean>> obtainAll(final BinaryCache cache, final String key, int threads,
+                                            final BinaryCache.Compiler compiler){
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> tasks = new ArrayList<>();
+        for(int i=0; i<threads; ++i){
+            final File target = new File(directory, i + "/bin/Prime");
+            tasks.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return cache.obtain(key, target, compiler);
+                }
+            }));
+        }
+        executor.shutdown();
+        return tasks;
+    }
+
+    private String key(String name) throws IOException {
+        return BinaryCache.key(Collections.singletonList(write("sources/" + name + ".hs", name)),
+                Collections.<String>emptyList());
+    }
+
+    /**
+     * Writes a binary of the given length where a compilation would
+     */
+    private File compile(BinaryCache cache, String key, int length) throws IOException {
+        File output = cache.output(key);
+        write(output, length);
+        return output;
+    }
+
+    private static void write(File file, int length) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(new byte[length]);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private File write(String path, String contents) throws IOException {
+        File file = new File(directory, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes("UTF-8"));
+        return file;
+    }
+}
@@ -0,0 +1,48 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import java.io.*;
+import java.util.UUID;
+
+/**
+ * Speaks the protocol of a compiled task started with --serve, see Header.hs, so that {@link TaskServerPoolTest}
+ * doesn't need ghc. Answers every invocation with an id of the process, unless the first argument after the result
+ * file is "fail", "crash", "sleep" followed by millis, or "hang" which stops answering after this invocation.
+ */
+public class FakeTaskServer {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final String id = UUID.randomUUID().toString();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        PrintStream out = new PrintStream(System.out, false, "UTF-8");
+
+        boolean hung = false;
+        String line;
+        while((line = in.readLine()) != null){
+            String[] arguments = new String[Integer.parseInt(line)];
+            for(int i=0; i<arguments.length; ++i){
+                arguments[i] = in.readLine();
+            }
+
+            final String command = arguments.length > 1 ? arguments[1] : "";
+            if(hung){
+                //Reads requests but never answers, as a server that is stuck
+                continue;
+            }
+            hung = command.equals("hang");
+            if(command.equals("crash")){
+                System.exit(1);
+            } else if(command.equals("sleep")){
+                Thread.sleep(Long.parseLong(arguments[2]));
+            }
+
+            if(command.equals("fail")){
+                out.print("ERR 1\nfailed\n");
+            } else if(arguments.length == 0){
+                out.print("OK 0\n");
+            } else {
+                out.print("OK 1\n" + id + "\n");
+            }
+            out.flush();
+        }
+    }
+}
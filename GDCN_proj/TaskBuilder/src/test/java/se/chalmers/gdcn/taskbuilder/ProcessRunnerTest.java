@@ -0,0 +1,86 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that {@link ProcessRunner} reads output while processes run, keeps the end of it and kills processes, with
+ * everything they have started, that exceed their limits. Runs sh, and the CPU and memory parts need /proc.
+ */
+public class ProcessRunnerTest {
+
+    @Test
+    public void outputTest() throws IOException, InterruptedException {
+        ProcessRunner runner = new ProcessRunner(10000, 0, 1000);
+        //Far more than fits in a pipe, written before anything on the error output
+        ProcessRunner.Result result = run(runner, "head -c 1000000 /dev/zero | tr '\\000' a; echo end; echo failed >&2");
+
+        assert result.succeeded();
+        assert result.getExceeded() == null;
+        assert result.isTruncated();
+        assert result.getOutput().length() == 1000;
+        assert result.getOutput().endsWith("aaaend\n");
+        assert result.getError().equals("failed\n");
+    }
+
+    @Test
+    public void exitValueTest() throws IOException, InterruptedException {
+        ProcessRunner.Result result = run(new ProcessRunner(10000, 0, 1000), "echo broken >&2; exit 3");
+        assert !result.succeeded();
+        assert result.getExitValue() == 3;
+        assert !result.isTruncated();
+        assert result.failure().equals("broken\n");
+    }
+
+    @Test
+    public void timeoutTest() throws IOException, InterruptedException {
+        //The background sleep keeps the output open unless it is killed too
+        ProcessRunner.Result result = run(new ProcessRunner(500, 0, 1000), "sleep 60 & sleep 60; wait");
+
+        assert result.getExceeded() == ProcessRunner.Limit.WALL_TIME;
+        assert !result.succeeded();
+        assert result.getWallTime() < 5000;
+        assert result.failure().startsWith("Killed after exceeding its wall time limit");
+    }
+
+    @Test
+    public void cpuTimeoutTest() throws IOException, InterruptedException {
+        if(!new File("/proc/self/stat").exists()){
+            return;
+        }
+        ProcessRunner.Result result = run(new ProcessRunner(10000, 300, 1000), "while :; do :; done");
+
+        assert result.getExceeded() == ProcessRunner.Limit.CPU_TIME;
+        assert result.getCpuTime() > 300;
+        assert result.getWallTime() < 5000;
+    }
+
+    @Test
+    public void usageTest() throws IOException, InterruptedException {
+        if(!new File("/proc/self/stat").exists()){
+            return;
+        }
+        ProcessRunner.Result result = run(new ProcessRunner(10000, 0, 1000), "sleep 0.3");
+        assert result.succeeded();
+        assert result.getWallTime() >= 300;
+        assert result.getCpuTime() >= 0;
+        assert result.getPeakMemory() > 0;
+    }
+
+    @Test
+    public void quickExitTest() throws IOException, InterruptedException {
+        //Samples far less often than the process runs, so it is only done in time if the exit is seen when it happens
+        ProcessRunner runner = new ProcessRunner(60000, 0, 1000, 20000);
+        //Outlives the first look at the process
+        ProcessRunner.Result result = run(runner, "sleep 0.1");
+        assert result.succeeded();
+        assert result.getWallTime() < 10000 : result;
+    }
+
+    private static ProcessRunner.Result run(ProcessRunner runner, String script)
+            throws IOException, InterruptedException {
+        return runner.run(new ProcessBuilder("sh", "-c", script));
+    }
+}
@@ -0,0 +1,180 @@
+package se.chalmers.gdcn.taskbuilder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Tests that {@link TaskServerPool} reuses servers, restarts servers that die, kills servers that time out or stop
+ * answering pings and runs no more servers than it may. Uses {@link FakeTaskServer} instead of compiled tasks.
+ */
+public class TaskServerPoolTest {
+
+    private File binaryA;
+    private File binaryB;
+    private TaskServerPool pool;
+
+    @BeforeMethod
+    public void setupMethod() throws IOException {
+        binaryA = File.createTempFile("gdcn-server-test", "A");
+        binaryB = File.createTempFile("gdcn-server-test", "B");
+    }
+
+    @AfterMethod
+    public void tearDownMethod(){
+        if(pool != null){
+            pool.shutdown();
+        }
+        binaryA.delete();
+        binaryB.delete();
+    }
+
+    @Test
+    public void reuseTest() throws Exception {
+        pool = pool(2, 10000, 10000);
+        String first = pool.execute(binaryA, args("result"));
+        String second = pool.execute(binaryA, args("result"));
+        assert first != null && first.equals(second);
+
+        assert !first.equals(pool.execute(binaryB, args("result")));
+        assert pool.statistics().getStarted() == 2;
+        assert pool.statistics().getInvocations() == 3;
+    }
+
+    @Test
+    public void failTest() throws Exception {
+        pool = pool(2, 10000, 10000);
+        String id = pool.execute(binaryA, args("result"));
+
+        boolean failed = false;
+        try {
+            pool.execute(binaryA, args("result", "fail"));
+        } catch (ExitFailureException e) {
+            failed = e.getMessage().equals("failed\n");
+        }
+        assert failed;
+        //A failed task doesn't take its server with it
+        assert id.equals(pool.execute(binaryA, args("result")));
+    }
+
+    @Test
+    public void crashTest() throws Exception {
+        pool = pool(2, 10000, 10000);
+        String id = pool.execute(binaryA, args("result"));
+
+        boolean failed = false;
+        try {
+            pool.execute(binaryA, args("result", "crash"));
+        } catch (IOException e) {
+            failed = true;
+        }
+        assert failed;
+        assert pool.statistics().getRestarts() == 1;
+        assert pool.statistics().getServers() == 0;
+
+        String restarted = pool.execute(binaryA, args("result"));
+        assert restarted != null && !restarted.equals(id);
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        pool = pool(2, 1000, 10000);
+        pool.execute(binaryA, args("result"));
+
+        boolean timedOut = false;
+        try {
+            pool.execute(binaryA, args("result", "sleep", "60000"));
+        } catch (ExitFailureException e) {
+            timedOut = true;
+        }
+        assert timedOut;
+        assert pool.statistics().getTimeouts() == 1;
+        assert pool.statistics().getRestarts() == 0;
+        assert pool.execute(binaryA, args("result")) != null;
+    }
+
+    @Test
+    public void capacityTest() throws Exception {
+        pool = pool(1, 10000, 10000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> busy = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return pool.execute(binaryA, args("result", "sleep", "1000"));
+            }
+        });
+        while(pool.statistics().getInvocations() < 1){
+            Thread.sleep(10);
+        }
+
+        assert pool.execute(binaryA, args("result")) == null;
+        assert pool.statistics().getFallbacks() == 1;
+        assert busy.get(10, TimeUnit.SECONDS) != null;
+        executor.shutdown();
+
+        //The idle server of A gives way to B
+        assert pool.execute(binaryB, args("result")) != null;
+        assert pool.statistics().getStarted() == 2;
+        assert pool.statistics().getServers() == 1;
+    }
+
+    @Test
+    public void idleTest() throws Exception {
+        pool = pool(2, 10000, 200);
+        pool.execute(binaryA, args("result"));
+        assert pool.statistics().getServers() == 1;
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while(pool.statistics().getServers() > 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50);
+        }
+        assert pool.statistics().getServers() == 0;
+    }
+
+    @Test
+    public void hungPingTest() throws Exception {
+        pool = pool(2, 60000, 10000, 500);
+        final String id = pool.execute(binaryA, args("result", "hang"));
+        //Long enough to be pinged before it is reused
+        Thread.sleep(1500);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> next = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return pool.execute(binaryA, args("result"));
+            }
+        });
+        String restarted = next.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assert restarted != null && !restarted.equals(id);
+        assert pool.statistics().getStarted() == 2;
+        assert pool.statistics().getServers() == 1;
+        assert pool.statistics().getTimeouts() == 0;
+    }
+
+    private static List<String> args(String... args){
+        return Arrays.asList(args);
+    }
+
+    private static TaskServerPool pool(int maxServers, long timeout, long idle){
+        return pool(maxServers, timeout, idle, 5000);
+    }
+
+    private static TaskServerPool pool(int maxServers, long timeout, long idle, long pingTimeout){
+        return new TaskServerPool(maxServers, timeout, idle, pingTimeout) {
+            @Override
+            List<String> command(File binary) {
+                return Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+                        System.getProperty("java.class.path"), FakeTaskServer.class.getName());
+            }
+        };
+    }
+}